@@ -0,0 +1,264 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import com.google.common.collect.ImmutableList;
+import com.proofpoint.units.Duration;
+import org.weakref.jmx.Managed;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.round;
+import static java.lang.Math.sqrt;
+
+/**
+ * Adjusts the max connections of a data source between a min and max limit
+ * based on how long connections are held and whether callers wait for one.
+ * <p/>
+ * Each {@link #update() update} compares the mean time connections were
+ * held since the last update with a slowly moving baseline of that time,
+ * in the style of a gradient concurrency limit. When the latency grows
+ * beyond the tolerated ratio of the baseline, the database is assumed to be
+ * overloaded and the limit shrinks in proportion. When the latency is
+ * within tolerance and callers had to wait for a connection, the limit
+ * grows by the square root of the limit. Otherwise the limit is left alone,
+ * so it does not grow while the pool is not the bottleneck. Changes are
+ * smoothed, and every change is kept in a short history with its reason.
+ * <p/>
+ * The baseline only learns from updates within tolerance, so sustained
+ * overload can not raise it to the degraded latency and stop the limit
+ * from shrinking. After a lasting change in the work done on connections,
+ * {@link #resetBaseline()} makes it start over.
+ * <p/>
+ * The time a connection is held includes whatever the application does
+ * between its statements, so it is only a proxy for the latency of the
+ * database. It works best for callers that hold connections just for
+ * their statements.
+ * <p/>
+ * While enabled, the limit overrides max connections set by hand.
+ */
+public class AdaptiveConnectionLimit
+{
+    // updates with fewer returned connections are skipped
+    static final int MIN_SAMPLES = 10;
+    // latency may grow to this multiple of the baseline before the limit shrinks
+    private static final double TOLERANCE = 1.5;
+    // the most the limit shrinks in one update
+    private static final double MIN_GRADIENT = 0.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double BASELINE_SMOOTHING = 0.05;
+    // a checkout that waits at least this long counts as queued
+    private static final long QUEUED_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int HISTORY_SIZE = 100;
+
+    private final ManagedDataSource dataSource;
+    private final AtomicLong heldNanos = new AtomicLong();
+    private final AtomicLong heldCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong increaseCount = new AtomicLong();
+    private final AtomicLong decreaseCount = new AtomicLong();
+    private final LinkedList<String> history = new LinkedList<String>();
+    private volatile boolean enabled;
+    private volatile int minLimit = 1;
+    private volatile int maxLimit;
+    private volatile double baselineNanos;
+    private volatile double latencyNanos;
+    private double estimate;
+
+    AdaptiveConnectionLimit(ManagedDataSource dataSource, int maxLimit)
+    {
+        this.dataSource = dataSource;
+        setMaxLimit(maxLimit);
+    }
+
+    @Managed(description = "Whether max connections is adjusted to the observed latency")
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    @Managed
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    @Managed
+    public int getMinLimit()
+    {
+        return minLimit;
+    }
+
+    @Managed
+    public void setMinLimit(int minLimit)
+    {
+        if (minLimit < 1) {
+            throw new IllegalArgumentException("minLimit must be at least 1: minLimit=" + minLimit);
+        }
+        this.minLimit = minLimit;
+    }
+
+    @Managed
+    public int getMaxLimit()
+    {
+        return maxLimit;
+    }
+
+    @Managed
+    public void setMaxLimit(int maxLimit)
+    {
+        if (maxLimit < 1) {
+            throw new IllegalArgumentException("maxLimit must be at least 1: maxLimit=" + maxLimit);
+        }
+        this.maxLimit = maxLimit;
+    }
+
+    @Managed(description = "Mean time connections were held in the last update")
+    public double getLatencyMillis()
+    {
+        return latencyNanos / 1.0e6;
+    }
+
+    @Managed(description = "Moving average of the time connections are held while latency is within tolerance")
+    public double getBaselineLatencyMillis()
+    {
+        return baselineNanos / 1.0e6;
+    }
+
+    /**
+     * Forgets the baseline, so the next update takes its latency as the new
+     * baseline.
+     */
+    @Managed(description = "Forget the baseline latency and measure it again")
+    public synchronized void resetBaseline()
+    {
+        baselineNanos = 0;
+    }
+
+    @Managed
+    public long getIncreaseCount()
+    {
+        return increaseCount.get();
+    }
+
+    @Managed
+    public long getDecreaseCount()
+    {
+        return decreaseCount.get();
+    }
+
+    @Managed(description = "Recent limit changes with their reasons, newest first")
+    public List<String> getHistory()
+    {
+        synchronized (history) {
+            return ImmutableList.copyOf(history);
+        }
+    }
+
+    void connectionWaited(Duration elapsedTime)
+    {
+        if (!enabled) {
+            return;
+        }
+        waitCount.incrementAndGet();
+        if (elapsedTime.convertTo(TimeUnit.NANOSECONDS) >= QUEUED_NANOS) {
+            queuedCount.incrementAndGet();
+        }
+    }
+
+    void connectionReturned(Duration elapsedTime)
+    {
+        if (!enabled) {
+            return;
+        }
+        heldNanos.addAndGet((long) elapsedTime.convertTo(TimeUnit.NANOSECONDS));
+        heldCount.incrementAndGet();
+    }
+
+    /**
+     * Adjusts the limit to the connections returned since the last update.
+     */
+    synchronized void update()
+    {
+        long held = heldCount.getAndSet(0);
+        long heldSum = heldNanos.getAndSet(0);
+        long waits = waitCount.getAndSet(0);
+        long queued = queuedCount.getAndSet(0);
+        if (!enabled || held < MIN_SAMPLES) {
+            return;
+        }
+
+        double latency = (double) heldSum / held;
+        latencyNanos = latency;
+        if (baselineNanos == 0) {
+            baselineNanos = latency;
+        }
+
+        // start from the current max connections in case it was changed by hand
+        int limit = dataSource.getMaxConnections();
+        if (round(estimate) != limit) {
+            estimate = limit;
+        }
+
+        double gradient = max(MIN_GRADIENT, min(1.0, TOLERANCE * baselineNanos / latency));
+        String reason;
+        if (limit < minLimit || limit > maxLimit) {
+            reason = String.format("limit is outside the bounds of %d to %d", minLimit, maxLimit);
+        }
+        else if (gradient < 1.0) {
+            estimate = estimate * (1 - SMOOTHING) + estimate * gradient * SMOOTHING;
+            reason = String.format("latency %.1fms is %.1fx the %.1fms baseline", latency / 1.0e6, latency / baselineNanos, baselineNanos / 1.0e6);
+        }
+        else if (queued > 0) {
+            estimate = estimate + sqrt(estimate) * SMOOTHING;
+            reason = String.format("%d of %d checkouts waited, latency %.1fms is within tolerance", queued, waits, latency / 1.0e6);
+        }
+        else {
+            // the pool is not the bottleneck
+            reason = null;
+        }
+        if (latency <= TOLERANCE * baselineNanos) {
+            baselineNanos = baselineNanos * (1 - BASELINE_SMOOTHING) + latency * BASELINE_SMOOTHING;
+        }
+
+        // keep the estimate within the bounds so it can not run away while clamped
+        estimate = max(minLimit, min(maxLimit, estimate));
+        int newLimit = (int) round(estimate);
+        if (newLimit == limit || reason == null) {
+            return;
+        }
+
+        dataSource.setMaxConnections(newLimit);
+        if (newLimit > limit) {
+            increaseCount.incrementAndGet();
+        }
+        else {
+            decreaseCount.incrementAndGet();
+        }
+        synchronized (history) {
+            history.addFirst(String.format("%tFT%<tT limit %d -> %d: %s", System.currentTimeMillis(), limit, newLimit, reason));
+            if (history.size() > HISTORY_SIZE) {
+                history.removeLast();
+            }
+        }
+    }
+}
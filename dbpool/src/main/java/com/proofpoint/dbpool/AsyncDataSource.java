@@ -0,0 +1,396 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.units.Duration;
+import org.weakref.jmx.Managed;
+
+import javax.annotation.PreDestroy;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.Math.ceil;
+import static java.lang.Math.max;
+
+/**
+ * Runs database work on a dedicated executor and returns futures, so request
+ * threads do not block on JDBC.
+ * <p/>
+ * The executor has one thread for each connection of the data source, so
+ * tasks never wait for a connection held by a queued task, and it queues at
+ * most {@link ManagedDataSourceConfig#getMaxQueuedAsyncTasks()} tasks.
+ * Submitting to a full queue returns a future failed with a {@link
+ * RejectedExecutionException}. Cancelling a future, or a task running out
+ * of time, cancels the statements the task is executing.
+ * <p/>
+ * {@link MySqlDataSourceModule} and {@link H2EmbeddedDataSourceModule} bind
+ * an AsyncDataSource for their data source with the same annotation.
+ */
+public class AsyncDataSource
+{
+    private final ManagedDataSource dataSource;
+    private final Duration defaultTimeout;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledThreadPoolExecutor timeoutExecutor;
+
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    public AsyncDataSource(ManagedDataSource dataSource, ManagedDataSourceConfig<?> config)
+    {
+        if (dataSource == null) {
+            throw new NullPointerException("dataSource is null");
+        }
+        if (config == null) {
+            throw new NullPointerException("config is null");
+        }
+        if (config.getMaxQueuedAsyncTasks() < 1) {
+            throw new IllegalArgumentException("maxQueuedAsyncTasks must be at least 1");
+        }
+        this.dataSource = dataSource;
+        this.defaultTimeout = config.getAsyncQueryTimeout();
+
+        int threads = max(1, dataSource.getMaxConnections());
+        executor = new ThreadPoolExecutor(threads, threads,
+                1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<Runnable>(config.getMaxQueuedAsyncTasks()),
+                new ThreadFactoryBuilder().setNameFormat("AsyncDataSource-%s").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+
+        timeoutExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("AsyncDataSource-timeout-%s").setDaemon(true).build());
+        timeoutExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Cancels queued and running tasks and stops the executor.
+     */
+    @PreDestroy
+    public void shutdown()
+    {
+        timeoutExecutor.shutdownNow();
+        for (Runnable runnable : executor.shutdownNow()) {
+            ((JdbcTask<?>) runnable).cancel(false);
+        }
+    }
+
+    /**
+     * Runs the callback on a connection of the data source with the
+     * configured timeout.
+     */
+    public <T> ListenableFuture<T> submit(ConnectionCallback<T> callback)
+    {
+        return submit(callback, defaultTimeout);
+    }
+
+    /**
+     * Runs the callback on a connection of the data source. If the task,
+     * including the time it is queued, takes longer than the timeout, its
+     * statements are cancelled and the future fails with a {@link
+     * SqlTimeoutException}.
+     *
+     * @param timeout the time limit for the task, or null for no limit
+     */
+    public <T> ListenableFuture<T> submit(ConnectionCallback<T> callback, Duration timeout)
+    {
+        if (callback == null) {
+            throw new NullPointerException("callback is null");
+        }
+
+        JdbcTask<T> task = new JdbcTask<T>(callback, timeout);
+        resizeExecutor();
+        try {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            return Futures.immediateFailedFuture(e);
+        }
+        task.scheduleTimeout();
+        return task;
+    }
+
+    @Managed(description = "Number of tasks running")
+    public int getActiveCount()
+    {
+        return executor.getActiveCount();
+    }
+
+    @Managed(description = "Number of tasks waiting for a thread")
+    public int getQueuedCount()
+    {
+        return executor.getQueue().size();
+    }
+
+    @Managed
+    public long getCompletedCount()
+    {
+        return completedCount.get();
+    }
+
+    @Managed
+    public long getFailedCount()
+    {
+        return failedCount.get();
+    }
+
+    @Managed(description = "Number of tasks rejected because the queue was full")
+    public long getRejectedCount()
+    {
+        return rejectedCount.get();
+    }
+
+    @Managed
+    public long getTimeoutCount()
+    {
+        return timeoutCount.get();
+    }
+
+    @Managed
+    public long getCancelledCount()
+    {
+        return cancelledCount.get();
+    }
+
+    /**
+     * Follows changes to the max connections of the data source.
+     */
+    private synchronized void resizeExecutor()
+    {
+        int threads = max(1, dataSource.getMaxConnections());
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        }
+        else if (threads < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    private class JdbcTask<T>
+            extends AbstractFuture<T>
+            implements Runnable
+    {
+        private final ConnectionCallback<T> callback;
+        private final Duration timeout;
+        private final long deadline;
+        private final List<Statement> statements = new ArrayList<Statement>();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private ScheduledFuture<?> timeoutFuture;
+
+        private JdbcTask(ConnectionCallback<T> callback, Duration timeout)
+        {
+            this.callback = callback;
+            this.timeout = timeout;
+            this.deadline = timeout == null ? 0 : System.nanoTime() + (long) timeout.convertTo(TimeUnit.NANOSECONDS);
+        }
+
+        private void scheduleTimeout()
+        {
+            if (timeout == null) {
+                return;
+            }
+            try {
+                final ScheduledFuture<?> timeoutFuture = timeoutExecutor.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (finish(timeoutCount)) {
+                            setException(new SqlTimeoutException("Database task did not complete within " + timeout));
+                            executor.remove(JdbcTask.this);
+                            cancelStatements();
+                        }
+                    }
+                }, (long) timeout.toMillis(), TimeUnit.MILLISECONDS);
+                addListener(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        timeoutFuture.cancel(false);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+            }
+            catch (RejectedExecutionException ignored) {
+                // shut down, the task is cancelled by shutdown
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            if (finished.get()) {
+                return;
+            }
+
+            T result = null;
+            Throwable failure = null;
+            Connection connection = null;
+            try {
+                connection = dataSource.getConnection();
+                if (finished.get()) {
+                    return;
+                }
+                result = callback.execute(trackStatements(connection));
+            }
+            catch (Throwable e) {
+                failure = e;
+            }
+            finally {
+                synchronized (statements) {
+                    statements.clear();
+                }
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    }
+                    catch (SQLException ignored) {
+                    }
+                }
+            }
+
+            // complete after the connection is back in the pool
+            if (failure == null) {
+                if (finish(completedCount)) {
+                    set(result);
+                }
+            }
+            else if (finish(failedCount)) {
+                setException(failure);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            if (!finish(cancelledCount)) {
+                return false;
+            }
+            super.cancel(mayInterruptIfRunning);
+            // free the queue slot of a task that has not started
+            executor.remove(this);
+            cancelStatements();
+            return true;
+        }
+
+        /**
+         * Claims the completion of the task and counts how it completed,
+         * before the future wakes up the callers waiting on it.
+         *
+         * @return false if the task was already completed
+         */
+        private boolean finish(AtomicLong counter)
+        {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            counter.incrementAndGet();
+            return true;
+        }
+
+        private void cancelStatements()
+        {
+            List<Statement> running;
+            synchronized (statements) {
+                running = new ArrayList<Statement>(statements);
+            }
+            for (Statement statement : running) {
+                try {
+                    statement.cancel();
+                }
+                catch (SQLException ignored) {
+                    // statement is closed or the driver does not support cancel
+                }
+            }
+        }
+
+        private Connection trackStatements(final Connection connection)
+        {
+            return (Connection) Proxy.newProxyInstance(AsyncDataSource.class.getClassLoader(), new Class<?>[] {Connection.class}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                        throws Throwable
+                {
+                    if (method.getDeclaringClass() == Object.class) {
+                        if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        return connection.toString();
+                    }
+
+                    Object result;
+                    try {
+                        result = method.invoke(connection, args);
+                    }
+                    catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    if (result instanceof Statement) {
+                        addStatement((Statement) result);
+                    }
+                    return result;
+                }
+            });
+        }
+
+        private void addStatement(Statement statement)
+                throws SQLException
+        {
+            if (timeout != null) {
+                // let the driver enforce the remaining time as well
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    throw new SqlTimeoutException("Database task did not complete within " + timeout);
+                }
+                statement.setQueryTimeout((int) ceil(remainingNanos / 1.0e9));
+            }
+            synchronized (statements) {
+                statements.add(statement);
+            }
+            if (isCancelled()) {
+                statement.cancel();
+            }
+        }
+    }
+}
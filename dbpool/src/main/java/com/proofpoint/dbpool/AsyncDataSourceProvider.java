@@ -0,0 +1,59 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+
+import javax.sql.DataSource;
+
+/**
+ * Provides the {@link AsyncDataSource} of a data source bound by one of the
+ * data source modules.
+ */
+class AsyncDataSourceProvider implements Provider<AsyncDataSource>
+{
+    private final Key<DataSource> dataSourceKey;
+    private final Key<? extends ManagedDataSourceConfig<?>> configKey;
+    private Injector injector;
+
+    AsyncDataSourceProvider(Key<DataSource> dataSourceKey, Key<? extends ManagedDataSourceConfig<?>> configKey)
+    {
+        if (dataSourceKey == null) {
+            throw new NullPointerException("dataSourceKey is null");
+        }
+        if (configKey == null) {
+            throw new NullPointerException("configKey is null");
+        }
+        this.dataSourceKey = dataSourceKey;
+        this.configKey = configKey;
+    }
+
+    @Inject
+    public void setInjector(Injector injector)
+    {
+        this.injector = injector;
+    }
+
+    @Override
+    public AsyncDataSource get()
+    {
+        ManagedDataSource dataSource = (ManagedDataSource) injector.getInstance(dataSourceKey);
+        return new AsyncDataSource(dataSource, injector.getInstance(configKey));
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Database work run by an {@link AsyncDataSource}.
+ */
+public interface ConnectionCallback<T>
+{
+    /**
+     * Runs the work on the connection. The connection is closed when this
+     * method returns, so results must not refer to its statements or
+     * result sets.
+     */
+    T execute(Connection connection)
+            throws SQLException;
+}
@@ -17,6 +17,8 @@ package com.proofpoint.dbpool;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import com.google.common.io.Resources;
 import com.google.inject.Inject;
 import com.proofpoint.dbpool.H2EmbeddedDataSourceConfig.Cipher;
@@ -27,32 +29,153 @@ import javax.sql.PooledConnection;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.Reader;
+import java.io.StringReader;
 import java.net.URL;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import static java.lang.Math.ceil;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-public class H2EmbeddedDataSource extends ManagedDataSource
+public class H2EmbeddedDataSource extends PooledDataSource
 {
+    private static final String DATABASE_FILE_SUFFIX = ".h2.db";
+    private static final String FILE_PREFIX = "file:";
+    private static final Pattern FILE_SYSTEM_PREFIX = Pattern.compile("[a-zA-Z]{2,}:");
+    private static final Map<String, File> snapshots = new HashMap<String, File>();
+
     private final JdbcDataSource dataSource;
 
     @Inject
     public H2EmbeddedDataSource(H2EmbeddedDataSourceConfig config)
             throws Exception
     {
-        super(config.getMaxConnections(), config.getMaxConnectionWait());
+        super(config);
 
         Preconditions.checkNotNull(config.getFilename());
         if (config.getFilename().isEmpty()) {
             throw new IllegalArgumentException("filename is empty");
         }
+        if (config.isInitScriptSnapshot() && getDatabaseFile(config.getFilename()) == null) {
+            throw new IllegalArgumentException("initScriptSnapshot requires a database stored in a file: filename=" + config.getFilename());
+        }
+
+        dataSource = createDataSource(config.getFilename(), config);
+
+        // connect to database and initialize database
+        try {
+            initialize(config);
+        }
+        catch (Exception e) {
+            // do not leave the database open
+            dispose();
+            throw e;
+        }
+    }
+
+    private void initialize(H2EmbeddedDataSourceConfig config)
+            throws Exception
+    {
+        URL initScript = findInitScript(config.getInitScript());
+
+        // copy a new database from the snapshot before it is opened
+        boolean restored = false;
+        File databaseFile = getDatabaseFile(config.getFilename());
+        if (config.isInitScriptSnapshot() && !databaseFile.exists()) {
+            Files.copy(getSnapshot(initScript, config), databaseFile);
+            restored = true;
+        }
+
+        Connection connection = getConnection();
+        try {
+            setConfig(connection, "CACHE_SIZE", config.getCacheSize());
+            setConfig(connection, "COMPRESS_LOB", config.getCompressLob());
+            setConfig(connection, "DB_CLOSE_DELAY ", "-1");
+
+            // execute init script
+            if (!restored) {
+                executeScript(connection, Resources.newReaderSupplier(initScript, Charsets.UTF_8).getInput());
+            }
+
+            // run last so script can contain literals
+            setConfig(connection, "ALLOW_LITERALS", config.getAllowLiterals());
+        }
+        finally {
+            closeQuietly(connection);
+        }
+    }
 
+    /**
+     * Gets the database file of a database initialized with the script,
+     * creating it the first time the script is used with these file settings.
+     */
+    private static synchronized File getSnapshot(URL initScript, H2EmbeddedDataSourceConfig config)
+            throws Exception
+    {
+        byte[] script = Resources.toByteArray(initScript);
+        String key = Hashing.sha1().newHasher()
+                .putBytes(script)
+                .putString(config.getCipher().toString())
+                .putString(String.valueOf(config.getFilePassword()))
+                .putString(config.getCompressLob().toString())
+                .hash()
+                .toString();
+
+        File snapshot = snapshots.get(key);
+        if (snapshot != null && snapshot.exists()) {
+            return snapshot;
+        }
+
+        File directory = Files.createTempDir();
+        directory.deleteOnExit();
+        String filename = new File(directory, "snapshot").getAbsolutePath();
+
+        Connection connection = createDataSource(filename, config).getConnection();
+        try {
+            setConfig(connection, "COMPRESS_LOB", config.getCompressLob());
+            executeScript(connection, new StringReader(new String(script, Charsets.UTF_8)));
+        }
+        finally {
+            // close the database so the file is complete
+            try {
+                executeCommand(connection, "SHUTDOWN");
+            }
+            catch (SQLException ignored) {
+            }
+            closeQuietly(connection);
+        }
+
+        snapshot = new File(filename + DATABASE_FILE_SUFFIX);
+        snapshot.deleteOnExit();
+        snapshots.put(key, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Gets the file a database is stored in, or null if the database is
+     * in memory or uses another file system.
+     */
+    private static File getDatabaseFile(String filename)
+    {
+        if (filename.startsWith(FILE_PREFIX)) {
+            filename = filename.substring(FILE_PREFIX.length());
+        }
+        else if (FILE_SYSTEM_PREFIX.matcher(filename).lookingAt()) {
+            // mem:, tcp:, zip: and so on, but not a windows drive letter
+            return null;
+        }
+        return new File(filename + DATABASE_FILE_SUFFIX);
+    }
+
+    private static JdbcDataSource createDataSource(String filename, H2EmbeddedDataSourceConfig config)
+    {
         // build jdbc url connection string
         StringBuilder jdbcUrlBuilder = new StringBuilder()
-                .append("jdbc:h2:").append(config.getFilename())
+                .append("jdbc:h2:").append(filename)
                 .append(";ALLOW_LITERALS=").append(config.getAllowLiterals())
                 .append(";CACHE_SIZE=").append(config.getCacheSize());
 
@@ -63,7 +186,7 @@ public class H2EmbeddedDataSource extends ManagedDataSource
         String jdbcUrl = jdbcUrlBuilder.toString();
 
         // create dataSource
-        dataSource = new JdbcDataSource();
+        JdbcDataSource dataSource = new JdbcDataSource();
         dataSource.setURL(jdbcUrl);
         dataSource.setUser("sa");
         if (config.getCipher() != Cipher.NONE) {
@@ -73,46 +196,38 @@ public class H2EmbeddedDataSource extends ManagedDataSource
             dataSource.setPassword("");
         }
         dataSource.setLoginTimeout((int) ceil(config.getMaxConnectionWait().convertTo(SECONDS)));
+        return dataSource;
+    }
 
-        // connect to database and initialize database
-        Connection connection = getConnection();
-        try {
-            setConfig(connection, "CACHE_SIZE", config.getCacheSize());
-            setConfig(connection, "COMPRESS_LOB", config.getCompressLob());
-            setConfig(connection, "DB_CLOSE_DELAY ", "-1");
-
-            // find init script
-            String fileName = config.getInitScript();
-            File file = new File(fileName);
-            URL url;
-            if (file.exists()) {
-                url = file.toURI().toURL();
-            }
-            else {
-                url = getClass().getClassLoader().getResource(fileName);
-            }
+    private static URL findInitScript(String fileName)
+            throws Exception
+    {
+        File file = new File(fileName);
+        URL url;
+        if (file.exists()) {
+            url = file.toURI().toURL();
+        }
+        else {
+            url = H2EmbeddedDataSource.class.getClassLoader().getResource(fileName);
+        }
 
-            if (url == null) {
-                throw new FileNotFoundException(fileName);
-            }
+        if (url == null) {
+            throw new FileNotFoundException(fileName);
+        }
+        return url;
+    }
 
-            // execute init script
-            Reader reader = Resources.newReaderSupplier(url, Charsets.UTF_8).getInput();
-            try {
-                ScriptReader scriptReader = new ScriptReader(reader);
-                for (String statement = scriptReader.readStatement(); statement != null; statement = scriptReader.readStatement()) {
-                    executeCommand(connection, statement);
-                }
-            }
-            finally {
-                reader.close();
+    private static void executeScript(Connection connection, Reader reader)
+            throws Exception
+    {
+        try {
+            ScriptReader scriptReader = new ScriptReader(reader);
+            for (String statement = scriptReader.readStatement(); statement != null; statement = scriptReader.readStatement()) {
+                executeCommand(connection, statement);
             }
-
-            // run last so script can contain literals
-            setConfig(connection, "ALLOW_LITERALS", config.getAllowLiterals());
         }
         finally {
-            closeQuietly(connection);
+            reader.close();
         }
     }
 
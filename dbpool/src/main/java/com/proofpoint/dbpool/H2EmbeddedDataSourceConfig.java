@@ -51,6 +51,7 @@ public class H2EmbeddedDataSourceConfig extends ManagedDataSourceConfig<H2Embedd
     private String filename;
     private String filePassword;
     private String initScript;
+    private boolean initScriptSnapshot;
     private AllowLiterals allowLiterals = AllowLiterals.ALL;
     private CompressLob compressLob = CompressLob.LZF;
     private Cipher cipher = Cipher.NONE;
@@ -103,6 +104,24 @@ public class H2EmbeddedDataSourceConfig extends ManagedDataSourceConfig<H2Embedd
         return this;
     }
 
+    /**
+     * Whether the init script is run once per process into a snapshot that
+     * new databases are copied from.  Databases that already exist still run
+     * the init script.  Only databases stored in a file can be copied, so
+     * this can not be used with in memory databases.
+     */
+    public boolean isInitScriptSnapshot()
+    {
+        return initScriptSnapshot;
+    }
+
+    @Config("db.init-script.snapshot")
+    public H2EmbeddedDataSourceConfig setInitScriptSnapshot(boolean initScriptSnapshot)
+    {
+        this.initScriptSnapshot = initScriptSnapshot;
+        return this;
+    }
+
     /**
      * This setting can help solve the SQL injection problem. By default, text
      * and number literals are allowed in SQL statements. However, this enables
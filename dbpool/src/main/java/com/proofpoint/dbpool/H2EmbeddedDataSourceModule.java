@@ -73,6 +73,10 @@ public class H2EmbeddedDataSourceModule extends MBeanModule
         for (Class<? extends Annotation> alias : aliases) {
             bind(DataSource.class).annotatedWith(alias).to(key);
         }
+
+        // Bind the async datasource
+        bind(AsyncDataSource.class).annotatedWith(annotation).toProvider(new AsyncDataSourceProvider(key, Key.get(H2EmbeddedDataSourceConfig.class, annotation))).in(Scopes.SINGLETON);
+        export(AsyncDataSource.class).annotatedWith(annotation).withGeneratedName();
     }
 
     private static class H2EmbeddedDataSourceProvider implements Provider<H2EmbeddedDataSource>
@@ -15,9 +15,12 @@
  */
 package com.proofpoint.dbpool;
 
+import com.google.common.base.Throwables;
+import com.proofpoint.log.Logger;
 import com.proofpoint.units.Duration;
 import org.weakref.jmx.Flatten;
 import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
 
 import javax.sql.ConnectionEvent;
 import javax.sql.ConnectionEventListener;
@@ -26,18 +29,39 @@ import javax.sql.PooledConnection;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.proofpoint.units.Duration.nanosSince;
 import static java.lang.Math.ceil;
+import static java.lang.Math.max;
 
 public abstract class ManagedDataSource implements DataSource
 {
+    private static final Logger log = Logger.get(ManagedDataSource.class);
+
     private final ManagedSemaphore semaphore;
+    private final ManagedSemaphore lowPriorityPermits;
+    private final DataSource lowPriorityDataSource = new LowPriorityDataSource();
+    private final ThreadLocal<ManagedSemaphore> checkoutLanePermits = new ThreadLocal<ManagedSemaphore>();
+    private final ThreadLocal<Long> checkoutDeadline = new ThreadLocal<Long>();
     private final AtomicInteger maxConnectionWaitMillis = new AtomicInteger(100);
     private final ManagedDataSourceStats stats = new ManagedDataSourceStats();
+    private final AdaptiveConnectionLimit adaptiveLimit;
+    private int reservedConnections;
+    private final Set<NoPoolConnectionEventListener> checkedOutConnections = Collections.newSetFromMap(new ConcurrentHashMap<NoPoolConnectionEventListener, Boolean>());
+    private final AtomicLong checkoutCount = new AtomicLong();
+    private volatile long leakDetectionThresholdNanos;
+    private volatile int leakStackSampleInterval = 100;
+    private volatile boolean reclaimLeakedConnections;
 
     public ManagedDataSource(int maxConnections, Duration maxConnectionWait)
     {
@@ -48,48 +72,121 @@ public abstract class ManagedDataSource implements DataSource
             throw new NullPointerException("maxConnectionWait is null");
         }
         semaphore = new ManagedSemaphore(maxConnections);
+        lowPriorityPermits = new ManagedSemaphore(maxConnections);
         maxConnectionWaitMillis.set((int) ceil(maxConnectionWait.toMillis()));
+        adaptiveLimit = new AdaptiveConnectionLimit(this, maxConnections);
     }
 
     @Override
     public Connection getConnection()
             throws SQLException
+    {
+        return checkout(null, newCheckoutDeadline());
+    }
+
+    /**
+     * Gets a connection, waiting no longer than the deadline, which is
+     * a {@link System#nanoTime()} value.
+     */
+    Connection getConnection(long deadline)
+            throws SQLException
+    {
+        return checkout(null, deadline);
+    }
+
+    /**
+     * Gets a view of this data source for work that can wait, such as batch
+     * jobs. Connections checked out through the view share this pool, but
+     * never use the {@link #getReservedConnections() reserved connections},
+     * so latency critical callers are not queued behind them.
+     */
+    public DataSource getLowPriorityDataSource()
+    {
+        return lowPriorityDataSource;
+    }
+
+    private Connection checkout(ManagedSemaphore lanePermits, long deadline)
+            throws SQLException
     {
         long start = System.nanoTime();
         try {
-            acquirePermit();
+            acquirePermit(lanePermits, deadline);
+            Duration waited = nanosSince(start);
+            stats.connectionWaited(waited);
+            adaptiveLimit.connectionWaited(waited);
 
             boolean checkedOut = false;
+            checkoutLanePermits.set(lanePermits);
+            checkoutDeadline.set(deadline);
             try {
                 Connection connection = createConnection();
                 checkedOut = true;
                 return connection;
             }
             finally {
+                checkoutLanePermits.remove();
+                checkoutDeadline.remove();
                 if (!checkedOut) {
-                    semaphore.release();
+                    releasePermit(lanePermits);
                 }
             }
         }
+        catch (SqlTimeoutException e) {
+            Duration waited = nanosSince(start);
+            stats.connectionTimedOut(waited);
+            adaptiveLimit.connectionWaited(waited);
+            throw e;
+        }
         finally {
             stats.connectionCheckedOut(nanosSince(start));
         }
     }
 
+    private long newCheckoutDeadline()
+    {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxConnectionWaitMillis.get());
+    }
+
+    /**
+     * Gets the time, as a {@link System#nanoTime()} value, by which the
+     * checkout in progress on this thread must get a connection. Only
+     * valid within {@link #createConnection()}.
+     */
+    protected long getCheckoutDeadline()
+    {
+        Long deadline = checkoutDeadline.get();
+        if (deadline == null) {
+            return newCheckoutDeadline();
+        }
+        return deadline;
+    }
+
+    /**
+     * Opens a connection on the caller's thread. {@link PooledDataSource}
+     * overrides this to reuse connections and open new ones in the
+     * background.
+     */
     protected Connection createConnection()
             throws SQLException
+    {
+        return prepareConnection(createPooledConnection());
+    }
+
+    /**
+     * Creates a new physical connection and records the time it took.
+     */
+    protected PooledConnection createPooledConnection()
+            throws SQLException
     {
         boolean success = false;
         try {
-            // todo do not create on caller's thread
             long start = System.nanoTime();
             PooledConnection pooledConnection = createConnectionInternal();
-            Connection connection = prepareConnection(pooledConnection);
             stats.connectionCreated(nanosSince(start));
 
             success = true;
 
-            return connection;
+            return pooledConnection;
         }
         finally {
             if (!success) {
@@ -105,14 +202,18 @@ public abstract class ManagedDataSource implements DataSource
             throws SQLException
     {
         Connection connection = pooledConnection.getConnection();
-        pooledConnection.addConnectionEventListener(new NoPoolConnectionEventListener());
+        pooledConnection.addConnectionEventListener(new NoPoolConnectionEventListener(pooledConnection));
         return connection;
     }
 
+    /**
+     * Closes the returned connection on the caller's thread. {@link
+     * PooledDataSource} overrides this to keep the connection for reuse or
+     * close it in the background.
+     */
     protected void connectionReturned(PooledConnection pooledConnection, long checkoutTime)
     {
         try {
-            // todo do not close on caller's thread
             pooledConnection.close();
         }
         catch (SQLException ignored) {
@@ -124,6 +225,18 @@ public abstract class ManagedDataSource implements DataSource
     {
     }
 
+    /**
+     * Closes a leaked connection that was taken back from its holder.
+     */
+    protected void connectionReclaimed(PooledConnection pooledConnection, long checkoutTime)
+    {
+        try {
+            pooledConnection.close();
+        }
+        catch (SQLException ignored) {
+        }
+    }
+
     @Managed
     public int getMaxConnectionWaitMillis()
     {
@@ -151,6 +264,24 @@ public abstract class ManagedDataSource implements DataSource
         return semaphore.getActivePermits();
     }
 
+    @Managed(description = "Number of threads waiting for a connection")
+    public int getConnectionsWaiting()
+    {
+        return semaphore.getQueueLength() + lowPriorityPermits.getQueueLength();
+    }
+
+    @Managed(description = "Number of connections checked out through the low priority data source")
+    public long getLowPriorityConnectionsActive()
+    {
+        return lowPriorityPermits.getActivePermits();
+    }
+
+    @Managed(description = "Number of low priority threads waiting for a connection")
+    public int getLowPriorityConnectionsWaiting()
+    {
+        return lowPriorityPermits.getQueueLength();
+    }
+
     @Managed
     public int getMaxConnections()
     {
@@ -158,12 +289,125 @@ public abstract class ManagedDataSource implements DataSource
     }
 
     @Managed
-    public void setMaxConnections(int maxConnections)
+    public synchronized void setMaxConnections(int maxConnections)
     {
         if (maxConnections < 1) {
             throw new IllegalArgumentException("maxConnections must be at least 1: maxConnections=" + maxConnections);
         }
         semaphore.setPermits(maxConnections);
+        lowPriorityPermits.setPermits(max(0, maxConnections - reservedConnections));
+    }
+
+    @Managed(description = "Number of connections the low priority data source can not use")
+    public synchronized int getReservedConnections()
+    {
+        return reservedConnections;
+    }
+
+    @Managed
+    public synchronized void setReservedConnections(int reservedConnections)
+    {
+        if (reservedConnections < 0) {
+            throw new IllegalArgumentException("reservedConnections is negative: reservedConnections=" + reservedConnections);
+        }
+        this.reservedConnections = reservedConnections;
+        lowPriorityPermits.setPermits(max(0, getMaxConnections() - reservedConnections));
+    }
+
+    @Managed(description = "Time a connection can be held before it is reported as leaked, or 0 if leaks are not detected")
+    public long getLeakDetectionThresholdMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(leakDetectionThresholdNanos);
+    }
+
+    /**
+     * Sets the time a connection can be held before it is reported as
+     * leaked, or null to not detect leaks. Connections checked out while
+     * leak detection is off are never reported.
+     */
+    @Managed
+    public void setLeakDetectionThreshold(Duration leakDetectionThreshold)
+    {
+        if (leakDetectionThreshold == null) {
+            leakDetectionThresholdNanos = 0;
+            checkedOutConnections.clear();
+            return;
+        }
+        long nanos = (long) leakDetectionThreshold.convertTo(TimeUnit.NANOSECONDS);
+        if (nanos < 1) {
+            throw new IllegalArgumentException("leakDetectionThreshold must be greater than 0");
+        }
+        leakDetectionThresholdNanos = nanos;
+    }
+
+    @Managed(description = "Capture the stack of one in this many checkouts for leak reports")
+    public int getLeakStackSampleInterval()
+    {
+        return leakStackSampleInterval;
+    }
+
+    @Managed
+    public void setLeakStackSampleInterval(int leakStackSampleInterval)
+    {
+        if (leakStackSampleInterval < 1) {
+            throw new IllegalArgumentException("leakStackSampleInterval must be at least 1: leakStackSampleInterval=" + leakStackSampleInterval);
+        }
+        this.leakStackSampleInterval = leakStackSampleInterval;
+    }
+
+    @Managed(description = "Whether leaked connections are closed and their permits returned to the pool")
+    public boolean isReclaimLeakedConnections()
+    {
+        return reclaimLeakedConnections;
+    }
+
+    @Managed
+    public void setReclaimLeakedConnections(boolean reclaimLeakedConnections)
+    {
+        this.reclaimLeakedConnections = reclaimLeakedConnections;
+    }
+
+    @Managed(description = "Connections held longer than the leak detection threshold")
+    public List<String> getLeakedConnections()
+    {
+        long threshold = leakDetectionThresholdNanos;
+        List<String> leaks = new ArrayList<String>();
+        if (threshold == 0) {
+            return leaks;
+        }
+        long now = System.nanoTime();
+        for (NoPoolConnectionEventListener listener : checkedOutConnections) {
+            if (now - listener.checkoutTime > threshold) {
+                leaks.add(listener.describe());
+            }
+        }
+        return leaks;
+    }
+
+    /**
+     * Reports connections held longer than the leak detection threshold, and
+     * reclaims them if enabled. This runs when a thread times out waiting
+     * for a connection, and may be run periodically by subclasses.
+     */
+    protected void checkForLeaks()
+    {
+        long threshold = leakDetectionThresholdNanos;
+        if (threshold == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (NoPoolConnectionEventListener listener : checkedOutConnections) {
+            if (now - listener.checkoutTime <= threshold) {
+                continue;
+            }
+            if (listener.leakReported.compareAndSet(false, true)) {
+                stats.connectionLeaked();
+                log.warn("Connection leak detected: %s", listener.describe());
+            }
+            if (reclaimLeakedConnections) {
+                listener.reclaim();
+            }
+        }
     }
 
     @Managed
@@ -173,6 +417,13 @@ public abstract class ManagedDataSource implements DataSource
         return stats;
     }
 
+    @Managed
+    @Nested
+    public AdaptiveConnectionLimit getAdaptiveLimit()
+    {
+        return adaptiveLimit;
+    }
+
     @Override
     public PrintWriter getLogWriter()
             throws SQLException
@@ -200,6 +451,13 @@ public abstract class ManagedDataSource implements DataSource
     }
 
 
+    // JDBC 4.1, not annotated so that this still compiles against JDBC 4.0
+    public java.util.logging.Logger getParentLogger()
+            throws SQLFeatureNotSupportedException
+    {
+        throw new SQLFeatureNotSupportedException();
+    }
+
     @Override
     public boolean isWrapperFor(Class<?> iface)
             throws SQLException
@@ -237,12 +495,27 @@ public abstract class ManagedDataSource implements DataSource
         throw new UnsupportedOperationException();
     }
 
-    private void acquirePermit()
+    private void acquirePermit(ManagedSemaphore lanePermits, long deadline)
             throws SQLException
     {
         int timeout = maxConnectionWaitMillis.get();
         try {
-            if (!semaphore.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+            if (lanePermits != null && !lanePermits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                throw new SqlTimeoutException("Could not acquire a low priority connection within " + timeout + " msec");
+            }
+
+            boolean acquired = false;
+            try {
+                acquired = semaphore.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+            finally {
+                if (!acquired && lanePermits != null) {
+                    lanePermits.release();
+                }
+            }
+            if (!acquired) {
+                // an exhausted pool is the typical symptom of a leak
+                checkForLeaks();
                 throw new SqlTimeoutException("Could not acquire a connection within " + timeout + " msec");
             }
         }
@@ -252,10 +525,142 @@ public abstract class ManagedDataSource implements DataSource
         }
     }
 
+    private void releasePermit(ManagedSemaphore lanePermits)
+    {
+        semaphore.release();
+        if (lanePermits != null) {
+            lanePermits.release();
+        }
+    }
+
+    private class LowPriorityDataSource implements DataSource
+    {
+        @Override
+        public Connection getConnection()
+                throws SQLException
+        {
+            return checkout(lowPriorityPermits, newCheckoutDeadline());
+        }
+
+        /**
+         * Not supported.
+         *
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public Connection getConnection(String username, String password)
+                throws SQLException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PrintWriter getLogWriter()
+                throws SQLException
+        {
+            return ManagedDataSource.this.getLogWriter();
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out)
+                throws SQLException
+        {
+            ManagedDataSource.this.setLogWriter(out);
+        }
+
+        @Override
+        public int getLoginTimeout()
+                throws SQLException
+        {
+            return ManagedDataSource.this.getLoginTimeout();
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds)
+                throws SQLException
+        {
+            ManagedDataSource.this.setLoginTimeout(seconds);
+        }
+
+        // JDBC 4.1, not annotated so that this still compiles against JDBC 4.0
+        public java.util.logging.Logger getParentLogger()
+                throws SQLFeatureNotSupportedException
+        {
+            return ManagedDataSource.this.getParentLogger();
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface)
+                throws SQLException
+        {
+            return ManagedDataSource.this.isWrapperFor(iface);
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface)
+                throws SQLException
+        {
+            return ManagedDataSource.this.unwrap(iface);
+        }
+    }
+
     protected class NoPoolConnectionEventListener implements ConnectionEventListener
     {
+        private final PooledConnection pooledConnection;
         private final long checkoutTime = System.nanoTime();
+        private final ManagedSemaphore lanePermits = checkoutLanePermits.get();
         private final AtomicBoolean returned = new AtomicBoolean();
+        private final AtomicBoolean leakReported = new AtomicBoolean();
+        private final String threadName;
+        private final Throwable checkoutStack;
+
+        public NoPoolConnectionEventListener(PooledConnection pooledConnection)
+        {
+            this.pooledConnection = pooledConnection;
+            if (leakDetectionThresholdNanos == 0) {
+                threadName = null;
+                checkoutStack = null;
+                return;
+            }
+
+            threadName = Thread.currentThread().getName();
+            if (checkoutCount.getAndIncrement() % leakStackSampleInterval == 0) {
+                checkoutStack = new Throwable("Connection checked out");
+            }
+            else {
+                checkoutStack = null;
+            }
+            checkedOutConnections.add(this);
+        }
+
+        private String describe()
+        {
+            String description = String.format("held for %s by thread %s", nanosSince(checkoutTime), threadName);
+            if (checkoutStack == null) {
+                return description + " (checkout stack not sampled)";
+            }
+            return description + ", checked out at " + Throwables.getStackTraceAsString(checkoutStack);
+        }
+
+        private void reclaim()
+        {
+            // was the connection already returned
+            if (!returned.compareAndSet(false, true)) {
+                return;
+            }
+
+            checkedOutConnections.remove(this);
+            try {
+                pooledConnection.removeConnectionEventListener(this);
+                stats.connectionReclaimed();
+            }
+            finally {
+                releasePermit(lanePermits);
+
+                // the holder may still use the connection, so it can not be reused
+                connectionReclaimed(pooledConnection, checkoutTime);
+            }
+        }
 
         @Override
         public void connectionClosed(ConnectionEvent event)
@@ -264,16 +669,19 @@ public abstract class ManagedDataSource implements DataSource
             if (!returned.compareAndSet(false, true)) {
                 return;
             }
+            checkedOutConnections.remove(this);
 
             PooledConnection pooledConnection = null;
             try {
                 pooledConnection = (PooledConnection) event.getSource();
                 pooledConnection.removeConnectionEventListener(this);
 
-                stats.connectionReturned(nanosSince(checkoutTime));
+                Duration held = nanosSince(checkoutTime);
+                stats.connectionReturned(held);
+                adaptiveLimit.connectionReturned(held);
             }
             finally {
-                semaphore.release();
+                releasePermit(lanePermits);
 
                 if (pooledConnection != null) {
                     connectionReturned(pooledConnection, checkoutTime);
@@ -288,6 +696,7 @@ public abstract class ManagedDataSource implements DataSource
             if (!returned.compareAndSet(false, true)) {
                 return;
             }
+            checkedOutConnections.remove(this);
 
             PooledConnection pooledConnection = null;
             try {
@@ -297,7 +706,7 @@ public abstract class ManagedDataSource implements DataSource
                 stats.connectionErrorOccurred();
             }
             finally {
-                semaphore.release();
+                releasePermit(lanePermits);
 
                 if (pooledConnection != null) {
                     connectionDestroyed(pooledConnection, checkoutTime);
@@ -43,6 +43,22 @@ public class ManagedDataSourceConfig<T extends ManagedDataSourceConfig<T>>
 {
     private int maxConnections = 10;
     private Duration maxConnectionWait = new Duration(500, TimeUnit.MILLISECONDS);
+    private int minIdleConnections = 0;
+    private Duration maxConnectionLifetime = new Duration(30, TimeUnit.MINUTES);
+    private Duration idleTimeout = new Duration(10, TimeUnit.MINUTES);
+    private boolean validateOnBorrow = false;
+    private Duration validationInterval = new Duration(30, TimeUnit.SECONDS);
+    private int reservedConnections = 0;
+    private int statementCacheSize = 0;
+    private boolean queryStatsEnabled = false;
+    private Duration leakDetectionThreshold;
+    private int leakStackSampleInterval = 100;
+    private boolean reclaimLeakedConnections = false;
+    private int maxQueryFingerprints = 100;
+    private int maxQueuedAsyncTasks = 100;
+    private Duration asyncQueryTimeout;
+    private boolean adaptiveConnectionsEnabled = false;
+    private int adaptiveMinConnections = 1;
 
     /**
      * Gets the maximum number of concurrent connections allowed by the data
@@ -93,4 +109,335 @@ public class ManagedDataSourceConfig<T extends ManagedDataSourceConfig<T>>
         return (T) this;
 
     }
+
+    /**
+     * Gets the number of idle connections the data source keeps open, so
+     * that bursts of requests do not wait for new connections. Idle
+     * connections are created in the background and never exceed the
+     * maximum number of connections.
+     */
+    public int getMinIdleConnections()
+    {
+        return minIdleConnections;
+    }
+
+    /**
+     * Sets the number of idle connections the data source keeps open, so
+     * that bursts of requests do not wait for new connections. Idle
+     * connections are created in the background and never exceed the
+     * maximum number of connections.
+     */
+    @Config("db.connections.min-idle")
+    public T setMinIdleConnections(int minIdleConnections)
+    {
+        this.minIdleConnections = minIdleConnections;
+        return (T) this;
+    }
+
+    /**
+     * Gets the maximum time a connection is kept open. Older connections are
+     * closed when they are returned or found idle, so connections move to
+     * new database servers and do not outlive server side timeouts.
+     */
+    public Duration getMaxConnectionLifetime()
+    {
+        return maxConnectionLifetime;
+    }
+
+    /**
+     * Sets the maximum time a connection is kept open. Older connections are
+     * closed when they are returned or found idle, so connections move to
+     * new database servers and do not outlive server side timeouts.
+     */
+    @Config("db.connections.max-lifetime")
+    public T setMaxConnectionLifetime(Duration maxConnectionLifetime)
+    {
+        this.maxConnectionLifetime = maxConnectionLifetime;
+        return (T) this;
+    }
+
+    /**
+     * Gets the time after which an unused connection is closed, unless it is
+     * needed to keep the minimum number of idle connections.
+     */
+    public Duration getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the time after which an unused connection is closed, unless it is
+     * needed to keep the minimum number of idle connections.
+     */
+    @Config("db.connections.idle-timeout")
+    public T setIdleTimeout(Duration idleTimeout)
+    {
+        this.idleTimeout = idleTimeout;
+        return (T) this;
+    }
+
+    /**
+     * Gets whether an idle connection is checked with the database before it
+     * is handed out.
+     */
+    public boolean isValidateOnBorrow()
+    {
+        return validateOnBorrow;
+    }
+
+    /**
+     * Sets whether an idle connection is checked with the database before it
+     * is handed out. This costs a round trip on every checkout.
+     */
+    @Config("db.connections.validate-on-borrow")
+    public T setValidateOnBorrow(boolean validateOnBorrow)
+    {
+        this.validateOnBorrow = validateOnBorrow;
+        return (T) this;
+    }
+
+    /**
+     * Gets how often idle connections are checked with the database in the
+     * background.
+     */
+    public Duration getValidationInterval()
+    {
+        return validationInterval;
+    }
+
+    /**
+     * Sets how often idle connections are checked with the database in the
+     * background.
+     */
+    @Config("db.connections.validation-interval")
+    public T setValidationInterval(Duration validationInterval)
+    {
+        this.validationInterval = validationInterval;
+        return (T) this;
+    }
+
+    /**
+     * Gets the number of connections that callers of the low priority data
+     * source can not use, so they are always available to other callers.
+     */
+    public int getReservedConnections()
+    {
+        return reservedConnections;
+    }
+
+    /**
+     * Sets the number of connections that callers of the low priority data
+     * source can not use, so they are always available to other callers.
+     */
+    @Config("db.connections.reserved")
+    public T setReservedConnections(int reservedConnections)
+    {
+        this.reservedConnections = reservedConnections;
+        return (T) this;
+    }
+
+    /**
+     * Gets the number of prepared statements kept open on each connection
+     * for reuse, or 0 if prepared statements are not cached.
+     */
+    public int getStatementCacheSize()
+    {
+        return statementCacheSize;
+    }
+
+    /**
+     * Sets the number of prepared statements kept open on each connection
+     * for reuse, or 0 to not cache prepared statements. The least recently
+     * used statements are closed when a connection has more.
+     */
+    @Config("db.statement-cache.size")
+    public T setStatementCacheSize(int statementCacheSize)
+    {
+        this.statementCacheSize = statementCacheSize;
+        return (T) this;
+    }
+
+    /**
+     * Gets whether execute and fetch times, rows and errors are recorded for
+     * each distinct statement.
+     */
+    public boolean isQueryStatsEnabled()
+    {
+        return queryStatsEnabled;
+    }
+
+    /**
+     * Sets whether execute and fetch times, rows and errors are recorded for
+     * each distinct statement. Statements are grouped by their SQL with the
+     * literals removed.
+     */
+    @Config("db.query-stats.enabled")
+    public T setQueryStatsEnabled(boolean queryStatsEnabled)
+    {
+        this.queryStatsEnabled = queryStatsEnabled;
+        return (T) this;
+    }
+
+    /**
+     * Gets the maximum number of distinct statements query statistics are
+     * kept for.
+     */
+    public int getMaxQueryFingerprints()
+    {
+        return maxQueryFingerprints;
+    }
+
+    /**
+     * Sets the maximum number of distinct statements query statistics are
+     * kept for. Statements beyond this are recorded together.
+     */
+    @Config("db.query-stats.max-fingerprints")
+    public T setMaxQueryFingerprints(int maxQueryFingerprints)
+    {
+        this.maxQueryFingerprints = maxQueryFingerprints;
+        return (T) this;
+    }
+
+    /**
+     * Gets the time a connection can be held before it is reported as
+     * leaked, or null if leaks are not detected.
+     */
+    public Duration getLeakDetectionThreshold()
+    {
+        return leakDetectionThreshold;
+    }
+
+    /**
+     * Sets the time a connection can be held before it is reported as
+     * leaked, or null to not detect leaks. Leaked connections are logged and
+     * listed in JMX.
+     */
+    @Config("db.connections.leak-detection-threshold")
+    public T setLeakDetectionThreshold(Duration leakDetectionThreshold)
+    {
+        this.leakDetectionThreshold = leakDetectionThreshold;
+        return (T) this;
+    }
+
+    /**
+     * Gets how often the stack of the checking out thread is captured for
+     * leak reports, as one in this many checkouts.
+     */
+    public int getLeakStackSampleInterval()
+    {
+        return leakStackSampleInterval;
+    }
+
+    /**
+     * Sets how often the stack of the checking out thread is captured for
+     * leak reports, as one in this many checkouts. Use 1 to capture every
+     * checkout while tracking down a leak.
+     */
+    @Config("db.connections.leak-stack-sample-interval")
+    public T setLeakStackSampleInterval(int leakStackSampleInterval)
+    {
+        this.leakStackSampleInterval = leakStackSampleInterval;
+        return (T) this;
+    }
+
+    /**
+     * Gets whether leaked connections are closed and returned to the pool.
+     */
+    public boolean isReclaimLeakedConnections()
+    {
+        return reclaimLeakedConnections;
+    }
+
+    /**
+     * Sets whether leaked connections are closed and returned to the pool.
+     * The code holding a reclaimed connection gets errors when it uses it.
+     */
+    @Config("db.connections.reclaim-leaked")
+    public T setReclaimLeakedConnections(boolean reclaimLeakedConnections)
+    {
+        this.reclaimLeakedConnections = reclaimLeakedConnections;
+        return (T) this;
+    }
+
+    /**
+     * Gets the number of tasks an {@link AsyncDataSource} queues while all
+     * of its threads are busy.
+     */
+    public int getMaxQueuedAsyncTasks()
+    {
+        return maxQueuedAsyncTasks;
+    }
+
+    /**
+     * Sets the number of tasks an {@link AsyncDataSource} queues while all
+     * of its threads are busy. Tasks submitted to a full queue fail
+     * immediately with a {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    @Config("db.async.max-queued")
+    public T setMaxQueuedAsyncTasks(int maxQueuedAsyncTasks)
+    {
+        this.maxQueuedAsyncTasks = maxQueuedAsyncTasks;
+        return (T) this;
+    }
+
+    /**
+     * Gets the default time an {@link AsyncDataSource} task may take, or null
+     * for no limit.
+     */
+    public Duration getAsyncQueryTimeout()
+    {
+        return asyncQueryTimeout;
+    }
+
+    /**
+     * Sets the default time an {@link AsyncDataSource} task may take,
+     * including the time it is queued, or null for no limit. Statements of a
+     * task that runs out of time are cancelled.
+     */
+    @Config("db.async.query-timeout")
+    public T setAsyncQueryTimeout(Duration asyncQueryTimeout)
+    {
+        this.asyncQueryTimeout = asyncQueryTimeout;
+        return (T) this;
+    }
+
+    /**
+     * Gets whether the max connections is adjusted between the adaptive min
+     * connections and {@link #getMaxConnections() max connections} based on
+     * the observed latency.
+     */
+    public boolean isAdaptiveConnectionsEnabled()
+    {
+        return adaptiveConnectionsEnabled;
+    }
+
+    /**
+     * Sets whether the max connections is adjusted between the adaptive min
+     * connections and {@link #getMaxConnections() max connections} based on
+     * the observed latency.  See {@link AdaptiveConnectionLimit}.
+     */
+    @Config("db.connections.adaptive.enabled")
+    public T setAdaptiveConnectionsEnabled(boolean adaptiveConnectionsEnabled)
+    {
+        this.adaptiveConnectionsEnabled = adaptiveConnectionsEnabled;
+        return (T) this;
+    }
+
+    /**
+     * Gets the lowest max connections the adaptive limit can set.
+     */
+    public int getAdaptiveMinConnections()
+    {
+        return adaptiveMinConnections;
+    }
+
+    /**
+     * Sets the lowest max connections the adaptive limit can set.
+     */
+    @Config("db.connections.adaptive.min")
+    public T setAdaptiveMinConnections(int adaptiveMinConnections)
+    {
+        this.adaptiveMinConnections = adaptiveMinConnections;
+        return (T) this;
+    }
 }
@@ -27,8 +27,17 @@ public final class ManagedDataSourceStats
     private final TimedStat checkout = new TimedStat();
     private final TimedStat create = new TimedStat();
     private final TimedStat held = new TimedStat();
+    private final TimedStat wait = new TimedStat();
+    private final TimedStat timeout = new TimedStat();
     private final AtomicLong connectionErrorCount = new AtomicLong();
     private final AtomicLong creationErrorCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong validationFailureCount = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+    private final AtomicLong reclaimCount = new AtomicLong();
+    private final AtomicLong statementCacheHitCount = new AtomicLong();
+    private final AtomicLong statementCacheMissCount = new AtomicLong();
+    private final AtomicLong statementCacheEvictionCount = new AtomicLong();
 
     @Managed
     @Nested
@@ -51,6 +60,20 @@ public final class ManagedDataSourceStats
         return held;
     }
 
+    @Managed(description = "Time spent waiting for a free connection slot")
+    @Nested
+    public TimedStat getWait()
+    {
+        return wait;
+    }
+
+    @Managed(description = "Time spent before giving up on a connection with a SqlTimeoutException")
+    @Nested
+    public TimedStat getTimeout()
+    {
+        return timeout;
+    }
+
     @Managed
     public long getConnectionErrorCount()
     {
@@ -63,11 +86,63 @@ public final class ManagedDataSourceStats
         return creationErrorCount.get();
     }
 
+    @Managed(description = "Idle connections closed because they exceeded the max lifetime or idle timeout")
+    public long getEvictionCount()
+    {
+        return evictionCount.get();
+    }
+
+    @Managed(description = "Idle connections closed because they failed validation")
+    public long getValidationFailureCount()
+    {
+        return validationFailureCount.get();
+    }
+
+    @Managed(description = "Connections held longer than the leak detection threshold")
+    public long getLeakCount()
+    {
+        return leakCount.get();
+    }
+
+    @Managed(description = "Leaked connections closed and returned to the pool")
+    public long getReclaimCount()
+    {
+        return reclaimCount.get();
+    }
+
+    @Managed(description = "Prepared statements reused from the statement cache")
+    public long getStatementCacheHitCount()
+    {
+        return statementCacheHitCount.get();
+    }
+
+    @Managed(description = "Prepared statements not found in the statement cache")
+    public long getStatementCacheMissCount()
+    {
+        return statementCacheMissCount.get();
+    }
+
+    @Managed(description = "Prepared statements closed to keep the statement cache within its size")
+    public long getStatementCacheEvictionCount()
+    {
+        return statementCacheEvictionCount.get();
+    }
+
     void connectionCheckedOut(Duration elapsedTime)
     {
         checkout.addValue(elapsedTime);
     }
 
+    void connectionWaited(Duration elapsedTime)
+    {
+        wait.addValue(elapsedTime);
+    }
+
+    void connectionTimedOut(Duration elapsedTime)
+    {
+        timeout.addValue(elapsedTime);
+    }
+
     void connectionCreated(Duration elapsedTime)
     {
         create.addValue(elapsedTime);
@@ -87,4 +162,39 @@ public final class ManagedDataSourceStats
     {
         connectionErrorCount.incrementAndGet();
     }
+
+    void connectionEvicted()
+    {
+        evictionCount.incrementAndGet();
+    }
+
+    void validationFailed()
+    {
+        validationFailureCount.incrementAndGet();
+    }
+
+    void connectionLeaked()
+    {
+        leakCount.incrementAndGet();
+    }
+
+    void connectionReclaimed()
+    {
+        reclaimCount.incrementAndGet();
+    }
+
+    void statementCacheHit()
+    {
+        statementCacheHitCount.incrementAndGet();
+    }
+
+    void statementCacheMiss()
+    {
+        statementCacheMissCount.incrementAndGet();
+    }
+
+    void statementEvicted()
+    {
+        statementCacheEvictionCount.incrementAndGet();
+    }
 }
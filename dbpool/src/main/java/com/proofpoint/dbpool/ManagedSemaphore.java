@@ -21,6 +21,13 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Fair semaphore that tracks the number of permits in use and allows the
+ * number of permits to be changed. Permits are granted to waiting threads in
+ * the order they arrived, so no caller starves while others barge ahead.
+ * As with any fair {@link Semaphore}, the untimed {@link #tryAcquire()}
+ * methods still take a free permit ahead of waiting threads.
+ */
 class ManagedSemaphore extends Semaphore
 {
     private final AtomicLong activePermits = new AtomicLong();
@@ -28,7 +35,7 @@ class ManagedSemaphore extends Semaphore
 
     public ManagedSemaphore(int permits)
     {
-        super(permits);
+        super(permits, true);
         this.permits = permits;
     }
 
@@ -15,86 +15,737 @@
  */
 package com.proofpoint.dbpool;
 
-import com.mysql.jdbc.jdbc2.optional.MysqlConnectionPoolDataSource;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.proofpoint.discovery.client.ServiceDescriptor;
 import com.proofpoint.discovery.client.ServiceSelector;
+import com.proofpoint.log.Logger;
+import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
 
+import javax.annotation.PreDestroy;
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.DataSource;
 import javax.sql.PooledConnection;
+import javax.sql.StatementEventListener;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static java.lang.Math.max;
+
+/**
+ * Data source for the MySQL servers of a discovery service type.
+ * <p/>
+ * A connection pool is kept for every announced server. Connections from
+ * {@link #getConnection()} go to a primary server and stay on the same
+ * primary until it fails. Connections from the {@link
+ * #getReadOnlyDataSource() read only data source} are spread over the
+ * servers announced with the property {@code role=replica}, using the
+ * replica with the fewest connections in use, and go to a primary when no
+ * replica is available. A server that fails to connect is skipped until a
+ * background health check connects to it again, unless no other server is
+ * available.
+ * <p/>
+ * The max connections limit the connections in use on all servers
+ * together, and the wait for a connection, the low priority data source,
+ * leak detection, the adaptive limit and the query stats all apply to the
+ * servers together. The min idle connections, idle timeout and the other
+ * idle connection settings apply to the pool of each server.
+ */
 public class MySqlDataSource extends ManagedDataSource
 {
+    public static final String JDBC_PROPERTY = "jdbc";
+    public static final String ROLE_PROPERTY = "role";
+    public static final String REPLICA_ROLE = "replica";
+
+    private static final Logger log = Logger.get(MySqlDataSource.class);
+    private static final int MAINTENANCE_THREADS = 4;
+
     private final ServiceSelector serviceSelector;
-    private final int defaultFetchSize;
-    private UUID currentServer;
-    private MysqlConnectionPoolDataSource dataSource;
+    private final MySqlDataSourceConfig config;
+    private final QueryStats queryStats;
+    private final DataSource readOnlyDataSource = new ReadOnlyDataSource();
+    private final ThreadLocal<Boolean> readOnlyCheckout = new ThreadLocal<Boolean>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final AtomicLong failoverCount = new AtomicLong();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicBoolean disposed = new AtomicBoolean();
+    private final ScheduledExecutorService maintenanceExecutor;
+
+    // replaced as a whole when the announcements change, so checkouts never lock
+    private volatile Map<UUID, Server> servers = new HashMap<UUID, Server>();
+    private volatile UUID currentPrimary;
 
     public MySqlDataSource(ServiceSelector serviceSelector, MySqlDataSourceConfig config)
     {
         super(config.getMaxConnections(), config.getMaxConnectionWait());
-
+        if (serviceSelector == null) {
+            throw new NullPointerException("serviceSelector is null");
+        }
+        if (config.getHealthCheckInterval() == null) {
+            throw new NullPointerException("healthCheckInterval is null");
+        }
         this.serviceSelector = serviceSelector;
-        this.defaultFetchSize = config.getDefaultFetchSize();
+        this.config = config;
+
+        setReservedConnections(config.getReservedConnections());
+        setLeakDetectionThreshold(config.getLeakDetectionThreshold());
+        setLeakStackSampleInterval(config.getLeakStackSampleInterval());
+        setReclaimLeakedConnections(config.isReclaimLeakedConnections());
+        getAdaptiveLimit().setMinLimit(config.getAdaptiveMinConnections());
+        getAdaptiveLimit().setEnabled(config.isAdaptiveConnectionsEnabled());
+        queryStats = new QueryStats(config.isQueryStatsEnabled(), config.getMaxQueryFingerprints());
+
+        // shared with the server pools, with enough threads that a server that is slow to connect does not hold up the others
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(MAINTENANCE_THREADS, new ThreadFactoryBuilder().setNameFormat("MySqlDataSource-maintenance-%s").setDaemon(true).build());
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        maintenanceExecutor = executor;
+    }
+
+    @PreDestroy
+    public synchronized void dispose()
+    {
+        disposed.set(true);
+        for (Server server : servers.values()) {
+            server.getDataSource().dispose();
+        }
+        servers = new HashMap<UUID, Server>();
+
+        // let the queued closes of the server pools finish
+        maintenanceExecutor.shutdown();
+    }
+
+    /**
+     * Creates the pools of the announced servers and starts maintaining
+     * them in the background, which opens the min idle connections of each
+     * server before the first checkout needs them. This also starts the
+     * health checks. Called by the first checkout if it was not called
+     * before.
+     */
+    public synchronized void start()
+    {
+        if (disposed.get()) {
+            return;
+        }
+        startMaintenance();
+        refreshServers();
+        for (Server server : servers.values()) {
+            server.getDataSource().start();
+        }
+    }
+
+    /**
+     * Gets a data source for queries that can run on a replica. Connections
+     * checked out through it count against the max connections of this
+     * data source.
+     */
+    public DataSource getReadOnlyDataSource()
+    {
+        return readOnlyDataSource;
     }
 
+    @Managed
+    public int getServerCount()
+    {
+        return servers.size();
+    }
+
+    @Managed
+    public int getHealthyServerCount()
+    {
+        int count = 0;
+        for (Server server : servers.values()) {
+            if (server.isHealthy()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Managed(description = "Number of open connections that are not checked out on all servers")
+    public int getConnectionsIdle()
+    {
+        int count = 0;
+        for (Server server : servers.values()) {
+            count += server.getDataSource().getConnectionsIdle();
+        }
+        return count;
+    }
+
+    @Override
+    @Managed(description = "Number of threads waiting for a connection")
+    public int getConnectionsWaiting()
+    {
+        int count = super.getConnectionsWaiting();
+        for (Server server : servers.values()) {
+            count += server.getDataSource().getConnectionsWaiting();
+        }
+        return count;
+    }
+
+    @Managed(description = "Number of connections being opened in the background on all servers")
+    public int getConnectionsPending()
+    {
+        int count = 0;
+        for (Server server : servers.values()) {
+            count += server.getDataSource().getConnectionsPending();
+        }
+        return count;
+    }
+
+    @Managed(description = "Number of prepared statements cached on each connection")
+    public int getStatementCacheSize()
+    {
+        return config.getStatementCacheSize();
+    }
+
+    @Managed
+    @Nested
+    public QueryStats getQueryStats()
+    {
+        return queryStats;
+    }
+
+    @Managed(description = "Number of times a checkout moved on from a failed server")
+    public long getFailoverCount()
+    {
+        return failoverCount.get();
+    }
+
+    @Managed(description = "Announced servers with their role, health and connections")
+    public List<String> getServers()
+    {
+        ImmutableList.Builder<String> builder = ImmutableList.builder();
+        for (Server server : servers.values()) {
+            builder.add(server.toString());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates the connection pool for a server.
+     */
+    protected PooledDataSource createServerDataSource(String jdbcUrl, MySqlDataSourceConfig config)
+    {
+        return new MySqlServerDataSource(jdbcUrl, config, getStats(), maintenanceExecutor);
+    }
+
+    @Override
+    protected Connection createConnection()
+            throws SQLException
+    {
+        // the server pools open the physical connections and record their creation
+        return queryStats.instrument(prepareConnection(createConnectionInternal()));
+    }
+
+    /**
+     * Checks out a connection from the pool of a server, for reads or
+     * writes depending on the data source used.
+     */
+    @Override
     protected PooledConnection createConnectionInternal()
             throws SQLException
     {
-        // attempt to get a connection from the current datasource if we have one
+        if (disposed.get()) {
+            throw new SQLException("MySqlDataSource has been disposed");
+        }
+        if (!started.get()) {
+            start();
+        }
+        else if (servers.isEmpty()) {
+            refreshServers();
+        }
+
+        long deadline = getCheckoutDeadline();
+        List<Server> candidates = selectServers(readOnlyCheckout.get() != null);
         SQLException lastException = null;
-        if (dataSource != null) {
+        for (int i = 0; i < candidates.size(); i++) {
+            Server server = candidates.get(i);
             try {
-                return dataSource.getPooledConnection();
+                // split what is left of the wait over the servers left to try, so a
+                // server that is down can not use up the wait of the whole checkout
+                long now = System.nanoTime();
+                long serverDeadline = now + max(0, deadline - now) / (candidates.size() - i);
+                Connection connection = server.getDataSource().getConnection(serverDeadline);
+                if (server.setHealthy(true)) {
+                    log.info("MySQL server %s is available again", server.getJdbcUrl());
+                }
+                if (!server.isReplica()) {
+                    currentPrimary = server.getId();
+                }
+                return new ServerConnection(connection);
+            }
+            catch (SqlTimeoutException e) {
+                // without a cause the server is fine and its pool is just exhausted, so
+                // moving on would only wait again and could send writes to another primary
+                if (e.getCause() == null) {
+                    throw e;
+                }
+                serverFailed(server, e);
+                lastException = e;
             }
             catch (SQLException e) {
+                serverFailed(server, e);
                 lastException = e;
             }
         }
 
-        // drop reference to current datasource
-        dataSource = null;
+        // throw the last exception we got
+        if (lastException != null) {
+            throw lastException;
+        }
+        throw new SQLException(String.format("No mysql servers of type '%s' available in pool '%s'", serviceSelector.getType(), serviceSelector.getPool()));
+    }
 
-        // attempt to create a connection to each mysql server (except for the one that we know is bad)
-        for (ServiceDescriptor serviceDescriptor : serviceSelector.selectAllServices()) {
-            // skip the current server since it is having problems
-            if (serviceDescriptor.getId().equals(currentServer)) {
+    /**
+     * Orders the servers a checkout tries: for reads the least busy replicas
+     * before the primaries, and for writes the current primary before the
+     * other primaries. Failed servers are only tried when there is no
+     * healthy one.
+     */
+    private List<Server> selectServers(boolean readOnly)
+    {
+        List<Server> primaries = new ArrayList<Server>();
+        List<Server> replicas = new ArrayList<Server>();
+        List<Server> failed = new ArrayList<Server>();
+        for (Server server : servers.values()) {
+            if (server.isReplica() && !readOnly) {
                 continue;
             }
+            if (!server.isHealthy()) {
+                failed.add(server);
+            }
+            else if (server.isReplica()) {
+                replicas.add(server);
+            }
+            else if (server.getId().equals(currentPrimary)) {
+                primaries.add(0, server);
+            }
+            else {
+                primaries.add(server);
+            }
+        }
+
+        if (replicas.isEmpty() && primaries.isEmpty()) {
+            return failed;
+        }
+
+        if (!replicas.isEmpty()) {
+            // rotate first so replicas with the same load take turns
+            int offset = (nextReplica.getAndIncrement() & Integer.MAX_VALUE) % replicas.size();
+            List<Server> rotated = new ArrayList<Server>(replicas.subList(offset, replicas.size()));
+            rotated.addAll(replicas.subList(0, offset));
+            replicas = Ordering.natural().onResultOf(Server.ACTIVE_CONNECTIONS).sortedCopy(rotated);
+        }
+
+        return ImmutableList.<Server>builder().addAll(replicas).addAll(primaries).build();
+    }
+
+    private void serverFailed(Server server, SQLException e)
+    {
+        failoverCount.incrementAndGet();
+        if (server.setHealthy(false)) {
+            log.warn(e, "MySQL server %s is not available", server.getJdbcUrl());
+        }
+        if (server.getId().equals(currentPrimary)) {
+            currentPrimary = null;
+        }
+    }
 
+    /**
+     * Creates pools for newly announced servers and disposes the pools of
+     * servers that are no longer announced.
+     */
+    @VisibleForTesting
+    synchronized void refreshServers()
+    {
+        if (disposed.get()) {
+            return;
+        }
+
+        Map<UUID, Server> oldServers = servers;
+        Map<UUID, Server> newServers = new HashMap<UUID, Server>();
+        for (ServiceDescriptor serviceDescriptor : serviceSelector.selectAllServices()) {
             // skip bogus announcements
-            String jdbcUrl = serviceDescriptor.getProperties().get("jdbc");
+            String jdbcUrl = serviceDescriptor.getProperties().get(JDBC_PROPERTY);
             if (jdbcUrl == null) {
                 continue;
             }
+            boolean replica = REPLICA_ROLE.equals(serviceDescriptor.getProperties().get(ROLE_PROPERTY));
+
+            Server server = oldServers.get(serviceDescriptor.getId());
+            if (server == null || !server.getJdbcUrl().equals(jdbcUrl) || server.isReplica() != replica) {
+                server = new Server(serviceDescriptor.getId(), jdbcUrl, replica, createServerPool(jdbcUrl));
+            }
+            newServers.put(server.getId(), server);
+        }
+        servers = newServers;
+
+        // connections still checked out of a disposed pool are closed when they are returned
+        for (Server server : oldServers.values()) {
+            if (newServers.get(server.getId()) != server) {
+                server.getDataSource().dispose();
+            }
+        }
+    }
+
+    private PooledDataSource createServerPool(String jdbcUrl)
+    {
+        PooledDataSource dataSource = createServerDataSource(jdbcUrl, config);
+
+        // these are applied to the checkouts of all servers by this data source
+        dataSource.setReservedConnections(0);
+        dataSource.setLeakDetectionThreshold(null);
+        dataSource.getAdaptiveLimit().setEnabled(false);
+        dataSource.getQueryStats().setEnabled(false);
+        if (started.get()) {
+            dataSource.start();
+        }
+        return dataSource;
+    }
 
+    /**
+     * Picks up announcement changes and tries to connect to failed servers.
+     */
+    @VisibleForTesting
+    void checkHealth()
+    {
+        refreshServers();
+        for (Server server : servers.values()) {
+            if (server.isHealthy()) {
+                continue;
+            }
             try {
-                MysqlConnectionPoolDataSource dataSource = new MysqlConnectionPoolDataSource();
-                dataSource.setUrl(jdbcUrl);
-                // these are in MS *not* seconds like everything else in JDBC
-                dataSource.setConnectTimeout(getMaxConnectionWaitMillis());
-                dataSource.setInitialTimeout(getMaxConnectionWaitMillis());
-                dataSource.setDefaultFetchSize(defaultFetchSize);
+                server.getDataSource().getConnection().close();
+                if (server.setHealthy(true)) {
+                    log.info("MySQL server %s is available again", server.getJdbcUrl());
+                }
+            }
+            catch (SQLException ignored) {
+                // still down
+            }
+        }
+    }
 
-                PooledConnection connection = dataSource.getPooledConnection();
+    /**
+     * Reports leaked connections and adjusts the adaptive connection limit.
+     */
+    @VisibleForTesting
+    void maintain()
+    {
+        checkForLeaks();
+        getAdaptiveLimit().update();
+    }
+
+    private void startMaintenance()
+    {
+        if (started.compareAndSet(false, true)) {
+            maintenanceExecutor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        maintain();
+                    }
+                    catch (Throwable e) {
+                        log.error(e, "Error maintaining MySQL connections");
+                    }
+                }
+            }, 0, (long) PooledDataSource.MAINTENANCE_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+
+            long interval = (long) config.getHealthCheckInterval().toMillis();
+            maintenanceExecutor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        checkHealth();
+                    }
+                    catch (Throwable e) {
+                        log.error(e, "Error checking the health of MySQL servers");
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
 
-                // that worked so save the datasource and server id
-                this.dataSource = dataSource;
-                this.currentServer = serviceDescriptor.getId();
-                return connection;
+    private class ReadOnlyDataSource implements DataSource
+    {
+        @Override
+        public Connection getConnection()
+                throws SQLException
+        {
+            readOnlyCheckout.set(Boolean.TRUE);
+            try {
+                return MySqlDataSource.this.getConnection();
             }
-            catch (SQLException e) {
-                lastException = e;
+            finally {
+                readOnlyCheckout.remove();
             }
         }
 
-        // no servers found, clear the current server id since we no longer have a server at all
-        currentServer = null;
+        /**
+         * Not supported.
+         *
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public Connection getConnection(String username, String password)
+                throws SQLException
+        {
+            throw new UnsupportedOperationException();
+        }
 
-        // throw the last exception we got
-        if (lastException != null) {
-            throw lastException;
+        @Override
+        public PrintWriter getLogWriter()
+                throws SQLException
+        {
+            return MySqlDataSource.this.getLogWriter();
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out)
+                throws SQLException
+        {
+            MySqlDataSource.this.setLogWriter(out);
+        }
+
+        @Override
+        public int getLoginTimeout()
+                throws SQLException
+        {
+            return MySqlDataSource.this.getLoginTimeout();
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds)
+                throws SQLException
+        {
+            MySqlDataSource.this.setLoginTimeout(seconds);
+        }
+
+        // JDBC 4.1, not annotated so that this still compiles against JDBC 4.0
+        public java.util.logging.Logger getParentLogger()
+                throws SQLFeatureNotSupportedException
+        {
+            return MySqlDataSource.this.getParentLogger();
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface)
+                throws SQLException
+        {
+            return MySqlDataSource.this.isWrapperFor(iface);
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface)
+                throws SQLException
+        {
+            return MySqlDataSource.this.unwrap(iface);
+        }
+    }
+
+    /**
+     * Connection checked out from the pool of a server. Closing it returns
+     * the connection to the server pool and reports the return to this data
+     * source, which tracks the connections in use on all servers.
+     */
+    private static class ServerConnection implements PooledConnection
+    {
+        private final Connection connection;
+        private final Connection proxy;
+        private final List<ConnectionEventListener> listeners = new CopyOnWriteArrayList<ConnectionEventListener>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private ServerConnection(Connection connection)
+        {
+            this.connection = connection;
+            proxy = (Connection) Proxy.newProxyInstance(MySqlDataSource.class.getClassLoader(),
+                    new Class<?>[] {Connection.class},
+                    new ConnectionHandler());
+        }
+
+        @Override
+        public Connection getConnection()
+        {
+            return proxy;
+        }
+
+        /**
+         * Returns the connection to the server pool without reporting it.
+         */
+        @Override
+        public void close()
+                throws SQLException
+        {
+            if (closed.compareAndSet(false, true)) {
+                connection.close();
+            }
+        }
+
+        @Override
+        public void addConnectionEventListener(ConnectionEventListener listener)
+        {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeConnectionEventListener(ConnectionEventListener listener)
+        {
+            listeners.remove(listener);
+        }
+
+        @Override
+        public void addStatementEventListener(StatementEventListener listener)
+        {
+        }
+
+        @Override
+        public void removeStatementEventListener(StatementEventListener listener)
+        {
+        }
+
+        private class ConnectionHandler implements InvocationHandler
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable
+            {
+                String name = method.getName();
+                if (method.getDeclaringClass() == Object.class) {
+                    if (name.equals("equals")) {
+                        return proxy == args[0];
+                    }
+                    if (name.equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    }
+                    if (name.equals("toString")) {
+                        return "MySqlDataSource.Connection[" + connection + "]";
+                    }
+                }
+                if (name.equals("isClosed")) {
+                    return closed.get();
+                }
+                if (name.equals("close")) {
+                    if (closed.compareAndSet(false, true)) {
+                        try {
+                            connection.close();
+                        }
+                        finally {
+                            ConnectionEvent event = new ConnectionEvent(ServerConnection.this);
+                            for (ConnectionEventListener listener : listeners) {
+                                listener.connectionClosed(event);
+                            }
+                        }
+                    }
+                    return null;
+                }
+                if (closed.get()) {
+                    throw new SQLException("Connection is closed");
+                }
+                try {
+                    return method.invoke(connection, args);
+                }
+                catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+    }
+
+    private static class Server
+    {
+        private static final Function<Server, Long> ACTIVE_CONNECTIONS = new Function<Server, Long>()
+        {
+            @Override
+            public Long apply(Server server)
+            {
+                return server.getDataSource().getConnectionsActive();
+            }
+        };
+
+        private final UUID id;
+        private final String jdbcUrl;
+        private final boolean replica;
+        private final PooledDataSource dataSource;
+        private final AtomicBoolean healthy = new AtomicBoolean(true);
+
+        private Server(UUID id, String jdbcUrl, boolean replica, PooledDataSource dataSource)
+        {
+            this.id = id;
+            this.jdbcUrl = jdbcUrl;
+            this.replica = replica;
+            this.dataSource = dataSource;
+        }
+
+        public UUID getId()
+        {
+            return id;
+        }
+
+        public String getJdbcUrl()
+        {
+            return jdbcUrl;
+        }
+
+        public boolean isReplica()
+        {
+            return replica;
+        }
+
+        public PooledDataSource getDataSource()
+        {
+            return dataSource;
+        }
+
+        public boolean isHealthy()
+        {
+            return healthy.get();
+        }
+
+        /**
+         * @return true if the health changed
+         */
+        public boolean setHealthy(boolean healthy)
+        {
+            return this.healthy.getAndSet(healthy) != healthy;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s %s %s active=%d idle=%d %s",
+                    replica ? "replica" : "primary",
+                    healthy.get() ? "healthy" : "failed",
+                    id,
+                    dataSource.getConnectionsActive(),
+                    dataSource.getConnectionsIdle(),
+                    jdbcUrl);
         }
-        throw new SQLException(String.format("No mysql servers of type '%s' available in pool '%s'", serviceSelector.getType(), serviceSelector.getPool()));
     }
 }
@@ -17,6 +17,9 @@ package com.proofpoint.dbpool;
 
 import com.proofpoint.configuration.Config;
 import com.proofpoint.configuration.DefunctConfig;
+import com.proofpoint.units.Duration;
+
+import java.util.concurrent.TimeUnit;
 
 /**
  * see <a href="http://dev.mysql.com/doc/refman/5.0/en/connector-j-reference-configuration-properties.html">http://dev.mysql.com/doc/refman/5.0/en/connector-j-reference-configuration-properties.html</a>
@@ -25,6 +28,7 @@ import com.proofpoint.configuration.DefunctConfig;
 public class MySqlDataSourceConfig extends ManagedDataSourceConfig<MySqlDataSourceConfig>
 {
     private int defaultFetchSize = 100;
+    private Duration healthCheckInterval = new Duration(5, TimeUnit.SECONDS);
 
     /**
      * Gets the default fetch size for all connection.
@@ -43,4 +47,24 @@ public class MySqlDataSourceConfig extends ManagedDataSourceConfig<MySqlDataSour
         this.defaultFetchSize = defaultFetchSize;
         return this;
     }
+
+    /**
+     * Gets how often servers are rediscovered and failed servers are checked
+     * for recovery.
+     */
+    public Duration getHealthCheckInterval()
+    {
+        return healthCheckInterval;
+    }
+
+    /**
+     * Sets how often servers are rediscovered and failed servers are checked
+     * for recovery.
+     */
+    @Config("db.health-check-interval")
+    public MySqlDataSourceConfig setHealthCheckInterval(Duration healthCheckInterval)
+    {
+        this.healthCheckInterval = healthCheckInterval;
+        return this;
+    }
 }
@@ -38,6 +38,7 @@ public class MySqlDataSourceModule extends MBeanModule
     private final Class<? extends Annotation> annotation;
     private final List<Class<? extends Annotation>> aliases;
     private final String type;
+    private Class<? extends Annotation> readOnlyAnnotation;
 
     public MySqlDataSourceModule(String type, Class<? extends Annotation> annotation, Class<? extends Annotation>... aliases)
     {
@@ -57,6 +58,20 @@ public class MySqlDataSourceModule extends MBeanModule
         }
     }
 
+    /**
+     * Also binds the {@link MySqlDataSource#getReadOnlyDataSource() read only
+     * data source}, which spreads connections over the replica servers, with
+     * the specified annotation.
+     */
+    public MySqlDataSourceModule withReadOnlyBinding(Class<? extends Annotation> readOnlyAnnotation)
+    {
+        if (readOnlyAnnotation == null) {
+            throw new NullPointerException("readOnlyAnnotation is null");
+        }
+        this.readOnlyAnnotation = readOnlyAnnotation;
+        return this;
+    }
+
     @Override
     public void configureMBeans()
     {
@@ -75,6 +90,38 @@ public class MySqlDataSourceModule extends MBeanModule
         for (Class<? extends Annotation> alias : aliases) {
             bind(DataSource.class).annotatedWith(alias).to(key);
         }
+
+        // Bind the async datasource
+        bind(AsyncDataSource.class).annotatedWith(annotation).toProvider(new AsyncDataSourceProvider(key, Key.get(MySqlDataSourceConfig.class, annotation))).in(Scopes.SINGLETON);
+        export(AsyncDataSource.class).annotatedWith(annotation).withGeneratedName();
+
+        // Bind the read only datasource
+        if (readOnlyAnnotation != null) {
+            bind(DataSource.class).annotatedWith(readOnlyAnnotation).toProvider(new ReadOnlyDataSourceProvider(key)).in(Scopes.SINGLETON);
+        }
+    }
+
+    private static class ReadOnlyDataSourceProvider implements Provider<DataSource>
+    {
+        private final Key<DataSource> key;
+        private Injector injector;
+
+        private ReadOnlyDataSourceProvider(Key<DataSource> key)
+        {
+            this.key = key;
+        }
+
+        @Inject
+        public void setInjector(Injector injector)
+        {
+            this.injector = injector;
+        }
+
+        @Override
+        public DataSource get()
+        {
+            return ((MySqlDataSource) injector.getInstance(key)).getReadOnlyDataSource();
+        }
     }
 
     private static class MySqlDataSourceProvider implements Provider<MySqlDataSource>
@@ -101,7 +148,11 @@ public class MySqlDataSourceModule extends MBeanModule
         {
             MySqlDataSourceConfig config = injector.getInstance(Key.get(MySqlDataSourceConfig.class, annotation));
             ServiceSelector serviceSelector = injector.getInstance(Key.get(ServiceSelector.class, serviceType(type)));
-            return new MySqlDataSource(serviceSelector, config);
+            MySqlDataSource dataSource = new MySqlDataSource(serviceSelector, config);
+
+            // open the min idle connections before the first request needs them
+            dataSource.start();
+            return dataSource;
         }
     }
 }
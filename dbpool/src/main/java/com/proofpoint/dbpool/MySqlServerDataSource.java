@@ -0,0 +1,83 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import com.mysql.jdbc.jdbc2.optional.MysqlConnectionPoolDataSource;
+
+import javax.sql.PooledConnection;
+import java.sql.SQLException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.proofpoint.units.Duration.nanosSince;
+
+/**
+ * Pool of connections to a single MySQL server of a {@link
+ * MySqlDataSource}. The creation, eviction and validation of connections
+ * and the use of the statement cache are recorded with the stats of the
+ * MySqlDataSource, which are the ones exported. The pool is maintained on
+ * the threads of the MySqlDataSource.
+ */
+class MySqlServerDataSource extends PooledDataSource
+{
+    private final MysqlConnectionPoolDataSource dataSource;
+    private final ManagedDataSourceStats stats;
+
+    MySqlServerDataSource(String jdbcUrl, MySqlDataSourceConfig config, ManagedDataSourceStats stats, ScheduledExecutorService executor)
+    {
+        super(config, MAINTENANCE_INTERVAL, executor, null);
+        if (jdbcUrl == null) {
+            throw new NullPointerException("jdbcUrl is null");
+        }
+        if (stats == null) {
+            throw new NullPointerException("stats is null");
+        }
+        this.stats = stats;
+
+        dataSource = new MysqlConnectionPoolDataSource();
+        dataSource.setUrl(jdbcUrl);
+        // these are in MS *not* seconds like everything else in JDBC
+        dataSource.setConnectTimeout(getMaxConnectionWaitMillis());
+        dataSource.setInitialTimeout(getMaxConnectionWaitMillis());
+        dataSource.setDefaultFetchSize(config.getDefaultFetchSize());
+    }
+
+    @Override
+    public ManagedDataSourceStats getStats()
+    {
+        return stats;
+    }
+
+    @Override
+    protected PooledConnection createConnectionInternal()
+            throws SQLException
+    {
+        boolean success = false;
+        try {
+            long start = System.nanoTime();
+            PooledConnection pooledConnection = dataSource.getPooledConnection();
+            stats.connectionCreated(nanosSince(start));
+
+            success = true;
+
+            return pooledConnection;
+        }
+        finally {
+            if (!success) {
+                stats.creationErrorOccurred();
+            }
+        }
+    }
+}
@@ -15,41 +15,245 @@
  */
 package com.proofpoint.dbpool;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.log.Logger;
 import com.proofpoint.units.Duration;
+import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
 
-import javax.sql.ConnectionPoolDataSource;
+import javax.annotation.PreDestroy;
 import javax.sql.PooledConnection;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.Deque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Math.ceil;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
 
 /**
- * This class is not complete yet.
+ * Data source that keeps returned connections open for reuse, instead of
+ * opening a physical connection for every checkout.
+ * <p/>
+ * Idle connections are handed out most recently used first, so a busy pool
+ * keeps reusing the same warm connections and the rest age out. Connections
+ * are closed once they exceed the max lifetime, and idle connections are
+ * closed after the idle timeout unless they are needed to keep the minimum
+ * number of idle connections. Idle connections can be validated before they
+ * are handed out, and are validated in the background at the validation
+ * interval.
+ * <p/>
+ * Connections are opened and closed on background threads. A thread that
+ * finds no idle connection asks for a new one and waits until either the
+ * new connection or a returned connection is available, so the connect
+ * latency is never paid by more threads than are actually waiting. The
+ * minimum number of idle connections is kept as spare connections on top
+ * of the waiting threads, and is replenished as soon as one is checked out.
  */
-abstract class PooledDataSource extends ManagedDataSource
+public abstract class PooledDataSource extends ManagedDataSource
 {
+    private static final Logger log = Logger.get(PooledDataSource.class);
+    static final Duration MAINTENANCE_INTERVAL = new Duration(1, TimeUnit.SECONDS);
+
     private final AtomicBoolean disposed = new AtomicBoolean();
-    private final Deque<PooledConnection> pool = new LinkedBlockingDeque<PooledConnection>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final LinkedBlockingDeque<IdleConnection> pool = new LinkedBlockingDeque<IdleConnection>();
+    private final ConcurrentMap<PooledConnection, Long> creationTimes = new MapMaker().weakKeys().makeMap();
+    private final ConcurrentMap<PooledConnection, StatementCache> statementCaches = new MapMaker().weakKeys().makeMap();
+    private final AtomicInteger connectionsWaiting = new AtomicInteger();
+    private final AtomicInteger connectionsPending = new AtomicInteger();
+    private final ScheduledExecutorService maintenanceExecutor;
+    private final boolean ownsMaintenanceExecutor;
+    private volatile ScheduledFuture<?> maintenanceTask;
+    private final Executor connectionExecutor;
+    private final Duration maintenanceInterval;
+    private final int statementCacheSize;
+    private final QueryStats queryStats;
+
+    private volatile int minIdleConnections;
+    private volatile long maxLifetimeNanos;
+    private volatile long idleTimeoutNanos;
+    private volatile long validationIntervalNanos;
+    private volatile boolean validateOnBorrow;
+    private volatile Exception lastCreationError;
+
+    protected PooledDataSource(ManagedDataSourceConfig<?> config)
+    {
+        this(config, MAINTENANCE_INTERVAL, null);
+    }
+
+    /**
+     * @param maintenanceInterval how often idle connections are maintained
+     * in the background, or null to only maintain them when {@link
+     * #maintain()} is called
+     * @param connectionExecutor executor that opens and closes connections,
+     * or null to use the maintenance thread pool
+     */
+    PooledDataSource(ManagedDataSourceConfig<?> config, Duration maintenanceInterval, Executor connectionExecutor)
+    {
+        this(config, maintenanceInterval, null, connectionExecutor);
+    }
+
+    /**
+     * @param maintenanceExecutor thread pool shared with other pools, which
+     * is not shut down when this pool is disposed, or null to create one
+     */
+    PooledDataSource(ManagedDataSourceConfig<?> config, Duration maintenanceInterval, ScheduledExecutorService maintenanceExecutor, Executor connectionExecutor)
+    {
+        super(config.getMaxConnections(), config.getMaxConnectionWait());
+        this.maintenanceInterval = maintenanceInterval;
 
-    PooledDataSource(ConnectionPoolDataSource dataSource, int maxConnections, Duration maxConnectionWait)
+        setMinIdleConnections(config.getMinIdleConnections());
+        setReservedConnections(config.getReservedConnections());
+        setLeakDetectionThreshold(config.getLeakDetectionThreshold());
+        setLeakStackSampleInterval(config.getLeakStackSampleInterval());
+        setReclaimLeakedConnections(config.isReclaimLeakedConnections());
+        getAdaptiveLimit().setMinLimit(config.getAdaptiveMinConnections());
+        getAdaptiveLimit().setEnabled(config.isAdaptiveConnectionsEnabled());
+        maxLifetimeNanos = toNanos(config.getMaxConnectionLifetime(), "maxConnectionLifetime");
+        idleTimeoutNanos = toNanos(config.getIdleTimeout(), "idleTimeout");
+        validationIntervalNanos = toNanos(config.getValidationInterval(), "validationInterval");
+        validateOnBorrow = config.isValidateOnBorrow();
+        if (config.getStatementCacheSize() < 0) {
+            throw new IllegalArgumentException("statementCacheSize is negative: statementCacheSize=" + config.getStatementCacheSize());
+        }
+        statementCacheSize = config.getStatementCacheSize();
+        queryStats = new QueryStats(config.isQueryStatsEnabled(), config.getMaxQueryFingerprints());
+
+        ownsMaintenanceExecutor = maintenanceExecutor == null;
+        if (ownsMaintenanceExecutor) {
+            // two threads so that closing a connection never delays opening one
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2, new ThreadFactoryBuilder().setNameFormat(getClass().getSimpleName() + "-maintenance-%s").setDaemon(true).build());
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            maintenanceExecutor = executor;
+        }
+        this.maintenanceExecutor = maintenanceExecutor;
+        this.connectionExecutor = Objects.firstNonNull(connectionExecutor, maintenanceExecutor);
+    }
+
+    /**
+     * Starts maintaining the pool in the background, which opens the min
+     * idle connections before the first checkout needs them. Maintenance
+     * starts with the first checkout if this is not called.
+     */
+    public void start()
     {
-        super(maxConnections, maxConnectionWait);
+        if (maintenanceInterval == null || disposed.get() || !started.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            maintenanceTask = maintenanceExecutor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        maintain();
+                    }
+                    catch (Throwable e) {
+                        log.error(e, "Error maintaining idle connections");
+                    }
+                }
+            }, 0, (long) maintenanceInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException ignored) {
+            // the pool was disposed
+        }
+        if (disposed.get()) {
+            stopMaintenance();
+        }
     }
 
+    @PreDestroy
     public void dispose()
     {
         disposed.set(true);
+        closeIdleConnections();
+        stopMaintenance();
+    }
 
-        // there is really no harm in running this loop every time dispose is called
-        for (PooledConnection pooledConnection = pool.poll(); pooledConnection != null; pooledConnection = pool.poll()) {
-            try {
-                pooledConnection.close();
-            }
-            catch (SQLException ignored) {
-            }
+    private void stopMaintenance()
+    {
+        ScheduledFuture<?> task = maintenanceTask;
+        if (task != null) {
+            task.cancel(false);
+        }
+
+        // let the queued closes finish
+        if (ownsMaintenanceExecutor) {
+            maintenanceExecutor.shutdown();
+        }
+    }
+
+    @Managed(description = "Number of open connections that are not checked out")
+    public int getConnectionsIdle()
+    {
+        return pool.size();
+    }
+
+    @Override
+    @Managed(description = "Number of threads waiting for a connection")
+    public int getConnectionsWaiting()
+    {
+        return super.getConnectionsWaiting() + connectionsWaiting.get();
+    }
+
+    @Managed(description = "Number of connections being opened in the background")
+    public int getConnectionsPending()
+    {
+        return connectionsPending.get();
+    }
+
+    @Managed(description = "Number of prepared statements cached on each connection")
+    public int getStatementCacheSize()
+    {
+        return statementCacheSize;
+    }
+
+    @Managed
+    @Nested
+    public QueryStats getQueryStats()
+    {
+        return queryStats;
+    }
+
+    @Managed
+    public int getMinIdleConnections()
+    {
+        return minIdleConnections;
+    }
+
+    @Managed
+    public void setMinIdleConnections(int minIdleConnections)
+    {
+        if (minIdleConnections < 0) {
+            throw new IllegalArgumentException("minIdleConnections is negative: minIdleConnections=" + minIdleConnections);
         }
+        this.minIdleConnections = minIdleConnections;
+    }
+
+    @Managed
+    public boolean isValidateOnBorrow()
+    {
+        return validateOnBorrow;
+    }
+
+    @Managed
+    public void setValidateOnBorrow(boolean validateOnBorrow)
+    {
+        this.validateOnBorrow = validateOnBorrow;
     }
 
     @Override
@@ -57,28 +261,258 @@ abstract class PooledDataSource extends ManagedDataSource
             throws SQLException
     {
         assertNotDisposed();
+        start();
 
-        // check for a pooled connection
-        PooledConnection pooledConnection = pool.pollLast();
-        if (pooledConnection != null) {
-            return prepareConnection(pooledConnection);
+        // reuse the most recently returned connection that is still good
+        for (IdleConnection idleConnection = pool.pollLast(); idleConnection != null; idleConnection = pool.pollLast()) {
+            if (isUsable(idleConnection)) {
+                // replace the spare connection that was just taken
+                fillPool();
+                return prepareConnection(idleConnection.getPooledConnection());
+            }
         }
 
-        // otherwise create a new one
-        return super.createConnection();
+        // otherwise wait for a new connection or a returned one, whichever comes first
+        long deadline = getCheckoutDeadline();
+        connectionsWaiting.incrementAndGet();
+        try {
+            while (true) {
+                fillPool();
+                long remaining = deadline - System.nanoTime();
+                // a checkout out of time still takes a connection that is ready
+                IdleConnection idleConnection = remaining > 0 ? pool.pollLast(remaining, TimeUnit.NANOSECONDS) : pool.pollLast();
+                if (idleConnection == null) {
+                    throw new SqlTimeoutException("Could not create a connection within " + getMaxConnectionWaitMillis() + " msec", lastCreationError);
+                }
+                if (isUsable(idleConnection)) {
+                    return prepareConnection(idleConnection.getPooledConnection());
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SqlTimeoutException("Interrupted while waiting for connection", e);
+        }
+        finally {
+            connectionsWaiting.decrementAndGet();
+        }
+    }
+
+    @Override
+    protected Connection prepareConnection(PooledConnection pooledConnection)
+            throws SQLException
+    {
+        Connection connection;
+        if (statementCacheSize == 0) {
+            connection = super.prepareConnection(pooledConnection);
+        }
+        else {
+            StatementCache statementCache = getStatementCache(pooledConnection);
+            NoPoolConnectionEventListener listener = new NoPoolConnectionEventListener(pooledConnection);
+            pooledConnection.addConnectionEventListener(listener);
+            connection = statementCache.checkout(listener);
+        }
+        return queryStats.instrument(connection);
     }
 
     @Override
     protected void connectionReturned(PooledConnection pooledConnection, long checkoutTime)
     {
-        // if this pool has been disposed, or if we have too many connections already
-        if (disposed.get() || getConnectionsActive() + pool.size() > getMaxConnections()) {
+        // if this pool has been disposed, the connection is too old, or we have too many connections already
+        if (disposed.get() || isExpired(pooledConnection, System.nanoTime()) || getConnectionsActive() + pool.size() >= getMaxConnections()) {
             // close this connection
-            super.connectionReturned(pooledConnection, checkoutTime);
+            closeQuietly(pooledConnection);
         }
         else {
             // otherwise add it to the pool
-            pool.addLast(pooledConnection);
+            pool.addLast(new IdleConnection(pooledConnection, System.nanoTime(), true));
+
+            // the pool may have been disposed while the connection was added
+            if (disposed.get()) {
+                closeIdleConnections();
+            }
+        }
+    }
+
+    @Override
+    protected void connectionDestroyed(PooledConnection pooledConnection, long checkoutTime)
+    {
+        // the connection reported an error so it can not be reused
+        closeQuietly(pooledConnection);
+    }
+
+    @Override
+    protected void connectionReclaimed(PooledConnection pooledConnection, long checkoutTime)
+    {
+        closeQuietly(pooledConnection);
+    }
+
+    /**
+     * Closes expired and surplus idle connections, validates idle
+     * connections that have not been validated within the validation
+     * interval, and opens connections until there are enough idle ones.
+     */
+    @VisibleForTesting
+    void maintain()
+    {
+        checkForLeaks();
+        getAdaptiveLimit().update();
+
+        long now = System.nanoTime();
+
+        // the oldest idle connections are at the head of the deque
+        for (IdleConnection idleConnection : pool) {
+            boolean expired = isExpired(idleConnection.getPooledConnection(), now);
+            boolean surplus = getConnectionsActive() + pool.size() > getMaxConnections();
+            boolean idleTooLong = now - idleConnection.getLastUsed() > idleTimeoutNanos && pool.size() > minIdleConnections;
+            if ((expired || surplus || idleTooLong) && pool.remove(idleConnection)) {
+                getStats().connectionEvicted();
+                closeQuietly(idleConnection.getPooledConnection());
+            }
+        }
+
+        for (IdleConnection idleConnection : pool) {
+            if (now - idleConnection.getLastValidated() > validationIntervalNanos && pool.remove(idleConnection)) {
+                if (isValid(idleConnection.getPooledConnection())) {
+                    idleConnection.setLastValidated(System.nanoTime());
+                    // put it back where the connections that have been idle the longest are
+                    pool.addFirst(idleConnection);
+                }
+                else {
+                    getStats().validationFailed();
+                    closeQuietly(idleConnection.getPooledConnection());
+                }
+            }
+        }
+
+        fillPool();
+
+        if (disposed.get()) {
+            closeIdleConnections();
+        }
+    }
+
+    /**
+     * Opens connections in the background until there is one for every
+     * waiting thread plus the minimum number of idle connections, without
+     * exceeding the maximum number of connections.
+     */
+    private synchronized void fillPool()
+    {
+        if (disposed.get()) {
+            return;
+        }
+
+        int waiting = connectionsWaiting.get();
+        int available = pool.size() + connectionsPending.get();
+        int open = (int) getConnectionsActive() - waiting + available;
+        int needed = min(waiting + minIdleConnections - available, getMaxConnections() - open);
+        for (int i = 0; i < needed; i++) {
+            connectionsPending.incrementAndGet();
+            try {
+                connectionExecutor.execute(new CreateConnectionTask());
+            }
+            catch (RejectedExecutionException e) {
+                // the pool was disposed
+                connectionsPending.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private boolean isUsable(IdleConnection idleConnection)
+    {
+        if (isExpired(idleConnection.getPooledConnection(), System.nanoTime())) {
+            getStats().connectionEvicted();
+            closeQuietly(idleConnection.getPooledConnection());
+            return false;
+        }
+        // a connection that was just opened has not had a chance to go bad
+        if (validateOnBorrow && idleConnection.isReturned() && !isValid(idleConnection.getPooledConnection())) {
+            getStats().validationFailed();
+            closeQuietly(idleConnection.getPooledConnection());
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isExpired(PooledConnection pooledConnection, long now)
+    {
+        Long created = creationTimes.get(pooledConnection);
+        return created != null && now - created > maxLifetimeNanos;
+    }
+
+    private StatementCache getStatementCache(PooledConnection pooledConnection)
+            throws SQLException
+    {
+        // a physical connection is only used by one thread at a time
+        StatementCache statementCache = statementCaches.get(pooledConnection);
+        if (statementCache == null) {
+            statementCache = new StatementCache(pooledConnection, statementCacheSize, getStats());
+            statementCaches.put(pooledConnection, statementCache);
+        }
+        return statementCache;
+    }
+
+    private boolean isValid(PooledConnection pooledConnection)
+    {
+        int timeoutSeconds = max(1, (int) ceil(getMaxConnectionWaitMillis() / 1000.0));
+        if (statementCacheSize > 0) {
+            // opening another handle would close the one holding the cached statements
+            try {
+                return getStatementCache(pooledConnection).getConnection().isValid(timeoutSeconds);
+            }
+            catch (SQLException e) {
+                return false;
+            }
+        }
+
+        // no event listener is registered while a connection is idle, so closing the handle does not return it
+        try {
+            Connection connection = pooledConnection.getConnection();
+            try {
+                return connection.isValid(timeoutSeconds);
+            }
+            finally {
+                connection.close();
+            }
+        }
+        catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void closeIdleConnections()
+    {
+        // there is really no harm in running this loop every time the pool is disposed
+        for (IdleConnection idleConnection = pool.poll(); idleConnection != null; idleConnection = pool.poll()) {
+            closeQuietly(idleConnection.getPooledConnection());
+        }
+    }
+
+    private void closeQuietly(final PooledConnection pooledConnection)
+    {
+        creationTimes.remove(pooledConnection);
+        statementCaches.remove(pooledConnection);
+        Runnable close = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    pooledConnection.close();
+                }
+                catch (SQLException ignored) {
+                }
+            }
+        };
+
+        try {
+            connectionExecutor.execute(close);
+        }
+        catch (RejectedExecutionException e) {
+            // the pool was disposed, so close it here
+            close.run();
         }
     }
 
@@ -89,5 +523,82 @@ abstract class PooledDataSource extends ManagedDataSource
             throw new SQLException(getClass().getSimpleName() + " has been disposed");
         }
     }
-}
 
+    private static long toNanos(Duration duration, String name)
+    {
+        if (duration == null) {
+            throw new NullPointerException(name + " is null");
+        }
+        return (long) duration.convertTo(TimeUnit.NANOSECONDS);
+    }
+
+    private class CreateConnectionTask implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try {
+                PooledConnection pooledConnection = createPooledConnection();
+                long created = System.nanoTime();
+                creationTimes.put(pooledConnection, created);
+                lastCreationError = null;
+
+                // the most recently added connection is handed out first, so a waiting thread gets this one
+                pool.addLast(new IdleConnection(pooledConnection, created, false));
+
+                // the pool may have been disposed while the connection was created
+                if (disposed.get()) {
+                    closeIdleConnections();
+                }
+            }
+            catch (Exception e) {
+                lastCreationError = e;
+                log.debug(e, "Could not create connection");
+            }
+            finally {
+                connectionsPending.decrementAndGet();
+            }
+        }
+    }
+
+    private static class IdleConnection
+    {
+        private final PooledConnection pooledConnection;
+        private final long lastUsed;
+        private final boolean returned;
+        private volatile long lastValidated;
+
+        private IdleConnection(PooledConnection pooledConnection, long lastUsed, boolean returned)
+        {
+            this.pooledConnection = pooledConnection;
+            this.lastUsed = lastUsed;
+            this.returned = returned;
+            this.lastValidated = lastUsed;
+        }
+
+        public PooledConnection getPooledConnection()
+        {
+            return pooledConnection;
+        }
+
+        public long getLastUsed()
+        {
+            return lastUsed;
+        }
+
+        public boolean isReturned()
+        {
+            return returned;
+        }
+
+        public long getLastValidated()
+        {
+            return lastValidated;
+        }
+
+        public void setLastValidated(long lastValidated)
+        {
+            this.lastValidated = lastValidated;
+        }
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.proofpoint.stats.TimedStat;
+import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Execute time, fetch time, rows and errors of the statements run on the
+ * connections of a data source, grouped by {@link SqlFingerprint
+ * fingerprint}.
+ * <p/>
+ * Connections are only instrumented while enabled, so disabled statistics
+ * cost nothing. At most the max number of fingerprints are tracked, and
+ * statements with new fingerprints beyond that are recorded as {@link
+ * #OTHER}.
+ */
+public class QueryStats
+{
+    public static final String OTHER = "(other)";
+
+    private static final Ordering<Map.Entry<String, FingerprintStats>> BY_TOTAL_TIME = new Ordering<Map.Entry<String, FingerprintStats>>()
+    {
+        @Override
+        public int compare(Map.Entry<String, FingerprintStats> left, Map.Entry<String, FingerprintStats> right)
+        {
+            return Double.compare(left.getValue().getExecute().getSum() + left.getValue().getFetch().getSum(),
+                    right.getValue().getExecute().getSum() + right.getValue().getFetch().getSum());
+        }
+    };
+
+    private static final Ordering<Map.Entry<String, FingerprintStats>> BY_ERRORS = new Ordering<Map.Entry<String, FingerprintStats>>()
+    {
+        @Override
+        public int compare(Map.Entry<String, FingerprintStats> left, Map.Entry<String, FingerprintStats> right)
+        {
+            return Long.valueOf(left.getValue().getErrorCount()).compareTo(right.getValue().getErrorCount());
+        }
+    };
+
+    // statements seen recently, so a cached prepared statement does not pay for fingerprinting again
+    private static final int MAX_CACHED_SQL = 1000;
+
+    private final ConcurrentMap<String, FingerprintStats> fingerprints = new ConcurrentHashMap<String, FingerprintStats>();
+    private final LoadingCache<String, String> sqlFingerprints = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_SQL)
+            .build(new CacheLoader<String, String>()
+            {
+                @Override
+                public String load(String sql)
+                {
+                    return SqlFingerprint.fingerprint(sql);
+                }
+            });
+    private volatile FingerprintStats other = new FingerprintStats();
+    private volatile boolean enabled;
+    private volatile int maxFingerprints;
+    private volatile int topCount = 10;
+
+    public QueryStats(boolean enabled, int maxFingerprints)
+    {
+        this.enabled = enabled;
+        setMaxFingerprints(maxFingerprints);
+    }
+
+    @Managed(description = "Whether new connections record query statistics")
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    @Managed
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    @Managed
+    public int getMaxFingerprints()
+    {
+        return maxFingerprints;
+    }
+
+    @Managed
+    public void setMaxFingerprints(int maxFingerprints)
+    {
+        if (maxFingerprints < 1) {
+            throw new IllegalArgumentException("maxFingerprints must be at least 1: maxFingerprints=" + maxFingerprints);
+        }
+        this.maxFingerprints = maxFingerprints;
+    }
+
+    @Managed(description = "Number of queries shown by the top queries attributes")
+    public int getTopCount()
+    {
+        return topCount;
+    }
+
+    @Managed
+    public void setTopCount(int topCount)
+    {
+        if (topCount < 1) {
+            throw new IllegalArgumentException("topCount must be at least 1: topCount=" + topCount);
+        }
+        this.topCount = topCount;
+    }
+
+    @Managed
+    public int getFingerprintCount()
+    {
+        return fingerprints.size();
+    }
+
+    @Managed(description = "Queries that spent the most time executing and fetching")
+    public List<String> getTopQueriesByTime()
+    {
+        return topQueries(BY_TOTAL_TIME);
+    }
+
+    @Managed(description = "Queries that failed the most")
+    public List<String> getTopQueriesByErrors()
+    {
+        return topQueries(BY_ERRORS);
+    }
+
+    @Managed(description = "Forget all recorded queries")
+    public void reset()
+    {
+        fingerprints.clear();
+        other = new FingerprintStats();
+    }
+
+    /**
+     * Gets the statistics of a fingerprint, or null if no statement with the
+     * fingerprint has been recorded.
+     */
+    public FingerprintStats getFingerprintStats(String fingerprint)
+    {
+        if (OTHER.equals(fingerprint)) {
+            return other;
+        }
+        return fingerprints.get(fingerprint);
+    }
+
+    /**
+     * Wraps a connection so the statements run on it are recorded, or
+     * returns the connection as is if the statistics are disabled.
+     */
+    Connection instrument(Connection connection)
+    {
+        if (!enabled) {
+            return connection;
+        }
+        return (Connection) Proxy.newProxyInstance(QueryStats.class.getClassLoader(),
+                new Class<?>[] {Connection.class},
+                new ConnectionHandler(connection));
+    }
+
+    private FingerprintStats getOrCreate(String sql)
+    {
+        String fingerprint = sqlFingerprints.getUnchecked(sql);
+        FingerprintStats stats = fingerprints.get(fingerprint);
+        if (stats != null) {
+            return stats;
+        }
+        // best effort bound, concurrent statements may briefly add a few more
+        if (fingerprints.size() >= maxFingerprints) {
+            return other;
+        }
+        stats = new FingerprintStats();
+        FingerprintStats existing = fingerprints.putIfAbsent(fingerprint, stats);
+        return existing != null ? existing : stats;
+    }
+
+    private List<String> topQueries(Ordering<Map.Entry<String, FingerprintStats>> ordering)
+    {
+        ImmutableList.Builder<String> builder = ImmutableList.builder();
+        Iterable<Map.Entry<String, FingerprintStats>> entries = Iterables.concat(fingerprints.entrySet(), ImmutableList.of(Maps.immutableEntry(OTHER, other)));
+        for (Map.Entry<String, FingerprintStats> entry : ordering.greatestOf(entries, topCount)) {
+            builder.add(entry.getValue() + " " + entry.getKey());
+        }
+        return builder.build();
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args)
+            throws Throwable
+    {
+        try {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Object invokeObjectMethod(Object proxy, Object target, Method method, Object[] args)
+    {
+        String name = method.getName();
+        if (name.equals("equals")) {
+            return proxy == args[0];
+        }
+        if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        return target.toString();
+    }
+
+    public static class FingerprintStats
+    {
+        private final TimedStat execute = new TimedStat();
+        private final TimedStat fetch = new TimedStat();
+        private final AtomicLong rowCount = new AtomicLong();
+        private final AtomicLong errorCount = new AtomicLong();
+
+        @Managed
+        @Nested
+        public TimedStat getExecute()
+        {
+            return execute;
+        }
+
+        @Managed(description = "Time spent reading result sets")
+        @Nested
+        public TimedStat getFetch()
+        {
+            return fetch;
+        }
+
+        @Managed(description = "Rows read or updated")
+        public long getRowCount()
+        {
+            return rowCount.get();
+        }
+
+        @Managed
+        public long getErrorCount()
+        {
+            return errorCount.get();
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("count=%d time=%.1fms avg=%.2fms tp99=%.2fms fetch=%.1fms rows=%d errors=%d",
+                    execute.getCount(),
+                    execute.getSum() + fetch.getSum(),
+                    execute.getMean(),
+                    execute.getTP99(),
+                    fetch.getSum(),
+                    rowCount.get(),
+                    errorCount.get());
+        }
+    }
+
+    private class ConnectionHandler implements InvocationHandler
+    {
+        private final Connection connection;
+
+        private ConnectionHandler(Connection connection)
+        {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable
+        {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, connection, method, args);
+            }
+
+            Object result = QueryStats.invoke(connection, method, args);
+            String name = method.getName();
+            if (name.equals("createStatement")) {
+                return instrument((Connection) proxy, Statement.class, (Statement) result, null);
+            }
+            if (name.equals("prepareStatement")) {
+                return instrument((Connection) proxy, PreparedStatement.class, (Statement) result, getOrCreate((String) args[0]));
+            }
+            if (name.equals("prepareCall")) {
+                return instrument((Connection) proxy, CallableStatement.class, (Statement) result, getOrCreate((String) args[0]));
+            }
+            return result;
+        }
+
+        private Object instrument(Connection proxy, Class<? extends Statement> type, Statement statement, FingerprintStats stats)
+        {
+            return Proxy.newProxyInstance(QueryStats.class.getClassLoader(),
+                    new Class<?>[] {type},
+                    new StatementHandler(proxy, statement, stats));
+        }
+    }
+
+    private class StatementHandler implements InvocationHandler
+    {
+        private final Connection connection;
+        private final Statement statement;
+        private final FingerprintStats preparedStats;
+        private FingerprintStats batchStats;
+        private FingerprintStats lastStats;
+
+        private StatementHandler(Connection connection, Statement statement, FingerprintStats preparedStats)
+        {
+            this.connection = connection;
+            this.statement = statement;
+            this.preparedStats = preparedStats;
+            this.lastStats = preparedStats;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable
+        {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, statement, method, args);
+            }
+
+            String name = method.getName();
+            if (name.equals("getConnection")) {
+                return connection;
+            }
+            if (name.equals("addBatch") && args != null && batchStats == null) {
+                // a plain statement batch is recorded as its first statement
+                batchStats = getOrCreate((String) args[0]);
+            }
+            else if (name.equals("clearBatch")) {
+                batchStats = null;
+            }
+            if (!name.startsWith("execute")) {
+                Object result = QueryStats.invoke(statement, method, args);
+                if (name.equals("getResultSet") && result != null) {
+                    return instrument((ResultSet) result, lastStats, (Statement) proxy);
+                }
+                return result;
+            }
+
+            FingerprintStats stats;
+            if (args != null && args.length > 0 && args[0] instanceof String) {
+                stats = getOrCreate((String) args[0]);
+            }
+            else if (name.equals("executeBatch") && batchStats != null) {
+                stats = batchStats;
+                batchStats = null;
+            }
+            else {
+                stats = preparedStats != null ? preparedStats : other;
+            }
+            lastStats = stats;
+
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = QueryStats.invoke(statement, method, args);
+            }
+            catch (Throwable e) {
+                stats.errorCount.incrementAndGet();
+                throw e;
+            }
+            finally {
+                stats.execute.addValue(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+
+            if (result instanceof ResultSet) {
+                return instrument((ResultSet) result, stats, (Statement) proxy);
+            }
+            if (result instanceof Integer) {
+                stats.rowCount.addAndGet(Math.max(0, (Integer) result));
+            }
+            else if (result instanceof int[]) {
+                for (int count : (int[]) result) {
+                    stats.rowCount.addAndGet(Math.max(0, count));
+                }
+            }
+            return result;
+        }
+
+        private ResultSet instrument(ResultSet resultSet, FingerprintStats stats, Statement proxy)
+        {
+            return (ResultSet) Proxy.newProxyInstance(QueryStats.class.getClassLoader(),
+                    new Class<?>[] {ResultSet.class},
+                    new ResultSetHandler(resultSet, stats, proxy));
+        }
+    }
+
+    private static class ResultSetHandler implements InvocationHandler
+    {
+        private final ResultSet resultSet;
+        private final FingerprintStats stats;
+        private final Statement statement;
+        private final AtomicBoolean recorded = new AtomicBoolean();
+        private long fetchNanos;
+        private long rows;
+
+        private ResultSetHandler(ResultSet resultSet, FingerprintStats stats, Statement statement)
+        {
+            this.resultSet = resultSet;
+            this.stats = stats;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable
+        {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, resultSet, method, args);
+            }
+
+            String name = method.getName();
+            if (name.equals("getStatement")) {
+                return statement;
+            }
+            if (name.equals("close")) {
+                record();
+                return QueryStats.invoke(resultSet, method, args);
+            }
+            if (!name.equals("next")) {
+                return QueryStats.invoke(resultSet, method, args);
+            }
+
+            long start = System.nanoTime();
+            boolean hasNext;
+            try {
+                hasNext = (Boolean) QueryStats.invoke(resultSet, method, args);
+            }
+            catch (Throwable e) {
+                stats.errorCount.incrementAndGet();
+                throw e;
+            }
+            finally {
+                fetchNanos += System.nanoTime() - start;
+            }
+
+            if (hasNext) {
+                rows++;
+            }
+            else {
+                record();
+            }
+            return hasNext;
+        }
+
+        private void record()
+        {
+            // the result set is recorded once, when it is read to the end or closed
+            if (recorded.compareAndSet(false, true)) {
+                stats.fetch.addValue(fetchNanos, TimeUnit.NANOSECONDS);
+                stats.rowCount.addAndGet(rows);
+            }
+        }
+    }
+}
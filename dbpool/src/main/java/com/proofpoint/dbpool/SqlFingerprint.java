@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import java.util.regex.Pattern;
+
+/**
+ * Normalizes SQL so that statements which only differ in their literals,
+ * comments, white space or case have the same fingerprint.
+ * <p/>
+ * String and number literals become {@code ?}, and lists of placeholders,
+ * as in {@code in (1, 2, 3)} or a multi row {@code values} clause, become
+ * {@code (?+)}, so the number of fingerprints stays bounded by the number of
+ * distinct statements in the code.
+ */
+final class SqlFingerprint
+{
+    private static final Pattern PLACEHOLDER_LIST = Pattern.compile("\\(\\?(?:,\\?)*\\)");
+    private static final Pattern VALUES_LIST = Pattern.compile("\\(\\?\\+\\)(?:,\\(\\?\\+\\))+");
+
+    private SqlFingerprint()
+    {
+    }
+
+    public static String fingerprint(String sql)
+    {
+        StringBuilder out = new StringBuilder(sql.length());
+        boolean pendingSpace = false;
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = out.length() > 0;
+                i++;
+                continue;
+            }
+            if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                // line comment
+                while (i < length && sql.charAt(i) != '\n') {
+                    i++;
+                }
+                pendingSpace = out.length() > 0;
+                continue;
+            }
+            if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                // block comment
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+                pendingSpace = out.length() > 0;
+                continue;
+            }
+
+            if (pendingSpace) {
+                // no space inside parentheses or around commas
+                char previous = out.charAt(out.length() - 1);
+                if (previous != '(' && previous != ',' && c != ')' && c != ',') {
+                    out.append(' ');
+                }
+                pendingSpace = false;
+            }
+
+            if (c == '\'') {
+                i = skipQuoted(sql, i, '\'');
+                out.append('?');
+            }
+            else if (c == '"' || c == '`') {
+                // quoted identifiers are kept as is
+                int end = skipQuoted(sql, i, c);
+                out.append(sql, i, end);
+                i = end;
+            }
+            else if (Character.isDigit(c) && !isIdentifierPart(out)) {
+                i = skipNumber(sql, i);
+                out.append('?');
+            }
+            else {
+                out.append(Character.toLowerCase(c));
+                i++;
+            }
+        }
+
+        String fingerprint = PLACEHOLDER_LIST.matcher(out).replaceAll("(?+)");
+        return VALUES_LIST.matcher(fingerprint).replaceAll("(?+)");
+    }
+
+    private static int skipQuoted(String sql, int start, char quote)
+    {
+        int i = start + 1;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\\' && quote == '\'') {
+                i += 2;
+            }
+            else if (c == quote) {
+                // a doubled quote is an escaped quote
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                }
+                else {
+                    return i + 1;
+                }
+            }
+            else {
+                i++;
+            }
+        }
+        return sql.length();
+    }
+
+    private static int skipNumber(String sql, int start)
+    {
+        int i = start;
+        if (sql.startsWith("0x", i) || sql.startsWith("0X", i)) {
+            i += 2;
+        }
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '.') {
+                i++;
+            }
+            else if ((c == '+' || c == '-') && (sql.charAt(i - 1) == 'e' || sql.charAt(i - 1) == 'E')) {
+                i++;
+            }
+            else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static boolean isIdentifierPart(StringBuilder out)
+    {
+        if (out.length() == 0) {
+            return false;
+        }
+        char previous = out.charAt(out.length() - 1);
+        return Character.isLetterOrDigit(previous) || previous == '_' || previous == '$';
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import com.google.common.base.Objects;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Least recently used cache of the prepared statements of one physical
+ * connection.
+ * <p/>
+ * Drivers close statements when the logical connection handle they were
+ * prepared on is closed, so the cache keeps a single handle open for the
+ * life of the physical connection, and hands out proxies of that handle.
+ * Closing a proxy returns its statements to the cache and the connection to
+ * the pool. Closing a proxied statement returns it to the cache.
+ */
+class StatementCache
+{
+    private final PooledConnection pooledConnection;
+    private final Connection connection;
+    private final int maxSize;
+    private final ManagedDataSourceStats stats;
+    private final boolean readOnly;
+    private final int transactionIsolation;
+    private final LinkedHashMap<StatementKey, CachedStatement> statements = new LinkedHashMap<StatementKey, CachedStatement>(16, 0.75f, true);
+
+    StatementCache(PooledConnection pooledConnection, int maxSize, ManagedDataSourceStats stats)
+            throws SQLException
+    {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1: maxSize=" + maxSize);
+        }
+        this.pooledConnection = pooledConnection;
+        this.maxSize = maxSize;
+        this.stats = stats;
+        connection = pooledConnection.getConnection();
+        readOnly = connection.isReadOnly();
+        transactionIsolation = connection.getTransactionIsolation();
+    }
+
+    /**
+     * Gets the connection handle that stays open while the physical
+     * connection is idle.
+     */
+    Connection getConnection()
+    {
+        return connection;
+    }
+
+    /**
+     * Creates a proxy of the connection handle that reports to the listener
+     * when it is closed.
+     */
+    Connection checkout(ConnectionEventListener listener)
+    {
+        return (Connection) Proxy.newProxyInstance(StatementCache.class.getClassLoader(),
+                new Class<?>[] {Connection.class},
+                new ConnectionHandler(listener));
+    }
+
+    synchronized int size()
+    {
+        return statements.size();
+    }
+
+    private synchronized CachedStatement take(StatementKey key)
+    {
+        return statements.remove(key);
+    }
+
+    private void release(StatementKey key, CachedStatement statement)
+    {
+        try {
+            statement.reset();
+        }
+        catch (SQLException e) {
+            closeQuietly(statement.getStatement());
+            return;
+        }
+
+        List<CachedStatement> evicted = new ArrayList<CachedStatement>();
+        synchronized (this) {
+            CachedStatement existing = statements.put(key, statement);
+            if (existing != null) {
+                // the same statement was prepared twice in one checkout
+                evicted.add(existing);
+            }
+            for (Iterator<CachedStatement> iterator = statements.values().iterator(); statements.size() > maxSize; ) {
+                evicted.add(iterator.next());
+                iterator.remove();
+            }
+        }
+
+        for (CachedStatement evictedStatement : evicted) {
+            stats.statementEvicted();
+            closeQuietly(evictedStatement.getStatement());
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement)
+    {
+        try {
+            statement.close();
+        }
+        catch (SQLException ignored) {
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args)
+            throws Throwable
+    {
+        try {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class ConnectionHandler implements InvocationHandler
+    {
+        private final ConnectionEventListener listener;
+        private final Set<StatementHandler> openStatements = new LinkedHashSet<StatementHandler>();
+        private boolean closed;
+
+        private ConnectionHandler(ConnectionEventListener listener)
+        {
+            this.listener = listener;
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable
+        {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                if (name.equals("equals")) {
+                    return proxy == args[0];
+                }
+                if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                if (name.equals("toString")) {
+                    return "StatementCache.Connection[" + connection + "]";
+                }
+            }
+            if (name.equals("isClosed")) {
+                return closed;
+            }
+            if (name.equals("close")) {
+                close();
+                return null;
+            }
+            if (closed) {
+                throw new SQLException("Connection is closed");
+            }
+            if (name.equals("prepareStatement")) {
+                return prepareStatement((Connection) proxy, method, args);
+            }
+            return StatementCache.invoke(connection, method, args);
+        }
+
+        private PreparedStatement prepareStatement(Connection proxy, Method method, Object[] args)
+                throws Throwable
+        {
+            StatementKey key = new StatementKey(method, args);
+            CachedStatement statement = take(key);
+            if (statement != null) {
+                stats.statementCacheHit();
+            }
+            else {
+                stats.statementCacheMiss();
+                statement = new CachedStatement((PreparedStatement) StatementCache.invoke(connection, method, args));
+            }
+
+            StatementHandler handler = new StatementHandler(this, proxy, key, statement);
+            openStatements.add(handler);
+            return (PreparedStatement) Proxy.newProxyInstance(StatementCache.class.getClassLoader(),
+                    new Class<?>[] {PreparedStatement.class},
+                    handler);
+        }
+
+        private synchronized void statementClosed(StatementHandler handler)
+        {
+            if (openStatements.remove(handler)) {
+                release(handler.getKey(), handler.getStatement());
+            }
+        }
+
+        private void close()
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            // statements left open are kept for the next checkout
+            for (StatementHandler handler : openStatements) {
+                handler.markClosed();
+                release(handler.getKey(), handler.getStatement());
+            }
+            openStatements.clear();
+
+            // undo what the caller changed, as the driver does when a logical connection is closed
+            try {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                if (connection.isReadOnly() != readOnly) {
+                    connection.setReadOnly(readOnly);
+                }
+                if (connection.getTransactionIsolation() != transactionIsolation) {
+                    connection.setTransactionIsolation(transactionIsolation);
+                }
+            }
+            catch (SQLException e) {
+                listener.connectionErrorOccurred(new ConnectionEvent(pooledConnection, e));
+                return;
+            }
+            listener.connectionClosed(new ConnectionEvent(pooledConnection));
+        }
+    }
+
+    private static class StatementHandler implements InvocationHandler
+    {
+        private final ConnectionHandler connectionHandler;
+        private final Connection connection;
+        private final StatementKey key;
+        private final CachedStatement statement;
+        private volatile boolean closed;
+
+        private StatementHandler(ConnectionHandler connectionHandler, Connection connection, StatementKey key, CachedStatement statement)
+        {
+            this.connectionHandler = connectionHandler;
+            this.connection = connection;
+            this.key = key;
+            this.statement = statement;
+        }
+
+        public StatementKey getKey()
+        {
+            return key;
+        }
+
+        public CachedStatement getStatement()
+        {
+            return statement;
+        }
+
+        public void markClosed()
+        {
+            closed = true;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable
+        {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                if (name.equals("equals")) {
+                    return proxy == args[0];
+                }
+                if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                if (name.equals("toString")) {
+                    return statement.getStatement().toString();
+                }
+            }
+            if (name.equals("isClosed")) {
+                return closed;
+            }
+            if (name.equals("close")) {
+                if (!closed) {
+                    closed = true;
+                    connectionHandler.statementClosed(this);
+                }
+                return null;
+            }
+            if (closed) {
+                throw new SQLException("Statement is closed");
+            }
+            if (name.equals("getConnection")) {
+                return connection;
+            }
+            return StatementCache.invoke(statement.getStatement(), method, args);
+        }
+    }
+
+    /**
+     * A prepared statement with the settings it was prepared with, so the
+     * settings a caller changed do not carry over to the next checkout.
+     */
+    private static class CachedStatement
+    {
+        private final PreparedStatement statement;
+        private final int queryTimeout;
+        private final int maxRows;
+        private final int maxFieldSize;
+        private final int fetchSize;
+        private final int fetchDirection;
+
+        private CachedStatement(PreparedStatement statement)
+                throws SQLException
+        {
+            this.statement = statement;
+            queryTimeout = statement.getQueryTimeout();
+            maxRows = statement.getMaxRows();
+            maxFieldSize = statement.getMaxFieldSize();
+            fetchSize = statement.getFetchSize();
+            fetchDirection = statement.getFetchDirection();
+        }
+
+        public PreparedStatement getStatement()
+        {
+            return statement;
+        }
+
+        /**
+         * Clears the parameters and batch, and restores the settings the
+         * statement was prepared with.
+         */
+        public void reset()
+                throws SQLException
+        {
+            statement.clearParameters();
+            statement.clearBatch();
+            if (statement.getQueryTimeout() != queryTimeout) {
+                statement.setQueryTimeout(queryTimeout);
+            }
+            if (statement.getMaxRows() != maxRows) {
+                statement.setMaxRows(maxRows);
+            }
+            if (statement.getMaxFieldSize() != maxFieldSize) {
+                statement.setMaxFieldSize(maxFieldSize);
+            }
+            if (statement.getFetchSize() != fetchSize) {
+                statement.setFetchSize(fetchSize);
+            }
+            if (statement.getFetchDirection() != fetchDirection) {
+                statement.setFetchDirection(fetchDirection);
+            }
+        }
+    }
+
+    /**
+     * The SQL and result set options a statement was prepared with.
+     */
+    private static class StatementKey
+    {
+        private final List<Class<?>> parameterTypes;
+        private final List<Object> arguments = new ArrayList<Object>();
+
+        private StatementKey(Method method, Object[] args)
+        {
+            parameterTypes = Arrays.<Class<?>>asList(method.getParameterTypes());
+            for (Object arg : args) {
+                // column index and name arrays are compared by value
+                if (arg instanceof int[]) {
+                    arguments.add(Arrays.toString((int[]) arg));
+                }
+                else if (arg instanceof Object[]) {
+                    arguments.add(Arrays.asList((Object[]) arg));
+                }
+                else {
+                    arguments.add(arg);
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            StatementKey that = (StatementKey) o;
+            return parameterTypes.equals(that.parameterTypes) && arguments.equals(that.arguments);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(parameterTypes, arguments);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import com.proofpoint.units.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class AdaptiveConnectionLimitTest
+{
+    private MockManagedDataSource dataSource;
+    private AdaptiveConnectionLimit limit;
+
+    @BeforeMethod
+    public void setup()
+    {
+        dataSource = new MockManagedDataSource(20, new Duration(10, MILLISECONDS));
+        limit = dataSource.getAdaptiveLimit();
+        limit.setEnabled(true);
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        limit.setEnabled(false);
+        dataSource.setMaxConnections(10);
+        for (int i = 0; i < 10; i++) {
+            update(10, 5);
+        }
+        assertEquals(dataSource.getMaxConnections(), 10);
+        assertTrue(limit.getHistory().isEmpty());
+    }
+
+    @Test
+    public void testIncreaseWhenQueued()
+    {
+        dataSource.setMaxConnections(10);
+        for (int i = 0; i < 10; i++) {
+            update(10, 5);
+        }
+        assertTrue(dataSource.getMaxConnections() > 10);
+        assertEquals(limit.getDecreaseCount(), 0);
+        assertTrue(limit.getIncreaseCount() > 0);
+        assertTrue(limit.getHistory().get(0).contains("checkouts waited"));
+    }
+
+    @Test
+    public void testNoChangeWithoutQueue()
+    {
+        dataSource.setMaxConnections(10);
+        for (int i = 0; i < 10; i++) {
+            update(10, 0);
+        }
+        assertEquals(dataSource.getMaxConnections(), 10);
+        assertTrue(limit.getHistory().isEmpty());
+    }
+
+    @Test
+    public void testDecreaseWhenLatencyGrows()
+    {
+        for (int i = 0; i < 10; i++) {
+            update(10, 0);
+        }
+        assertEquals(dataSource.getMaxConnections(), 20);
+
+        for (int i = 0; i < 10; i++) {
+            update(100, 5);
+        }
+        assertTrue(dataSource.getMaxConnections() < 20);
+        assertEquals(limit.getIncreaseCount(), 0);
+        assertTrue(limit.getHistory().get(0).contains("baseline"));
+    }
+
+    @Test
+    public void testSustainedOverloadKeepsShrinking()
+    {
+        for (int i = 0; i < 10; i++) {
+            update(10, 0);
+        }
+        for (int i = 0; i < 100; i++) {
+            update(30, 5);
+        }
+        assertEquals(dataSource.getMaxConnections(), 1);
+        assertEquals(limit.getIncreaseCount(), 0);
+        assertEquals(limit.getBaselineLatencyMillis(), 10.0, 0.1);
+    }
+
+    @Test
+    public void testResetBaseline()
+    {
+        for (int i = 0; i < 10; i++) {
+            update(10, 0);
+        }
+        for (int i = 0; i < 10; i++) {
+            update(30, 5);
+        }
+        int shrunk = dataSource.getMaxConnections();
+        assertTrue(shrunk < 20);
+
+        limit.resetBaseline();
+        update(30, 5);
+        assertEquals(limit.getBaselineLatencyMillis(), 30.0, 0.1);
+        assertTrue(dataSource.getMaxConnections() > shrunk);
+    }
+
+    @Test
+    public void testBounds()
+    {
+        limit.setMinLimit(15);
+        for (int i = 0; i < 10; i++) {
+            update(10, 0);
+        }
+        for (int i = 0; i < 50; i++) {
+            update(1000, 0);
+        }
+        assertEquals(dataSource.getMaxConnections(), 15);
+
+        dataSource.setMaxConnections(5);
+        update(10, 5);
+        assertEquals(dataSource.getMaxConnections(), 15);
+        assertTrue(limit.getHistory().get(0).contains("outside the bounds"));
+
+        for (int i = 0; i < 50; i++) {
+            update(10, 5);
+        }
+        assertEquals(dataSource.getMaxConnections(), 20);
+    }
+
+    @Test
+    public void testTooFewSamples()
+    {
+        dataSource.setMaxConnections(10);
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < AdaptiveConnectionLimit.MIN_SAMPLES - 1; j++) {
+                limit.connectionWaited(new Duration(5, MILLISECONDS));
+                limit.connectionReturned(new Duration(10, MILLISECONDS));
+            }
+            limit.update();
+        }
+        assertEquals(dataSource.getMaxConnections(), 10);
+    }
+
+    @Test
+    public void testConfig()
+    {
+        MySqlDataSourceConfig config = new MySqlDataSourceConfig()
+                .setMaxConnections(8)
+                .setAdaptiveConnectionsEnabled(true)
+                .setAdaptiveMinConnections(2);
+        MockPooledDataSource pooledDataSource = new MockPooledDataSource(new MockConnectionPoolDataSource(), config);
+        try {
+            assertTrue(pooledDataSource.getAdaptiveLimit().isEnabled());
+            assertEquals(pooledDataSource.getAdaptiveLimit().getMinLimit(), 2);
+            assertEquals(pooledDataSource.getAdaptiveLimit().getMaxLimit(), 8);
+        }
+        finally {
+            pooledDataSource.dispose();
+        }
+        assertFalse(new MySqlDataSourceConfig().isAdaptiveConnectionsEnabled());
+    }
+
+    private void update(long heldMillis, long waitMillis)
+    {
+        for (int i = 0; i < AdaptiveConnectionLimit.MIN_SAMPLES; i++) {
+            limit.connectionWaited(new Duration(waitMillis, MILLISECONDS));
+            limit.connectionReturned(new Duration(heldMillis, MILLISECONDS));
+        }
+        limit.update();
+    }
+}
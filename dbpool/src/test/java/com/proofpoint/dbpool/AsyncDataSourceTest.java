@@ -0,0 +1,256 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class AsyncDataSourceTest
+{
+    // runs long enough to be cancelled and checks for cancellation while it runs
+    private static final String SLOW_QUERY = "select sum(x * 2) from system_range(1, 1000000000)";
+
+    private File file;
+    private H2EmbeddedDataSource dataSource;
+    private AsyncDataSource asyncDataSource;
+
+    @BeforeMethod
+    public void setup()
+            throws Exception
+    {
+        file = File.createTempFile("h2db-", ".db");
+        H2EmbeddedDataSourceConfig config = new H2EmbeddedDataSourceConfig()
+                .setFilename(file.getAbsolutePath())
+                .setInitScript("com/proofpoint/dbpool/h2.ddl")
+                .setMaxConnections(1)
+                .setMaxConnectionWait(new Duration(5, TimeUnit.SECONDS))
+                .setMaxQueuedAsyncTasks(1);
+        dataSource = new H2EmbeddedDataSource(config);
+        asyncDataSource = new AsyncDataSource(dataSource, config);
+    }
+
+    @AfterMethod
+    public void teardown()
+            throws IOException
+    {
+        asyncDataSource.shutdown();
+        dataSource.dispose();
+        file.delete();
+    }
+
+    @Test
+    public void testResult()
+            throws Exception
+    {
+        ListenableFuture<Integer> future = asyncDataSource.submit(new ConnectionCallback<Integer>()
+        {
+            @Override
+            public Integer execute(Connection connection)
+                    throws SQLException
+            {
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("select 42");
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        });
+        assertEquals(future.get(), (Integer) 42);
+        assertEquals(asyncDataSource.getCompletedCount(), 1);
+        assertEquals(dataSource.getConnectionsActive(), 0);
+    }
+
+    @Test
+    public void testException()
+            throws Exception
+    {
+        final SQLException exception = new SQLException("failed");
+        ListenableFuture<Object> future = asyncDataSource.submit(new ConnectionCallback<Object>()
+        {
+            @Override
+            public Object execute(Connection connection)
+                    throws SQLException
+            {
+                throw exception;
+            }
+        });
+        try {
+            future.get();
+            fail("expected ExecutionException");
+        }
+        catch (ExecutionException e) {
+            assertEquals(e.getCause(), exception);
+        }
+        assertEquals(asyncDataSource.getFailedCount(), 1);
+        assertEquals(dataSource.getConnectionsActive(), 0);
+    }
+
+    @Test
+    public void testQueueFull()
+            throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ListenableFuture<Object> running = asyncDataSource.submit(new ConnectionCallback<Object>()
+        {
+            @Override
+            public Object execute(Connection connection)
+            {
+                started.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        ListenableFuture<Object> queued = asyncDataSource.submit(new NoopCallback());
+        assertEquals(asyncDataSource.getQueuedCount(), 1);
+
+        ListenableFuture<Object> rejected = asyncDataSource.submit(new NoopCallback());
+        assertTrue(rejected.isDone());
+        try {
+            rejected.get();
+            fail("expected ExecutionException");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(asyncDataSource.getRejectedCount(), 1);
+
+        release.countDown();
+        running.get();
+        queued.get();
+        assertEquals(asyncDataSource.getCompletedCount(), 2);
+    }
+
+    @Test
+    public void testCancelQueued()
+            throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        ListenableFuture<Object> running = asyncDataSource.submit(new ConnectionCallback<Object>()
+        {
+            @Override
+            public Object execute(Connection connection)
+            {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        });
+        ListenableFuture<Object> queued = asyncDataSource.submit(new NoopCallback());
+        assertTrue(queued.cancel(true));
+
+        // the queue slot is free again
+        ListenableFuture<Object> next = asyncDataSource.submit(new NoopCallback());
+        release.countDown();
+        running.get();
+        next.get();
+        assertEquals(asyncDataSource.getCancelledCount(), 1);
+        assertEquals(asyncDataSource.getCompletedCount(), 2);
+    }
+
+    @Test
+    public void testCancelRunning()
+            throws Exception
+    {
+        final CountDownLatch executing = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        ListenableFuture<Object> future = asyncDataSource.submit(new ConnectionCallback<Object>()
+        {
+            @Override
+            public Object execute(Connection connection)
+                    throws SQLException
+            {
+                Statement statement = connection.createStatement();
+                executing.countDown();
+                try {
+                    return statement.executeQuery(SLOW_QUERY);
+                }
+                finally {
+                    finished.countDown();
+                }
+            }
+        });
+        assertTrue(executing.await(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertTrue(future.cancel(true));
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(asyncDataSource.getCancelledCount(), 1);
+    }
+
+    @Test
+    public void testTimeout()
+            throws Exception
+    {
+        ListenableFuture<Object> future = asyncDataSource.submit(new ConnectionCallback<Object>()
+        {
+            @Override
+            public Object execute(Connection connection)
+                    throws SQLException
+            {
+                return connection.createStatement().executeQuery(SLOW_QUERY);
+            }
+        }, new Duration(100, MILLISECONDS));
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("expected ExecutionException");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SqlTimeoutException);
+        }
+        assertEquals(asyncDataSource.getTimeoutCount(), 1);
+
+        // the cancelled statement releases the connection
+        asyncDataSource.submit(new NoopCallback()).get(10, TimeUnit.SECONDS);
+    }
+
+    private static class NoopCallback implements ConnectionCallback<Object>
+    {
+        @Override
+        public Object execute(Connection connection)
+        {
+            return null;
+        }
+    }
+}
@@ -32,6 +32,9 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.Statement;
 
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
 public class H2EmbeddedDataSourceTest
 {
     private File file;
@@ -106,6 +109,69 @@ public class H2EmbeddedDataSourceTest
         }
     }
 
+    @Test
+    public void testInitFromSnapshot()
+            throws Exception
+    {
+        File otherFile = File.createTempFile("h2db-", ".db");
+        H2EmbeddedDataSource dataSource = null;
+        H2EmbeddedDataSource otherDataSource = null;
+        Connection connection = null;
+        Statement statement = null;
+        ResultSet resultSet = null;
+        try {
+            dataSource = new H2EmbeddedDataSource(new H2EmbeddedDataSourceConfig()
+                    .setFilename(file.getAbsolutePath())
+                    .setInitScript("com/proofpoint/dbpool/h2.ddl")
+                    .setInitScriptSnapshot(true)
+                    .setCipher(Cipher.AES)
+                    .setFilePassword("filePassword"));
+            connection = dataSource.getConnection();
+            statement = connection.createStatement();
+            statement.executeUpdate("insert into message values ('id', 'sender', 'description', 'recipients', 'ip', 'correlation', 'cluster', 'text')");
+            closeQuietly(statement);
+            closeQuietly(connection);
+
+            // the second database is copied from the same snapshot and does not see the first one's rows
+            otherDataSource = new H2EmbeddedDataSource(new H2EmbeddedDataSourceConfig()
+                    .setFilename("file:" + otherFile.getAbsolutePath())
+                    .setInitScript("com/proofpoint/dbpool/h2.ddl")
+                    .setInitScriptSnapshot(true)
+                    .setCipher(Cipher.AES)
+                    .setFilePassword("filePassword"));
+            connection = otherDataSource.getConnection();
+            statement = connection.createStatement();
+            resultSet = statement.executeQuery("select count(*) from message");
+            assertTrue(resultSet.next());
+            assertEquals(resultSet.getInt(1), 0);
+            assertTrue(new File(otherFile.getAbsolutePath() + ".h2.db").exists());
+        }
+        finally {
+            closeQuietly(resultSet);
+            closeQuietly(statement);
+            closeQuietly(connection);
+            if (dataSource != null) {
+                dataSource.dispose();
+            }
+            if (otherDataSource != null) {
+                otherDataSource.dispose();
+            }
+            otherFile.delete();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInMemorySnapshotThrows()
+            throws Exception
+    {
+        H2EmbeddedDataSourceConfig config = new H2EmbeddedDataSourceConfig()
+                .setFilename("mem:" + file.getName())
+                .setInitScript("com/proofpoint/dbpool/h2.ddl")
+                .setInitScriptSnapshot(true);
+
+        new H2EmbeddedDataSource(config);
+    }
+
     @Test(expectedExceptions = JdbcSQLException.class)
     public void testInitFromInvalidDdlThrows()
             throws Exception
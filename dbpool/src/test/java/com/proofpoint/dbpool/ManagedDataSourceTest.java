@@ -30,6 +30,7 @@ import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -39,6 +40,7 @@ import static com.proofpoint.testing.Assertions.assertInstanceOf;
 import static com.proofpoint.units.Duration.nanosSince;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.Arrays.asList;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
@@ -491,4 +493,187 @@ public class ManagedDataSourceTest
         catch (UnsupportedOperationException expected) {
         }
     }
+
+    @Test
+    public void testWaitAndTimeoutStats()
+            throws Exception
+    {
+        ManagedDataSource dataSource = new MockManagedDataSource(1, new Duration(10, MILLISECONDS));
+        Connection connection = dataSource.getConnection();
+        assertEquals(dataSource.getStats().getWait().getCount(), 1);
+        assertEquals(dataSource.getStats().getTimeout().getCount(), 0);
+
+        try {
+            dataSource.getConnection();
+            fail("Expected SqlTimeoutException");
+        }
+        catch (SqlTimeoutException expected) {
+        }
+        assertEquals(dataSource.getStats().getWait().getCount(), 1);
+        assertEquals(dataSource.getStats().getTimeout().getCount(), 1);
+        assertGreaterThan(dataSource.getStats().getTimeout().getMin(), 9.0);
+        connection.close();
+    }
+
+    @Test
+    public void testWaitingThreadsServedInArrivalOrder()
+            throws Exception
+    {
+        final ManagedDataSource dataSource = new MockManagedDataSource(1, new Duration(5, SECONDS));
+        final Queue<Integer> order = new ConcurrentLinkedQueue<Integer>();
+        Connection connection = dataSource.getConnection();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            final int id = i;
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        Connection connection = dataSource.getConnection();
+                        order.add(id);
+                        connection.close();
+                    }
+                    catch (SQLException ignored) {
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+
+            // wait for the thread to queue before starting the next one
+            while (dataSource.getConnectionsWaiting() != i + 1) {
+                Thread.sleep(1);
+            }
+        }
+
+        connection.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(new ArrayList<Integer>(order), asList(0, 1, 2));
+        assertEquals(dataSource.getConnectionsWaiting(), 0);
+    }
+
+    @Test
+    public void testLowPriorityDataSource()
+            throws Exception
+    {
+        ManagedDataSource dataSource = new MockManagedDataSource(2, new Duration(10, MILLISECONDS));
+        dataSource.setReservedConnections(1);
+        DataSource lowPriorityDataSource = dataSource.getLowPriorityDataSource();
+        assertSame(lowPriorityDataSource.unwrap(ManagedDataSource.class), dataSource);
+
+        MockConnection lowPriority = (MockConnection) lowPriorityDataSource.getConnection();
+        assertEquals(dataSource.getConnectionsActive(), 1);
+        assertEquals(dataSource.getLowPriorityConnectionsActive(), 1);
+
+        // the reserved connection is not available to low priority callers
+        try {
+            lowPriorityDataSource.getConnection();
+            fail("Expected SqlTimeoutException");
+        }
+        catch (SqlTimeoutException expected) {
+        }
+        assertEquals(dataSource.getConnectionsActive(), 1);
+        assertEquals(dataSource.getLowPriorityConnectionsActive(), 1);
+        assertEquals(dataSource.getStats().getTimeout().getCount(), 1);
+
+        // but it is available to everyone else
+        Connection connection = dataSource.getConnection();
+        assertEquals(dataSource.getConnectionsActive(), 2);
+
+        // a low priority caller can not take a connection in use by another caller
+        lowPriority.close();
+        assertEquals(dataSource.getLowPriorityConnectionsActive(), 0);
+        dataSource.setReservedConnections(0);
+        MockConnection second = (MockConnection) lowPriorityDataSource.getConnection();
+        try {
+            lowPriorityDataSource.getConnection();
+            fail("Expected SqlTimeoutException");
+        }
+        catch (SqlTimeoutException expected) {
+        }
+        assertEquals(dataSource.getLowPriorityConnectionsActive(), 1);
+
+        // connection errors return the low priority permit
+        second.errorOccurred();
+        assertEquals(dataSource.getLowPriorityConnectionsActive(), 0);
+        assertEquals(dataSource.getConnectionsActive(), 1);
+        connection.close();
+        assertEquals(dataSource.getConnectionsActive(), 0);
+    }
+
+    @Test
+    public void testLeakDetection()
+            throws Exception
+    {
+        ManagedDataSource dataSource = new MockManagedDataSource(2, new Duration(10, MILLISECONDS));
+        assertEquals(dataSource.getLeakDetectionThresholdMillis(), 0);
+        dataSource.setLeakDetectionThreshold(new Duration(1, MILLISECONDS));
+        dataSource.setLeakStackSampleInterval(2);
+
+        Connection sampled = dataSource.getConnection();
+        Connection notSampled = dataSource.getConnection();
+        Thread.sleep(5);
+
+        List<String> leaks = dataSource.getLeakedConnections();
+        assertEquals(leaks.size(), 2);
+        int sampledCount = 0;
+        for (String leak : leaks) {
+            if (leak.contains("testLeakDetection")) {
+                sampledCount++;
+            }
+            else {
+                assertTrue(leak.endsWith("(checkout stack not sampled)"), leak);
+            }
+        }
+        assertEquals(sampledCount, 1);
+
+        // each leak is reported once
+        dataSource.checkForLeaks();
+        dataSource.checkForLeaks();
+        assertEquals(dataSource.getStats().getLeakCount(), 2);
+        assertEquals(dataSource.getStats().getReclaimCount(), 0);
+        assertEquals(dataSource.getConnectionsActive(), 2);
+
+        sampled.close();
+        notSampled.close();
+        assertEquals(dataSource.getLeakedConnections().size(), 0);
+    }
+
+    @Test
+    public void testLeakedConnectionReclaimed()
+            throws Exception
+    {
+        ManagedDataSource dataSource = new MockManagedDataSource(1, new Duration(10, MILLISECONDS));
+        dataSource.setLeakDetectionThreshold(new Duration(1, MILLISECONDS));
+        dataSource.setReclaimLeakedConnections(true);
+
+        MockConnection leaked = (MockConnection) dataSource.getConnection();
+        Thread.sleep(5);
+
+        // the thread that finds the pool exhausted reclaims the leaked connection for the next one
+        try {
+            dataSource.getConnection();
+            fail("Expected SqlTimeoutException");
+        }
+        catch (SqlTimeoutException expected) {
+        }
+        assertEquals(dataSource.getConnectionsActive(), 0);
+        assertEquals(dataSource.getStats().getLeakCount(), 1);
+        assertEquals(dataSource.getStats().getReclaimCount(), 1);
+        assertTrue(leaked.getPooledConnection().isClosed());
+
+        Connection connection = dataSource.getConnection();
+        assertEquals(dataSource.getConnectionsActive(), 1);
+
+        // closing the reclaimed connection does not release another permit
+        leaked.close();
+        assertEquals(dataSource.getConnectionsActive(), 1);
+        connection.close();
+        assertEquals(dataSource.getConnectionsActive(), 0);
+    }
 }
@@ -31,6 +31,7 @@ import java.sql.NClob;
 import java.sql.PreparedStatement;
 import java.sql.SQLClientInfoException;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
 import java.sql.SQLWarning;
 import java.sql.SQLXML;
 import java.sql.Savepoint;
@@ -40,6 +41,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
 
 public class MockConnectionPoolDataSource implements ConnectionPoolDataSource
 {
@@ -48,6 +51,8 @@ public class MockConnectionPoolDataSource implements ConnectionPoolDataSource
     SQLException closeException;
     PrintWriter logWriter;
     int loginTimeout;
+    boolean valid = true;
+    int connectionsCreated;
 
     @Override
     public MockPooledConnection getPooledConnection()
@@ -64,6 +69,7 @@ public class MockConnectionPoolDataSource implements ConnectionPoolDataSource
                 throw new RuntimeException("Sleep interrupted", e);
             }
         }
+        connectionsCreated++;
         return new MockPooledConnection(this);
     }
 
@@ -102,6 +108,12 @@ public class MockConnectionPoolDataSource implements ConnectionPoolDataSource
         loginTimeout = seconds;
     }
 
+    public Logger getParentLogger()
+            throws SQLFeatureNotSupportedException
+    {
+        throw new SQLFeatureNotSupportedException();
+    }
+
     public static class MockPooledConnection implements PooledConnection
     {
         private final MockConnectionPoolDataSource dataSource;
@@ -123,6 +135,11 @@ public class MockConnectionPoolDataSource implements ConnectionPoolDataSource
             return new MockConnection(this);
         }
 
+        public boolean isClosed()
+        {
+            return closed;
+        }
+
         @Override
         public void close()
                 throws SQLException
@@ -195,6 +212,11 @@ public class MockConnectionPoolDataSource implements ConnectionPoolDataSource
             mockPooledConnection.closeOccurred();
         }
 
+        public MockPooledConnection getPooledConnection()
+        {
+            return mockPooledConnection;
+        }
+
         public void errorOccurred()
                 throws SQLException
         {
@@ -483,7 +505,7 @@ public class MockConnectionPoolDataSource implements ConnectionPoolDataSource
         public boolean isValid(int timeout)
                 throws SQLException
         {
-            throw new UnsupportedOperationException();
+            return mockPooledConnection.dataSource.valid;
         }
 
         @Override
@@ -541,6 +563,36 @@ public class MockConnectionPoolDataSource implements ConnectionPoolDataSource
         {
             throw new UnsupportedOperationException();
         }
+
+        public void setSchema(String schema)
+                throws SQLException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public String getSchema()
+                throws SQLException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void abort(Executor executor)
+                throws SQLException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setNetworkTimeout(Executor executor, int milliseconds)
+                throws SQLException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public int getNetworkTimeout()
+                throws SQLException
+        {
+            throw new UnsupportedOperationException();
+        }
     }
 
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import javax.sql.PooledConnection;
+import java.sql.SQLException;
+import java.util.concurrent.Executor;
+
+public class MockPooledDataSource extends PooledDataSource
+{
+    private final MockConnectionPoolDataSource poolDataSource;
+
+    public MockPooledDataSource(MockConnectionPoolDataSource poolDataSource, ManagedDataSourceConfig<?> config)
+    {
+        this(poolDataSource, config, MoreExecutors.sameThreadExecutor());
+    }
+
+    public MockPooledDataSource(MockConnectionPoolDataSource poolDataSource, ManagedDataSourceConfig<?> config, Executor connectionExecutor)
+    {
+        // idle connections are only maintained when the test calls maintain()
+        super(config, null, connectionExecutor);
+        this.poolDataSource = poolDataSource;
+    }
+
+    @Override
+    protected PooledConnection createConnectionInternal()
+            throws SQLException
+    {
+        return poolDataSource.getPooledConnection();
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import com.google.common.collect.ImmutableList;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.discovery.client.ServiceSelector;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.proofpoint.discovery.client.ServiceDescriptor.serviceDescriptor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class MySqlDataSourceTest
+{
+    private static final UUID PRIMARY = UUID.randomUUID();
+    private static final UUID SECOND_PRIMARY = UUID.randomUUID();
+    private static final UUID REPLICA_1 = UUID.randomUUID();
+    private static final UUID REPLICA_2 = UUID.randomUUID();
+
+    private MockServiceSelector serviceSelector;
+    private MockMySqlDataSource dataSource;
+
+    @BeforeMethod
+    public void setup()
+    {
+        serviceSelector = new MockServiceSelector();
+        MySqlDataSourceConfig config = new MySqlDataSourceConfig()
+                .setMaxConnections(10)
+                .setMaxConnectionWait(new Duration(10, MILLISECONDS))
+                .setHealthCheckInterval(new Duration(10, MINUTES));
+        dataSource = new MockMySqlDataSource(serviceSelector, config);
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        dataSource.dispose();
+    }
+
+    @Test
+    public void testWritesGoToPrimary()
+            throws Exception
+    {
+        serviceSelector.setServices(primary(PRIMARY), replica(REPLICA_1));
+
+        Connection connection = dataSource.getConnection();
+        assertEquals(dataSource.getServer(PRIMARY).connectionsCreated, 1);
+        assertEquals(dataSource.getServer(REPLICA_1).connectionsCreated, 0);
+        connection.close();
+        assertEquals(dataSource.getServerCount(), 2);
+    }
+
+    @Test
+    public void testReadsBalancedOverReplicas()
+            throws Exception
+    {
+        serviceSelector.setServices(primary(PRIMARY), replica(REPLICA_1), replica(REPLICA_2));
+
+        List<Connection> connections = new ArrayList<Connection>();
+        for (int i = 0; i < 4; i++) {
+            connections.add(dataSource.getReadOnlyDataSource().getConnection());
+        }
+        assertEquals(dataSource.getServer(PRIMARY).connectionsCreated, 0);
+        assertEquals(dataSource.getServer(REPLICA_1).connectionsCreated, 2);
+        assertEquals(dataSource.getServer(REPLICA_2).connectionsCreated, 2);
+        assertEquals(dataSource.getConnectionsActive(), 4);
+
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        assertEquals(dataSource.getConnectionsActive(), 0);
+    }
+
+    @Test
+    public void testReadsFallBackToPrimary()
+            throws Exception
+    {
+        serviceSelector.setServices(primary(PRIMARY), replica(REPLICA_1));
+        dataSource.getServer(REPLICA_1).createException = new SQLException("down");
+
+        dataSource.getReadOnlyDataSource().getConnection().close();
+        assertEquals(dataSource.getServer(PRIMARY).connectionsCreated, 1);
+        assertEquals(dataSource.getHealthyServerCount(), 1);
+        assertEquals(dataSource.getFailoverCount(), 1);
+
+        // failed replica is not tried again until it recovers
+        dataSource.getReadOnlyDataSource().getConnection().close();
+        assertEquals(dataSource.getFailoverCount(), 1);
+
+        dataSource.getServer(REPLICA_1).createException = null;
+        dataSource.checkHealth();
+        assertEquals(dataSource.getHealthyServerCount(), 2);
+
+        // the health check connection is reused
+        dataSource.getReadOnlyDataSource().getConnection().close();
+        assertEquals(dataSource.getServer(REPLICA_1).connectionsCreated, 1);
+        assertEquals(dataSource.getServer(PRIMARY).connectionsCreated, 1);
+    }
+
+    @Test
+    public void testFailoverToSecondPrimary()
+            throws Exception
+    {
+        serviceSelector.setServices(primary(PRIMARY));
+        Connection connection = dataSource.getConnection();
+
+        serviceSelector.setServices(primary(PRIMARY), primary(SECOND_PRIMARY));
+        dataSource.refreshServers();
+        dataSource.getServer(PRIMARY).createException = new SQLException("down");
+
+        dataSource.getConnection().close();
+        assertEquals(dataSource.getServer(SECOND_PRIMARY).connectionsCreated, 1);
+        connection.close();
+
+        dataSource.getServer(PRIMARY).createException = null;
+        dataSource.checkHealth();
+        // writes stay on the primary they use until it fails
+        dataSource.getConnection().close();
+        assertEquals(dataSource.getServer(SECOND_PRIMARY).connectionsCreated, 1);
+        assertEquals(dataSource.getServer(PRIMARY).connectionsCreated, 1);
+    }
+
+    @Test
+    public void testAllServersDown()
+            throws Exception
+    {
+        serviceSelector.setServices(primary(PRIMARY));
+        SQLException exception = new SQLException("down");
+        dataSource.getServer(PRIMARY).createException = exception;
+
+        try {
+            dataSource.getConnection();
+            fail("expected SQLException");
+        }
+        catch (SQLException e) {
+            assertEquals(e.getCause(), exception);
+        }
+    }
+
+    @Test
+    public void testNoServers()
+            throws Exception
+    {
+        try {
+            dataSource.getConnection();
+            fail("expected SQLException");
+        }
+        catch (SQLException e) {
+            assertTrue(e.getMessage().startsWith("No mysql servers"));
+        }
+    }
+
+    @Test
+    public void testExhaustedPoolDoesNotMarkServerFailed()
+            throws Exception
+    {
+        serviceSelector.setServices(primary(PRIMARY));
+        MockMySqlDataSource dataSource = new MockMySqlDataSource(serviceSelector, new MySqlDataSourceConfig()
+                .setMaxConnections(1)
+                .setMaxConnectionWait(new Duration(10, MILLISECONDS)));
+        try {
+            Connection connection = dataSource.getConnection();
+            try {
+                dataSource.getConnection();
+                fail("expected SqlTimeoutException");
+            }
+            catch (SqlTimeoutException expected) {
+            }
+            assertEquals(dataSource.getHealthyServerCount(), 1);
+            assertEquals(dataSource.getFailoverCount(), 0);
+            connection.close();
+        }
+        finally {
+            dataSource.dispose();
+        }
+    }
+
+    @Test
+    public void testMaxConnectionsSharedByServers()
+            throws Exception
+    {
+        serviceSelector.setServices(primary(PRIMARY), replica(REPLICA_1));
+        MockMySqlDataSource dataSource = new MockMySqlDataSource(serviceSelector, new MySqlDataSourceConfig()
+                .setMaxConnections(2)
+                .setMaxConnectionWait(new Duration(10, MILLISECONDS)));
+        try {
+            Connection write = dataSource.getConnection();
+            Connection read = dataSource.getReadOnlyDataSource().getConnection();
+            try {
+                dataSource.getReadOnlyDataSource().getConnection();
+                fail("expected SqlTimeoutException");
+            }
+            catch (SqlTimeoutException expected) {
+            }
+            assertEquals(dataSource.getConnectionsActive(), 2);
+            assertEquals(dataSource.getStats().getTimeout().getCount(), 1);
+
+            read.close();
+            write.close();
+            assertEquals(dataSource.getConnectionsActive(), 0);
+            assertEquals(dataSource.getConnectionsIdle(), 2);
+        }
+        finally {
+            dataSource.dispose();
+        }
+    }
+
+    @Test
+    public void testExhaustedServerNotSkipped()
+            throws Exception
+    {
+        serviceSelector.setServices(primary(PRIMARY), primary(SECOND_PRIMARY));
+        Connection connection = dataSource.getConnection();
+        UUID used = dataSource.getServer(PRIMARY).connectionsCreated == 1 ? PRIMARY : SECOND_PRIMARY;
+        UUID other = used.equals(PRIMARY) ? SECOND_PRIMARY : PRIMARY;
+        dataSource.getPool(used).setMaxConnections(1);
+
+        try {
+            dataSource.getConnection();
+            fail("expected SqlTimeoutException");
+        }
+        catch (SqlTimeoutException expected) {
+        }
+        assertEquals(dataSource.getServer(other).connectionsCreated, 0);
+        assertEquals(dataSource.getHealthyServerCount(), 2);
+        assertEquals(dataSource.getFailoverCount(), 0);
+        connection.close();
+    }
+
+    @Test
+    public void testFailoverSharesMaxConnectionWait()
+            throws Exception
+    {
+        UUID thirdPrimary = UUID.randomUUID();
+        serviceSelector.setServices(primary(PRIMARY), primary(SECOND_PRIMARY), primary(thirdPrimary));
+        MockMySqlDataSource dataSource = new MockMySqlDataSource(serviceSelector, new MySqlDataSourceConfig()
+                .setMaxConnectionWait(new Duration(500, MILLISECONDS)));
+        try {
+            for (UUID id : ImmutableList.of(PRIMARY, SECOND_PRIMARY, thirdPrimary)) {
+                dataSource.getServer(id).createException = new SQLException("down");
+            }
+
+            long start = System.nanoTime();
+            try {
+                dataSource.getConnection();
+                fail("expected SQLException");
+            }
+            catch (SQLException expected) {
+            }
+            // each server used to wait the full max connection wait
+            assertTrue(System.nanoTime() - start < MILLISECONDS.toNanos(1000));
+            assertEquals(dataSource.getHealthyServerCount(), 0);
+        }
+        finally {
+            dataSource.dispose();
+        }
+    }
+
+    @Test
+    public void testFailedServerUsedWhenNoOtherServer()
+            throws Exception
+    {
+        serviceSelector.setServices(primary(PRIMARY), replica(REPLICA_1));
+        dataSource.getServer(PRIMARY).createException = new SQLException("down");
+
+        try {
+            dataSource.getConnection();
+            fail("expected SQLException");
+        }
+        catch (SQLException expected) {
+        }
+        assertEquals(dataSource.getHealthyServerCount(), 1);
+
+        // the only primary is tried again before the health check
+        dataSource.getServer(PRIMARY).createException = null;
+        dataSource.getConnection().close();
+        assertEquals(dataSource.getServer(PRIMARY).connectionsCreated, 1);
+        assertEquals(dataSource.getHealthyServerCount(), 2);
+    }
+
+    @Test
+    public void testLowPriorityDataSource()
+            throws Exception
+    {
+        serviceSelector.setServices(primary(PRIMARY));
+        dataSource.setReservedConnections(9);
+
+        Connection connection = dataSource.getLowPriorityDataSource().getConnection();
+        assertEquals(dataSource.getLowPriorityConnectionsActive(), 1);
+        try {
+            dataSource.getLowPriorityDataSource().getConnection();
+            fail("expected SqlTimeoutException");
+        }
+        catch (SqlTimeoutException expected) {
+        }
+
+        // the reserved connections are still available
+        dataSource.getConnection().close();
+        connection.close();
+        assertEquals(dataSource.getLowPriorityConnectionsActive(), 0);
+        assertEquals(dataSource.getConnectionsActive(), 0);
+    }
+
+    @Test
+    public void testServerRemoved()
+            throws Exception
+    {
+        serviceSelector.setServices(primary(PRIMARY), replica(REPLICA_1));
+        dataSource.getReadOnlyDataSource().getConnection().close();
+
+        serviceSelector.setServices(primary(PRIMARY));
+        dataSource.refreshServers();
+        assertEquals(dataSource.getServerCount(), 1);
+        assertFalse(dataSource.getServers().get(0).contains(REPLICA_1.toString()));
+
+        dataSource.getReadOnlyDataSource().getConnection().close();
+        assertEquals(dataSource.getServer(PRIMARY).connectionsCreated, 1);
+    }
+
+    @Test
+    public void testConcurrentCheckout()
+            throws Exception
+    {
+        serviceSelector.setServices(primary(PRIMARY), replica(REPLICA_1), replica(REPLICA_2));
+
+        // a timeout is rethrown rather than retried on another server, so allow for slow threads
+        final MockMySqlDataSource dataSource = new MockMySqlDataSource(serviceSelector, new MySqlDataSourceConfig()
+                .setMaxConnections(10)
+                .setMaxConnectionWait(new Duration(10, SECONDS)));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 8; i++) {
+                final boolean readOnly = i % 2 == 0;
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                            throws Exception
+                    {
+                        for (int j = 0; j < 100; j++) {
+                            Connection connection = readOnly ? dataSource.getReadOnlyDataSource().getConnection() : dataSource.getConnection();
+                            connection.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            dataSource.dispose();
+        }
+        assertEquals(dataSource.getConnectionsActive(), 0);
+        assertEquals(dataSource.getFailoverCount(), 0);
+    }
+
+    private static ServiceDescriptor primary(UUID id)
+    {
+        return serviceDescriptor("mysql").setId(id).addProperty("jdbc", "jdbc:mysql://" + id).build();
+    }
+
+    private static ServiceDescriptor replica(UUID id)
+    {
+        return serviceDescriptor("mysql").setId(id).addProperty("jdbc", "jdbc:mysql://" + id).addProperty("role", "replica").build();
+    }
+
+    private static class MockMySqlDataSource extends MySqlDataSource
+    {
+        private final Map<String, MockConnectionPoolDataSource> servers = new ConcurrentHashMap<String, MockConnectionPoolDataSource>();
+        private final Map<String, PooledDataSource> pools = new ConcurrentHashMap<String, PooledDataSource>();
+
+        private MockMySqlDataSource(ServiceSelector serviceSelector, MySqlDataSourceConfig config)
+        {
+            super(serviceSelector, config);
+        }
+
+        @Override
+        protected PooledDataSource createServerDataSource(String jdbcUrl, MySqlDataSourceConfig config)
+        {
+            MockConnectionPoolDataSource poolDataSource = servers.get(jdbcUrl);
+            if (poolDataSource == null) {
+                poolDataSource = new MockConnectionPoolDataSource();
+                servers.put(jdbcUrl, poolDataSource);
+            }
+            PooledDataSource pool = new MockPooledDataSource(poolDataSource, config);
+            pools.put(jdbcUrl, pool);
+            return pool;
+        }
+
+        public MockConnectionPoolDataSource getServer(UUID id)
+        {
+            refreshServers();
+            return servers.get("jdbc:mysql://" + id);
+        }
+
+        public PooledDataSource getPool(UUID id)
+        {
+            refreshServers();
+            return pools.get("jdbc:mysql://" + id);
+        }
+    }
+
+    private static class MockServiceSelector implements ServiceSelector
+    {
+        private volatile List<ServiceDescriptor> services = ImmutableList.of();
+
+        public void setServices(ServiceDescriptor... services)
+        {
+            this.services = ImmutableList.copyOf(services);
+        }
+
+        @Override
+        public String getType()
+        {
+            return "mysql";
+        }
+
+        @Override
+        public String getPool()
+        {
+            return "general";
+        }
+
+        @Override
+        public List<ServiceDescriptor> selectAllServices()
+        {
+            return services;
+        }
+    }
+}
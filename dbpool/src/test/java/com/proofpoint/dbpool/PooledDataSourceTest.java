@@ -0,0 +1,454 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import com.proofpoint.dbpool.MockConnectionPoolDataSource.MockConnection;
+import com.proofpoint.dbpool.MockConnectionPoolDataSource.MockPooledConnection;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.sql.PooledConnection;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class PooledDataSourceTest
+{
+    private MockConnectionPoolDataSource poolDataSource;
+    private MySqlDataSourceConfig config;
+
+    @BeforeMethod
+    public void setup()
+    {
+        poolDataSource = new MockConnectionPoolDataSource();
+        config = new MySqlDataSourceConfig()
+                .setMaxConnections(3)
+                .setMaxConnectionWait(new Duration(10, MILLISECONDS));
+    }
+
+    @Test
+    public void testConnectionReused()
+            throws Exception
+    {
+        PooledDataSource dataSource = new MockPooledDataSource(poolDataSource, config);
+
+        MockConnection connection = (MockConnection) dataSource.getConnection();
+        MockPooledConnection pooledConnection = connection.getPooledConnection();
+        assertEquals(dataSource.getConnectionsActive(), 1);
+        assertEquals(dataSource.getConnectionsIdle(), 0);
+
+        connection.close();
+        assertFalse(pooledConnection.isClosed());
+        assertEquals(dataSource.getConnectionsActive(), 0);
+        assertEquals(dataSource.getConnectionsIdle(), 1);
+
+        connection = (MockConnection) dataSource.getConnection();
+        assertSame(connection.getPooledConnection(), pooledConnection);
+        assertEquals(dataSource.getConnectionsIdle(), 0);
+        assertEquals(poolDataSource.connectionsCreated, 1);
+        assertEquals(dataSource.getStats().getCreate().getCount(), 1);
+        assertEquals(dataSource.getStats().getCheckout().getCount(), 2);
+        connection.close();
+    }
+
+    @Test
+    public void testMostRecentlyReturnedConnectionReusedFirst()
+            throws Exception
+    {
+        PooledDataSource dataSource = new MockPooledDataSource(poolDataSource, config);
+
+        MockConnection first = (MockConnection) dataSource.getConnection();
+        MockConnection second = (MockConnection) dataSource.getConnection();
+        first.close();
+        second.close();
+
+        MockConnection connection = (MockConnection) dataSource.getConnection();
+        assertSame(connection.getPooledConnection(), second.getPooledConnection());
+        connection.close();
+    }
+
+    @Test
+    public void testConnectionsAboveMaxConnectionsClosed()
+            throws Exception
+    {
+        PooledDataSource dataSource = new MockPooledDataSource(poolDataSource, config);
+
+        MockConnection first = (MockConnection) dataSource.getConnection();
+        MockConnection second = (MockConnection) dataSource.getConnection();
+        dataSource.setMaxConnections(1);
+
+        first.close();
+        assertTrue(first.getPooledConnection().isClosed());
+        assertEquals(dataSource.getConnectionsIdle(), 0);
+
+        second.close();
+        assertFalse(second.getPooledConnection().isClosed());
+        assertEquals(dataSource.getConnectionsIdle(), 1);
+    }
+
+    @Test
+    public void testConnectionWithErrorNotReused()
+            throws Exception
+    {
+        PooledDataSource dataSource = new MockPooledDataSource(poolDataSource, config);
+
+        MockConnection connection = (MockConnection) dataSource.getConnection();
+        connection.errorOccurred();
+        assertTrue(connection.getPooledConnection().isClosed());
+        assertEquals(dataSource.getConnectionsActive(), 0);
+        assertEquals(dataSource.getConnectionsIdle(), 0);
+    }
+
+    @Test
+    public void testMaxConnectionLifetime()
+            throws Exception
+    {
+        PooledDataSource dataSource = new MockPooledDataSource(poolDataSource, config.setMaxConnectionLifetime(new Duration(10, MILLISECONDS)));
+
+        MockConnection connection = (MockConnection) dataSource.getConnection();
+        connection.close();
+        assertEquals(dataSource.getConnectionsIdle(), 1);
+        Thread.sleep(20);
+
+        // an expired idle connection is not handed out
+        MockConnection newConnection = (MockConnection) dataSource.getConnection();
+        assertNotSame(newConnection.getPooledConnection(), connection.getPooledConnection());
+        assertTrue(connection.getPooledConnection().isClosed());
+        assertEquals(dataSource.getStats().getEvictionCount(), 1);
+        Thread.sleep(20);
+
+        // an expired connection is closed when it is returned
+        newConnection.close();
+        assertTrue(newConnection.getPooledConnection().isClosed());
+        assertEquals(dataSource.getConnectionsIdle(), 0);
+    }
+
+    @Test
+    public void testIdleTimeoutKeepsMinIdleConnections()
+            throws Exception
+    {
+        PooledDataSource dataSource = new MockPooledDataSource(poolDataSource, config
+                .setMinIdleConnections(1)
+                .setIdleTimeout(new Duration(10, MILLISECONDS)));
+
+        MockConnection first = (MockConnection) dataSource.getConnection();
+        MockConnection second = (MockConnection) dataSource.getConnection();
+        MockConnection third = (MockConnection) dataSource.getConnection();
+        first.close();
+        second.close();
+        third.close();
+        assertEquals(dataSource.getConnectionsIdle(), 3);
+
+        dataSource.maintain();
+        assertEquals(dataSource.getConnectionsIdle(), 3);
+
+        Thread.sleep(20);
+        dataSource.maintain();
+        assertEquals(dataSource.getConnectionsIdle(), 1);
+        assertEquals(dataSource.getStats().getEvictionCount(), 2);
+
+        // the connections idle the longest are closed first
+        assertTrue(first.getPooledConnection().isClosed());
+        assertTrue(second.getPooledConnection().isClosed());
+        assertFalse(third.getPooledConnection().isClosed());
+    }
+
+    @Test
+    public void testMinIdleConnectionsCreated()
+            throws Exception
+    {
+        PooledDataSource dataSource = new MockPooledDataSource(poolDataSource, config.setMinIdleConnections(2));
+
+        dataSource.maintain();
+        assertEquals(dataSource.getConnectionsIdle(), 2);
+        assertEquals(poolDataSource.connectionsCreated, 2);
+
+        // the idle connection that was checked out is replaced right away
+        MockConnection connection = (MockConnection) dataSource.getConnection();
+        assertEquals(dataSource.getConnectionsIdle(), 2);
+        assertEquals(poolDataSource.connectionsCreated, 3);
+
+        // idle connections never exceed the max connections
+        dataSource.setMinIdleConnections(5);
+        dataSource.maintain();
+        assertEquals(dataSource.getConnectionsIdle(), 2);
+        assertEquals(poolDataSource.connectionsCreated, 3);
+
+        connection.close();
+        assertEquals(dataSource.getConnectionsIdle(), 3);
+
+        // creation failures are retried at the next maintenance
+        dataSource.setMaxConnections(4);
+        poolDataSource.createException = new SQLException();
+        dataSource.maintain();
+        assertEquals(dataSource.getConnectionsIdle(), 3);
+        assertEquals(dataSource.getStats().getCreationErrorCount(), 1);
+    }
+
+    @Test
+    public void testStartOpensMinIdleConnections()
+            throws Exception
+    {
+        PooledDataSource dataSource = new PooledDataSource(config.setMinIdleConnections(2), new Duration(1, TimeUnit.HOURS), null)
+        {
+            @Override
+            protected PooledConnection createConnectionInternal()
+                    throws SQLException
+            {
+                return poolDataSource.getPooledConnection();
+            }
+        };
+        try {
+            dataSource.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (dataSource.getConnectionsIdle() < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(dataSource.getConnectionsIdle(), 2);
+            assertEquals(poolDataSource.connectionsCreated, 2);
+        }
+        finally {
+            dataSource.dispose();
+        }
+    }
+
+    @Test
+    public void testValidateOnBorrow()
+            throws Exception
+    {
+        PooledDataSource dataSource = new MockPooledDataSource(poolDataSource, config.setValidateOnBorrow(true));
+
+        MockConnection connection = (MockConnection) dataSource.getConnection();
+        connection.close();
+        poolDataSource.valid = false;
+
+        MockConnection newConnection = (MockConnection) dataSource.getConnection();
+        assertNotSame(newConnection.getPooledConnection(), connection.getPooledConnection());
+        assertTrue(connection.getPooledConnection().isClosed());
+        assertEquals(dataSource.getStats().getValidationFailureCount(), 1);
+        newConnection.close();
+    }
+
+    @Test
+    public void testBackgroundValidation()
+            throws Exception
+    {
+        PooledDataSource dataSource = new MockPooledDataSource(poolDataSource, config.setValidationInterval(new Duration(10, MILLISECONDS)));
+
+        MockConnection first = (MockConnection) dataSource.getConnection();
+        MockConnection second = (MockConnection) dataSource.getConnection();
+        first.close();
+        second.close();
+        Thread.sleep(20);
+
+        dataSource.maintain();
+        assertEquals(dataSource.getConnectionsIdle(), 2);
+        assertEquals(dataSource.getStats().getValidationFailureCount(), 0);
+
+        poolDataSource.valid = false;
+        Thread.sleep(20);
+        dataSource.maintain();
+        assertEquals(dataSource.getConnectionsIdle(), 0);
+        assertEquals(dataSource.getStats().getValidationFailureCount(), 2);
+        assertTrue(first.getPooledConnection().isClosed());
+        assertTrue(second.getPooledConnection().isClosed());
+    }
+
+    @Test
+    public void testDispose()
+            throws Exception
+    {
+        PooledDataSource dataSource = new MockPooledDataSource(poolDataSource, config);
+
+        MockConnection idle = (MockConnection) dataSource.getConnection();
+        MockConnection active = (MockConnection) dataSource.getConnection();
+        idle.close();
+
+        dataSource.dispose();
+        assertTrue(idle.getPooledConnection().isClosed());
+        assertEquals(dataSource.getConnectionsIdle(), 0);
+
+        // connections returned after dispose are closed
+        active.close();
+        assertTrue(active.getPooledConnection().isClosed());
+        assertEquals(dataSource.getConnectionsIdle(), 0);
+
+        try {
+            dataSource.getConnection();
+            fail("expected SQLException");
+        }
+        catch (SQLException expected) {
+        }
+        assertEquals(dataSource.getConnectionsActive(), 0);
+    }
+
+    @Test
+    public void testConnectionsOpenedAndClosedInBackground()
+            throws Exception
+    {
+        QueuedExecutor connectionExecutor = new QueuedExecutor();
+        final PooledDataSource dataSource = new MockPooledDataSource(poolDataSource, config.setMaxConnectionWait(new Duration(10, TimeUnit.SECONDS)), connectionExecutor);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Connection> future = executor.submit(new Callable<Connection>()
+            {
+                @Override
+                public Connection call()
+                        throws Exception
+                {
+                    return dataSource.getConnection();
+                }
+            });
+
+            // the waiting thread asks for a connection but does not open it
+            waitForConnectionsWaiting(dataSource, 1);
+            assertEquals(dataSource.getConnectionsPending(), 1);
+            assertEquals(poolDataSource.connectionsCreated, 0);
+
+            assertEquals(connectionExecutor.runAll(), 1);
+            MockConnection connection = (MockConnection) future.get();
+            assertEquals(poolDataSource.connectionsCreated, 1);
+            assertEquals(dataSource.getConnectionsPending(), 0);
+            assertEquals(dataSource.getConnectionsWaiting(), 0);
+            assertEquals(dataSource.getStats().getCreate().getCount(), 1);
+
+            // connections returned to a disposed pool are closed in the background
+            dataSource.dispose();
+            connection.close();
+            assertFalse(connection.getPooledConnection().isClosed());
+            connectionExecutor.runAll();
+            assertTrue(connection.getPooledConnection().isClosed());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReturnedConnectionHandedToWaitingThread()
+            throws Exception
+    {
+        QueuedExecutor connectionExecutor = new QueuedExecutor();
+        final PooledDataSource dataSource = new MockPooledDataSource(poolDataSource, config.setMaxConnectionWait(new Duration(10, TimeUnit.SECONDS)), connectionExecutor);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Callable<Connection> getConnection = new Callable<Connection>()
+            {
+                @Override
+                public Connection call()
+                        throws Exception
+                {
+                    return dataSource.getConnection();
+                }
+            };
+
+            Future<Connection> future = executor.submit(getConnection);
+            waitForConnectionsWaiting(dataSource, 1);
+            connectionExecutor.runAll();
+            MockConnection first = (MockConnection) future.get();
+
+            future = executor.submit(getConnection);
+            waitForConnectionsWaiting(dataSource, 1);
+            assertEquals(dataSource.getConnectionsPending(), 1);
+
+            // the waiting thread takes the returned connection without waiting for the new one
+            first.close();
+            MockConnection second = (MockConnection) future.get();
+            assertSame(second.getPooledConnection(), first.getPooledConnection());
+
+            // the new connection is kept for the next checkout
+            connectionExecutor.runAll();
+            assertEquals(dataSource.getConnectionsIdle(), 1);
+            assertEquals(poolDataSource.connectionsCreated, 2);
+            second.close();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCreationErrorReportedWhenWaitTimesOut()
+            throws Exception
+    {
+        PooledDataSource dataSource = new MockPooledDataSource(poolDataSource, config);
+        poolDataSource.createException = new SQLException("connection refused");
+
+        try {
+            dataSource.getConnection();
+            fail("expected SqlTimeoutException");
+        }
+        catch (SqlTimeoutException e) {
+            assertSame(e.getCause(), poolDataSource.createException);
+        }
+        assertEquals(dataSource.getStats().getCreationErrorCount(), 1);
+        assertEquals(dataSource.getConnectionsActive(), 0);
+        assertEquals(dataSource.getConnectionsWaiting(), 0);
+        assertEquals(dataSource.getConnectionsPending(), 0);
+
+        // the next thread gets a connection once the database is back
+        poolDataSource.createException = null;
+        Connection connection = dataSource.getConnection();
+        assertNotNull(connection);
+        connection.close();
+    }
+
+    private static void waitForConnectionsWaiting(PooledDataSource dataSource, int count)
+            throws InterruptedException
+    {
+        while (dataSource.getConnectionsWaiting() != count) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static class QueuedExecutor implements Executor
+    {
+        private final List<Runnable> tasks = new CopyOnWriteArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command)
+        {
+            tasks.add(command);
+        }
+
+        public int runAll()
+        {
+            int count = 0;
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+                count++;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import com.proofpoint.dbpool.QueryStats.FingerprintStats;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class QueryStatsTest
+{
+    private static final String INSERT = "insert into message values (?, 'sender', 'description', 'recipients', 'ip', 'correlation', 'cluster', 'text')";
+    private static final String INSERT_FINGERPRINT = "insert into message values (?+)";
+
+    private File file;
+    private H2EmbeddedDataSource dataSource;
+
+    @BeforeMethod
+    public void setup()
+            throws Exception
+    {
+        file = File.createTempFile("h2db-", ".db");
+        dataSource = new H2EmbeddedDataSource(new H2EmbeddedDataSourceConfig()
+                .setFilename(file.getAbsolutePath())
+                .setInitScript("com/proofpoint/dbpool/h2.ddl")
+                .setQueryStatsEnabled(true)
+                .setMaxQueryFingerprints(3));
+
+        // forget the statements that initialized the database
+        dataSource.getQueryStats().reset();
+    }
+
+    @AfterMethod
+    public void teardown()
+            throws IOException
+    {
+        dataSource.dispose();
+        file.delete();
+    }
+
+    @Test
+    public void testPreparedStatement()
+            throws Exception
+    {
+        Connection connection = dataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement(INSERT);
+        assertSame(statement.getConnection(), connection);
+        for (int i = 0; i < 3; i++) {
+            statement.setString(1, "id" + i);
+            statement.executeUpdate();
+        }
+        statement.close();
+
+        PreparedStatement select = connection.prepareStatement("select message_id from message where message_id like 'id%'");
+        ResultSet resultSet = select.executeQuery();
+        assertSame(resultSet.getStatement(), select);
+        while (resultSet.next()) {
+            resultSet.getString(1);
+        }
+        resultSet.close();
+        select.close();
+        connection.close();
+
+        QueryStats queryStats = dataSource.getQueryStats();
+        FingerprintStats insertStats = queryStats.getFingerprintStats(INSERT_FINGERPRINT);
+        assertEquals(insertStats.getExecute().getCount(), 3);
+        assertEquals(insertStats.getRowCount(), 3);
+        assertEquals(insertStats.getErrorCount(), 0);
+
+        FingerprintStats selectStats = queryStats.getFingerprintStats("select message_id from message where message_id like ?");
+        assertEquals(selectStats.getExecute().getCount(), 1);
+        assertEquals(selectStats.getFetch().getCount(), 1);
+        assertEquals(selectStats.getRowCount(), 3);
+
+        // the two statements and the statements beyond the max fingerprints
+        assertEquals(queryStats.getTopQueriesByTime().size(), 3);
+    }
+
+    @Test
+    public void testStatement()
+            throws Exception
+    {
+        Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement();
+        statement.executeUpdate(INSERT.replace("?", "'a'"));
+        statement.executeUpdate(INSERT.replace("?", "'b'"));
+        try {
+            statement.executeUpdate(INSERT.replace("?", "'a'"));
+            fail("expected SQLException");
+        }
+        catch (SQLException expected) {
+        }
+
+        assertTrue(statement.execute("select count(*) from message"));
+        ResultSet resultSet = statement.getResultSet();
+        assertTrue(resultSet.next());
+        assertEquals(resultSet.getInt(1), 2);
+        resultSet.close();
+
+        statement.addBatch(INSERT.replace("?", "'c'"));
+        statement.addBatch(INSERT.replace("?", "'d'"));
+        statement.executeBatch();
+        statement.close();
+        connection.close();
+
+        QueryStats queryStats = dataSource.getQueryStats();
+        FingerprintStats insertStats = queryStats.getFingerprintStats(INSERT_FINGERPRINT);
+        assertEquals(insertStats.getExecute().getCount(), 4);
+        assertEquals(insertStats.getErrorCount(), 1);
+        assertEquals(insertStats.getRowCount(), 4);
+
+        FingerprintStats countStats = queryStats.getFingerprintStats("select count(*) from message");
+        assertEquals(countStats.getExecute().getCount(), 1);
+        assertEquals(countStats.getFetch().getCount(), 1);
+        assertEquals(countStats.getRowCount(), 1);
+
+        assertTrue(queryStats.getTopQueriesByErrors().get(0).endsWith(INSERT_FINGERPRINT));
+    }
+
+    @Test
+    public void testMaxFingerprints()
+            throws Exception
+    {
+        Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement();
+        for (String column : new String[] {"message_id", "sender", "recipients", "ip", "text"}) {
+            statement.executeQuery("select " + column + " from message").close();
+        }
+        statement.close();
+        connection.close();
+
+        QueryStats queryStats = dataSource.getQueryStats();
+        assertEquals(queryStats.getFingerprintCount(), 3);
+        assertNull(queryStats.getFingerprintStats("select ip from message"));
+        assertEquals(queryStats.getFingerprintStats(QueryStats.OTHER).getExecute().getCount(), 2);
+
+        queryStats.reset();
+        assertEquals(queryStats.getFingerprintCount(), 0);
+        assertEquals(queryStats.getFingerprintStats(QueryStats.OTHER).getExecute().getCount(), 0);
+    }
+
+    @Test
+    public void testDisabled()
+            throws Exception
+    {
+        dataSource.getQueryStats().setEnabled(false);
+        Connection connection = dataSource.getConnection();
+        assertFalse(Proxy.isProxyClass(connection.getClass()));
+        connection.createStatement().executeQuery("select * from message").close();
+        connection.close();
+        assertEquals(dataSource.getQueryStats().getFingerprintCount(), 0);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import org.testng.annotations.Test;
+
+import static com.proofpoint.dbpool.SqlFingerprint.fingerprint;
+import static org.testng.Assert.assertEquals;
+
+public class SqlFingerprintTest
+{
+    @Test
+    public void testLiterals()
+    {
+        assertEquals(fingerprint("SELECT * FROM message WHERE id = 'abc' AND count > 10"), "select * from message where id = ? and count > ?");
+        assertEquals(fingerprint("select 'it''s', 'a\\'b', 1.5e-3, 0xFF, -7"), "select ?,?,?,?,-?");
+        assertEquals(fingerprint("select column1 from table2"), "select column1 from table2");
+    }
+
+    @Test
+    public void testWhiteSpaceAndComments()
+    {
+        assertEquals(fingerprint("  select\n\ta -- the a column\n from  t /* hint */ where b = ?  "), "select a from t where b = ?");
+    }
+
+    @Test
+    public void testQuotedIdentifiersKept()
+    {
+        assertEquals(fingerprint("select \"Mixed Case\", `Back Tick` from t"), "select \"Mixed Case\",`Back Tick` from t");
+    }
+
+    @Test
+    public void testLists()
+    {
+        assertEquals(fingerprint("select * from t where id in (1, 2, 3)"), "select * from t where id in (?+)");
+        assertEquals(fingerprint("select * from t where id in ( ? )"), "select * from t where id in (?+)");
+        assertEquals(fingerprint("insert into t (a, b) values (1, 'x'), (2, 'y')"), "insert into t (a,b) values (?+)");
+        assertEquals(fingerprint("select now() from t"), "select now() from t");
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.proofpoint.dbpool;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class StatementCacheTest
+{
+    private static final String SELECT = "select count(*) from message";
+    private static final String INSERT = "insert into message values (?, 'sender', null, 'recipients', 'ip', 'correlation', 'cluster', 'text')";
+
+    private File file;
+    private H2EmbeddedDataSource dataSource;
+
+    @BeforeMethod
+    public void setup()
+            throws Exception
+    {
+        file = File.createTempFile("h2db-", ".db");
+        dataSource = new H2EmbeddedDataSource(new H2EmbeddedDataSourceConfig()
+                .setFilename(file.getAbsolutePath())
+                .setInitScript("com/proofpoint/dbpool/h2.ddl")
+                .setMaxConnections(1)
+                .setStatementCacheSize(2));
+    }
+
+    @AfterMethod
+    public void teardown()
+            throws IOException
+    {
+        dataSource.dispose();
+        file.delete();
+    }
+
+    @Test
+    public void testStatementReusedAcrossCheckouts()
+            throws Exception
+    {
+        ManagedDataSourceStats stats = dataSource.getStats();
+
+        Connection connection = dataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement(SELECT);
+        assertSame(statement.getConnection(), connection);
+        assertEquals(count(statement), 0);
+        statement.close();
+        assertTrue(statement.isClosed());
+        connection.close();
+        assertTrue(connection.isClosed());
+        assertEquals(stats.getStatementCacheMissCount(), 1);
+        assertEquals(stats.getStatementCacheHitCount(), 0);
+
+        connection = dataSource.getConnection();
+        statement = connection.prepareStatement(SELECT);
+        assertEquals(count(statement), 0);
+        statement.close();
+        connection.close();
+        assertEquals(stats.getStatementCacheMissCount(), 1);
+        assertEquals(stats.getStatementCacheHitCount(), 1);
+
+        // result set options are part of the key
+        connection = dataSource.getConnection();
+        statement = connection.prepareStatement(SELECT, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+        statement.close();
+        connection.close();
+        assertEquals(stats.getStatementCacheMissCount(), 2);
+    }
+
+    @Test
+    public void testStatementSettingsRestored()
+            throws Exception
+    {
+        Connection connection = dataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement(SELECT);
+        int fetchSize = statement.getFetchSize();
+        statement.setQueryTimeout(5);
+        statement.setMaxRows(3);
+        statement.setMaxFieldSize(100);
+        statement.setFetchSize(2);
+        statement.close();
+        connection.close();
+
+        connection = dataSource.getConnection();
+        statement = connection.prepareStatement(SELECT);
+        assertEquals(dataSource.getStats().getStatementCacheHitCount(), 1);
+        assertEquals(statement.getQueryTimeout(), 0);
+        assertEquals(statement.getMaxRows(), 0);
+        assertEquals(statement.getMaxFieldSize(), 0);
+        assertEquals(statement.getFetchSize(), fetchSize);
+        statement.close();
+        connection.close();
+    }
+
+    @Test
+    public void testStatementLeftOpenReturnedWithConnection()
+            throws Exception
+    {
+        Connection connection = dataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement(SELECT);
+        connection.close();
+        assertTrue(statement.isClosed());
+        try {
+            statement.executeQuery();
+            fail("expected SQLException");
+        }
+        catch (SQLException expected) {
+        }
+
+        connection = dataSource.getConnection();
+        statement = connection.prepareStatement(SELECT);
+        assertEquals(count(statement), 0);
+        connection.close();
+        assertEquals(dataSource.getStats().getStatementCacheHitCount(), 1);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedStatementEvicted()
+            throws Exception
+    {
+        ManagedDataSourceStats stats = dataSource.getStats();
+        Connection connection = dataSource.getConnection();
+        connection.prepareStatement(SELECT).close();
+        connection.prepareStatement(INSERT).close();
+        connection.prepareStatement(SELECT).close();
+        assertEquals(stats.getStatementCacheEvictionCount(), 0);
+
+        connection.prepareStatement("select * from message").close();
+        assertEquals(stats.getStatementCacheEvictionCount(), 1);
+
+        // the insert was used least recently
+        connection.prepareStatement(SELECT).close();
+        connection.prepareStatement(INSERT).close();
+        assertEquals(stats.getStatementCacheHitCount(), 2);
+        assertEquals(stats.getStatementCacheMissCount(), 4);
+        assertEquals(stats.getStatementCacheEvictionCount(), 2);
+        connection.close();
+    }
+
+    @Test
+    public void testTransactionRolledBackOnClose()
+            throws Exception
+    {
+        Connection connection = dataSource.getConnection();
+        connection.setAutoCommit(false);
+        PreparedStatement insert = connection.prepareStatement(INSERT);
+        insert.setString(1, "id");
+        insert.executeUpdate();
+        connection.close();
+
+        connection = dataSource.getConnection();
+        assertTrue(connection.getAutoCommit());
+        PreparedStatement select = connection.prepareStatement(SELECT);
+        assertEquals(count(select), 0);
+
+        // parameters are cleared before a statement is reused
+        insert = connection.prepareStatement(INSERT);
+        try {
+            insert.executeUpdate();
+            fail("expected SQLException");
+        }
+        catch (SQLException expected) {
+        }
+        insert.setString(1, "id");
+        insert.executeUpdate();
+        assertEquals(count(select), 1);
+        connection.close();
+    }
+
+    @Test
+    public void testClosedConnectionRejectsCalls()
+            throws Exception
+    {
+        Connection connection = dataSource.getConnection();
+        connection.close();
+        connection.close();
+        assertEquals(dataSource.getConnectionsActive(), 0);
+
+        try {
+            connection.prepareStatement(SELECT);
+            fail("expected SQLException");
+        }
+        catch (SQLException expected) {
+        }
+        try {
+            connection.createStatement();
+            fail("expected SQLException");
+        }
+        catch (SQLException expected) {
+        }
+    }
+
+    @Test
+    public void testStatementsNotCachedWhenDisabled()
+            throws Exception
+    {
+        File otherFile = File.createTempFile("h2db-", ".db");
+        H2EmbeddedDataSource uncached = new H2EmbeddedDataSource(new H2EmbeddedDataSourceConfig()
+                .setFilename(otherFile.getAbsolutePath())
+                .setInitScript("com/proofpoint/dbpool/h2.ddl"));
+        try {
+            Connection connection = uncached.getConnection();
+            Statement statement = connection.prepareStatement(SELECT);
+            statement.close();
+            connection.close();
+            assertFalse(Proxy.isProxyClass(connection.getClass()));
+            assertEquals(uncached.getStats().getStatementCacheMissCount(), 0);
+        }
+        finally {
+            uncached.dispose();
+            otherFile.delete();
+        }
+    }
+
+    private static int count(PreparedStatement statement)
+            throws SQLException
+    {
+        ResultSet resultSet = statement.executeQuery();
+        try {
+            assertTrue(resultSet.next());
+            return resultSet.getInt(1);
+        }
+        finally {
+            resultSet.close();
+        }
+    }
+}
@@ -21,6 +21,7 @@ import com.google.inject.BindingAnnotation;
 import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.google.inject.Key;
 import com.google.inject.Module;
 import com.google.inject.ProvisionException;
 import com.google.inject.Scopes;
@@ -36,6 +37,8 @@ import javax.sql.DataSource;
 import java.io.File;
 import java.io.IOException;
 import java.lang.annotation.Retention;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -45,6 +48,7 @@ import static org.mockito.Mockito.mock;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotSame;
 import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 
 public class TestH2EmbeddedDataSourceModule
 {
@@ -163,6 +167,36 @@ public class TestH2EmbeddedDataSourceModule
         assertSame(objectHolder.dataSource, twoObjectsHolder.aliasedDataSource);
     }
 
+    @Test(groups = "requiresTempFile")
+    public void testAsyncDataSourceBinding()
+            throws Exception
+    {
+        final String prefix = "test";
+        Map<String, String> properties = createDefaultConfigurationProperties(prefix, temporaryFile.getAbsolutePath());
+
+        Injector injector = createInjector(properties, new H2EmbeddedDataSourceModule(prefix, MainBinding.class));
+
+        AsyncDataSource asyncDataSource = injector.getInstance(Key.get(AsyncDataSource.class, MainBinding.class));
+        try {
+            assertSame(injector.getInstance(Key.get(AsyncDataSource.class, MainBinding.class)), asyncDataSource);
+
+            Boolean valid = asyncDataSource.submit(new ConnectionCallback<Boolean>()
+            {
+                @Override
+                public Boolean execute(Connection connection)
+                        throws SQLException
+                {
+                    return connection.isValid(1);
+                }
+            }).get();
+            assertTrue(valid);
+            assertEquals(asyncDataSource.getCompletedCount(), 1);
+        }
+        finally {
+            asyncDataSource.shutdown();
+        }
+    }
+
     @Test(groups = "requiresTempFile")
     public void testCorrectConfigurationPrefix()
     {
@@ -192,6 +192,12 @@ public class TestManagedSemaphore
         assertPermits(semaphore, 3, 3);
     }
 
+    @Test
+    public void testFair()
+    {
+        assertTrue(new ManagedSemaphore(1).isFair());
+    }
+
     @Test
     public void adjustPermits()
     {
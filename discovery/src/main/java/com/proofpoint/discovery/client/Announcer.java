@@ -1,20 +1,26 @@
 package com.proofpoint.discovery.client;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.MapMaker;
 import com.google.common.util.concurrent.CheckedFuture;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.proofpoint.log.Logger;
 import com.proofpoint.units.Duration;
+import org.weakref.jmx.Managed;
 
 import javax.annotation.PreDestroy;
 import java.net.ConnectException;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -22,34 +28,107 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.proofpoint.discovery.client.DiscoveryAnnouncementClient.DEFAULT_DELAY;
 
+/**
+ * Announces the services of this node to discovery and keeps the
+ * announcement alive. Announcements are renewed at a random point between
+ * 60% and 80% of the max-age returned by discovery, so nodes that announced
+ * together (for example after a discovery restart) spread out over time.
+ * Failed announcements are retried with jittered exponential backoff.
+ * <p/>
+ * Services added or removed after start are announced immediately; changes
+ * made while an announcement is in flight are coalesced into a single
+ * announcement once it completes. When heartbeats are enabled, an unchanged
+ * announcement is renewed with a heartbeat that does not carry the services.
+ * <p/>
+ * Every service is announced with the load of this node, as reported by the
+ * bound {@link LoadReporter}s, and whether the node is draining. A change of
+ * the draining state is announced immediately.
+ */
 public class Announcer
 {
     private final static Logger log = Logger.get(Announcer.class);
+
+    private static final Duration MIN_RETRY_DELAY = new Duration(1, TimeUnit.SECONDS);
+    private static final Duration MAX_RETRY_DELAY = new Duration(30, TimeUnit.SECONDS);
+
     private final ConcurrentMap<UUID, ServiceAnnouncement> announcements = new MapMaker().makeMap();
 
     private final DiscoveryAnnouncementClient announcementClient;
+    private final Set<LoadReporter> loadReporters;
     private final ScheduledExecutorService executor;
+    private final boolean ownsExecutor;
+    private final boolean heartbeatEnabled;
+    private final Random random = new Random();
     private final AtomicBoolean serverUp = new AtomicBoolean(true);
     private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile boolean draining;
 
+    // guarded by this
+    private boolean destroyed;
+    private boolean changed = true;
+    private boolean announcementPending;
+    private Map<String, String> announcedHealth = ImmutableMap.of();
+    private int failures;
+    private CheckedFuture<Duration, DiscoveryException> inFlight;
+    private ScheduledFuture<?> nextAnnouncement;
 
-    @Inject
     public Announcer(DiscoveryAnnouncementClient announcementClient, Set<ServiceAnnouncement> serviceAnnouncements)
+    {
+        this(announcementClient,
+                serviceAnnouncements,
+                ImmutableSet.<LoadReporter>of(),
+                new DiscoveryClientConfig(),
+                new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("Announcer-%s").setDaemon(true).build()),
+                true);
+    }
+
+    public Announcer(DiscoveryAnnouncementClient announcementClient,
+            Set<ServiceAnnouncement> serviceAnnouncements,
+            DiscoveryClientConfig config,
+            ScheduledExecutorService executor)
+    {
+        this(announcementClient, serviceAnnouncements, ImmutableSet.<LoadReporter>of(), config, executor, false);
+    }
+
+    @Inject
+    public Announcer(DiscoveryAnnouncementClient announcementClient,
+            Set<ServiceAnnouncement> serviceAnnouncements,
+            Set<LoadReporter> loadReporters,
+            DiscoveryClientConfig config,
+            @ForDiscoveryClient ScheduledExecutorService executor)
+    {
+        this(announcementClient, serviceAnnouncements, loadReporters, config, executor, false);
+    }
+
+    private Announcer(DiscoveryAnnouncementClient announcementClient,
+            Set<ServiceAnnouncement> serviceAnnouncements,
+            Set<LoadReporter> loadReporters,
+            DiscoveryClientConfig config,
+            ScheduledExecutorService executor,
+            boolean ownsExecutor)
     {
         Preconditions.checkNotNull(announcementClient, "client is null");
         Preconditions.checkNotNull(serviceAnnouncements, "serviceAnnouncements is null");
+        Preconditions.checkNotNull(loadReporters, "loadReporters is null");
+        Preconditions.checkNotNull(config, "config is null");
+        Preconditions.checkNotNull(executor, "executor is null");
 
         this.announcementClient = announcementClient;
         for (ServiceAnnouncement serviceAnnouncement : serviceAnnouncements) {
             announcements.put(serviceAnnouncement.getId(), serviceAnnouncement);
         }
-        executor = new ScheduledThreadPoolExecutor(5, new ThreadFactoryBuilder().setNameFormat("Announcer-%s").setDaemon(true).build());
+        this.loadReporters = ImmutableSet.copyOf(loadReporters);
+        this.heartbeatEnabled = config.isHeartbeatEnabled();
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
     }
 
     public void start()
             throws TimeoutException
     {
-        Preconditions.checkState(!executor.isShutdown(), "Announcer has been destroyed");
+        synchronized (this) {
+            Preconditions.checkState(!destroyed, "Announcer has been destroyed");
+        }
         if (started.compareAndSet(false, true)) {
             // announce immediately, if discovery is running
             try {
@@ -63,12 +142,24 @@ public class Announcer
     @PreDestroy
     public void destroy()
     {
-        executor.shutdownNow();
-        try {
-            executor.awaitTermination(30, TimeUnit.SECONDS);
+        synchronized (this) {
+            destroyed = true;
+            if (nextAnnouncement != null) {
+                nextAnnouncement.cancel(true);
+            }
+            if (inFlight != null) {
+                inFlight.cancel(true);
+            }
         }
-        catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+
+        if (ownsExecutor) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(30, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
 
         // unannounce
@@ -89,25 +180,107 @@ public class Announcer
     {
         Preconditions.checkNotNull(serviceAnnouncement, "serviceAnnouncement is null");
         announcements.put(serviceAnnouncement.getId(), serviceAnnouncement);
+        announcementChanged();
     }
 
     public void removeServiceAnnouncement(UUID serviceId)
     {
         announcements.remove(serviceId);
+        announcementChanged();
+    }
+
+    @Managed(description = "Highest load reported for this node, from 0 when idle to 1 when it can not take more work, or NaN if no load is reported")
+    public double getLoad()
+    {
+        double load = Double.NaN;
+        for (LoadReporter loadReporter : loadReporters) {
+            double reported = loadReporter.getLoad();
+            if (!Double.isNaN(reported) && (Double.isNaN(load) || reported > load)) {
+                load = reported;
+            }
+        }
+        return load;
+    }
+
+    @Managed(description = "True if this node is draining, so selectors send its services no new work")
+    public boolean isDraining()
+    {
+        return draining;
+    }
+
+    @Managed
+    public void setDraining(boolean draining)
+    {
+        if (this.draining != draining) {
+            this.draining = draining;
+            announcementChanged();
+        }
     }
 
-    private CheckedFuture<Duration, DiscoveryException> announce()
+    private Map<String, String> getHealth()
     {
-        final CheckedFuture<Duration, DiscoveryException> future = announcementClient.announce(ImmutableSet.copyOf(announcements.values()));
+        ImmutableMap.Builder<String, String> health = ImmutableMap.builder();
+        double load = getLoad();
+        if (!Double.isNaN(load)) {
+            health.put(ServiceHealth.LOAD_PROPERTY, ServiceHealth.formatLoad(load));
+        }
+        if (draining) {
+            health.put(ServiceHealth.DRAINING_PROPERTY, "true");
+        }
+        return health.build();
+    }
+
+    private synchronized void announcementChanged()
+    {
+        changed = true;
+
+        // an announcement in flight or already pending picks up the change, and
+        // while discovery is failing the change waits for the next retry
+        if (!started.get() || destroyed || inFlight != null || announcementPending || failures > 0) {
+            return;
+        }
+        announcementPending = true;
+        scheduleAnnouncement(0);
+    }
+
+    private synchronized CheckedFuture<Duration, DiscoveryException> announce()
+    {
+        if (destroyed) {
+            return Futures.immediateFailedCheckedFuture(new DiscoveryException("Announcer has been destroyed"));
+        }
+        if (inFlight != null) {
+            return inFlight;
+        }
+        announcementPending = false;
+
+        Map<String, String> health = getHealth();
+        final boolean heartbeat = heartbeatEnabled && !changed && health.equals(announcedHealth);
+        final CheckedFuture<Duration, DiscoveryException> future;
+        if (heartbeat) {
+            future = announcementClient.heartbeat();
+        }
+        else {
+            // changes made from now on are sent with the next announcement
+            changed = false;
+            announcedHealth = health;
+            ImmutableSet.Builder<ServiceAnnouncement> services = ImmutableSet.builder();
+            for (ServiceAnnouncement serviceAnnouncement : announcements.values()) {
+                services.add(health.isEmpty() ? serviceAnnouncement : serviceAnnouncement.withProperties(health));
+            }
+            future = announcementClient.announce(services.build());
+        }
+        inFlight = future;
 
         future.addListener(new Runnable()
         {
             @Override
             public void run()
             {
-                Duration duration = DEFAULT_DELAY;
+                Duration maxAge = null;
+                boolean succeeded = false;
                 try {
-                    duration = future.checkedGet();
+                    maxAge = future.checkedGet();
+                    succeeded = true;
                     if (serverUp.compareAndSet(false, true)) {
                         log.info("Discovery server connect succeeded for announce");
                     }
@@ -119,7 +292,7 @@ public class Announcer
                     log.debug(e, "Cannot connect to discovery server for announce");
                 }
                 finally {
-                    scheduleNextAnnouncement(duration);
+                    announcementCompleted(heartbeat, succeeded, maxAge);
                 }
             }
         }, executor);
@@ -127,18 +300,58 @@ public class Announcer
         return future;
     }
 
-    private void scheduleNextAnnouncement(Duration delay)
+    private synchronized void announcementCompleted(boolean heartbeat, boolean succeeded, Duration maxAge)
+    {
+        inFlight = null;
+
+        long delayMillis;
+        if (!succeeded) {
+            if (!heartbeat) {
+                changed = true;
+            }
+            failures++;
+            delayMillis = retryDelayMillis();
+        }
+        else if (heartbeat && maxAge == null) {
+            // discovery does not hold the announcement, so announce every service again
+            changed = true;
+            failures = 0;
+            delayMillis = 0;
+        }
+        else {
+            failures = 0;
+            delayMillis = changed ? 0 : renewalDelayMillis(maxAge == null ? DEFAULT_DELAY : maxAge);
+        }
+        scheduleAnnouncement(delayMillis);
+    }
+
+    private long renewalDelayMillis(Duration maxAge)
+    {
+        return (long) (maxAge.toMillis() * (0.6 + 0.2 * random.nextDouble()));
+    }
+
+    private long retryDelayMillis()
+    {
+        long maxDelay = Math.min((long) MAX_RETRY_DELAY.toMillis(), (long) MIN_RETRY_DELAY.toMillis() << Math.min(failures - 1, 16));
+        return maxDelay / 2 + (long) (random.nextDouble() * maxDelay / 2);
+    }
+
+    private synchronized void scheduleAnnouncement(long delayMillis)
     {
         // already stopped?  avoids rejection exception
-        if (executor.isShutdown()) {
+        if (destroyed || executor.isShutdown()) {
             return;
         }
-        executor.schedule(new Runnable() {
+        if (nextAnnouncement != null) {
+            nextAnnouncement.cancel(false);
+        }
+        nextAnnouncement = executor.schedule(new Runnable()
+        {
             @Override
             public void run()
             {
                 announce();
             }
-        }, (long) (delay.toMillis() * 0.8), TimeUnit.MILLISECONDS);
+        }, delayMillis, TimeUnit.MILLISECONDS);
     }
 }
@@ -23,22 +23,31 @@ public class CachingServiceSelector implements ServiceSelector
     private final String type;
     private final String pool;
     private final DiscoveryLookupClient lookupClient;
+    private final DiscoverySnapshot snapshot;
     private final AtomicReference<ServiceDescriptors> serviceDescriptors = new AtomicReference<ServiceDescriptors>();
     private final ScheduledExecutorService executor;
     private final AtomicBoolean serverUp = new AtomicBoolean(true);
 
     private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile boolean stale;
 
     public CachingServiceSelector(String type, ServiceSelectorConfig selectorConfig, DiscoveryLookupClient lookupClient, ScheduledExecutorService executor)
+    {
+        this(type, selectorConfig, lookupClient, DiscoverySnapshot.disabled(), executor);
+    }
+
+    public CachingServiceSelector(String type, ServiceSelectorConfig selectorConfig, DiscoveryLookupClient lookupClient, DiscoverySnapshot snapshot, ScheduledExecutorService executor)
     {
         Preconditions.checkNotNull(type, "type is null");
         Preconditions.checkNotNull(selectorConfig, "selectorConfig is null");
         Preconditions.checkNotNull(lookupClient, "client is null");
+        Preconditions.checkNotNull(snapshot, "snapshot is null");
         Preconditions.checkNotNull(executor, "executor is null");
 
         this.type = type;
         this.pool = selectorConfig.getPool();
         this.lookupClient = lookupClient;
+        this.snapshot = snapshot;
         this.executor = executor;
     }
 
@@ -49,6 +58,16 @@ public class CachingServiceSelector implements ServiceSelector
         if (started.compareAndSet(false, true)) {
             Preconditions.checkState(!executor.isShutdown(), "CachingServiceSelector has been destroyed");
 
+            // serve the services saved by a previous run while discovery is refreshed in the background
+            ServiceDescriptors savedDescriptors = snapshot.get(type, pool);
+            if (savedDescriptors != null) {
+                serviceDescriptors.set(savedDescriptors);
+                stale = true;
+                log.info("Using saved services (%s/%s) until discovery responds", type, pool);
+                refresh();
+                return;
+            }
+
             // if discovery is available, get the initial set of servers before starting
             try {
                 refresh().checkedGet(30, TimeUnit.SECONDS);
@@ -80,6 +99,15 @@ public class CachingServiceSelector implements ServiceSelector
         return serviceDescriptors.getServiceDescriptors();
     }
 
+    /**
+     * Returns true while the services are those saved by a previous run and
+     * discovery has not yet responded.
+     */
+    public boolean isStale()
+    {
+        return stale;
+    }
+
     private CheckedFuture<ServiceDescriptors, DiscoveryException> refresh()
     {
         final ServiceDescriptors oldDescriptors = this.serviceDescriptors.get();
@@ -102,6 +130,8 @@ public class CachingServiceSelector implements ServiceSelector
                     ServiceDescriptors newDescriptors = future.checkedGet();
                     delay = newDescriptors.getMaxAge();
                     serviceDescriptors.set(newDescriptors);
+                    stale = false;
+                    snapshot.put(newDescriptors);
                     if (serverUp.compareAndSet(false, true)) {
                         log.info("Discovery server connect succeeded for refresh (%s/%s)", type, pool);
                     }
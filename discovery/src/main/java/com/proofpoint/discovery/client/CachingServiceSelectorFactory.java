@@ -10,14 +10,22 @@ import java.util.concurrent.TimeoutException;
 public class CachingServiceSelectorFactory implements ServiceSelectorFactory
 {
     private final DiscoveryLookupClient lookupClient;
+    private final DiscoverySnapshot snapshot;
     private final ScheduledExecutorService executor;
 
+    public CachingServiceSelectorFactory(DiscoveryLookupClient lookupClient, ScheduledExecutorService executor)
+    {
+        this(lookupClient, DiscoverySnapshot.disabled(), executor);
+    }
+
     @Inject
-    public CachingServiceSelectorFactory(DiscoveryLookupClient lookupClient, @ForDiscoveryClient ScheduledExecutorService executor)
+    public CachingServiceSelectorFactory(DiscoveryLookupClient lookupClient, DiscoverySnapshot snapshot, @ForDiscoveryClient ScheduledExecutorService executor)
     {
         Preconditions.checkNotNull(lookupClient, "client is null");
+        Preconditions.checkNotNull(snapshot, "snapshot is null");
         Preconditions.checkNotNull(executor, "executor is null");
         this.lookupClient = lookupClient;
+        this.snapshot = snapshot;
         this.executor = executor;
     }
 
@@ -26,7 +34,7 @@ public class CachingServiceSelectorFactory implements ServiceSelectorFactory
         Preconditions.checkNotNull(type, "type is null");
         Preconditions.checkNotNull(selectorConfig, "selectorConfig is null");
 
-        CachingServiceSelector serviceSelector = new CachingServiceSelector(type, selectorConfig, lookupClient, executor);
+        CachingServiceSelector serviceSelector = new CachingServiceSelector(type, selectorConfig, lookupClient, snapshot, executor);
         try {
             serviceSelector.start();
         }
@@ -12,5 +12,12 @@ public interface DiscoveryAnnouncementClient
 
     CheckedFuture<Duration, DiscoveryException> announce(Set<ServiceAnnouncement> services);
 
+    /**
+     * Renews the last announcement without sending its services again.
+     * Returns null when the server does not hold the last announcement, in
+     * which case the services must be announced again.
+     */
+    CheckedFuture<Duration, DiscoveryException> heartbeat();
+
     CheckedFuture<Void, DiscoveryException> unannounce();
 }
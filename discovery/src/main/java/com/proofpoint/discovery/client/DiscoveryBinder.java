@@ -4,12 +4,14 @@ import com.google.common.base.Preconditions;
 import com.google.inject.Binder;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import com.google.inject.Scopes;
 import com.google.inject.multibindings.Multibinder;
 import com.proofpoint.discovery.client.ServiceAnnouncement.ServiceAnnouncementBuilder;
 
 import static com.proofpoint.configuration.ConfigurationModule.bindConfig;
 import static com.proofpoint.discovery.client.ServiceAnnouncement.serviceAnnouncement;
 import static com.proofpoint.discovery.client.ServiceTypes.serviceType;
+import static org.weakref.jmx.guice.MBeanModule.newExporter;
 
 public class DiscoveryBinder
 {
@@ -77,7 +79,8 @@ public class DiscoveryBinder
     {
         Preconditions.checkNotNull(serviceType, "serviceType is null");
         bindSelector(serviceType);
-        binder.bind(HttpServiceSelector.class).annotatedWith(serviceType).toProvider(new HttpServiceSelectorProvider(serviceType.value()));
+        binder.bind(HttpServiceSelector.class).annotatedWith(serviceType).toProvider(new HttpServiceSelectorProvider(serviceType.value())).in(Scopes.SINGLETON);
+        newExporter(binder).export(HttpServiceSelector.class).annotatedWith(serviceType).withGeneratedName();
     }
 
     static class HttpAnnouncementProvider implements Provider<ServiceAnnouncement>
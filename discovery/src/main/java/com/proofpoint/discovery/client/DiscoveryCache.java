@@ -0,0 +1,338 @@
+package com.proofpoint.discovery.client;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.util.concurrent.CheckedFuture;
+import com.google.inject.Inject;
+import com.proofpoint.log.Logger;
+import com.proofpoint.units.Duration;
+import org.weakref.jmx.Managed;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.proofpoint.discovery.client.DiscoveryAnnouncementClient.DEFAULT_DELAY;
+
+/**
+ * Process-wide cache of the services in the environment. The selectors
+ * created by this factory share a single lookup of all services, which is
+ * refreshed on one schedule and split by type and pool, instead of each
+ * selector refreshing its own type and pool. Selectors for a type and pool
+ * that is already cached are filled from the cache without a lookup.
+ */
+public class DiscoveryCache implements ServiceSelectorFactory
+{
+    private final static Logger log = Logger.get(DiscoveryCache.class);
+
+    private final DiscoveryLookupClient lookupClient;
+    private final DiscoverySnapshot snapshot;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentMap<String, Subscription> subscriptions = new ConcurrentHashMap<String, Subscription>();
+    private final AtomicReference<ServiceDescriptors> serviceDescriptors = new AtomicReference<ServiceDescriptors>();
+    private final AtomicBoolean serverUp = new AtomicBoolean(true);
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final CountDownLatch initialRefresh = new CountDownLatch(1);
+    private volatile long lastRefreshNanos;
+    private volatile boolean stale;
+
+    public DiscoveryCache(DiscoveryLookupClient lookupClient, ScheduledExecutorService executor)
+    {
+        this(lookupClient, DiscoverySnapshot.disabled(), executor);
+    }
+
+    @Inject
+    public DiscoveryCache(DiscoveryLookupClient lookupClient, DiscoverySnapshot snapshot, @ForDiscoveryClient ScheduledExecutorService executor)
+    {
+        Preconditions.checkNotNull(lookupClient, "client is null");
+        Preconditions.checkNotNull(snapshot, "snapshot is null");
+        Preconditions.checkNotNull(executor, "executor is null");
+
+        this.lookupClient = lookupClient;
+        this.snapshot = snapshot;
+        this.executor = executor;
+    }
+
+    @Override
+    public ServiceSelector createServiceSelector(String type, ServiceSelectorConfig selectorConfig)
+    {
+        Preconditions.checkNotNull(type, "type is null");
+        Preconditions.checkNotNull(selectorConfig, "selectorConfig is null");
+
+        String key = type + "/" + selectorConfig.getPool();
+        Subscription subscription = subscriptions.get(key);
+        if (subscription == null) {
+            subscription = new Subscription(type, selectorConfig.getPool());
+            Subscription existing = subscriptions.putIfAbsent(key, subscription);
+            if (existing != null) {
+                subscription = existing;
+            }
+            else {
+                ServiceDescriptors current = serviceDescriptors.get();
+                if (current != null) {
+                    List<ServiceDescriptor> services = select(current.getServiceDescriptors(), subscription);
+                    if (stale) {
+                        subscription.setServiceDescriptors(services);
+                    }
+                    else {
+                        subscription.update(services, lastRefreshNanos);
+                    }
+                }
+            }
+        }
+
+        start();
+        return subscription;
+    }
+
+    @Managed(description = "Number of type and pool combinations cached")
+    public int getSubscriptionCount()
+    {
+        return subscriptions.size();
+    }
+
+    @Managed(description = "True while the cache holds services saved by a previous run and discovery has not yet responded")
+    public boolean isStale()
+    {
+        return stale;
+    }
+
+    @Managed(description = "Seconds since the cache was last refreshed")
+    public double getCacheAgeSeconds()
+    {
+        if (serviceDescriptors.get() == null || stale) {
+            return Double.NaN;
+        }
+        return (System.nanoTime() - lastRefreshNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    @Managed(description = "Number of services and time since the last refresh for each type and pool")
+    public String getSubscriptions()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Duration> entry : getCacheAges().entrySet()) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            Subscription subscription = subscriptions.get(entry.getKey());
+            builder.append(entry.getKey())
+                    .append(' ')
+                    .append(subscription.selectAllServices().size())
+                    .append(" services, age ")
+                    .append(entry.getValue() == null ? "unknown" : entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the time since the services of each type and pool were last
+     * refreshed, or null for those that have never been refreshed.
+     */
+    public Map<String, Duration> getCacheAges()
+    {
+        long now = System.nanoTime();
+        Map<String, Duration> cacheAges = new TreeMap<String, Duration>();
+        for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+            cacheAges.put(entry.getKey(), entry.getValue().getCacheAge(now));
+        }
+        return cacheAges;
+    }
+
+    private void start()
+    {
+        if (started.compareAndSet(false, true)) {
+            Preconditions.checkState(!executor.isShutdown(), "DiscoveryCache has been destroyed");
+
+            // serve the services saved by a previous run while discovery is refreshed in the background
+            ServiceDescriptors savedDescriptors = snapshot.get(null, null);
+            if (savedDescriptors != null) {
+                stale = true;
+                serviceDescriptors.set(savedDescriptors);
+                ImmutableListMultimap<String, ServiceDescriptor> servicesByKey = index(savedDescriptors.getServiceDescriptors());
+                for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+                    entry.getValue().setServiceDescriptors(servicesByKey.get(entry.getKey()));
+                }
+                log.info("Using saved services until discovery responds");
+                initialRefresh.countDown();
+            }
+            refresh();
+        }
+
+        // if discovery is available, get the initial set of servers before returning the first selectors
+        try {
+            initialRefresh.await(30, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void refresh()
+    {
+        final ServiceDescriptors oldDescriptors = this.serviceDescriptors.get();
+
+        final CheckedFuture<ServiceDescriptors, DiscoveryException> future;
+        if (oldDescriptors == null) {
+            future = lookupClient.getAllServices();
+        }
+        else {
+            future = lookupClient.refreshServices(oldDescriptors);
+        }
+
+        future.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Duration delay = DEFAULT_DELAY;
+                try {
+                    ServiceDescriptors newDescriptors = future.checkedGet();
+                    delay = newDescriptors.getMaxAge();
+                    update(oldDescriptors, newDescriptors);
+                    snapshot.put(newDescriptors);
+                    if (serverUp.compareAndSet(false, true)) {
+                        log.info("Discovery server connect succeeded for refresh of all services");
+                    }
+                }
+                catch (DiscoveryException e) {
+                    if (serverUp.compareAndSet(true, false)) {
+                        log.error("Cannot connect to discovery server for refresh of all services: %s", e.getMessage());
+                    }
+                    log.debug(e, "Cannot connect to discovery server for refresh of all services");
+                }
+                finally {
+                    initialRefresh.countDown();
+                    scheduleRefresh(delay);
+                }
+            }
+        }, executor);
+    }
+
+    private void update(ServiceDescriptors oldDescriptors, ServiceDescriptors newDescriptors)
+    {
+        long now = System.nanoTime();
+        lastRefreshNanos = now;
+        serviceDescriptors.set(newDescriptors);
+        stale = false;
+
+        // a not modified response keeps the previous list
+        if (oldDescriptors != null && oldDescriptors.getServiceDescriptors() == newDescriptors.getServiceDescriptors()) {
+            for (Subscription subscription : subscriptions.values()) {
+                subscription.touch(now);
+            }
+            return;
+        }
+
+        ImmutableListMultimap<String, ServiceDescriptor> servicesByKey = index(newDescriptors.getServiceDescriptors());
+        for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+            entry.getValue().update(servicesByKey.get(entry.getKey()), now);
+        }
+    }
+
+    private static ImmutableListMultimap<String, ServiceDescriptor> index(List<ServiceDescriptor> serviceDescriptors)
+    {
+        return Multimaps.index(serviceDescriptors, new Function<ServiceDescriptor, String>()
+        {
+            @Override
+            public String apply(ServiceDescriptor serviceDescriptor)
+            {
+                return serviceDescriptor.getType() + "/" + serviceDescriptor.getPool();
+            }
+        });
+    }
+
+    private static List<ServiceDescriptor> select(List<ServiceDescriptor> serviceDescriptors, ServiceSelector selector)
+    {
+        ImmutableList.Builder<ServiceDescriptor> builder = ImmutableList.builder();
+        for (ServiceDescriptor serviceDescriptor : serviceDescriptors) {
+            if (serviceDescriptor.getType().equals(selector.getType()) && serviceDescriptor.getPool().equals(selector.getPool())) {
+                builder.add(serviceDescriptor);
+            }
+        }
+        return builder.build();
+    }
+
+    private void scheduleRefresh(Duration delay)
+    {
+        // already stopped?  avoids rejection exception
+        if (executor.isShutdown()) {
+            return;
+        }
+        executor.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                refresh();
+            }
+        }, (long) delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static class Subscription implements ServiceSelector
+    {
+        private final String type;
+        private final String pool;
+        private volatile List<ServiceDescriptor> serviceDescriptors = ImmutableList.of();
+        private volatile long refreshNanos;
+        private volatile boolean refreshed;
+
+        private Subscription(String type, String pool)
+        {
+            this.type = type;
+            this.pool = pool;
+        }
+
+        @Override
+        public String getType()
+        {
+            return type;
+        }
+
+        @Override
+        public String getPool()
+        {
+            return pool;
+        }
+
+        @Override
+        public List<ServiceDescriptor> selectAllServices()
+        {
+            return serviceDescriptors;
+        }
+
+        public void setServiceDescriptors(List<ServiceDescriptor> serviceDescriptors)
+        {
+            this.serviceDescriptors = serviceDescriptors;
+        }
+
+        public void update(List<ServiceDescriptor> serviceDescriptors, long now)
+        {
+            this.serviceDescriptors = serviceDescriptors;
+            touch(now);
+        }
+
+        public void touch(long now)
+        {
+            refreshNanos = now;
+            refreshed = true;
+        }
+
+        public Duration getCacheAge(long now)
+        {
+            if (!refreshed) {
+                return null;
+            }
+            return new Duration(now - refreshNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -2,12 +2,22 @@ package com.proofpoint.discovery.client;
 
 import com.proofpoint.configuration.Config;
 import com.proofpoint.configuration.ConfigDescription;
+import com.proofpoint.units.Duration;
+import com.proofpoint.units.MinDuration;
 
+import javax.validation.constraints.NotNull;
 import java.net.URI;
+import java.util.concurrent.TimeUnit;
 
 public class DiscoveryClientConfig
 {
     private URI discoveryServiceURI;
+    private boolean watchEnabled = false;
+    private Duration watchTimeout = new Duration(30, TimeUnit.SECONDS);
+    private boolean multiplexLookups = false;
+    private String snapshotPath;
+    private Duration lookupHedgeDelay;
+    private boolean heartbeatEnabled = false;
 
     @Deprecated
     public URI getDiscoveryServiceURI()
@@ -23,4 +33,85 @@ public class DiscoveryClientConfig
         this.discoveryServiceURI = uri;
         return this;
     }
+
+    public boolean isWatchEnabled()
+    {
+        return watchEnabled;
+    }
+
+    @Config("discovery.watch.enabled")
+    @ConfigDescription("Ask the discovery server to hold service lookups until the services change, instead of polling at the max-age of the response")
+    public DiscoveryClientConfig setWatchEnabled(boolean watchEnabled)
+    {
+        this.watchEnabled = watchEnabled;
+        return this;
+    }
+
+    @NotNull
+    @MinDuration("1s")
+    public Duration getWatchTimeout()
+    {
+        return watchTimeout;
+    }
+
+    @Config("discovery.watch.timeout")
+    @ConfigDescription("Maximum time the discovery server holds a lookup that is waiting for the services to change")
+    public DiscoveryClientConfig setWatchTimeout(Duration watchTimeout)
+    {
+        this.watchTimeout = watchTimeout;
+        return this;
+    }
+
+    public boolean isMultiplexLookups()
+    {
+        return multiplexLookups;
+    }
+
+    @Config("discovery.multiplex-lookups")
+    @ConfigDescription("Refresh all service selectors with a single lookup of every service in the environment")
+    public DiscoveryClientConfig setMultiplexLookups(boolean multiplexLookups)
+    {
+        this.multiplexLookups = multiplexLookups;
+        return this;
+    }
+
+    public String getSnapshotPath()
+    {
+        return snapshotPath;
+    }
+
+    @Config("discovery.snapshot.path")
+    @ConfigDescription("File in which the last services returned by discovery are saved, and from which they are served at startup until discovery responds")
+    public DiscoveryClientConfig setSnapshotPath(String snapshotPath)
+    {
+        this.snapshotPath = snapshotPath;
+        return this;
+    }
+
+    @MinDuration("1ms")
+    public Duration getLookupHedgeDelay()
+    {
+        return lookupHedgeDelay;
+    }
+
+    @Config("discovery.lookup.hedge-delay")
+    @ConfigDescription("Time after which a lookup that has not completed is also sent to another discovery server; not hedged if not set")
+    public DiscoveryClientConfig setLookupHedgeDelay(Duration lookupHedgeDelay)
+    {
+        this.lookupHedgeDelay = lookupHedgeDelay;
+        return this;
+    }
+
+    public boolean isHeartbeatEnabled()
+    {
+        return heartbeatEnabled;
+    }
+
+    @Config("discovery.announcement.heartbeat-enabled")
+    @ConfigDescription("Renew an unchanged announcement with a heartbeat that carries only the node ID and announcement version, instead of announcing every service again")
+    public DiscoveryClientConfig setHeartbeatEnabled(boolean heartbeatEnabled)
+    {
+        this.heartbeatEnabled = heartbeatEnabled;
+        return this;
+    }
 }
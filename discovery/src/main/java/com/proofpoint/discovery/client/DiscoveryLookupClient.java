@@ -8,5 +8,11 @@ public interface DiscoveryLookupClient
 
     CheckedFuture<ServiceDescriptors, DiscoveryException> getServices(String type, String pool);
 
+    /**
+     * Looks up the services of every type and pool. The type and pool of the
+     * returned descriptors are null.
+     */
+    CheckedFuture<ServiceDescriptors, DiscoveryException> getAllServices();
+
     CheckedFuture<ServiceDescriptors, DiscoveryException> refreshServices(ServiceDescriptors serviceDescriptors);
 }
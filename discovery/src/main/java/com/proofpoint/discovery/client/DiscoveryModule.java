@@ -1,14 +1,18 @@
 package com.proofpoint.discovery.client;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Binder;
 import com.google.inject.Module;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.Scopes;
+import com.google.inject.Singleton;
 import com.google.inject.multibindings.Multibinder;
 import org.weakref.jmx.guice.MBeanModule;
 
 import java.net.URI;
+import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 
@@ -29,10 +33,13 @@ public class DiscoveryModule implements Module
         bindConfig(binder).to(DiscoveryClientConfig.class);
 
         // bind discovery client and dependencies
+        binder.bind(DiscoveryServers.class).in(Scopes.SINGLETON);
         binder.bind(DiscoveryLookupClient.class).to(HttpDiscoveryLookupClient.class).in(Scopes.SINGLETON);
         binder.bind(DiscoveryAnnouncementClient.class).to(HttpDiscoveryAnnouncementClient.class).in(Scopes.SINGLETON);
         jsonCodecBinder(binder).bindJsonCodec(ServiceDescriptorsRepresentation.class);
         jsonCodecBinder(binder).bindJsonCodec(Announcement.class);
+        jsonCodecBinder(binder).bindJsonCodec(DiscoverySnapshotRepresentation.class);
+        binder.bind(DiscoverySnapshot.class).in(Scopes.SINGLETON);
 
         // bind the http client
         httpClientBinder(binder).bindAsyncHttpClient("discovery", ForDiscoveryClient.class);
@@ -43,13 +50,30 @@ public class DiscoveryModule implements Module
         // Must create a multibinder for service announcements or construction will fail if no
         // service announcements are bound, which is legal for processes that don't have public services
         Multibinder.newSetBinder(binder, ServiceAnnouncement.class);
+        Multibinder.newSetBinder(binder, LoadReporter.class);
 
-        binder.bind(ServiceSelectorFactory.class).to(CachingServiceSelectorFactory.class).in(Scopes.SINGLETON);
+        // bind the selector factories; the one used is chosen by configuration
+        binder.bind(CachingServiceSelectorFactory.class).in(Scopes.SINGLETON);
+        binder.bind(DiscoveryCache.class).in(Scopes.SINGLETON);
 
         MBeanModule.newExporter(binder).export(ServiceInventory.class).withGeneratedName();
+        MBeanModule.newExporter(binder).export(DiscoveryCache.class).withGeneratedName();
+        MBeanModule.newExporter(binder).export(DiscoveryServers.class).withGeneratedName();
+        MBeanModule.newExporter(binder).export(Announcer.class).withGeneratedName();
     }
 
     @Provides
+    @Singleton
+    public ServiceSelectorFactory getServiceSelectorFactory(DiscoveryClientConfig config, Provider<CachingServiceSelectorFactory> cachingServiceSelectorFactory, Provider<DiscoveryCache> discoveryCache)
+    {
+        if (config.isMultiplexLookups()) {
+            return discoveryCache.get();
+        }
+        return cachingServiceSelectorFactory.get();
+    }
+
+    @Provides
+    @Singleton
     @ForDiscoveryClient
     public ScheduledExecutorService createDiscoveryExecutor()
     {
@@ -60,6 +84,18 @@ public class DiscoveryModule implements Module
     @ForDiscoveryClient
     public URI getDiscoveryUri(ServiceInventory serviceInventory, DiscoveryClientConfig config)
     {
+        List<URI> discoveryUris = getDiscoveryUris(serviceInventory, config);
+        if (discoveryUris.isEmpty()) {
+            return null;
+        }
+        return discoveryUris.get(0);
+    }
+
+    @Provides
+    @ForDiscoveryClient
+    public List<URI> getDiscoveryUris(ServiceInventory serviceInventory, DiscoveryClientConfig config)
+    {
+        ImmutableList.Builder<URI> discoveryUris = ImmutableList.builder();
         Iterable<ServiceDescriptor> discovery = serviceInventory.getServiceDescriptors("discovery");
         for (ServiceDescriptor descriptor : discovery) {
             if (descriptor.getState() != ServiceState.RUNNING) {
@@ -67,17 +103,19 @@ public class DiscoveryModule implements Module
             }
 
             try {
-                return new URI(descriptor.getProperties().get("https"));
+                discoveryUris.add(new URI(descriptor.getProperties().get("https")));
+                continue;
             } catch (Exception e) {
             }
             try {
-                return new URI(descriptor.getProperties().get("http"));
+                discoveryUris.add(new URI(descriptor.getProperties().get("http")));
             } catch (Exception e) {
             }
         }
-        if (config != null) {
-            return config.getDiscoveryServiceURI();
+        List<URI> uris = discoveryUris.build();
+        if (uris.isEmpty() && config != null && config.getDiscoveryServiceURI() != null) {
+            return ImmutableList.of(config.getDiscoveryServiceURI());
         }
-        return null;
+        return uris;
     }
 }
@@ -0,0 +1,89 @@
+package com.proofpoint.discovery.client;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.proofpoint.http.client.RequestCancelledException;
+import com.proofpoint.http.client.Response;
+import com.proofpoint.units.Duration;
+
+import javax.ws.rs.core.HttpHeaders;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.proofpoint.discovery.client.DiscoveryAnnouncementClient.DEFAULT_DELAY;
+
+/**
+ * Handling of discovery server responses shared by the lookup and
+ * announcement clients.
+ */
+final class DiscoveryResponses
+{
+    static final Splitter HEADER_VALUE_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private DiscoveryResponses()
+    {
+    }
+
+    /**
+     * Returns the max-age of the {@code Cache-Control} header of the response,
+     * or the default delay if it has none.
+     */
+    static Duration extractMaxAge(Response response)
+    {
+        // parsed here rather than with CacheControl, which needs a JAX-RS implementation
+        String header = response.getHeader(HttpHeaders.CACHE_CONTROL);
+        if (header != null) {
+            for (String directive : HEADER_VALUE_SPLITTER.split(header)) {
+                if (directive.toLowerCase().startsWith("max-age=")) {
+                    try {
+                        int maxAge = Integer.parseInt(directive.substring("max-age=".length()).replace("\"", ""));
+                        if (maxAge > 0) {
+                            return new Duration(maxAge, TimeUnit.SECONDS);
+                        }
+                    }
+                    catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        return DEFAULT_DELAY;
+    }
+
+    /**
+     * Returns the exception for a response with an unexpected status code.
+     */
+    static DiscoveryException statusException(String message, int statusCode)
+    {
+        if (statusCode >= 500) {
+            return new ServerErrorException(message);
+        }
+        return new DiscoveryException(message);
+    }
+
+    /**
+     * Returns true if the request failed with an I/O error or a server error
+     * response, which another discovery server may not share. Any other
+     * failure would be the same on every server.
+     */
+    static boolean isServerFailure(DiscoveryException exception)
+    {
+        if (exception instanceof ServerErrorException) {
+            return true;
+        }
+        for (Throwable cause : Throwables.getCausalChain(exception)) {
+            if (cause instanceof IOException) {
+                return !(cause instanceof RequestCancelledException);
+            }
+        }
+        return false;
+    }
+
+    private static class ServerErrorException
+            extends DiscoveryException
+    {
+        private ServerErrorException(String message)
+        {
+            super(message);
+        }
+    }
+}
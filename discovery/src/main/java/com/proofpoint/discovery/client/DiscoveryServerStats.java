@@ -0,0 +1,93 @@
+package com.proofpoint.discovery.client;
+
+import com.proofpoint.stats.TimedStat;
+import com.proofpoint.units.Duration;
+import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Requests, failures and latency of the requests sent to one discovery server.
+ */
+public class DiscoveryServerStats
+{
+    private final URI uri;
+    private final TimedStat latency = new TimedStat();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong consecutiveFailures = new AtomicLong();
+    private volatile long lastFailureNanos;
+
+    public DiscoveryServerStats(URI uri)
+    {
+        this.uri = uri;
+    }
+
+    public URI getUri()
+    {
+        return uri;
+    }
+
+    @Managed
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    @Managed
+    public long getFailures()
+    {
+        return failures.get();
+    }
+
+    @Managed
+    public long getConsecutiveFailures()
+    {
+        return consecutiveFailures.get();
+    }
+
+    @Managed
+    @Nested
+    public TimedStat getLatency()
+    {
+        return latency;
+    }
+
+    /**
+     * Returns true if the last request to the server failed within the backoff.
+     */
+    public boolean isFailing(long now, Duration backoff)
+    {
+        return consecutiveFailures.get() > 0 && now - lastFailureNanos < backoff.convertTo(TimeUnit.NANOSECONDS);
+    }
+
+    public void recordSuccess(long latencyNanos)
+    {
+        requests.incrementAndGet();
+        consecutiveFailures.set(0);
+        latency.addValue(latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordFailure()
+    {
+        requests.incrementAndGet();
+        failures.incrementAndGet();
+        consecutiveFailures.incrementAndGet();
+        lastFailureNanos = System.nanoTime();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s requests=%s failures=%s consecutiveFailures=%s latencyMs(mean=%.1f, tp99=%.1f)",
+                uri,
+                getRequests(),
+                getFailures(),
+                getConsecutiveFailures(),
+                latency.getMean(),
+                latency.getTP99());
+    }
+}
@@ -0,0 +1,332 @@
+package com.proofpoint.discovery.client;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.CheckedFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.inject.Inject;
+import com.proofpoint.units.Duration;
+import org.weakref.jmx.Managed;
+
+import javax.inject.Provider;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.proofpoint.discovery.client.DiscoveryFutures.toDiscoveryFuture;
+import static com.proofpoint.discovery.client.DiscoveryResponses.isServerFailure;
+
+/**
+ * The discovery servers of the environment. Requests are spread over the
+ * servers round-robin and fail over to the next server when a server fails
+ * with an I/O error or a server error response. Other failures, such as a
+ * client error response, would be the same on every server and are returned
+ * right away.
+ * Servers whose last request failed recently are tried last. When a hedge
+ * delay is configured, a hedged request that has not completed within the
+ * delay is also sent to the next server, and the first successful response
+ * is used.
+ */
+public class DiscoveryServers
+{
+    // how long a server that failed is tried after the servers that did not
+    private static final Duration FAILURE_BACKOFF = new Duration(10, TimeUnit.SECONDS);
+
+    public interface DiscoveryRequest<T>
+    {
+        CheckedFuture<T, DiscoveryException> send(URI discoveryUri);
+    }
+
+    private final Provider<List<URI>> discoveryUris;
+    private final Duration hedgeDelay;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentMap<URI, DiscoveryServerStats> stats = new ConcurrentHashMap<URI, DiscoveryServerStats>();
+    private final AtomicInteger nextServer = new AtomicInteger();
+    private final AtomicLong failovers = new AtomicLong();
+    private final AtomicLong hedgedRequests = new AtomicLong();
+
+    @Inject
+    public DiscoveryServers(@ForDiscoveryClient Provider<List<URI>> discoveryUris, DiscoveryClientConfig config, @ForDiscoveryClient ScheduledExecutorService executor)
+    {
+        this(discoveryUris, config.getLookupHedgeDelay(), executor);
+    }
+
+    public DiscoveryServers(Provider<List<URI>> discoveryUris, Duration hedgeDelay, ScheduledExecutorService executor)
+    {
+        Preconditions.checkNotNull(discoveryUris, "discoveryUris is null");
+        Preconditions.checkArgument(hedgeDelay == null || executor != null, "executor is null");
+
+        this.discoveryUris = discoveryUris;
+        this.hedgeDelay = hedgeDelay;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the servers of a single discovery URI, which may be null when
+     * no server is available.
+     */
+    public static DiscoveryServers singleServer(final Provider<URI> discoveryUri)
+    {
+        Preconditions.checkNotNull(discoveryUri, "discoveryUri is null");
+        return new DiscoveryServers(new Provider<List<URI>>()
+        {
+            @Override
+            public List<URI> get()
+            {
+                URI uri = discoveryUri.get();
+                if (uri == null) {
+                    return ImmutableList.of();
+                }
+                return ImmutableList.of(uri);
+            }
+        }, (Duration) null, null);
+    }
+
+    @Managed(description = "Requests sent to another discovery server after a server failed")
+    public long getFailovers()
+    {
+        return failovers.get();
+    }
+
+    @Managed(description = "Lookups also sent to another discovery server after the hedge delay")
+    public long getHedgedRequests()
+    {
+        return hedgedRequests.get();
+    }
+
+    @Managed(description = "Requests, failures and latency of each discovery server")
+    public String getServers()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (DiscoveryServerStats serverStats : getServerStats().values()) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(serverStats);
+        }
+        return builder.toString();
+    }
+
+    public Map<URI, DiscoveryServerStats> getServerStats()
+    {
+        return new TreeMap<URI, DiscoveryServerStats>(stats);
+    }
+
+    /**
+     * Sends the request to the discovery servers until one succeeds. Only
+     * idempotent requests should be hedged.
+     */
+    public <T> CheckedFuture<T, DiscoveryException> execute(String name, DiscoveryRequest<T> request, boolean hedged)
+    {
+        Preconditions.checkNotNull(name, "name is null");
+        Preconditions.checkNotNull(request, "request is null");
+
+        List<DiscoveryServerStats> servers = orderServers();
+        if (servers.isEmpty()) {
+            return toDiscoveryFuture(name, DiscoveryServers.<T>immediateFailure(new DiscoveryException("No discovery servers are available")));
+        }
+
+        Execution<T> execution = new Execution<T>(request, servers, hedged && hedgeDelay != null && servers.size() > 1);
+        execution.sendNext();
+        return toDiscoveryFuture(name, execution.getResult());
+    }
+
+    private List<DiscoveryServerStats> orderServers()
+    {
+        List<URI> uris = discoveryUris.get();
+        if (uris == null || uris.isEmpty()) {
+            return ImmutableList.of();
+        }
+
+        // rotate so that requests are spread over the servers, with the failing servers last
+        int start = (nextServer.getAndIncrement() & Integer.MAX_VALUE) % uris.size();
+        long now = System.nanoTime();
+        ImmutableList.Builder<DiscoveryServerStats> working = ImmutableList.builder();
+        ImmutableList.Builder<DiscoveryServerStats> failing = ImmutableList.builder();
+        for (int i = 0; i < uris.size(); i++) {
+            DiscoveryServerStats serverStats = getStats(uris.get((start + i) % uris.size()));
+            if (serverStats.isFailing(now, FAILURE_BACKOFF)) {
+                failing.add(serverStats);
+            }
+            else {
+                working.add(serverStats);
+            }
+        }
+        return working.addAll(failing.build()).build();
+    }
+
+    private DiscoveryServerStats getStats(URI uri)
+    {
+        DiscoveryServerStats serverStats = stats.get(uri);
+        if (serverStats == null) {
+            serverStats = new DiscoveryServerStats(uri);
+            DiscoveryServerStats existing = stats.putIfAbsent(uri, serverStats);
+            if (existing != null) {
+                serverStats = existing;
+            }
+        }
+        return serverStats;
+    }
+
+    private static <T> SettableFuture<T> immediateFailure(Exception exception)
+    {
+        SettableFuture<T> future = SettableFuture.create();
+        future.setException(exception);
+        return future;
+    }
+
+    private class Execution<T>
+    {
+        private final DiscoveryRequest<T> request;
+        private final List<DiscoveryServerStats> servers;
+        private final boolean hedged;
+        private final SettableFuture<T> result = SettableFuture.create();
+        private final List<CheckedFuture<T, DiscoveryException>> attempts = Lists.newArrayList();
+        private int nextServer;
+        private int outstanding;
+        private DiscoveryException lastException;
+
+        private Execution(DiscoveryRequest<T> request, List<DiscoveryServerStats> servers, boolean hedged)
+        {
+            this.request = request;
+            this.servers = servers;
+            this.hedged = hedged;
+
+            result.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (result.isCancelled()) {
+                        cancelAttempts(null);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        public SettableFuture<T> getResult()
+        {
+            return result;
+        }
+
+        public synchronized void sendNext()
+        {
+            if (result.isDone()) {
+                return;
+            }
+            if (nextServer >= servers.size()) {
+                if (outstanding == 0) {
+                    result.setException(lastException);
+                }
+                return;
+            }
+
+            final DiscoveryServerStats server = servers.get(nextServer++);
+            final long start = System.nanoTime();
+            final CheckedFuture<T, DiscoveryException> attempt;
+            try {
+                attempt = request.send(server.getUri());
+            }
+            catch (DiscoveryException e) {
+                if (!isServerFailure(e)) {
+                    fail(e, null);
+                    return;
+                }
+                server.recordFailure();
+                lastException = e;
+                if (nextServer < servers.size()) {
+                    failovers.incrementAndGet();
+                }
+                sendNext();
+                return;
+            }
+            outstanding++;
+            attempts.add(attempt);
+            attempt.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    complete(server, attempt, start);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+
+            if (hedged && nextServer < servers.size() && !attempt.isDone()) {
+                executor.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (!result.isDone() && !attempt.isDone()) {
+                            hedgedRequests.incrementAndGet();
+                            sendNext();
+                        }
+                    }
+                }, (long) hedgeDelay.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void complete(DiscoveryServerStats server, CheckedFuture<T, DiscoveryException> attempt, long start)
+        {
+            if (attempt.isCancelled()) {
+                return;
+            }
+
+            try {
+                T value = attempt.checkedGet();
+                server.recordSuccess(System.nanoTime() - start);
+                // cancel the other attempts before the caller sees the result
+                cancelAttempts(attempt);
+                result.set(value);
+            }
+            catch (DiscoveryException e) {
+                if (!isServerFailure(e)) {
+                    // the server answered, so it is not failing
+                    server.recordSuccess(System.nanoTime() - start);
+                    fail(e, attempt);
+                    return;
+                }
+                server.recordFailure();
+                synchronized (this) {
+                    outstanding--;
+                    lastException = e;
+                    if (result.isDone()) {
+                        return;
+                    }
+                    if (nextServer < servers.size()) {
+                        failovers.incrementAndGet();
+                    }
+                }
+                sendNext();
+            }
+        }
+
+        private void fail(DiscoveryException exception, CheckedFuture<T, DiscoveryException> attempt)
+        {
+            cancelAttempts(attempt);
+            result.setException(exception);
+        }
+
+        private void cancelAttempts(CheckedFuture<T, DiscoveryException> except)
+        {
+            List<CheckedFuture<T, DiscoveryException>> attempts;
+            synchronized (this) {
+                attempts = ImmutableList.copyOf(this.attempts);
+            }
+            for (CheckedFuture<T, DiscoveryException> attempt : attempts) {
+                if (attempt != except) {
+                    attempt.cancel(true);
+                }
+            }
+        }
+    }
+}
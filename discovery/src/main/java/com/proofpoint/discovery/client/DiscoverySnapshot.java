@@ -0,0 +1,184 @@
+package com.proofpoint.discovery.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import com.proofpoint.json.JsonCodec;
+import com.proofpoint.log.Logger;
+import com.proofpoint.node.NodeInfo;
+import com.proofpoint.units.Duration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.proofpoint.json.JsonCodec.jsonCodec;
+
+/**
+ * Local copy of the last services returned by discovery for each type and
+ * pool, so that selectors can start with the services that were available when
+ * the process last ran instead of waiting for discovery. The snapshot is
+ * rewritten atomically each time the services change, and a snapshot written
+ * by another version of the format or for another environment is ignored.
+ */
+public class DiscoverySnapshot
+{
+    public static final int VERSION = 1;
+
+    private static final Logger log = Logger.get(DiscoverySnapshot.class);
+
+    private final File file;
+    private final String environment;
+    private final JsonCodec<DiscoverySnapshotRepresentation> codec;
+    private final Map<List<String>, ServiceDescriptors> entries = new LinkedHashMap<List<String>, ServiceDescriptors>();
+
+    /**
+     * Returns a snapshot that keeps nothing.
+     */
+    public static DiscoverySnapshot disabled()
+    {
+        return new DiscoverySnapshot((File) null, null, jsonCodec(DiscoverySnapshotRepresentation.class));
+    }
+
+    @Inject
+    public DiscoverySnapshot(DiscoveryClientConfig config, NodeInfo nodeInfo, JsonCodec<DiscoverySnapshotRepresentation> codec)
+    {
+        this(config.getSnapshotPath() == null ? null : new File(config.getSnapshotPath()), nodeInfo.getEnvironment(), codec);
+    }
+
+    public DiscoverySnapshot(File file, String environment, JsonCodec<DiscoverySnapshotRepresentation> codec)
+    {
+        Preconditions.checkNotNull(codec, "codec is null");
+        Preconditions.checkArgument(file == null || environment != null, "environment is null");
+
+        this.file = file;
+        this.environment = environment;
+        this.codec = codec;
+
+        if (file != null && file.exists()) {
+            load();
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return file != null;
+    }
+
+    /**
+     * Returns the saved services of the type and pool, or null if none are
+     * saved. A null type and pool return the saved services of every type.
+     */
+    public synchronized ServiceDescriptors get(String type, String pool)
+    {
+        return entries.get(key(type, pool));
+    }
+
+    /**
+     * Saves the services, rewriting the snapshot if they have changed.
+     */
+    public synchronized void put(ServiceDescriptors serviceDescriptors)
+    {
+        Preconditions.checkNotNull(serviceDescriptors, "serviceDescriptors is null");
+        if (file == null) {
+            return;
+        }
+
+        List<String> key = key(serviceDescriptors.getType(), serviceDescriptors.getPool());
+        ServiceDescriptors existing = entries.get(key);
+        if (existing != null &&
+                existing.getServiceDescriptors().equals(serviceDescriptors.getServiceDescriptors()) &&
+                Objects.equal(existing.getETag(), serviceDescriptors.getETag())) {
+            return;
+        }
+
+        entries.put(key, new ServiceDescriptors(serviceDescriptors.getType(),
+                serviceDescriptors.getPool(),
+                serviceDescriptors.getServiceDescriptors(),
+                new Duration(0, TimeUnit.SECONDS),
+                serviceDescriptors.getETag()));
+        write();
+    }
+
+    private void load()
+    {
+        DiscoverySnapshotRepresentation snapshot;
+        try {
+            snapshot = codec.fromJson(Files.toString(file, Charsets.UTF_8));
+        }
+        catch (Exception e) {
+            log.warn("Ignoring discovery snapshot %s that could not be read: %s", file, e.getMessage());
+            return;
+        }
+
+        if (snapshot.getVersion() != VERSION) {
+            log.warn("Ignoring discovery snapshot %s with version %s, expected version %s", file, snapshot.getVersion(), VERSION);
+            return;
+        }
+        if (!environment.equals(snapshot.getEnvironment())) {
+            log.warn("Ignoring discovery snapshot %s for environment %s, expected environment %s", file, snapshot.getEnvironment(), environment);
+            return;
+        }
+
+        for (DiscoverySnapshotRepresentation.Entry entry : snapshot.getEntries()) {
+            try {
+                entries.put(key(entry.getType(), entry.getPool()), new ServiceDescriptors(entry.getType(),
+                        entry.getPool(),
+                        entry.getServiceDescriptors(),
+                        new Duration(0, TimeUnit.SECONDS),
+                        entry.getETag()));
+            }
+            catch (DiscoveryException e) {
+                log.warn("Ignoring invalid entry in discovery snapshot %s: %s", file, e.getMessage());
+            }
+        }
+    }
+
+    private void write()
+    {
+        ImmutableList.Builder<DiscoverySnapshotRepresentation.Entry> snapshotEntries = ImmutableList.builder();
+        for (ServiceDescriptors serviceDescriptors : entries.values()) {
+            snapshotEntries.add(new DiscoverySnapshotRepresentation.Entry(serviceDescriptors.getType(),
+                    serviceDescriptors.getPool(),
+                    serviceDescriptors.getETag(),
+                    serviceDescriptors.getServiceDescriptors()));
+        }
+        String json = codec.toJson(new DiscoverySnapshotRepresentation(VERSION, environment, snapshotEntries.build()));
+
+        // write a temporary file next to the snapshot and rename it, so readers never see a partial snapshot
+        File tempFile = null;
+        try {
+            File directory = file.getAbsoluteFile().getParentFile();
+            Files.createParentDirs(file.getAbsoluteFile());
+            tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+            Files.write(json, tempFile, Charsets.UTF_8);
+            if (!tempFile.renameTo(file)) {
+                // some platforms can not rename over an existing file
+                if (!file.delete() || !tempFile.renameTo(file)) {
+                    throw new IOException("Could not rename " + tempFile + " to " + file);
+                }
+            }
+            tempFile = null;
+        }
+        catch (IOException e) {
+            log.warn("Could not write discovery snapshot %s: %s", file, e.getMessage());
+        }
+        finally {
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static List<String> key(String type, String pool)
+    {
+        return Arrays.asList(type, pool);
+    }
+}
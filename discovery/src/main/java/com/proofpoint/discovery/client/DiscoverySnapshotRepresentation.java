@@ -0,0 +1,91 @@
+package com.proofpoint.discovery.client;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import org.codehaus.jackson.annotate.JsonCreator;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import java.util.List;
+
+public class DiscoverySnapshotRepresentation
+{
+    private final int version;
+    private final String environment;
+    private final List<Entry> entries;
+
+    @JsonCreator
+    public DiscoverySnapshotRepresentation(
+            @JsonProperty("version") int version,
+            @JsonProperty("environment") String environment,
+            @JsonProperty("entries") List<Entry> entries)
+    {
+        Preconditions.checkNotNull(entries, "entries is null");
+        this.version = version;
+        this.environment = environment;
+        this.entries = ImmutableList.copyOf(entries);
+    }
+
+    @JsonProperty
+    public int getVersion()
+    {
+        return version;
+    }
+
+    @JsonProperty
+    public String getEnvironment()
+    {
+        return environment;
+    }
+
+    @JsonProperty
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    public static class Entry
+    {
+        private final String type;
+        private final String pool;
+        private final String eTag;
+        private final List<ServiceDescriptor> serviceDescriptors;
+
+        @JsonCreator
+        public Entry(
+                @JsonProperty("type") String type,
+                @JsonProperty("pool") String pool,
+                @JsonProperty("eTag") String eTag,
+                @JsonProperty("services") List<ServiceDescriptor> serviceDescriptors)
+        {
+            Preconditions.checkNotNull(serviceDescriptors, "serviceDescriptors is null");
+            this.type = type;
+            this.pool = pool;
+            this.eTag = eTag;
+            this.serviceDescriptors = ImmutableList.copyOf(serviceDescriptors);
+        }
+
+        @JsonProperty
+        public String getType()
+        {
+            return type;
+        }
+
+        @JsonProperty
+        public String getPool()
+        {
+            return pool;
+        }
+
+        @JsonProperty("eTag")
+        public String getETag()
+        {
+            return eTag;
+        }
+
+        @JsonProperty("services")
+        public List<ServiceDescriptor> getServiceDescriptors()
+        {
+            return serviceDescriptors;
+        }
+    }
+}
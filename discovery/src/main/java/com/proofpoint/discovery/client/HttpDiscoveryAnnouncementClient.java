@@ -6,6 +6,7 @@ import com.google.common.io.CharStreams;
 import com.google.common.util.concurrent.CheckedFuture;
 import com.google.common.util.concurrent.Futures;
 import com.google.inject.Inject;
+import com.proofpoint.discovery.client.DiscoveryServers.DiscoveryRequest;
 import com.proofpoint.http.client.AsyncHttpClient;
 import com.proofpoint.http.client.Request;
 import com.proofpoint.http.client.Response;
@@ -15,7 +16,6 @@ import com.proofpoint.node.NodeInfo;
 import com.proofpoint.units.Duration;
 
 import javax.inject.Provider;
-import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import java.io.IOException;
@@ -23,32 +23,42 @@ import java.io.InputStreamReader;
 import java.net.URI;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.TimeUnit;
 
+import static com.proofpoint.discovery.client.DiscoveryResponses.extractMaxAge;
+import static com.proofpoint.discovery.client.DiscoveryResponses.statusException;
 import static com.proofpoint.http.client.JsonBodyGenerator.jsonBodyGenerator;
 import static com.proofpoint.http.client.Request.Builder.prepareDelete;
 import static com.proofpoint.http.client.Request.Builder.preparePut;
 
 public class HttpDiscoveryAnnouncementClient implements DiscoveryAnnouncementClient
 {
-    private final Provider<URI> discoveryServiceURI;
+    private final DiscoveryServers discoveryServers;
     private final NodeInfo nodeInfo;
     private final JsonCodec<Announcement> announcementCodec;
     private final AsyncHttpClient httpClient;
+    private volatile String announcementETag;
+
+    public HttpDiscoveryAnnouncementClient(Provider<URI> discoveryServiceURI,
+            NodeInfo nodeInfo,
+            JsonCodec<Announcement> announcementCodec,
+            AsyncHttpClient httpClient)
+    {
+        this(DiscoveryServers.singleServer(discoveryServiceURI), nodeInfo, announcementCodec, httpClient);
+    }
 
     @Inject
-    public HttpDiscoveryAnnouncementClient(@ForDiscoveryClient Provider<URI> discoveryServiceURI,
+    public HttpDiscoveryAnnouncementClient(DiscoveryServers discoveryServers,
             NodeInfo nodeInfo,
             JsonCodec<Announcement> announcementCodec,
             @ForDiscoveryClient AsyncHttpClient httpClient)
     {
-        Preconditions.checkNotNull(discoveryServiceURI, "discoveryServiceURI is null");
+        Preconditions.checkNotNull(discoveryServers, "discoveryServers is null");
         Preconditions.checkNotNull(nodeInfo, "nodeInfo is null");
         Preconditions.checkNotNull(announcementCodec, "announcementCodec is null");
         Preconditions.checkNotNull(httpClient, "httpClient is null");
 
         this.nodeInfo = nodeInfo;
-        this.discoveryServiceURI = discoveryServiceURI;
+        this.discoveryServers = discoveryServers;
         this.announcementCodec = announcementCodec;
         this.httpClient = httpClient;
     }
@@ -58,12 +68,19 @@ public class HttpDiscoveryAnnouncementClient implements DiscoveryAnnouncementCli
     {
         Preconditions.checkNotNull(services, "services is null");
 
-        URI uri = discoveryServiceURI.get();
-        if (uri == null) {
-            return Futures.immediateFailedCheckedFuture(new DiscoveryException("No discovery servers are available"));
-        }
+        final Announcement announcement = new Announcement(nodeInfo.getEnvironment(), nodeInfo.getNodeId(), nodeInfo.getPool(), nodeInfo.getLocation(), services);
+        return discoveryServers.execute("Announcement", new DiscoveryRequest<Duration>()
+        {
+            @Override
+            public CheckedFuture<Duration, DiscoveryException> send(URI discoveryUri)
+            {
+                return announce(discoveryUri, announcement);
+            }
+        }, false);
+    }
 
-        Announcement announcement = new Announcement(nodeInfo.getEnvironment(), nodeInfo.getNodeId(), nodeInfo.getPool(), nodeInfo.getLocation(), services);
+    private CheckedFuture<Duration, DiscoveryException> announce(URI uri, Announcement announcement)
+    {
         Request request = preparePut()
                 .setUri(URI.create(uri + "/v1/announcement/" + nodeInfo.getNodeId()))
                 .setHeader("User-Agent", nodeInfo.getNodeId())
@@ -78,15 +95,66 @@ public class HttpDiscoveryAnnouncementClient implements DiscoveryAnnouncementCli
             {
                 int statusCode = response.getStatusCode();
                 if (!isSuccess(statusCode)) {
-                    throw new DiscoveryException(String.format("Announcement failed with status code %s: %s", statusCode, getBodyForError(response)));
+                    throw statusException(String.format("Announcement failed with status code %s: %s", statusCode, getBodyForError(response)), statusCode);
                 }
 
+                // a server that supports heartbeats identifies the announcement it holds
+                announcementETag = response.getHeader(HttpHeaders.ETAG);
+
                 Duration maxAge = extractMaxAge(response);
                 return maxAge;
             }
         });
     }
 
+    @Override
+    public CheckedFuture<Duration, DiscoveryException> heartbeat()
+    {
+        final String eTag = announcementETag;
+        if (eTag == null) {
+            return Futures.immediateCheckedFuture(null);
+        }
+
+        return discoveryServers.execute("Heartbeat", new DiscoveryRequest<Duration>()
+        {
+            @Override
+            public CheckedFuture<Duration, DiscoveryException> send(URI discoveryUri)
+            {
+                return heartbeat(discoveryUri, eTag);
+            }
+        }, false);
+    }
+
+    private CheckedFuture<Duration, DiscoveryException> heartbeat(URI uri, final String eTag)
+    {
+        Request request = preparePut()
+                .setUri(URI.create(uri + "/v1/announcement/" + nodeInfo.getNodeId() + "/heartbeat"))
+                .setHeader("User-Agent", nodeInfo.getNodeId())
+                .setHeader(HttpHeaders.IF_MATCH, eTag)
+                .build();
+        return httpClient.execute(request, new DiscoveryResponseHandler<Duration>("Heartbeat")
+        {
+            @Override
+            public Duration handle(Request request, Response response)
+                    throws DiscoveryException
+            {
+                int statusCode = response.getStatusCode();
+                if (isSuccess(statusCode)) {
+                    return extractMaxAge(response);
+                }
+
+                // the server does not hold this announcement (it may have restarted) or does not support heartbeats
+                if (statusCode == 404 || statusCode == 405 || statusCode == 409 || statusCode == 412) {
+                    if (eTag.equals(announcementETag)) {
+                        announcementETag = null;
+                    }
+                    return null;
+                }
+                throw statusException(String.format("Heartbeat failed with status code %s: %s", statusCode, getBodyForError(response)), statusCode);
+            }
+        });
+    }
+
     private boolean isSuccess(int statusCode)
     {
         return statusCode / 100 == 2;
@@ -105,11 +173,19 @@ public class HttpDiscoveryAnnouncementClient implements DiscoveryAnnouncementCli
     @Override
     public CheckedFuture<Void, DiscoveryException> unannounce()
     {
-        URI uri = discoveryServiceURI.get();
-        if (uri == null) {
-            return Futures.immediateFailedCheckedFuture(new DiscoveryException("No discovery servers are available"));
-        }
+        announcementETag = null;
+        return discoveryServers.execute("Unannouncement", new DiscoveryRequest<Void>()
+        {
+            @Override
+            public CheckedFuture<Void, DiscoveryException> send(URI discoveryUri)
+            {
+                return unannounce(discoveryUri);
+            }
+        }, false);
+    }
 
+    private CheckedFuture<Void, DiscoveryException> unannounce(URI uri)
+    {
         Request request = prepareDelete()
                 .setUri(URI.create(uri + "/v1/announcement/" + nodeInfo.getNodeId()))
                 .setHeader("User-Agent", nodeInfo.getNodeId())
@@ -117,18 +193,6 @@ public class HttpDiscoveryAnnouncementClient implements DiscoveryAnnouncementCli
         return httpClient.execute(request, new DiscoveryResponseHandler<Void>("Unannouncement"));
     }
 
-    private Duration extractMaxAge(Response response)
-    {
-        String header = response.getHeader(HttpHeaders.CACHE_CONTROL);
-        if (header != null) {
-            CacheControl cacheControl = CacheControl.valueOf(header);
-            if (cacheControl.getMaxAge() > 0) {
-                return new Duration(cacheControl.getMaxAge(), TimeUnit.SECONDS);
-            }
-        }
-        return DEFAULT_DELAY;
-    }
-
     private class DiscoveryResponseHandler<T> implements ResponseHandler<T, DiscoveryException>
     {
         private final String name;
@@ -4,8 +4,8 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.io.CharStreams;
 import com.google.common.util.concurrent.CheckedFuture;
-import com.google.common.util.concurrent.Futures;
 import com.google.inject.Inject;
+import com.proofpoint.discovery.client.DiscoveryServers.DiscoveryRequest;
 import com.proofpoint.http.client.AsyncHttpClient;
 import com.proofpoint.http.client.Request;
 import com.proofpoint.http.client.Request.Builder;
@@ -19,7 +19,6 @@ import org.weakref.jmx.Flatten;
 import org.weakref.jmx.Managed;
 
 import javax.inject.Provider;
-import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.HttpHeaders;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -27,36 +26,64 @@ import java.net.URI;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeUnit;
 
-import static com.proofpoint.discovery.client.DiscoveryAnnouncementClient.DEFAULT_DELAY;
+import static com.proofpoint.discovery.client.DiscoveryResponses.HEADER_VALUE_SPLITTER;
+import static com.proofpoint.discovery.client.DiscoveryResponses.statusException;
 import static com.proofpoint.http.client.Request.Builder.prepareGet;
 import static java.lang.String.format;
 import static javax.ws.rs.core.Response.Status.NOT_MODIFIED;
 import static javax.ws.rs.core.Response.Status.OK;
 
+/**
+ * Looks up services with the discovery server. Refreshes are conditional on
+ * the ETag of the previous lookup. When watching is enabled, each lookup also
+ * asks the server to wait for a change with a {@code Prefer: wait} header
+ * (RFC 7240). A server that honors the preference answers with a
+ * {@code Preference-Applied} header, holding a refresh until the services
+ * change or the wait times out, so the result has a max-age of zero and the
+ * next refresh can be sent immediately. Against a server that does not, the
+ * client keeps polling at the max-age of the response.
+ */
 public class HttpDiscoveryLookupClient implements DiscoveryLookupClient
 {
+    private static final Duration NO_DELAY = new Duration(0, TimeUnit.SECONDS);
+    // time allowed on top of the watch timeout for the server to answer
+    private static final Duration WATCH_RESPONSE_MARGIN = new Duration(10, TimeUnit.SECONDS);
+
     private final String environment;
-    private final Provider<URI> discoveryServiceURI;
+    private final DiscoveryServers discoveryServers;
     private final NodeInfo nodeInfo;
     private final JsonCodec<ServiceDescriptorsRepresentation> serviceDescriptorsCodec;
     private final AsyncHttpClient httpClient;
+    private final Duration watchTimeout;
+
+    public HttpDiscoveryLookupClient(Provider<URI> discoveryServiceURI,
+            NodeInfo nodeInfo,
+            JsonCodec<ServiceDescriptorsRepresentation> serviceDescriptorsCodec,
+            AsyncHttpClient httpClient,
+            DiscoveryClientConfig config)
+    {
+        this(DiscoveryServers.singleServer(discoveryServiceURI), nodeInfo, serviceDescriptorsCodec, httpClient, config);
+    }
 
     @Inject
-    public HttpDiscoveryLookupClient(@ForDiscoveryClient Provider<URI> discoveryServiceURI,
+    public HttpDiscoveryLookupClient(DiscoveryServers discoveryServers,
             NodeInfo nodeInfo,
             JsonCodec<ServiceDescriptorsRepresentation> serviceDescriptorsCodec,
-            @ForDiscoveryClient AsyncHttpClient httpClient)
+            @ForDiscoveryClient AsyncHttpClient httpClient,
+            DiscoveryClientConfig config)
     {
-        Preconditions.checkNotNull(discoveryServiceURI, "discoveryServiceURI is null");
+        Preconditions.checkNotNull(discoveryServers, "discoveryServers is null");
         Preconditions.checkNotNull(nodeInfo, "nodeInfo is null");
         Preconditions.checkNotNull(serviceDescriptorsCodec, "serviceDescriptorsCodec is null");
         Preconditions.checkNotNull(httpClient, "httpClient is null");
+        Preconditions.checkNotNull(config, "config is null");
 
         this.nodeInfo = nodeInfo;
         this.environment = nodeInfo.getEnvironment();
-        this.discoveryServiceURI = discoveryServiceURI;
+        this.discoveryServers = discoveryServers;
         this.serviceDescriptorsCodec = serviceDescriptorsCodec;
         this.httpClient = httpClient;
+        this.watchTimeout = config.isWatchEnabled() ? config.getWatchTimeout() : null;
     }
 
     @Flatten
@@ -81,6 +108,12 @@ public class HttpDiscoveryLookupClient implements DiscoveryLookupClient
         return lookup(type, pool, null);
     }
 
+    @Override
+    public CheckedFuture<ServiceDescriptors, DiscoveryException> getAllServices()
+    {
+        return lookup(null, null, null);
+    }
+
     @Override
     public CheckedFuture<ServiceDescriptors, DiscoveryException> refreshServices(ServiceDescriptors serviceDescriptors)
     {
@@ -90,25 +123,42 @@ public class HttpDiscoveryLookupClient implements DiscoveryLookupClient
 
     private CheckedFuture<ServiceDescriptors, DiscoveryException> lookup(final String type, final String pool, final ServiceDescriptors serviceDescriptors)
     {
-        Preconditions.checkNotNull(type, "type is null");
+        final String name = type == null ? "all services" : type;
+        // a watch is held by the server until the services change, so hedging it would only hold a second one
+        boolean hedged = watchTimeout == null || serviceDescriptors == null;
+        return discoveryServers.execute(format("Lookup of %s", name), new DiscoveryRequest<ServiceDescriptors>()
+        {
+            @Override
+            public CheckedFuture<ServiceDescriptors, DiscoveryException> send(URI discoveryUri)
+            {
+                return lookup(discoveryUri, name, type, pool, serviceDescriptors);
+            }
+        }, hedged);
+    }
 
-        URI uri = discoveryServiceURI.get();
-        if (uri == null) {
-            return Futures.immediateFailedCheckedFuture(new DiscoveryException("No discovery servers are available"));
+    private CheckedFuture<ServiceDescriptors, DiscoveryException> lookup(URI uri, final String name, final String type, final String pool, final ServiceDescriptors serviceDescriptors)
+    {
+        if (type == null) {
+            uri = URI.create(uri + "/v1/service");
         }
-
-        uri = URI.create(uri + "/v1/service/" + type + "/");
-        if (pool != null) {
-            uri = uri.resolve(pool);
+        else {
+            uri = URI.create(uri + "/v1/service/" + type + "/");
+            if (pool != null) {
+                uri = uri.resolve(pool);
+            }
         }
 
         Builder requestBuilder = prepareGet()
                 .setUri(uri)
                 .setHeader("User-Agent", nodeInfo.getNodeId());
         if (serviceDescriptors != null && serviceDescriptors.getETag() != null) {
-            requestBuilder.setHeader(HttpHeaders.ETAG, serviceDescriptors.getETag());
+            requestBuilder.setHeader(HttpHeaders.IF_NONE_MATCH, serviceDescriptors.getETag());
         }
-        return httpClient.execute(requestBuilder.build(), new DiscoveryResponseHandler<ServiceDescriptors>(format("Lookup of %s", type))
+        if (watchTimeout != null) {
+            requestBuilder.setHeader("Prefer", "wait=" + (long) watchTimeout.convertTo(TimeUnit.SECONDS))
+                    .setTimeout(new Duration(watchTimeout.toMillis() + WATCH_RESPONSE_MARGIN.toMillis(), TimeUnit.MILLISECONDS));
+        }
+        return httpClient.execute(requestBuilder.build(), new DiscoveryResponseHandler<ServiceDescriptors>(format("Lookup of %s", name))
         {
             @Override
             public ServiceDescriptors handle(Request request, Response response)
@@ -117,11 +167,14 @@ public class HttpDiscoveryLookupClient implements DiscoveryLookupClient
                 String eTag = response.getHeader(HttpHeaders.ETAG);
 
                 if (NOT_MODIFIED.getStatusCode() == response.getStatusCode() && serviceDescriptors != null) {
+                    if (eTag == null) {
+                        eTag = serviceDescriptors.getETag();
+                    }
                     return new ServiceDescriptors(serviceDescriptors, maxAge, eTag);
                 }
 
                 if (OK.getStatusCode() != response.getStatusCode()) {
-                    throw new DiscoveryException(format("Lookup of %s failed with status code %s", type, response.getStatusCode()));
+                    throw statusException(format("Lookup of %s failed with status code %s", name, response.getStatusCode()), response.getStatusCode());
                 }
 
 
@@ -130,7 +183,7 @@ public class HttpDiscoveryLookupClient implements DiscoveryLookupClient
                     json = CharStreams.toString(new InputStreamReader(response.getInputStream(), Charsets.UTF_8));
                 }
                 catch (IOException e) {
-                    throw new DiscoveryException(format("Lookup of %s failed", type), e);
+                    throw new DiscoveryException(format("Lookup of %s failed", name), e);
                 }
 
                 ServiceDescriptorsRepresentation serviceDescriptorsRepresentation = serviceDescriptorsCodec.fromJson(json);
@@ -150,14 +203,25 @@ public class HttpDiscoveryLookupClient implements DiscoveryLookupClient
 
     private Duration extractMaxAge(Response response)
     {
-        String header = response.getHeader(HttpHeaders.CACHE_CONTROL);
-        if (header != null) {
-            CacheControl cacheControl = CacheControl.valueOf(header);
-            if (cacheControl.getMaxAge() > 0) {
-                return new Duration(cacheControl.getMaxAge(), TimeUnit.SECONDS);
+        if (watchTimeout != null && isWaitApplied(response)) {
+            // the server holds the next lookup until the services change
+            return NO_DELAY;
+        }
+        return DiscoveryResponses.extractMaxAge(response);
+    }
+
+    private static boolean isWaitApplied(Response response)
+    {
+        String header = response.getHeader("Preference-Applied");
+        if (header == null) {
+            return false;
+        }
+        for (String preference : HEADER_VALUE_SPLITTER.split(header)) {
+            if (preference.toLowerCase().startsWith("wait")) {
+                return true;
             }
         }
-        return DEFAULT_DELAY;
+        return false;
     }
 
     private class DiscoveryResponseHandler<T> implements ResponseHandler<T, DiscoveryException>
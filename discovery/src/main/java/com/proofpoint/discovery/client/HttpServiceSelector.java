@@ -1,11 +1,23 @@
 package com.proofpoint.discovery.client;
 
+import com.proofpoint.http.client.ServiceUriSelector;
+
 import java.net.URI;
 import java.util.List;
 
-public interface HttpServiceSelector
+public interface HttpServiceSelector extends ServiceUriSelector
 {
     String getType();
     String getPool();
+
+    /**
+     * Returns the https URIs of all services followed by their http URIs.
+     */
     List<URI> selectHttpService();
+
+    /**
+     * Returns the URI of a single service, favoring https, or null if no
+     * service is available. Repeated calls spread the load over the services.
+     */
+    URI selectOne();
 }
@@ -1,22 +1,73 @@
 package com.proofpoint.discovery.client;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import com.proofpoint.node.NodeInfo;
+import org.weakref.jmx.Managed;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.AbstractList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Selects the http and https URIs of the services returned by a
+ * {@link ServiceSelector}. The URIs are parsed once for each list of services
+ * the selector returns, and selections rotate through them round-robin.
+ * Instance selections contain only the https URI of a service that has one.
+ * <p/>
+ * When locality is preferred, the services whose location shares the most
+ * leading path segments with the location of this node are selected first.
+ * Services further away are added to the preferred services, closest first,
+ * until at least the configured number of running services are preferred.
+ * <p/>
+ * Services of draining nodes are not selected. Services that announce their
+ * load are selected less often the higher their load, down to a tenth as often
+ * as an idle service.
+ */
 public class HttpServiceSelectorImpl implements HttpServiceSelector
 {
+    private static final Splitter LOCATION_SPLITTER = Splitter.on('/').omitEmptyStrings();
+    private static final int MAX_WEIGHT = 10;
+
     private final ServiceSelector serviceSelector;
+    private final List<String> location;
+    private final int minLocalServices;
+    private final AtomicInteger nextIndex = new AtomicInteger(new Random().nextInt(Integer.MAX_VALUE));
+    private final AtomicLong localSelections = new AtomicLong();
+    private final AtomicLong remoteSelections = new AtomicLong();
+    private volatile ServiceUris serviceUris = new ServiceUris(null, null, 0);
 
     public HttpServiceSelectorImpl(ServiceSelector serviceSelector)
+    {
+        this(serviceSelector, new ServiceSelectorConfig(), null);
+    }
+
+    public HttpServiceSelectorImpl(ServiceSelector serviceSelector, ServiceSelectorConfig selectorConfig, NodeInfo nodeInfo)
     {
         Preconditions.checkNotNull(serviceSelector, "serviceSelector is null");
+        Preconditions.checkNotNull(selectorConfig, "selectorConfig is null");
+        Preconditions.checkArgument(!selectorConfig.isPreferLocal() || nodeInfo != null, "nodeInfo is null");
+
         this.serviceSelector = serviceSelector;
+        if (selectorConfig.isPreferLocal()) {
+            this.location = ImmutableList.copyOf(LOCATION_SPLITTER.split(nodeInfo.getLocation()));
+        }
+        else {
+            this.location = null;
+        }
+        this.minLocalServices = selectorConfig.getMinLocalServices();
     }
 
     @Override
@@ -34,38 +85,393 @@ public class HttpServiceSelectorImpl implements HttpServiceSelector
     @Override
     public List<URI> selectHttpService()
     {
-        List<ServiceDescriptor> serviceDescriptors = Lists.newArrayList(serviceSelector.selectAllServices());
-        if (serviceDescriptors.isEmpty()) {
+        ServiceUris serviceUris = getServiceUris();
+        if (serviceUris.isEmpty()) {
             return ImmutableList.of();
         }
+        recordSelection(serviceUris.isLocalSelected());
+        return serviceUris.rotate(nextIndex.getAndIncrement() & Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<URI> selectInstanceUris()
+    {
+        ServiceUris serviceUris = getServiceUris();
+        if (serviceUris.isEmpty()) {
+            return ImmutableList.of();
+        }
+        recordSelection(serviceUris.isLocalSelected());
+        return serviceUris.rotateInstances(nextIndex.getAndIncrement() & Integer.MAX_VALUE);
+    }
+
+    @Override
+    public URI selectOne()
+    {
+        ServiceUris serviceUris = getServiceUris();
+        URI uri = serviceUris.select(nextIndex.getAndIncrement() & Integer.MAX_VALUE);
+        if (uri != null) {
+            recordSelection(serviceUris.isLocalSelected());
+        }
+        return uri;
+    }
+
+    @Managed(description = "Selections of a service preferred for its locality")
+    public long getLocalSelections()
+    {
+        return localSelections.get();
+    }
+
+    @Managed(description = "Selections of a service not preferred for its locality")
+    public long getRemoteSelections()
+    {
+        return remoteSelections.get();
+    }
+
+    @Managed(description = "Fraction of selections of a service preferred for its locality, or NaN if locality is not preferred")
+    public double getLocalityHitRatio()
+    {
+        long local = localSelections.get();
+        long total = local + remoteSelections.get();
+        if (total == 0) {
+            return Double.NaN;
+        }
+        return local / (double) total;
+    }
+
+    private void recordSelection(boolean local)
+    {
+        if (location == null) {
+            return;
+        }
+        if (local) {
+            localSelections.incrementAndGet();
+        }
+        else {
+            remoteSelections.incrementAndGet();
+        }
+    }
+
+    private ServiceUris getServiceUris()
+    {
+        // selectors return the same list until the services change
+        List<ServiceDescriptor> serviceDescriptors = serviceSelector.selectAllServices();
+        ServiceUris serviceUris = this.serviceUris;
+        if (serviceUris.getServiceDescriptors() != serviceDescriptors) {
+            serviceUris = new ServiceUris(serviceDescriptors, location, minLocalServices);
+            this.serviceUris = serviceUris;
+        }
+        return serviceUris;
+    }
+
+    /**
+     * Returns the number of leading path segments the service location shares
+     * with the location.
+     */
+    private static int getAffinity(List<String> location, String serviceLocation)
+    {
+        if (serviceLocation == null) {
+            return 0;
+        }
+        int affinity = 0;
+        Iterator<String> segments = LOCATION_SPLITTER.split(serviceLocation).iterator();
+        while (affinity < location.size() && segments.hasNext() && location.get(affinity).equals(segments.next())) {
+            affinity++;
+        }
+        return affinity;
+    }
+
+    private static class ServiceUris
+    {
+        private final List<ServiceDescriptor> serviceDescriptors;
+        // https before http, and when locality is preferred, local before remote
+        private final URI[][] groups;
+        // the order in which the URIs of each group are selected, weighted by load
+        private final int[][] schedules;
+        // the same groups, without the http URIs of services that have an https URI
+        private final URI[][] instanceGroups;
+        private final int[][] instanceSchedules;
+        private final int localGroups;
+
+        private ServiceUris(List<ServiceDescriptor> allServiceDescriptors, List<String> location, int minLocalServices)
+        {
+            this.serviceDescriptors = allServiceDescriptors;
+            if (allServiceDescriptors == null) {
+                groups = new URI[0][];
+                schedules = new int[0][];
+                instanceGroups = new URI[0][];
+                instanceSchedules = new int[0][];
+                localGroups = 0;
+                return;
+            }
+
+            List<ServiceDescriptor> serviceDescriptors = Lists.newArrayList();
+            for (ServiceDescriptor serviceDescriptor : allServiceDescriptors) {
+                if (!ServiceHealth.isDraining(serviceDescriptor)) {
+                    serviceDescriptors.add(serviceDescriptor);
+                }
+            }
+
+            if (location == null) {
+                groups = new URI[2][];
+                schedules = new int[2][];
+                instanceGroups = new URI[2][];
+                instanceSchedules = new int[2][];
+                setGroups(0, serviceDescriptors);
+                localGroups = 0;
+                return;
+            }
+
+            int[] affinities = new int[serviceDescriptors.size()];
+            int[] runningByAffinity = new int[location.size() + 1];
+            for (int i = 0; i < affinities.length; i++) {
+                ServiceDescriptor serviceDescriptor = serviceDescriptors.get(i);
+                affinities[i] = getAffinity(location, serviceDescriptor.getLocation());
+                if (serviceDescriptor.getState() != ServiceState.STOPPED) {
+                    runningByAffinity[affinities[i]]++;
+                }
+            }
+
+            // widen the local services, closest first, until there are enough running services
+            int minAffinity = location.size();
+            int running = runningByAffinity[minAffinity];
+            while (running < minLocalServices && minAffinity > 0) {
+                minAffinity--;
+                running += runningByAffinity[minAffinity];
+            }
+
+            List<ServiceDescriptor> local = Lists.newArrayList();
+            List<ServiceDescriptor> remote = Lists.newArrayList();
+            for (int i = 0; i < affinities.length; i++) {
+                if (affinities[i] >= minAffinity) {
+                    local.add(serviceDescriptors.get(i));
+                }
+                else {
+                    remote.add(serviceDescriptors.get(i));
+                }
+            }
+            groups = new URI[4][];
+            schedules = new int[4][];
+            instanceGroups = new URI[4][];
+            instanceSchedules = new int[4][];
+            setGroups(0, local);
+            setGroups(2, remote);
+            localGroups = 2;
+        }
+
+        /**
+         * Sets the https group at the index and the http group after it.
+         */
+        private void setGroups(int group, List<ServiceDescriptor> serviceDescriptors)
+        {
+            // processes sharing the same services should not rotate through them in the same order
+            List<ServiceDescriptor> shuffled = Lists.newArrayList(serviceDescriptors);
+            Collections.shuffle(shuffled);
 
-        // favor https over http
-        List<URI> httpsUri = Lists.newArrayList();
-        for (ServiceDescriptor serviceDescriptor : serviceDescriptors) {
-            String https = serviceDescriptor.getProperties().get("https");
-            if (https != null) {
-                try {
-                    httpsUri.add(new URI(https));
+            List<URI> httpsUris = Lists.newArrayList();
+            List<Integer> httpsWeights = Lists.newArrayList();
+            List<URI> httpUris = Lists.newArrayList();
+            List<Integer> httpWeights = Lists.newArrayList();
+            List<URI> httpOnlyUris = Lists.newArrayList();
+            List<Integer> httpOnlyWeights = Lists.newArrayList();
+            for (ServiceDescriptor serviceDescriptor : shuffled) {
+                int weight = getWeight(serviceDescriptor);
+                URI httpsUri = getUri(serviceDescriptor, "https");
+                if (httpsUri != null) {
+                    httpsUris.add(httpsUri);
+                    httpsWeights.add(weight);
                 }
-                catch (URISyntaxException ignored) {
+                URI httpUri = getUri(serviceDescriptor, "http");
+                if (httpUri != null) {
+                    httpUris.add(httpUri);
+                    httpWeights.add(weight);
+                    if (httpsUri == null) {
+                        httpOnlyUris.add(httpUri);
+                        httpOnlyWeights.add(weight);
+                    }
                 }
             }
+
+            groups[group] = httpsUris.toArray(new URI[httpsUris.size()]);
+            schedules[group] = getSchedule(Ints.toArray(httpsWeights));
+            groups[group + 1] = httpUris.toArray(new URI[httpUris.size()]);
+            schedules[group + 1] = getSchedule(Ints.toArray(httpWeights));
+            instanceGroups[group] = groups[group];
+            instanceSchedules[group] = schedules[group];
+            instanceGroups[group + 1] = httpOnlyUris.toArray(new URI[httpOnlyUris.size()]);
+            instanceSchedules[group + 1] = getSchedule(Ints.toArray(httpOnlyWeights));
+        }
+
+        private static URI getUri(ServiceDescriptor serviceDescriptor, String scheme)
+        {
+            String uri = serviceDescriptor.getProperties().get(scheme);
+            if (uri == null) {
+                return null;
+            }
+            try {
+                return new URI(uri);
+            }
+            catch (URISyntaxException ignored) {
+                return null;
+            }
+        }
+
+        private static int getWeight(ServiceDescriptor serviceDescriptor)
+        {
+            double load = ServiceHealth.getLoad(serviceDescriptor);
+            if (Double.isNaN(load)) {
+                return MAX_WEIGHT;
+            }
+            return Math.max(1, (int) Math.round(MAX_WEIGHT * (1 - load)));
         }
-        List<URI> httpUri = Lists.newArrayList();
-        for (ServiceDescriptor serviceDescriptor : serviceDescriptors) {
-            String http = serviceDescriptor.getProperties().get("http");
-            if (http != null) {
-                try {
-                    httpUri.add(new URI(http));
+
+        /**
+         * Returns the indexes of the weights in the order they are selected.
+         * Each index appears as many times as its weight, spread evenly over
+         * the schedule.
+         */
+        private static int[] getSchedule(final int[] weights)
+        {
+            boolean weighted = false;
+            int total = 0;
+            for (int weight : weights) {
+                weighted |= weight != weights[0];
+                total += weight;
+            }
+            if (!weighted) {
+                int[] schedule = new int[weights.length];
+                for (int i = 0; i < schedule.length; i++) {
+                    schedule[i] = i;
+                }
+                return schedule;
+            }
+
+            // the k-th selection of an index is due at (k + 0.5) / weight
+            final int[] selections = new int[weights.length];
+            PriorityQueue<Integer> queue = new PriorityQueue<Integer>(weights.length, new Comparator<Integer>()
+            {
+                @Override
+                public int compare(Integer left, Integer right)
+                {
+                    return Double.compare((selections[left] + 0.5) / weights[left], (selections[right] + 0.5) / weights[right]);
                 }
-                catch (URISyntaxException ignored) {
+            });
+            for (int i = 0; i < weights.length; i++) {
+                queue.add(i);
+            }
+
+            int[] schedule = new int[total];
+            for (int i = 0; i < total; i++) {
+                int index = queue.poll();
+                schedule[i] = index;
+                selections[index]++;
+                if (selections[index] < weights[index]) {
+                    queue.add(index);
                 }
             }
+            return schedule;
         }
 
-        // return random(https) + random(http)
-        Collections.shuffle(httpsUri);
-        Collections.shuffle(httpUri);
-        return ImmutableList.<URI>builder().addAll(httpsUri).addAll(httpUri).build();
+        public List<ServiceDescriptor> getServiceDescriptors()
+        {
+            return serviceDescriptors;
+        }
+
+        public boolean isEmpty()
+        {
+            for (URI[] group : groups) {
+                if (group.length > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if the selected URIs are preferred for their locality.
+         */
+        public boolean isLocalSelected()
+        {
+            for (int i = 0; i < localGroups; i++) {
+                if (groups[i].length > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the URI at the index in the first group that is not empty,
+         * or null if there are no URIs.
+         */
+        public URI select(int index)
+        {
+            for (int i = 0; i < groups.length; i++) {
+                if (groups[i].length > 0) {
+                    return groups[i][schedules[i][index % schedules[i].length]];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the URIs of all groups in order, each starting at the index.
+         */
+        public List<URI> rotate(int index)
+        {
+            return new RotatedUris(groups, schedules, index);
+        }
+
+        /**
+         * Returns one URI for each service, https first, each group starting
+         * at the index.
+         */
+        public List<URI> rotateInstances(int index)
+        {
+            return new RotatedUris(instanceGroups, instanceSchedules, index);
+        }
+    }
+
+    private static class RotatedUris
+            extends AbstractList<URI>
+            implements RandomAccess
+    {
+        private final URI[][] groups;
+        // the position of the first URI of each group
+        private final int[] starts;
+        private final int size;
+
+        private RotatedUris(URI[][] groups, int[][] schedules, int offset)
+        {
+            this.groups = groups;
+            this.starts = new int[groups.length];
+            int size = 0;
+            for (int i = 0; i < groups.length; i++) {
+                if (groups[i].length > 0) {
+                    starts[i] = schedules[i][offset % schedules[i].length];
+                }
+                size += groups[i].length;
+            }
+            this.size = size;
+        }
+
+        @Override
+        public URI get(int index)
+        {
+            Preconditions.checkElementIndex(index, size);
+            for (int i = 0; i < groups.length; i++) {
+                URI[] group = groups[i];
+                if (index < group.length) {
+                    return group[(starts[i] + index) % group.length];
+                }
+                index -= group.length;
+            }
+            throw new AssertionError();
+        }
+
+        @Override
+        public int size()
+        {
+            return size;
+        }
     }
 }
@@ -5,6 +5,7 @@ import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.Key;
 import com.google.inject.Provider;
+import com.proofpoint.node.NodeInfo;
 
 import static com.proofpoint.discovery.client.ServiceTypes.serviceType;
 
@@ -31,8 +32,13 @@ class HttpServiceSelectorProvider
         Preconditions.checkNotNull(injector, "injector is null");
 
         ServiceSelector serviceSelector = injector.getInstance(Key.get(ServiceSelector.class, serviceType(type)));
+        ServiceSelectorConfig selectorConfig = injector.getInstance(Key.get(ServiceSelectorConfig.class, serviceType(type)));
+        NodeInfo nodeInfo = null;
+        if (selectorConfig.isPreferLocal()) {
+            nodeInfo = injector.getInstance(NodeInfo.class);
+        }
 
-        HttpServiceSelector httpServiceSelector = new HttpServiceSelectorImpl(serviceSelector);
+        HttpServiceSelector httpServiceSelector = new HttpServiceSelectorImpl(serviceSelector, selectorConfig, nodeInfo);
         return httpServiceSelector;
     }
 
@@ -0,0 +1,15 @@
+package com.proofpoint.discovery.client;
+
+/**
+ * Reports the load of this node. The {@link Announcer} announces the highest
+ * load reported with every service of the node, and service selectors send
+ * less work to services with a higher load.
+ */
+public interface LoadReporter
+{
+    /**
+     * Returns the load of this node, from 0 when it is idle to 1 when it can
+     * not take more work.
+     */
+    double getLoad();
+}
@@ -2,6 +2,7 @@ package com.proofpoint.discovery.client;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import org.codehaus.jackson.annotate.JsonProperty;
 
 import java.util.Map;
@@ -9,15 +10,17 @@ import java.util.UUID;
 
 public class ServiceAnnouncement
 {
-    private final UUID id = UUID.randomUUID();
+    private final UUID id;
     private final String type;
     private final Map<String, String> properties;
 
-    private ServiceAnnouncement(String type, Map<String, String> properties)
+    private ServiceAnnouncement(UUID id, String type, Map<String, String> properties)
     {
+        Preconditions.checkNotNull(id, "id is null");
         Preconditions.checkNotNull(type, "type is null");
         Preconditions.checkNotNull(properties, "properties is null");
 
+        this.id = id;
         this.type = type;
         this.properties = ImmutableMap.copyOf(properties);
     }
@@ -40,6 +43,17 @@ public class ServiceAnnouncement
         return properties;
     }
 
+    /**
+     * Returns this announcement with the properties added, replacing
+     * properties with the same names.
+     */
+    ServiceAnnouncement withProperties(Map<String, String> properties)
+    {
+        Map<String, String> merged = Maps.newHashMap(this.properties);
+        merged.putAll(properties);
+        return new ServiceAnnouncement(id, type, merged);
+    }
+
     @Override
     public boolean equals(Object o)
     {
@@ -110,7 +124,7 @@ public class ServiceAnnouncement
 
         public ServiceAnnouncement build()
         {
-            return new ServiceAnnouncement(type, properties.build());
+            return new ServiceAnnouncement(UUID.randomUUID(), type, properties.build());
         }
     }
 }
@@ -34,9 +34,9 @@ public class ServiceDescriptors
             Duration maxAge,
             String eTag)
     {
-        Preconditions.checkNotNull(type, "type is null");
         Preconditions.checkNotNull(serviceDescriptors, "serviceDescriptors is null");
         Preconditions.checkNotNull(maxAge, "maxAge is null");
+        Preconditions.checkArgument(type != null || pool == null, "pool must be null when type is null");
 
         this.type = type;
         this.pool = pool;
@@ -44,9 +44,9 @@ public class ServiceDescriptors
         this.maxAge = maxAge;
         this.eTag = eTag;
 
-        // verify service descriptors match expected type
+        // verify service descriptors match expected type; a null type holds the services of every type
         for (ServiceDescriptor serviceDescriptor : this.serviceDescriptors) {
-            if (!type.equals(serviceDescriptor.getType()) || (pool != null && !pool.equals(serviceDescriptor.getPool()))) {
+            if ((type != null && !type.equals(serviceDescriptor.getType())) || (pool != null && !pool.equals(serviceDescriptor.getPool()))) {
                 throw new DiscoveryException(format("Expected %s service descriptor from pool %s, but was %s service descriptor from pool %s",
                         type,
                         pool,
@@ -0,0 +1,49 @@
+package com.proofpoint.discovery.client;
+
+/**
+ * The load and draining state a node announces as properties of its
+ * services.
+ */
+public final class ServiceHealth
+{
+    public static final String LOAD_PROPERTY = "load";
+    public static final String DRAINING_PROPERTY = "draining";
+
+    private ServiceHealth()
+    {
+    }
+
+    /**
+     * Returns the announced load of the service, from 0 when idle to 1 when
+     * it can not take more work, or NaN if the service did not announce a
+     * load.
+     */
+    public static double getLoad(ServiceDescriptor serviceDescriptor)
+    {
+        String load = serviceDescriptor.getProperties().get(LOAD_PROPERTY);
+        if (load == null) {
+            return Double.NaN;
+        }
+        try {
+            return Math.max(0, Math.min(1, Double.parseDouble(load)));
+        }
+        catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Returns true if the node of the service is draining and should not be
+     * sent new work.
+     */
+    public static boolean isDraining(ServiceDescriptor serviceDescriptor)
+    {
+        return Boolean.parseBoolean(serviceDescriptor.getProperties().get(DRAINING_PROPERTY));
+    }
+
+    static String formatLoad(double load)
+    {
+        // one decimal, so small changes in load do not change the announcement
+        return String.valueOf(Math.round(Math.max(0, Math.min(1, load)) * 10) / 10.0);
+    }
+}
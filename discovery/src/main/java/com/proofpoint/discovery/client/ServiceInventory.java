@@ -1,15 +1,21 @@
 package com.proofpoint.discovery.client;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.proofpoint.http.client.HttpClient;
+import com.proofpoint.http.client.Request;
 import com.proofpoint.http.client.Request.Builder;
+import com.proofpoint.http.client.Response;
+import com.proofpoint.http.client.ResponseHandler;
 import com.proofpoint.json.JsonCodec;
 import com.proofpoint.log.Logger;
 import com.proofpoint.node.NodeInfo;
@@ -19,6 +25,8 @@ import org.weakref.jmx.Managed;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
 import java.net.URI;
 import java.util.Collections;
 import java.util.List;
@@ -29,14 +37,22 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.common.collect.Lists.newArrayList;
-import static com.proofpoint.http.client.JsonResponseHandler.createJsonResponseHandler;
 import static com.proofpoint.http.client.Request.Builder.prepareGet;
 import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 
+/**
+ * Static inventory of services loaded from a http, https or file URI. The
+ * inventory is indexed by type and by type and pool each time it changes, and
+ * is only parsed again when the server's {@code ETag}, or the file's modified
+ * time and contents, change.
+ */
 public class ServiceInventory
 {
     private static final Logger log = Logger.get(ServiceInventory.class);
 
+    // checking the modified time of a file is cheap, so file inventories are checked more often
+    private static final Duration FILE_CHECK_INTERVAL = new Duration(1, TimeUnit.SECONDS);
+
     private final String environment;
     private final URI serviceInventoryUri;
     private final Duration updateInterval;
@@ -44,11 +60,18 @@ public class ServiceInventory
     private final JsonCodec<ServiceDescriptorsRepresentation> serviceDescriptorsCodec;
     private final HttpClient httpClient;
 
-    private final AtomicReference<List<ServiceDescriptor>> serviceDescriptors = new AtomicReference<List<ServiceDescriptor>>(ImmutableList.<ServiceDescriptor>of());
+    private final AtomicReference<Inventory> inventory = new AtomicReference<Inventory>(new Inventory(ImmutableList.<ServiceDescriptor>of()));
     private final ScheduledExecutorService executorService = newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("service-inventory-%s").setDaemon(true).build());
     private final AtomicBoolean serverUp = new AtomicBoolean(true);
     private ScheduledFuture<?> scheduledFuture;
 
+    // state of the last load, only accessed while holding the update lock
+    private String eTag;
+    private long fileLastModified;
+    private long fileLength;
+    private long fileReadNanos;
+    private HashCode fileHash;
+
     @Inject
     public ServiceInventory(ServiceInventoryConfig config,
             NodeInfo nodeInfo,
@@ -85,6 +108,10 @@ public class ServiceInventory
         if (serviceInventoryUri == null || scheduledFuture != null) {
             return;
         }
+        long intervalMillis = (long) updateInterval.toMillis();
+        if (isFile()) {
+            intervalMillis = Math.min(intervalMillis, (long) FILE_CHECK_INTERVAL.toMillis());
+        }
         scheduledFuture = executorService.scheduleAtFixedRate(new Runnable()
         {
             @Override
@@ -97,7 +124,7 @@ public class ServiceInventory
                     log.error(e, "Unexpected exception from service inventory update");
                 }
             }
-        }, (long) updateInterval.toMillis(), (long) updateInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
     }
 
     @PreDestroy
@@ -111,36 +138,21 @@ public class ServiceInventory
 
     public Iterable<ServiceDescriptor> getServiceDescriptors()
     {
-        return serviceDescriptors.get();
+        return inventory.get().getServiceDescriptors();
     }
 
-    public Iterable<ServiceDescriptor> getServiceDescriptors(final String type)
+    public Iterable<ServiceDescriptor> getServiceDescriptors(String type)
     {
-        return Iterables.filter(getServiceDescriptors(), new Predicate<ServiceDescriptor>()
-        {
-            @Override
-            public boolean apply(ServiceDescriptor serviceDescriptor)
-            {
-                return serviceDescriptor.getType().equals(type);
-            }
-        });
+        return inventory.get().getServiceDescriptors(type);
     }
 
-    public Iterable<ServiceDescriptor> getServiceDescriptors(final String type, final String pool)
+    public Iterable<ServiceDescriptor> getServiceDescriptors(String type, String pool)
     {
-        return Iterables.filter(getServiceDescriptors(), new Predicate<ServiceDescriptor>()
-        {
-            @Override
-            public boolean apply(ServiceDescriptor serviceDescriptor)
-            {
-                return serviceDescriptor.getType().equals(type) &&
-                        serviceDescriptor.getPool().equals(pool);
-            }
-        });
+        return inventory.get().getServiceDescriptors(type, pool);
     }
 
     @Managed
-    public void updateServiceInventory()
+    public synchronized void updateServiceInventory()
     {
         if (serviceInventoryUri == null) {
             return;
@@ -148,25 +160,29 @@ public class ServiceInventory
 
         try {
             ServiceDescriptorsRepresentation serviceDescriptorsRepresentation;
-            if (serviceInventoryUri.getScheme().toLowerCase().startsWith("http")) {
+            if (isFile()) {
+                serviceDescriptorsRepresentation = loadFile();
+            }
+            else {
                 Builder requestBuilder = prepareGet()
                         .setUri(serviceInventoryUri)
                         .setHeader("User-Agent", nodeInfo.getNodeId());
-                serviceDescriptorsRepresentation = httpClient.execute(requestBuilder.build(), createJsonResponseHandler(serviceDescriptorsCodec));
-            }
-            else {
-                File file = new File(serviceInventoryUri);
-                String json = Files.toString(file, Charsets.UTF_8);
-                serviceDescriptorsRepresentation = serviceDescriptorsCodec.fromJson(json);
+                if (eTag != null) {
+                    requestBuilder.setHeader("If-None-Match", eTag);
+                }
+                serviceDescriptorsRepresentation = httpClient.execute(requestBuilder.build(), new InventoryResponseHandler());
             }
 
-            if (!environment.equals(serviceDescriptorsRepresentation.getEnvironment())) {
-                logServerError("Expected environment to be %s, but was %s", environment, serviceDescriptorsRepresentation.getEnvironment());
-            }
+            // null when the inventory has not changed since the last load
+            if (serviceDescriptorsRepresentation != null) {
+                if (!environment.equals(serviceDescriptorsRepresentation.getEnvironment())) {
+                    logServerError("Expected environment to be %s, but was %s", environment, serviceDescriptorsRepresentation.getEnvironment());
+                }
 
-            List<ServiceDescriptor> descriptors = newArrayList(serviceDescriptorsRepresentation.getServiceDescriptors());
-            Collections.shuffle(descriptors);
-            serviceDescriptors.set(ImmutableList.copyOf(descriptors));
+                List<ServiceDescriptor> descriptors = newArrayList(serviceDescriptorsRepresentation.getServiceDescriptors());
+                Collections.shuffle(descriptors);
+                inventory.set(new Inventory(descriptors));
+            }
 
             if (serverUp.compareAndSet(false, true)) {
                 log.info("ServiceInventory connect succeeded");
@@ -177,10 +193,148 @@ public class ServiceInventory
         }
     }
 
+    private boolean isFile()
+    {
+        return serviceInventoryUri.getScheme().equalsIgnoreCase("file");
+    }
+
+    private ServiceDescriptorsRepresentation loadFile()
+            throws IOException
+    {
+        File file = new File(serviceInventoryUri);
+        long lastModified = file.lastModified();
+        long length = file.length();
+        long now = System.nanoTime();
+
+        // the modified time may be too coarse to notice a quick rewrite, so the
+        // contents are still read at least once per update interval
+        if (fileHash != null && lastModified == fileLastModified && length == fileLength && now - fileReadNanos < updateInterval.convertTo(TimeUnit.NANOSECONDS)) {
+            return null;
+        }
+
+        byte[] bytes = Files.toByteArray(file);
+        HashCode hash = Hashing.md5().hashBytes(bytes);
+        fileReadNanos = now;
+        if (hash.equals(fileHash)) {
+            fileLastModified = lastModified;
+            fileLength = length;
+            return null;
+        }
+
+        ServiceDescriptorsRepresentation serviceDescriptorsRepresentation = serviceDescriptorsCodec.fromJson(new String(bytes, Charsets.UTF_8));
+        fileLastModified = lastModified;
+        fileLength = length;
+        fileHash = hash;
+        return serviceDescriptorsRepresentation;
+    }
+
     private void logServerError(String message, Object... args)
     {
         if (serverUp.compareAndSet(true, false)) {
             log.error(message, args);
         }
     }
+
+    private class InventoryResponseHandler implements ResponseHandler<ServiceDescriptorsRepresentation, RuntimeException>
+    {
+        @Override
+        public RuntimeException handleException(Request request, Exception exception)
+        {
+            if (exception instanceof ConnectException) {
+                return new RuntimeException("Server refused connection: " + request.getUri().toASCIIString());
+            }
+            return new RuntimeException(exception);
+        }
+
+        @Override
+        public ServiceDescriptorsRepresentation handle(Request request, Response response)
+        {
+            if (response.getStatusCode() == 304) {
+                return null;
+            }
+            if (response.getStatusCode() != 200) {
+                throw new RuntimeException(String.format("Expected response code to be 200, but was %s: %s", response.getStatusCode(), response.getStatusMessage()));
+            }
+
+            try {
+                String json = new String(ByteStreams.toByteArray(response.getInputStream()), Charsets.UTF_8);
+                ServiceDescriptorsRepresentation serviceDescriptorsRepresentation = serviceDescriptorsCodec.fromJson(json);
+                eTag = response.getHeader("ETag");
+                return serviceDescriptorsRepresentation;
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Error reading JSON response from server", e);
+            }
+        }
+    }
+
+    /**
+     * Service descriptors indexed by type and by type and pool.
+     */
+    private static class Inventory
+    {
+        private final List<ServiceDescriptor> serviceDescriptors;
+        private final ImmutableListMultimap<String, ServiceDescriptor> byType;
+        private final ImmutableListMultimap<ServiceKey, ServiceDescriptor> byTypeAndPool;
+
+        private Inventory(List<ServiceDescriptor> serviceDescriptors)
+        {
+            this.serviceDescriptors = ImmutableList.copyOf(serviceDescriptors);
+
+            ImmutableListMultimap.Builder<String, ServiceDescriptor> byType = ImmutableListMultimap.builder();
+            ImmutableListMultimap.Builder<ServiceKey, ServiceDescriptor> byTypeAndPool = ImmutableListMultimap.builder();
+            for (ServiceDescriptor serviceDescriptor : this.serviceDescriptors) {
+                byType.put(serviceDescriptor.getType(), serviceDescriptor);
+                byTypeAndPool.put(new ServiceKey(serviceDescriptor.getType(), serviceDescriptor.getPool()), serviceDescriptor);
+            }
+            this.byType = byType.build();
+            this.byTypeAndPool = byTypeAndPool.build();
+        }
+
+        public List<ServiceDescriptor> getServiceDescriptors()
+        {
+            return serviceDescriptors;
+        }
+
+        public List<ServiceDescriptor> getServiceDescriptors(String type)
+        {
+            return byType.get(type);
+        }
+
+        public List<ServiceDescriptor> getServiceDescriptors(String type, String pool)
+        {
+            return byTypeAndPool.get(new ServiceKey(type, pool));
+        }
+    }
+
+    private static class ServiceKey
+    {
+        private final String type;
+        private final String pool;
+
+        private ServiceKey(String type, String pool)
+        {
+            this.type = type;
+            this.pool = pool;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ServiceKey that = (ServiceKey) o;
+            return Objects.equal(type, that.type) && Objects.equal(pool, that.pool);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(type, pool);
+        }
+    }
 }
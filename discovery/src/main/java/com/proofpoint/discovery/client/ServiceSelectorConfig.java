@@ -1,7 +1,9 @@
 package com.proofpoint.discovery.client;
 
 import com.proofpoint.configuration.Config;
+import com.proofpoint.configuration.ConfigDescription;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 public class ServiceSelectorConfig
@@ -9,6 +11,8 @@ public class ServiceSelectorConfig
     public static final String DEFAULT_POOL = "general";
 
     private String pool = DEFAULT_POOL;
+    private boolean preferLocal = false;
+    private int minLocalServices = 1;
 
     @NotNull
     public String getPool()
@@ -22,4 +26,31 @@ public class ServiceSelectorConfig
         this.pool = pool;
         return this;
     }
+
+    public boolean isPreferLocal()
+    {
+        return preferLocal;
+    }
+
+    @Config("prefer-local")
+    @ConfigDescription("Select the http services closest to the location of this node before the others")
+    public ServiceSelectorConfig setPreferLocal(boolean preferLocal)
+    {
+        this.preferLocal = preferLocal;
+        return this;
+    }
+
+    @Min(1)
+    public int getMinLocalServices()
+    {
+        return minLocalServices;
+    }
+
+    @Config("min-local-services")
+    @ConfigDescription("Minimum number of running services preferred when locality is preferred; services further away are added until it is met")
+    public ServiceSelectorConfig setMinLocalServices(int minLocalServices)
+    {
+        this.minLocalServices = minLocalServices;
+        return this;
+    }
 }
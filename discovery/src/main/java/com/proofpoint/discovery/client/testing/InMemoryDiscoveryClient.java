@@ -73,6 +73,12 @@ public class InMemoryDiscoveryClient implements DiscoveryAnnouncementClient, Dis
         return Futures.immediateCheckedFuture(maxAge);
     }
 
+    @Override
+    public CheckedFuture<Duration, DiscoveryException> heartbeat()
+    {
+        return Futures.immediateCheckedFuture(maxAge);
+    }
+
     @Override
     public CheckedFuture<Void, DiscoveryException> unannounce()
     {
@@ -119,11 +125,26 @@ public class InMemoryDiscoveryClient implements DiscoveryAnnouncementClient, Dis
         return Futures.immediateCheckedFuture(new ServiceDescriptors(type, pool, builder.build(), maxAge, UUID.randomUUID().toString()));
     }
 
+    @Override
+    public CheckedFuture<ServiceDescriptors, DiscoveryException> getAllServices()
+    {
+        ImmutableList.Builder<ServiceDescriptor> builder = ImmutableList.builder();
+        builder.addAll(this.announcements.get());
+        builder.addAll(this.discovered.values());
+        return Futures.immediateCheckedFuture(new ServiceDescriptors(null, null, builder.build(), maxAge, UUID.randomUUID().toString()));
+    }
+
     @Override
     public CheckedFuture<ServiceDescriptors, DiscoveryException> refreshServices(ServiceDescriptors serviceDescriptors)
     {
         Preconditions.checkNotNull(serviceDescriptors, "serviceDescriptors is null");
 
+        if (serviceDescriptors.getType() == null) {
+            return getAllServices();
+        }
+        if (serviceDescriptors.getPool() == null) {
+            return getServices(serviceDescriptors.getType());
+        }
         return getServices(serviceDescriptors.getType(), serviceDescriptors.getPool());
     }
 }
@@ -75,6 +75,19 @@ public class StaticHttpServiceSelector implements HttpServiceSelector
         return uris;
     }
 
+    @Override
+    public List<URI> selectInstanceUris()
+    {
+        // each static URI is treated as a separate instance
+        return uris;
+    }
+
+    @Override
+    public URI selectOne()
+    {
+        return uris.isEmpty() ? null : uris.get(0);
+    }
+
     @Override
     public String toString()
     {
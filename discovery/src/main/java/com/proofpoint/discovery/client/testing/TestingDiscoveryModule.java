@@ -6,11 +6,14 @@ import com.google.inject.Key;
 import com.google.inject.Module;
 import com.google.inject.Provides;
 import com.google.inject.Scopes;
+import com.google.inject.Singleton;
 import com.google.inject.multibindings.Multibinder;
 import com.proofpoint.discovery.client.Announcer;
 import com.proofpoint.discovery.client.DiscoveryAnnouncementClient;
+import com.proofpoint.discovery.client.DiscoveryClientConfig;
 import com.proofpoint.discovery.client.DiscoveryLookupClient;
 import com.proofpoint.discovery.client.ForDiscoveryClient;
+import com.proofpoint.discovery.client.LoadReporter;
 import com.proofpoint.discovery.client.ServiceAnnouncement;
 import com.proofpoint.discovery.client.ServiceSelectorFactory;
 
@@ -30,15 +33,18 @@ public class TestingDiscoveryModule implements Module
         binder.bind(DiscoveryLookupClient.class).to(Key.get(InMemoryDiscoveryClient.class)).in(Scopes.SINGLETON);
 
         // bind announcer
+        binder.bind(DiscoveryClientConfig.class).toInstance(new DiscoveryClientConfig());
         binder.bind(Announcer.class).in(Scopes.SINGLETON);
         // Must create a multibinder for service announcements or construction will fail if no
         // service announcements are bound, which is legal for processes that don't have public services
         Multibinder.newSetBinder(binder, ServiceAnnouncement.class);
+        Multibinder.newSetBinder(binder, LoadReporter.class);
 
         binder.bind(ServiceSelectorFactory.class).to(SimpleServiceSelectorFactory.class).in(Scopes.SINGLETON);
     }
 
     @Provides
+    @Singleton
     @ForDiscoveryClient
     public ScheduledExecutorService createDiscoveryExecutor()
     {
@@ -0,0 +1,592 @@
+package com.proofpoint.discovery.client.testing;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.discovery.client.ServiceDescriptorsRepresentation;
+import com.proofpoint.discovery.client.ServiceState;
+import com.proofpoint.json.JsonCodec;
+import com.proofpoint.units.Duration;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.proofpoint.json.JsonCodec.jsonCodec;
+import static com.proofpoint.json.JsonCodec.mapJsonCodec;
+
+/**
+ * Discovery server on the loopback interface for testing discovery clients
+ * over HTTP. It speaks the announcement and lookup protocol of the discovery
+ * server: lookups of all services or of a type and pool return an ETag and
+ * max-age, conditional lookups are answered with {@code 304}, lookups that
+ * prefer to wait are held until the services change, announcements expire
+ * after the max-age unless renewed, and unchanged announcements can be
+ * renewed with a heartbeat.
+ * <p/>
+ * Latency and errors can be injected into every request, and churn can be
+ * injected into the services added with {@link #addService}, to measure the
+ * load clients put on discovery and how quickly they converge.
+ */
+public class TestingDiscoveryServer
+        implements Closeable
+{
+    private static final JsonCodec<Map<String, Object>> ANNOUNCEMENT_CODEC = mapJsonCodec(String.class, Object.class);
+    private static final JsonCodec<ServiceDescriptorsRepresentation> SERVICES_CODEC = jsonCodec(ServiceDescriptorsRepresentation.class);
+    private static final Splitter PATH_SPLITTER = Splitter.on('/').omitEmptyStrings();
+    private static final Duration EXPIRATION_INTERVAL = new Duration(100, TimeUnit.MILLISECONDS);
+
+    private final String environment;
+    private final HttpServer server;
+    private final URI baseUri;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final Random random = new Random();
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong notModifiedLookups = new AtomicLong();
+    private final AtomicLong announcements = new AtomicLong();
+    private final AtomicLong heartbeats = new AtomicLong();
+    private final AtomicLong unannouncements = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    private volatile Duration maxAge = new Duration(30, TimeUnit.SECONDS);
+    private volatile long minLatencyNanos;
+    private volatile long maxLatencyNanos;
+    private volatile double errorRate;
+
+    // guarded by this
+    private final Map<String, NodeAnnouncement> nodeAnnouncements = new HashMap<String, NodeAnnouncement>();
+    private final Map<UUID, ServiceDescriptor> staticServices = new LinkedHashMap<UUID, ServiceDescriptor>();
+    private final Map<String, byte[]> responses = new HashMap<String, byte[]>();
+    private List<ServiceDescriptor> services = ImmutableList.of();
+    private long version = 1;
+    private boolean closed;
+    private ScheduledFuture<?> churn;
+
+    public TestingDiscoveryServer(String environment)
+            throws IOException
+    {
+        Preconditions.checkNotNull(environment, "environment is null");
+        this.environment = environment;
+
+        executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("testing-discovery-server-%s").setDaemon(true).build());
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("testing-discovery-expiration-%s").setDaemon(true).build());
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 1000);
+        server.setExecutor(executor);
+        server.createContext("/v1/", new DiscoveryHandler());
+        server.start();
+        baseUri = URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+
+        scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                expireAnnouncements();
+            }
+        }, (long) EXPIRATION_INTERVAL.toMillis(), (long) EXPIRATION_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public URI getBaseUri()
+    {
+        return baseUri;
+    }
+
+    public String getEnvironment()
+    {
+        return environment;
+    }
+
+    /**
+     * Sets the max-age returned with lookups and announcements, which is
+     * also the time after which an announcement that is not renewed expires.
+     * Clients only honor whole seconds.
+     */
+    public void setMaxAge(Duration maxAge)
+    {
+        Preconditions.checkNotNull(maxAge, "maxAge is null");
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Delays every request by the latency.
+     */
+    public void setLatency(Duration latency)
+    {
+        setLatency(latency, latency);
+    }
+
+    /**
+     * Delays every request by a random latency between the minimum and
+     * the maximum.
+     */
+    public void setLatency(Duration minLatency, Duration maxLatency)
+    {
+        Preconditions.checkNotNull(minLatency, "minLatency is null");
+        Preconditions.checkNotNull(maxLatency, "maxLatency is null");
+        Preconditions.checkArgument(minLatency.compareTo(maxLatency) <= 0, "minLatency is greater than maxLatency");
+        this.minLatencyNanos = (long) minLatency.convertTo(TimeUnit.NANOSECONDS);
+        this.maxLatencyNanos = (long) maxLatency.convertTo(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Answers the fraction of requests with a {@code 503} error.
+     */
+    public void setErrorRate(double errorRate)
+    {
+        Preconditions.checkArgument(errorRate >= 0 && errorRate <= 1, "errorRate must be between 0 and 1");
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Adds a service that does not need to be announced and never expires.
+     */
+    public synchronized void addService(ServiceDescriptor serviceDescriptor)
+    {
+        Preconditions.checkNotNull(serviceDescriptor, "serviceDescriptor is null");
+        staticServices.put(serviceDescriptor.getId(), serviceDescriptor);
+        servicesChanged();
+    }
+
+    public synchronized void removeService(UUID id)
+    {
+        Preconditions.checkNotNull(id, "id is null");
+        if (staticServices.remove(id) != null) {
+            servicesChanged();
+        }
+    }
+
+    /**
+     * Restarts services added with {@link #addService} at the interval: each
+     * time, the services are replaced by equal services with new IDs.
+     */
+    public synchronized void startChurn(Duration interval, final int services)
+    {
+        Preconditions.checkNotNull(interval, "interval is null");
+        Preconditions.checkArgument(services > 0, "services must be positive");
+        stopChurn();
+        churn = scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                churn(services);
+            }
+        }, (long) interval.toMillis(), (long) interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopChurn()
+    {
+        if (churn != null) {
+            churn.cancel(false);
+            churn = null;
+        }
+    }
+
+    /**
+     * Returns the services announced or added, in the order they are returned
+     * by lookups.
+     */
+    public synchronized List<ServiceDescriptor> getServices()
+    {
+        return services;
+    }
+
+    /**
+     * Returns the version of the services, which changes every time they
+     * change.
+     */
+    public synchronized long getVersion()
+    {
+        return version;
+    }
+
+    public long getLookups()
+    {
+        return lookups.get();
+    }
+
+    public long getNotModifiedLookups()
+    {
+        return notModifiedLookups.get();
+    }
+
+    public long getAnnouncements()
+    {
+        return announcements.get();
+    }
+
+    public long getHeartbeats()
+    {
+        return heartbeats.get();
+    }
+
+    public long getUnannouncements()
+    {
+        return unannouncements.get();
+    }
+
+    public long getInjectedErrors()
+    {
+        return injectedErrors.get();
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        server.stop(0);
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private synchronized void churn(int count)
+    {
+        List<UUID> ids = Lists.newArrayList(staticServices.keySet());
+        if (ids.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            UUID id = ids.get(random.nextInt(ids.size()));
+            ServiceDescriptor old = staticServices.remove(id);
+            if (old != null) {
+                ServiceDescriptor restarted = new ServiceDescriptor(UUID.randomUUID(), old.getNodeId(), old.getType(), old.getPool(), old.getLocation(), old.getState(), old.getProperties());
+                staticServices.put(restarted.getId(), restarted);
+            }
+        }
+        servicesChanged();
+    }
+
+    private synchronized void expireAnnouncements()
+    {
+        long now = System.nanoTime();
+        boolean expired = false;
+        for (Iterator<NodeAnnouncement> iterator = nodeAnnouncements.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().isExpired(now)) {
+                iterator.remove();
+                expired = true;
+            }
+        }
+        if (expired) {
+            servicesChanged();
+        }
+    }
+
+    // must hold the lock
+    private void servicesChanged()
+    {
+        ImmutableList.Builder<ServiceDescriptor> builder = ImmutableList.builder();
+        builder.addAll(staticServices.values());
+        for (NodeAnnouncement nodeAnnouncement : nodeAnnouncements.values()) {
+            builder.addAll(nodeAnnouncement.getServices());
+        }
+        services = builder.build();
+        responses.clear();
+        version++;
+        notifyAll();
+    }
+
+    private String getETag()
+    {
+        return "\"" + version + "\"";
+    }
+
+    private long getExpiration()
+    {
+        return System.nanoTime() + (long) maxAge.convertTo(TimeUnit.NANOSECONDS);
+    }
+
+    private String getCacheControl()
+    {
+        return "max-age=" + Math.max(1, Math.round(maxAge.convertTo(TimeUnit.SECONDS)));
+    }
+
+    private void lookup(HttpExchange exchange, List<String> path)
+            throws IOException
+    {
+        lookups.incrementAndGet();
+        String type = path.size() > 2 ? path.get(2) : null;
+        String pool = path.size() > 3 ? path.get(3) : null;
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        long waitNanos = getWaitNanos(exchange.getRequestHeaders().getFirst("Prefer"));
+
+        String eTag;
+        byte[] body = null;
+        synchronized (this) {
+            if (waitNanos > 0) {
+                exchange.getResponseHeaders().set("Preference-Applied", "wait=" + TimeUnit.NANOSECONDS.toSeconds(waitNanos));
+                long end = System.nanoTime() + waitNanos;
+                try {
+                    while (!closed && getETag().equals(ifNoneMatch) && end - System.nanoTime() > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, end - System.nanoTime());
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            eTag = getETag();
+            if (!eTag.equals(ifNoneMatch)) {
+                body = getResponse(type, pool);
+            }
+        }
+
+        exchange.getResponseHeaders().set("ETag", eTag);
+        exchange.getResponseHeaders().set("Cache-Control", getCacheControl());
+        if (body == null) {
+            notModifiedLookups.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(body);
+        output.close();
+    }
+
+    // must hold the lock
+    private byte[] getResponse(String type, String pool)
+    {
+        String key = type + "/" + pool;
+        byte[] response = responses.get(key);
+        if (response == null) {
+            ImmutableList.Builder<ServiceDescriptor> selected = ImmutableList.builder();
+            for (ServiceDescriptor service : services) {
+                if ((type == null || type.equals(service.getType())) && (pool == null || pool.equals(service.getPool()))) {
+                    selected.add(service);
+                }
+            }
+            response = SERVICES_CODEC.toJson(new ServiceDescriptorsRepresentation(environment, selected.build())).getBytes(Charsets.UTF_8);
+            responses.put(key, response);
+        }
+        return response;
+    }
+
+    private static long getWaitNanos(String prefer)
+    {
+        if (prefer == null || !prefer.startsWith("wait=")) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(prefer.substring("wait=".length()).trim()));
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void announce(HttpExchange exchange, String nodeId)
+            throws IOException
+    {
+        announcements.incrementAndGet();
+        byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+
+        Map<String, Object> announcement;
+        try {
+            announcement = ANNOUNCEMENT_CODEC.fromJson(new String(body, Charsets.UTF_8));
+        }
+        catch (IllegalArgumentException e) {
+            sendError(exchange, 400, "Invalid announcement: " + e.getMessage());
+            return;
+        }
+        if (!environment.equals(announcement.get("environment"))) {
+            sendError(exchange, 400, String.format("Environment mismatch. Expected: %s, Provided: %s", environment, announcement.get("environment")));
+            return;
+        }
+
+        String pool = (String) announcement.get("pool");
+        String location = (String) announcement.get("location");
+        ImmutableList.Builder<ServiceDescriptor> services = ImmutableList.builder();
+        for (Map<String, Object> service : (List<Map<String, Object>>) announcement.get("services")) {
+            Map<String, String> properties = (Map<String, String>) service.get("properties");
+            services.add(new ServiceDescriptor(UUID.fromString((String) service.get("id")),
+                    nodeId,
+                    (String) service.get("type"),
+                    pool,
+                    location,
+                    ServiceState.RUNNING,
+                    properties == null ? ImmutableMap.<String, String>of() : properties));
+        }
+
+        String eTag = "\"" + Hashing.md5().hashBytes(body) + "\"";
+        synchronized (this) {
+            NodeAnnouncement old = nodeAnnouncements.put(nodeId, new NodeAnnouncement(services.build(), eTag, getExpiration()));
+            if (old == null || !old.getETag().equals(eTag)) {
+                servicesChanged();
+            }
+        }
+
+        exchange.getResponseHeaders().set("ETag", eTag);
+        exchange.getResponseHeaders().set("Cache-Control", getCacheControl());
+        exchange.sendResponseHeaders(202, -1);
+    }
+
+    private void heartbeat(HttpExchange exchange, String nodeId)
+            throws IOException
+    {
+        heartbeats.incrementAndGet();
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        synchronized (this) {
+            NodeAnnouncement nodeAnnouncement = nodeAnnouncements.get(nodeId);
+            if (nodeAnnouncement == null) {
+                sendError(exchange, 404, "Node is not announced");
+                return;
+            }
+            if (!nodeAnnouncement.getETag().equals(ifMatch)) {
+                sendError(exchange, 412, "Announcement has changed");
+                return;
+            }
+            nodeAnnouncement.setExpiration(getExpiration());
+        }
+
+        exchange.getResponseHeaders().set("Cache-Control", getCacheControl());
+        exchange.sendResponseHeaders(202, -1);
+    }
+
+    private void unannounce(HttpExchange exchange, String nodeId)
+            throws IOException
+    {
+        unannouncements.incrementAndGet();
+        synchronized (this) {
+            if (nodeAnnouncements.remove(nodeId) != null) {
+                servicesChanged();
+            }
+        }
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private static void sendError(HttpExchange exchange, int statusCode, String message)
+            throws IOException
+    {
+        byte[] body = message.getBytes(Charsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(statusCode, body.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(body);
+        output.close();
+    }
+
+    private void injectLatency()
+    {
+        long latencyNanos = minLatencyNanos;
+        if (maxLatencyNanos > minLatencyNanos) {
+            latencyNanos += (long) (random.nextDouble() * (maxLatencyNanos - minLatencyNanos));
+        }
+        if (latencyNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(latencyNanos);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class DiscoveryHandler
+            implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange)
+                throws IOException
+        {
+            try {
+                injectLatency();
+                if (errorRate > 0 && random.nextDouble() < errorRate) {
+                    injectedErrors.incrementAndGet();
+                    sendError(exchange, 503, "Injected error");
+                    return;
+                }
+
+                // /v1/service[/type[/pool]] and /v1/announcement/node[/heartbeat]
+                List<String> path = ImmutableList.copyOf(PATH_SPLITTER.split(exchange.getRequestURI().getPath()));
+                String method = exchange.getRequestMethod();
+                if (path.size() >= 2 && path.size() <= 4 && path.get(1).equals("service") && method.equals("GET")) {
+                    lookup(exchange, path);
+                }
+                else if (path.size() == 3 && path.get(1).equals("announcement") && method.equals("PUT")) {
+                    announce(exchange, path.get(2));
+                }
+                else if (path.size() == 4 && path.get(1).equals("announcement") && path.get(3).equals("heartbeat") && method.equals("PUT")) {
+                    heartbeat(exchange, path.get(2));
+                }
+                else if (path.size() == 3 && path.get(1).equals("announcement") && method.equals("DELETE")) {
+                    unannounce(exchange, path.get(2));
+                }
+                else {
+                    sendError(exchange, 404, "Not found");
+                }
+            }
+            finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private static class NodeAnnouncement
+    {
+        private final List<ServiceDescriptor> services;
+        private final String eTag;
+        private long expiration;
+
+        private NodeAnnouncement(List<ServiceDescriptor> services, String eTag, long expiration)
+        {
+            this.services = services;
+            this.eTag = eTag;
+            this.expiration = expiration;
+        }
+
+        public List<ServiceDescriptor> getServices()
+        {
+            return services;
+        }
+
+        public String getETag()
+        {
+            return eTag;
+        }
+
+        public void setExpiration(long expiration)
+        {
+            this.expiration = expiration;
+        }
+
+        public boolean isExpired(long now)
+        {
+            return now - expiration > 0;
+        }
+    }
+}
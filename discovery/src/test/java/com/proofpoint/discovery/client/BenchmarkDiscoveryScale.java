@@ -0,0 +1,156 @@
+package com.proofpoint.discovery.client;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.discovery.client.testing.TestingDiscoveryServer;
+import com.proofpoint.http.client.ApacheHttpClient;
+import com.proofpoint.http.client.AsyncHttpClient;
+import com.proofpoint.http.client.HttpClientConfig;
+import com.proofpoint.node.NodeConfig;
+import com.proofpoint.node.NodeInfo;
+import com.proofpoint.units.Duration;
+
+import javax.inject.Provider;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.proofpoint.json.JsonCodec.jsonCodec;
+
+/**
+ * Measures the load that announcing nodes and refreshing selectors put on a
+ * {@link TestingDiscoveryServer}, and the time until every selector sees a
+ * newly announced service. Run with the number of announcing nodes, the
+ * number of selecting processes, the seconds to measure steady state, and
+ * optionally a comma separated list of "watch", to hold lookups until the
+ * services change, and "heartbeat", to renew unchanged announcements with
+ * heartbeats.
+ */
+public class BenchmarkDiscoveryScale
+{
+    private static final String TYPE = "benchmark";
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int selectorCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        List<String> options = args.length > 3 ? ImmutableList.copyOf(Splitter.on(',').split(args[3])) : ImmutableList.<String>of();
+
+        ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(16, new ThreadFactoryBuilder().setNameFormat("benchmark-scheduler-%s").setDaemon(true).build());
+        ExecutorService httpExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("benchmark-http-%s").setDaemon(true).build());
+        final TestingDiscoveryServer server = new TestingDiscoveryServer("test");
+        server.setMaxAge(new Duration(5, TimeUnit.SECONDS));
+        try {
+            Provider<URI> discoveryUri = new Provider<URI>()
+            {
+                @Override
+                public URI get()
+                {
+                    return server.getBaseUri();
+                }
+            };
+            AsyncHttpClient httpClient = new AsyncHttpClient(new ApacheHttpClient(new HttpClientConfig()
+                    .setMaxConnections(nodeCount + selectorCount)
+                    .setMaxConnectionsPerServer(nodeCount + selectorCount)), httpExecutor);
+            DiscoveryClientConfig config = new DiscoveryClientConfig()
+                    .setWatchEnabled(options.contains("watch"))
+                    .setHeartbeatEnabled(options.contains("heartbeat"));
+
+            long start = System.nanoTime();
+            ImmutableList.Builder<Announcer> announcers = ImmutableList.builder();
+            for (int i = 0; i < nodeCount; i++) {
+                announcers.add(startAnnouncer(discoveryUri, httpClient, config, scheduler, "node-" + i));
+            }
+            waitForServices(server, nodeCount);
+            System.out.printf("%d nodes announced in %s%n", nodeCount, elapsed(start));
+
+            start = System.nanoTime();
+            ImmutableList.Builder<ServiceSelector> selectors = ImmutableList.builder();
+            for (int i = 0; i < selectorCount; i++) {
+                HttpDiscoveryLookupClient lookupClient = new HttpDiscoveryLookupClient(discoveryUri, new NodeInfo("test"), jsonCodec(ServiceDescriptorsRepresentation.class), httpClient, config);
+                selectors.add(new DiscoveryCache(lookupClient, scheduler).createServiceSelector(TYPE, new ServiceSelectorConfig()));
+            }
+            System.out.printf("%d selectors started in %s%n", selectorCount, elapsed(start));
+
+            long lookups = server.getLookups();
+            long notModified = server.getNotModifiedLookups();
+            long announcements = server.getAnnouncements();
+            long heartbeats = server.getHeartbeats();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+            System.out.printf("steady state: %.1f lookups/s (%.0f%% not modified), %.1f announcements/s, %.1f heartbeats/s%n",
+                    (server.getLookups() - lookups) / (double) seconds,
+                    100.0 * (server.getNotModifiedLookups() - notModified) / Math.max(1, server.getLookups() - lookups),
+                    (server.getAnnouncements() - announcements) / (double) seconds,
+                    (server.getHeartbeats() - heartbeats) / (double) seconds);
+
+            for (int round = 0; round < 3; round++) {
+                Announcer announcer = startAnnouncer(discoveryUri, httpClient, config, scheduler, "new-node-" + round);
+                start = System.nanoTime();
+                List<ServiceSelector> pending = selectors.build();
+                while (!pending.isEmpty()) {
+                    ImmutableList.Builder<ServiceSelector> stillPending = ImmutableList.builder();
+                    for (ServiceSelector selector : pending) {
+                        if (!contains(selector, "new-node-" + round)) {
+                            stillPending.add(selector);
+                        }
+                    }
+                    pending = stillPending.build();
+                    Thread.sleep(10);
+                }
+                System.out.printf("convergence: all %d selectors saw a new node after %s%n", selectorCount, elapsed(start));
+                announcers.add(announcer);
+            }
+
+            for (Announcer announcer : announcers.build()) {
+                announcer.destroy();
+            }
+        }
+        finally {
+            server.close();
+            scheduler.shutdownNow();
+            httpExecutor.shutdownNow();
+        }
+    }
+
+    private static Announcer startAnnouncer(Provider<URI> discoveryUri, AsyncHttpClient httpClient, DiscoveryClientConfig config, ScheduledExecutorService scheduler, String nodeId)
+            throws Exception
+    {
+        NodeInfo nodeInfo = new NodeInfo(new NodeConfig().setEnvironment("test").setNodeId(nodeId));
+        HttpDiscoveryAnnouncementClient announcementClient = new HttpDiscoveryAnnouncementClient(discoveryUri, nodeInfo, jsonCodec(Announcement.class), httpClient);
+        ServiceAnnouncement announcement = ServiceAnnouncement.serviceAnnouncement(TYPE).addProperty("http", "http://" + nodeId + ":8080").build();
+        Announcer announcer = new Announcer(announcementClient, ImmutableSet.of(announcement), config, scheduler);
+        announcer.start();
+        return announcer;
+    }
+
+    private static boolean contains(ServiceSelector selector, String nodeId)
+    {
+        for (ServiceDescriptor descriptor : selector.selectAllServices()) {
+            if (descriptor.getNodeId().equals(nodeId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void waitForServices(TestingDiscoveryServer server, int count)
+            throws InterruptedException
+    {
+        while (server.getServices().size() < count) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static Duration elapsed(long start)
+    {
+        return new Duration(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+}
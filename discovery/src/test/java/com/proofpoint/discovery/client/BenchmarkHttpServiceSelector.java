@@ -0,0 +1,75 @@
+package com.proofpoint.discovery.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.proofpoint.discovery.client.testing.StaticServiceSelector;
+
+import java.net.URI;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Measures the cost of selecting services with a {@link HttpServiceSelectorImpl}.
+ * Run with the number of services as the optional first argument.
+ */
+public class BenchmarkHttpServiceSelector
+{
+    private static final int WARMUP_ITERATIONS = 1000000;
+    private static final int ITERATIONS = 10000000;
+
+    public static void main(String[] args)
+    {
+        int serviceCount = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+        ImmutableList.Builder<ServiceDescriptor> services = ImmutableList.builder();
+        for (int i = 0; i < serviceCount; i++) {
+            services.add(new ServiceDescriptor(UUID.randomUUID(), "node-" + i, "apple", "pool", "location", ServiceState.RUNNING, ImmutableMap.of(
+                    "http", "http://10.0.0." + i + ":8080",
+                    "https", "https://10.0.0." + i + ":8443")));
+        }
+        HttpServiceSelector selector = new HttpServiceSelectorImpl(new StaticServiceSelector(services.build()));
+
+        for (int round = 0; round < 3; round++) {
+            System.out.printf("selectHttpService: %.1f ns/op%n", benchmarkSelectHttpService(selector));
+            System.out.printf("selectOne:         %.1f ns/op%n", benchmarkSelectOne(selector));
+        }
+    }
+
+    private static double benchmarkSelectHttpService(HttpServiceSelector selector)
+    {
+        long blackhole = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            blackhole += selector.selectHttpService().get(0).hashCode();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            List<URI> uris = selector.selectHttpService();
+            blackhole += uris.get(0).hashCode();
+        }
+        long elapsed = System.nanoTime() - start;
+        consume(blackhole);
+        return elapsed / (double) ITERATIONS;
+    }
+
+    private static double benchmarkSelectOne(HttpServiceSelector selector)
+    {
+        long blackhole = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            blackhole += selector.selectOne().hashCode();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            blackhole += selector.selectOne().hashCode();
+        }
+        long elapsed = System.nanoTime() - start;
+        consume(blackhole);
+        return elapsed / (double) ITERATIONS;
+    }
+
+    private static void consume(long blackhole)
+    {
+        if (blackhole == 42) {
+            System.out.println();
+        }
+    }
+}
@@ -2,6 +2,10 @@ package com.proofpoint.discovery.client;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.CheckedFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.proofpoint.discovery.client.testing.InMemoryDiscoveryClient;
 import com.proofpoint.node.NodeConfig;
 import com.proofpoint.node.NodeInfo;
@@ -12,12 +16,21 @@ import org.testng.annotations.Test;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.proofpoint.discovery.client.DiscoveryFutures.toDiscoveryFuture;
 
 import static com.proofpoint.discovery.client.ServiceTypes.serviceType;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 public class TestAnnouncer
@@ -28,11 +41,13 @@ public class TestAnnouncer
     private InMemoryDiscoveryClient discoveryClient;
     private ServiceAnnouncement serviceAnnouncement;
     private NodeInfo nodeInfo;
+    private ScheduledExecutorService executor;
 
     @BeforeMethod
     protected void setUp()
             throws Exception
     {
+        executor = new ScheduledThreadPoolExecutor(2, new ThreadFactoryBuilder().setDaemon(true).build());
         nodeInfo = new NodeInfo(new NodeConfig().setEnvironment("test").setPool("pool"));
         discoveryClient = new InMemoryDiscoveryClient(nodeInfo, MAX_AGE);
         serviceAnnouncement = ServiceAnnouncement.serviceAnnouncement(serviceType.value()).addProperty("a", "apple").build();
@@ -45,6 +60,7 @@ public class TestAnnouncer
     {
         announcer.destroy();
         assertAnnounced();
+        executor.shutdownNow();
     }
 
     @Test
@@ -129,6 +145,145 @@ public class TestAnnouncer
         assertAnnounced();
     }
 
+    @Test
+    public void testChangesDuringAnnouncementCoalesced()
+            throws Exception
+    {
+        RecordingAnnouncementClient client = new RecordingAnnouncementClient(new Duration(1, TimeUnit.HOURS));
+        Announcer announcer = new Announcer(client, ImmutableSet.of(serviceAnnouncement), new DiscoveryClientConfig(), executor);
+        announcer.start();
+        assertEquals(client.getAnnouncements().size(), 1);
+
+        client.setBlocked(true);
+        ServiceAnnouncement apple = ServiceAnnouncement.serviceAnnouncement("apple").build();
+        ServiceAnnouncement banana = ServiceAnnouncement.serviceAnnouncement("banana").build();
+        ServiceAnnouncement cherry = ServiceAnnouncement.serviceAnnouncement("cherry").build();
+        announcer.addServiceAnnouncement(apple);
+        waitForAnnouncements(client, 2);
+
+        announcer.addServiceAnnouncement(banana);
+        announcer.removeServiceAnnouncement(apple.getId());
+        announcer.addServiceAnnouncement(cherry);
+        Thread.sleep(100);
+        assertEquals(client.getAnnouncements().size(), 2);
+
+        client.setBlocked(false);
+        client.completeBlocked();
+        waitForAnnouncements(client, 3);
+        assertEquals(client.getAnnouncements().get(2), ImmutableSet.of(serviceAnnouncement, banana, cherry));
+
+        Thread.sleep(100);
+        assertEquals(client.getAnnouncements().size(), 3);
+        announcer.destroy();
+    }
+
+    @Test
+    public void testHeartbeatRenewsUnchangedAnnouncement()
+            throws Exception
+    {
+        RecordingAnnouncementClient client = new RecordingAnnouncementClient(new Duration(10, TimeUnit.MILLISECONDS));
+        Announcer announcer = new Announcer(client, ImmutableSet.of(serviceAnnouncement), new DiscoveryClientConfig().setHeartbeatEnabled(true), executor);
+        announcer.start();
+        Thread.sleep(200);
+        assertEquals(client.getAnnouncements().size(), 1);
+        assertTrue(client.getHeartbeats() > 1);
+
+        ServiceAnnouncement apple = ServiceAnnouncement.serviceAnnouncement("apple").build();
+        announcer.addServiceAnnouncement(apple);
+        waitForAnnouncements(client, 2);
+        assertEquals(client.getAnnouncements().get(1), ImmutableSet.of(serviceAnnouncement, apple));
+        announcer.destroy();
+    }
+
+    @Test
+    public void testRejectedHeartbeatAnnouncesAgain()
+            throws Exception
+    {
+        RecordingAnnouncementClient client = new RecordingAnnouncementClient(new Duration(10, TimeUnit.MILLISECONDS));
+        client.setHeartbeatRejected(true);
+        Announcer announcer = new Announcer(client, ImmutableSet.of(serviceAnnouncement), new DiscoveryClientConfig().setHeartbeatEnabled(true), executor);
+        announcer.start();
+        waitForAnnouncements(client, 3);
+        assertTrue(client.getHeartbeats() >= 2);
+        announcer.destroy();
+    }
+
+    @Test
+    public void testChangesWaitForRetryWhileDiscoveryFails()
+            throws Exception
+    {
+        RecordingAnnouncementClient client = new RecordingAnnouncementClient(new Duration(1, TimeUnit.HOURS));
+        client.setFailed(true);
+        Announcer announcer = new Announcer(client, ImmutableSet.of(serviceAnnouncement), new DiscoveryClientConfig(), executor);
+        announcer.start();
+        assertEquals(client.getAnnouncements().size(), 1);
+
+        announcer.addServiceAnnouncement(ServiceAnnouncement.serviceAnnouncement("apple").build());
+        Thread.sleep(200);
+        assertEquals(client.getAnnouncements().size(), 1);
+
+        // the first retry is between half a second and a second later
+        client.setFailed(false);
+        waitForAnnouncements(client, 2);
+        assertEquals(client.getAnnouncements().get(1).size(), 2);
+        announcer.destroy();
+    }
+
+    @Test
+    public void testLoadAndDrainingAnnounced()
+            throws Exception
+    {
+        Announcer announcer = new Announcer(discoveryClient, ImmutableSet.of(serviceAnnouncement), ImmutableSet.<LoadReporter>of(new FixedLoadReporter(0.42), new FixedLoadReporter(0.1)), new DiscoveryClientConfig(), executor);
+        announcer.start();
+        assertEquals(announcer.getLoad(), 0.42);
+
+        ServiceDescriptor descriptor = getAnnouncedDescriptor();
+        assertEquals(descriptor.getProperties().get("a"), "apple");
+        assertEquals(ServiceHealth.getLoad(descriptor), 0.4);
+        assertFalse(ServiceHealth.isDraining(descriptor));
+
+        announcer.setDraining(true);
+        Thread.sleep(100);
+        assertTrue(ServiceHealth.isDraining(getAnnouncedDescriptor()));
+        assertEquals(getAnnouncedDescriptor().getId(), serviceAnnouncement.getId());
+        announcer.destroy();
+    }
+
+    @Test
+    public void testLoadChangeAnnouncedInsteadOfHeartbeat()
+            throws Exception
+    {
+        RecordingAnnouncementClient client = new RecordingAnnouncementClient(new Duration(10, TimeUnit.MILLISECONDS));
+        FixedLoadReporter loadReporter = new FixedLoadReporter(0.1);
+        Announcer announcer = new Announcer(client, ImmutableSet.of(serviceAnnouncement), ImmutableSet.<LoadReporter>of(loadReporter), new DiscoveryClientConfig().setHeartbeatEnabled(true), executor);
+        announcer.start();
+        Thread.sleep(100);
+        assertEquals(client.getAnnouncements().size(), 1);
+
+        loadReporter.setLoad(0.9);
+        waitForAnnouncements(client, 2);
+        ServiceAnnouncement announced = client.getAnnouncements().get(1).iterator().next();
+        assertEquals(announced.getProperties().get(ServiceHealth.LOAD_PROPERTY), "0.9");
+        announcer.destroy();
+    }
+
+    private ServiceDescriptor getAnnouncedDescriptor()
+    {
+        List<ServiceDescriptor> descriptors = discoveryClient.getServices(serviceType.value(), "pool").checkedGet().getServiceDescriptors();
+        assertEquals(descriptors.size(), 1);
+        return descriptors.get(0);
+    }
+
+    private static void waitForAnnouncements(RecordingAnnouncementClient client, int count)
+            throws InterruptedException
+    {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (client.getAnnouncements().size() < count && System.nanoTime() < end) {
+            Thread.sleep(10);
+        }
+        assertTrue(client.getAnnouncements().size() >= count, "expected at least " + count + " announcements");
+    }
+
     private void assertAnnounced(ServiceAnnouncement... serviceAnnouncements)
     {
         ServiceDescriptors serviceDescriptors = discoveryClient.getServices(serviceType.value(), "pool").checkedGet();
@@ -157,4 +312,104 @@ public class TestAnnouncer
             assertEquals(serviceDescriptor.getNodeId(), nodeInfo.getNodeId());
         }
     }
+
+    private static class RecordingAnnouncementClient implements DiscoveryAnnouncementClient
+    {
+        private final Duration maxAge;
+        private final List<Set<ServiceAnnouncement>> announcements = new CopyOnWriteArrayList<Set<ServiceAnnouncement>>();
+        private final AtomicInteger heartbeats = new AtomicInteger();
+        private final List<SettableFuture<Duration>> blocked = new CopyOnWriteArrayList<SettableFuture<Duration>>();
+        private volatile boolean block;
+        private volatile boolean failed;
+        private volatile boolean heartbeatRejected;
+
+        private RecordingAnnouncementClient(Duration maxAge)
+        {
+            this.maxAge = maxAge;
+        }
+
+        public List<Set<ServiceAnnouncement>> getAnnouncements()
+        {
+            return announcements;
+        }
+
+        public int getHeartbeats()
+        {
+            return heartbeats.get();
+        }
+
+        public void setBlocked(boolean block)
+        {
+            this.block = block;
+        }
+
+        public void setFailed(boolean failed)
+        {
+            this.failed = failed;
+        }
+
+        public void setHeartbeatRejected(boolean heartbeatRejected)
+        {
+            this.heartbeatRejected = heartbeatRejected;
+        }
+
+        public void completeBlocked()
+        {
+            for (SettableFuture<Duration> future : blocked) {
+                future.set(maxAge);
+            }
+        }
+
+        @Override
+        public CheckedFuture<Duration, DiscoveryException> announce(Set<ServiceAnnouncement> services)
+        {
+            announcements.add(services);
+            if (failed) {
+                return Futures.immediateFailedCheckedFuture(new DiscoveryException("discovery is down"));
+            }
+            if (block) {
+                SettableFuture<Duration> future = SettableFuture.create();
+                blocked.add(future);
+                return toDiscoveryFuture("Announcement", future);
+            }
+            return Futures.immediateCheckedFuture(maxAge);
+        }
+
+        @Override
+        public CheckedFuture<Duration, DiscoveryException> heartbeat()
+        {
+            heartbeats.incrementAndGet();
+            if (heartbeatRejected) {
+                return Futures.immediateCheckedFuture(null);
+            }
+            return Futures.immediateCheckedFuture(maxAge);
+        }
+
+        @Override
+        public CheckedFuture<Void, DiscoveryException> unannounce()
+        {
+            return Futures.immediateCheckedFuture(null);
+        }
+    }
+
+    private static class FixedLoadReporter implements LoadReporter
+    {
+        private volatile double load;
+
+        private FixedLoadReporter(double load)
+        {
+            this.load = load;
+        }
+
+        public void setLoad(double load)
+        {
+            this.load = load;
+        }
+
+        @Override
+        public double getLoad()
+        {
+            return load;
+        }
+    }
 }
@@ -2,18 +2,27 @@ package com.proofpoint.discovery.client;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.CheckedFuture;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.proofpoint.discovery.client.testing.InMemoryDiscoveryClient;
 import com.proofpoint.node.NodeInfo;
 import com.proofpoint.testing.Assertions;
+import com.proofpoint.testing.FileUtils;
+import com.proofpoint.units.Duration;
 import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.File;
 import java.util.UUID;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.proofpoint.json.JsonCodec.jsonCodec;
 
 public class TestCachingServiceSelector
 {
@@ -116,4 +125,79 @@ public class TestCachingServiceSelector
 
         Assertions.assertEqualsIgnoreOrder(serviceSelector.selectAllServices(), ImmutableList.of(APPLE_1_SERVICE, APPLE_2_SERVICE));
     }
+
+    @Test
+    public void testStartedWithSavedServices()
+            throws Exception
+    {
+        File directory = Files.createTempDir();
+        try {
+            File file = new File(directory, "discovery.json");
+            DiscoverySnapshot snapshot = new DiscoverySnapshot(file, "environment", jsonCodec(DiscoverySnapshotRepresentation.class));
+            snapshot.put(new ServiceDescriptors("apple", "pool", ImmutableList.of(APPLE_1_SERVICE), new Duration(5, TimeUnit.SECONDS), null));
+
+            // discovery is down, so the saved services are used
+            CachingServiceSelector serviceSelector = new CachingServiceSelector("apple",
+                    new ServiceSelectorConfig().setPool("pool"),
+                    new UnavailableLookupClient(),
+                    new DiscoverySnapshot(file, "environment", jsonCodec(DiscoverySnapshotRepresentation.class)),
+                    executor);
+            long start = System.nanoTime();
+            serviceSelector.start();
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+            Assert.assertEquals(serviceSelector.selectAllServices(), ImmutableList.of(APPLE_1_SERVICE));
+            Assert.assertTrue(serviceSelector.isStale());
+
+            // once discovery responds, its services replace the saved ones and are saved
+            InMemoryDiscoveryClient discoveryClient = new InMemoryDiscoveryClient(nodeInfo);
+            discoveryClient.addDiscoveredService(APPLE_1_SERVICE);
+            discoveryClient.addDiscoveredService(APPLE_2_SERVICE);
+            serviceSelector = new CachingServiceSelector("apple",
+                    new ServiceSelectorConfig().setPool("pool"),
+                    discoveryClient,
+                    snapshot,
+                    executor);
+            serviceSelector.start();
+            Thread.sleep(100);
+            Assert.assertFalse(serviceSelector.isStale());
+            Assertions.assertEqualsIgnoreOrder(serviceSelector.selectAllServices(), ImmutableList.of(APPLE_1_SERVICE, APPLE_2_SERVICE));
+            Assert.assertEquals(new DiscoverySnapshot(file, "environment", jsonCodec(DiscoverySnapshotRepresentation.class)).get("apple", "pool").getServiceDescriptors(),
+                    serviceSelector.selectAllServices());
+        }
+        finally {
+            FileUtils.deleteRecursively(directory);
+        }
+    }
+
+    private static class UnavailableLookupClient implements DiscoveryLookupClient
+    {
+        @Override
+        public CheckedFuture<ServiceDescriptors, DiscoveryException> getServices(String type)
+        {
+            return unavailable();
+        }
+
+        @Override
+        public CheckedFuture<ServiceDescriptors, DiscoveryException> getServices(String type, String pool)
+        {
+            return unavailable();
+        }
+
+        @Override
+        public CheckedFuture<ServiceDescriptors, DiscoveryException> getAllServices()
+        {
+            return unavailable();
+        }
+
+        @Override
+        public CheckedFuture<ServiceDescriptors, DiscoveryException> refreshServices(ServiceDescriptors serviceDescriptors)
+        {
+            return unavailable();
+        }
+
+        private static CheckedFuture<ServiceDescriptors, DiscoveryException> unavailable()
+        {
+            return Futures.immediateFailedCheckedFuture(new DiscoveryException("No discovery servers are available"));
+        }
+    }
 }
@@ -0,0 +1,201 @@
+package com.proofpoint.discovery.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.CheckedFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.discovery.client.testing.InMemoryDiscoveryClient;
+import com.proofpoint.node.NodeInfo;
+import com.proofpoint.testing.FileUtils;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.proofpoint.json.JsonCodec.jsonCodec;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TestDiscoveryCache
+{
+    private static final ServiceDescriptor APPLE_1_SERVICE = new ServiceDescriptor(UUID.randomUUID(), "node-A", "apple", "pool", "location", ServiceState.RUNNING, ImmutableMap.of("a", "apple"));
+    private static final ServiceDescriptor APPLE_2_SERVICE = new ServiceDescriptor(UUID.randomUUID(), "node-B", "apple", "pool", "location", ServiceState.RUNNING, ImmutableMap.of("a", "apple"));
+    private static final ServiceDescriptor DIFFERENT_TYPE = new ServiceDescriptor(UUID.randomUUID(), "node-A", "banana", "pool", "location", ServiceState.RUNNING, ImmutableMap.of("b", "banana"));
+    private static final ServiceDescriptor DIFFERENT_POOL = new ServiceDescriptor(UUID.randomUUID(), "node-B", "apple", "fool", "location", ServiceState.RUNNING, ImmutableMap.of("a", "apple"));
+
+    private ScheduledExecutorService executor;
+    private InMemoryDiscoveryClient discoveryClient;
+    private CountingLookupClient lookupClient;
+
+    @BeforeMethod
+    protected void setUp()
+            throws Exception
+    {
+        executor = new ScheduledThreadPoolExecutor(10, new ThreadFactoryBuilder().setNameFormat("Discovery-%s").setDaemon(true).build());
+        discoveryClient = new InMemoryDiscoveryClient(new NodeInfo("environment"), new Duration(50, TimeUnit.MILLISECONDS));
+        discoveryClient.addDiscoveredService(APPLE_1_SERVICE);
+        discoveryClient.addDiscoveredService(DIFFERENT_TYPE);
+        discoveryClient.addDiscoveredService(DIFFERENT_POOL);
+        lookupClient = new CountingLookupClient(discoveryClient);
+    }
+
+    @AfterMethod
+    public void tearDown()
+            throws Exception
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSelectorsShareLookup()
+    {
+        DiscoveryCache cache = new DiscoveryCache(lookupClient, executor);
+
+        ServiceSelector apple = cache.createServiceSelector("apple", new ServiceSelectorConfig().setPool("pool"));
+        ServiceSelector banana = cache.createServiceSelector("banana", new ServiceSelectorConfig().setPool("pool"));
+        ServiceSelector appleFool = cache.createServiceSelector("apple", new ServiceSelectorConfig().setPool("fool"));
+        ServiceSelector cherry = cache.createServiceSelector("cherry", new ServiceSelectorConfig().setPool("pool"));
+
+        assertEquals(apple.getType(), "apple");
+        assertEquals(apple.getPool(), "pool");
+        assertEquals(apple.selectAllServices(), ImmutableList.of(APPLE_1_SERVICE));
+        assertEquals(banana.selectAllServices(), ImmutableList.of(DIFFERENT_TYPE));
+        assertEquals(appleFool.selectAllServices(), ImmutableList.of(DIFFERENT_POOL));
+        assertEquals(cherry.selectAllServices(), ImmutableList.of());
+
+        assertEquals(lookupClient.getAllServicesCount.get(), 1);
+        assertEquals(lookupClient.typeLookupCount.get(), 0);
+        assertEquals(cache.getSubscriptionCount(), 4);
+        assertSame(cache.createServiceSelector("apple", new ServiceSelectorConfig().setPool("pool")), apple);
+    }
+
+    @Test
+    public void testRefresh()
+            throws Exception
+    {
+        DiscoveryCache cache = new DiscoveryCache(lookupClient, executor);
+
+        ServiceSelector apple = cache.createServiceSelector("apple", new ServiceSelectorConfig().setPool("pool"));
+        ServiceSelector banana = cache.createServiceSelector("banana", new ServiceSelectorConfig().setPool("pool"));
+        assertEquals(apple.selectAllServices(), ImmutableList.of(APPLE_1_SERVICE));
+
+        discoveryClient.addDiscoveredService(APPLE_2_SERVICE);
+        discoveryClient.remove(DIFFERENT_TYPE.getId());
+        Thread.sleep(300);
+
+        assertEquals(apple.selectAllServices().size(), 2);
+        assertTrue(apple.selectAllServices().contains(APPLE_2_SERVICE));
+        assertEquals(banana.selectAllServices(), ImmutableList.of());
+        assertEquals(lookupClient.typeLookupCount.get(), 0);
+    }
+
+    @Test
+    public void testCacheAges()
+    {
+        DiscoveryCache cache = new DiscoveryCache(lookupClient, executor);
+        cache.createServiceSelector("apple", new ServiceSelectorConfig().setPool("pool"));
+
+        Duration cacheAge = cache.getCacheAges().get("apple/pool");
+        assertNotNull(cacheAge);
+        assertTrue(cacheAge.toMillis() < 1000);
+        assertTrue(cache.getCacheAgeSeconds() < 1);
+        assertTrue(cache.getSubscriptions().startsWith("apple/pool 1 services, age "));
+    }
+
+    @Test
+    public void testDiscoveryUnavailable()
+    {
+        DiscoveryCache cache = new DiscoveryCache(new CountingLookupClient(null), executor);
+        ServiceSelector apple = cache.createServiceSelector("apple", new ServiceSelectorConfig().setPool("pool"));
+
+        assertEquals(apple.selectAllServices(), ImmutableList.of());
+        assertNull(cache.getCacheAges().get("apple/pool"));
+        assertTrue(Double.isNaN(cache.getCacheAgeSeconds()));
+    }
+
+    @Test
+    public void testSavedServicesUsedUntilDiscoveryResponds()
+            throws Exception
+    {
+        File directory = Files.createTempDir();
+        try {
+            File file = new File(directory, "discovery.json");
+            DiscoveryCache cache = new DiscoveryCache(lookupClient, new DiscoverySnapshot(file, "environment", jsonCodec(DiscoverySnapshotRepresentation.class)), executor);
+            cache.createServiceSelector("apple", new ServiceSelectorConfig().setPool("pool"));
+            assertFalse(cache.isStale());
+
+            cache = new DiscoveryCache(new CountingLookupClient(null), new DiscoverySnapshot(file, "environment", jsonCodec(DiscoverySnapshotRepresentation.class)), executor);
+            ServiceSelector apple = cache.createServiceSelector("apple", new ServiceSelectorConfig().setPool("pool"));
+            ServiceSelector banana = cache.createServiceSelector("banana", new ServiceSelectorConfig().setPool("pool"));
+            assertEquals(apple.selectAllServices(), ImmutableList.of(APPLE_1_SERVICE));
+            assertEquals(banana.selectAllServices(), ImmutableList.of(DIFFERENT_TYPE));
+            assertTrue(cache.isStale());
+            assertNull(cache.getCacheAges().get("apple/pool"));
+            assertTrue(Double.isNaN(cache.getCacheAgeSeconds()));
+        }
+        finally {
+            FileUtils.deleteRecursively(directory);
+        }
+    }
+
+    private static class CountingLookupClient implements DiscoveryLookupClient
+    {
+        private final DiscoveryLookupClient delegate;
+        private final AtomicInteger getAllServicesCount = new AtomicInteger();
+        private final AtomicInteger typeLookupCount = new AtomicInteger();
+
+        private CountingLookupClient(DiscoveryLookupClient delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public CheckedFuture<ServiceDescriptors, DiscoveryException> getServices(String type)
+        {
+            typeLookupCount.incrementAndGet();
+            return delegate.getServices(type);
+        }
+
+        @Override
+        public CheckedFuture<ServiceDescriptors, DiscoveryException> getServices(String type, String pool)
+        {
+            typeLookupCount.incrementAndGet();
+            return delegate.getServices(type, pool);
+        }
+
+        @Override
+        public CheckedFuture<ServiceDescriptors, DiscoveryException> getAllServices()
+        {
+            getAllServicesCount.incrementAndGet();
+            if (delegate == null) {
+                return Futures.immediateFailedCheckedFuture(new DiscoveryException("No discovery servers are available"));
+            }
+            return delegate.getAllServices();
+        }
+
+        @Override
+        public CheckedFuture<ServiceDescriptors, DiscoveryException> refreshServices(ServiceDescriptors serviceDescriptors)
+        {
+            if (serviceDescriptors.getType() != null) {
+                typeLookupCount.incrementAndGet();
+            }
+            if (delegate == null) {
+                return Futures.immediateFailedCheckedFuture(new DiscoveryException("No discovery servers are available"));
+            }
+            return delegate.refreshServices(serviceDescriptors);
+        }
+    }
+}
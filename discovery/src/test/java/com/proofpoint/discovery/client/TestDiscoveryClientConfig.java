@@ -2,10 +2,12 @@ package com.proofpoint.discovery.client;
 
 import com.google.common.collect.ImmutableMap;
 import com.proofpoint.configuration.testing.ConfigAssertions;
+import com.proofpoint.units.Duration;
 import org.testng.annotations.Test;
 
 import java.net.URI;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class TestDiscoveryClientConfig
 {
@@ -13,7 +15,13 @@ public class TestDiscoveryClientConfig
     public void testDefaults()
     {
         ConfigAssertions.assertRecordedDefaults(ConfigAssertions.recordDefaults(DiscoveryClientConfig.class)
-                .setDiscoveryServiceURI(null));
+                .setDiscoveryServiceURI(null)
+                .setWatchEnabled(false)
+                .setWatchTimeout(new Duration(30, TimeUnit.SECONDS))
+                .setMultiplexLookups(false)
+                .setSnapshotPath(null)
+                .setLookupHedgeDelay(null)
+                .setHeartbeatEnabled(false));
     }
 
     @Test
@@ -21,10 +29,22 @@ public class TestDiscoveryClientConfig
     {
         Map<String, String> properties = new ImmutableMap.Builder<String, String>()
                 .put("discovery.uri", "fake://server")
+                .put("discovery.watch.enabled", "true")
+                .put("discovery.watch.timeout", "2m")
+                .put("discovery.multiplex-lookups", "true")
+                .put("discovery.snapshot.path", "/var/discovery-snapshot.json")
+                .put("discovery.lookup.hedge-delay", "50ms")
+                .put("discovery.announcement.heartbeat-enabled", "true")
                 .build();
 
         DiscoveryClientConfig expected = new DiscoveryClientConfig()
-                .setDiscoveryServiceURI(URI.create("fake://server"));
+                .setDiscoveryServiceURI(URI.create("fake://server"))
+                .setWatchEnabled(true)
+                .setWatchTimeout(new Duration(2, TimeUnit.MINUTES))
+                .setMultiplexLookups(true)
+                .setSnapshotPath("/var/discovery-snapshot.json")
+                .setLookupHedgeDelay(new Duration(50, TimeUnit.MILLISECONDS))
+                .setHeartbeatEnabled(true);
 
         ConfigAssertions.assertFullMapping(properties, expected);
     }
@@ -28,6 +28,22 @@ public class TestDiscoveryModule
         Assert.assertNotNull(injector.getInstance(DiscoveryLookupClient.class));
         // should produce an Announcer
         Assert.assertNotNull(injector.getInstance(Announcer.class));
+        // should produce a caching service selector factory by default
+        Assert.assertTrue(injector.getInstance(ServiceSelectorFactory.class) instanceof CachingServiceSelectorFactory);
+    }
+
+    @Test
+    public void testMultiplexedLookups()
+            throws Exception
+    {
+        Injector injector = Guice.createInjector(
+                new ConfigurationModule(new ConfigurationFactory(ImmutableMap.of("discovery.uri", "fake://server", "discovery.multiplex-lookups", "true"))),
+                new JsonModule(),
+                new TestingNodeModule(),
+                new DiscoveryModule()
+        );
+
+        Assert.assertSame(injector.getInstance(ServiceSelectorFactory.class), injector.getInstance(DiscoveryCache.class));
     }
 
 }
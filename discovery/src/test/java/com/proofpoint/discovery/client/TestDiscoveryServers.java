@@ -0,0 +1,254 @@
+package com.proofpoint.discovery.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.CheckedFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.discovery.client.DiscoveryServers.DiscoveryRequest;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.inject.Provider;
+import java.net.ConnectException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.proofpoint.discovery.client.DiscoveryFutures.toDiscoveryFuture;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestDiscoveryServers
+{
+    private static final URI SERVER_A = URI.create("http://a");
+    private static final URI SERVER_B = URI.create("http://b");
+    private static final URI SERVER_C = URI.create("http://c");
+    private static final Provider<List<URI>> SERVERS = new Provider<List<URI>>()
+    {
+        @Override
+        public List<URI> get()
+        {
+            return ImmutableList.of(SERVER_A, SERVER_B, SERVER_C);
+        }
+    };
+
+    private ScheduledExecutorService executor;
+
+    @BeforeMethod
+    public void setup()
+    {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setDaemon(true).build());
+    }
+
+    @AfterMethod
+    public void teardown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRequestsSpreadOverServers()
+            throws Exception
+    {
+        DiscoveryServers servers = new DiscoveryServers(SERVERS, new DiscoveryClientConfig(), executor);
+        ScriptedRequest request = new ScriptedRequest();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(servers.execute("test", request, false).checkedGet(), "ok");
+        }
+
+        assertEquals(ImmutableList.copyOf(request.getSent()), ImmutableList.of(SERVER_A, SERVER_B, SERVER_C));
+        for (DiscoveryServerStats stats : servers.getServerStats().values()) {
+            assertEquals(stats.getRequests(), 1);
+            assertEquals(stats.getLatency().getCount(), 1);
+        }
+    }
+
+    @Test
+    public void testFailover()
+            throws Exception
+    {
+        DiscoveryServers servers = new DiscoveryServers(SERVERS, new DiscoveryClientConfig(), executor);
+        ScriptedRequest request = new ScriptedRequest(SERVER_A);
+
+        assertEquals(servers.execute("test", request, false).checkedGet(), "ok");
+        assertEquals(request.getSent(), ImmutableList.of(SERVER_A, SERVER_B));
+        assertEquals(servers.getFailovers(), 1);
+
+        Map<URI, DiscoveryServerStats> stats = servers.getServerStats();
+        assertEquals(stats.get(SERVER_A).getFailures(), 1);
+        assertEquals(stats.get(SERVER_A).getConsecutiveFailures(), 1);
+        assertEquals(stats.get(SERVER_B).getFailures(), 0);
+        assertTrue(servers.getServers().contains("http://a requests=1 failures=1"));
+
+        // the failed server is tried last until its backoff expires
+        request.getSent().clear();
+        servers.execute("test", request, false).checkedGet();
+        servers.execute("test", request, false).checkedGet();
+        assertFalse(request.getSent().contains(SERVER_A));
+    }
+
+    @Test
+    public void testServerErrorFailedOver()
+            throws Exception
+    {
+        DiscoveryServers servers = new DiscoveryServers(SERVERS, new DiscoveryClientConfig(), executor);
+        ScriptedRequest request = new ScriptedRequest();
+        request.fail(SERVER_A, DiscoveryResponses.statusException("unavailable", 503));
+
+        assertEquals(servers.execute("test", request, false).checkedGet(), "ok");
+        assertEquals(request.getSent(), ImmutableList.of(SERVER_A, SERVER_B));
+        assertEquals(servers.getServerStats().get(SERVER_A).getFailures(), 1);
+    }
+
+    @Test
+    public void testClientErrorNotFailedOver()
+    {
+        DiscoveryServers servers = new DiscoveryServers(SERVERS, new DiscoveryClientConfig(), executor);
+        ScriptedRequest request = new ScriptedRequest();
+        DiscoveryException exception = DiscoveryResponses.statusException("rejected", 400);
+        request.fail(SERVER_A, exception);
+
+        try {
+            servers.execute("test", request, false).checkedGet();
+            fail("expected DiscoveryException");
+        }
+        catch (DiscoveryException e) {
+            assertSame(e, exception);
+        }
+        assertEquals(request.getSent(), ImmutableList.of(SERVER_A));
+        assertEquals(servers.getFailovers(), 0);
+        assertEquals(servers.getServerStats().get(SERVER_A).getFailures(), 0);
+    }
+
+    @Test
+    public void testAllServersFail()
+    {
+        DiscoveryServers servers = new DiscoveryServers(SERVERS, new DiscoveryClientConfig(), executor);
+        ScriptedRequest request = new ScriptedRequest(SERVER_A, SERVER_B, SERVER_C);
+
+        try {
+            servers.execute("test", request, false).checkedGet();
+            fail("expected DiscoveryException");
+        }
+        catch (DiscoveryException e) {
+            assertTrue(e.getMessage().startsWith("failed "));
+        }
+        assertEquals(request.getSent().size(), 3);
+        assertEquals(servers.getFailovers(), 2);
+    }
+
+    @Test
+    public void testNoServers()
+    {
+        DiscoveryServers servers = DiscoveryServers.singleServer(new Provider<URI>()
+        {
+            @Override
+            public URI get()
+            {
+                return null;
+            }
+        });
+
+        try {
+            servers.execute("test", new ScriptedRequest(), false).checkedGet();
+            fail("expected DiscoveryException");
+        }
+        catch (DiscoveryException e) {
+            assertEquals(e.getMessage(), "No discovery servers are available");
+        }
+    }
+
+    @Test
+    public void testHedgedRequest()
+            throws Exception
+    {
+        DiscoveryServers servers = new DiscoveryServers(SERVERS, new Duration(10, TimeUnit.MILLISECONDS), executor);
+        ScriptedRequest request = new ScriptedRequest();
+        request.hang(SERVER_A);
+
+        assertEquals(servers.execute("test", request, true).checkedGet(1, TimeUnit.SECONDS), "ok");
+        assertEquals(request.getSent(), ImmutableList.of(SERVER_A, SERVER_B));
+        assertEquals(servers.getHedgedRequests(), 1);
+        assertTrue(request.getHanging().isCancelled());
+        assertEquals(servers.getServerStats().get(SERVER_A).getFailures(), 0);
+    }
+
+    @Test
+    public void testNotHedgedUnlessRequested()
+            throws Exception
+    {
+        DiscoveryServers servers = new DiscoveryServers(SERVERS, new Duration(10, TimeUnit.MILLISECONDS), executor);
+        ScriptedRequest request = new ScriptedRequest();
+        request.hang(SERVER_A);
+
+        CheckedFuture<String, DiscoveryException> future = servers.execute("test", request, false);
+        Thread.sleep(100);
+        assertFalse(future.isDone());
+        assertEquals(request.getSent(), ImmutableList.of(SERVER_A));
+
+        future.cancel(true);
+        assertTrue(request.getHanging().isCancelled());
+    }
+
+    private static class ScriptedRequest implements DiscoveryRequest<String>
+    {
+        private final List<URI> failing;
+        private final List<URI> sent = Lists.newArrayList();
+        private final Map<URI, DiscoveryException> exceptions = Maps.newHashMap();
+        private URI hangingServer;
+        private SettableFuture<String> hanging;
+
+        private ScriptedRequest(URI... failing)
+        {
+            this.failing = ImmutableList.copyOf(failing);
+        }
+
+        public synchronized void fail(URI server, DiscoveryException exception)
+        {
+            exceptions.put(server, exception);
+        }
+
+        public synchronized void hang(URI server)
+        {
+            hangingServer = server;
+        }
+
+        public synchronized SettableFuture<String> getHanging()
+        {
+            return hanging;
+        }
+
+        public synchronized List<URI> getSent()
+        {
+            return sent;
+        }
+
+        @Override
+        public synchronized CheckedFuture<String, DiscoveryException> send(URI discoveryUri)
+        {
+            sent.add(discoveryUri);
+            if (discoveryUri.equals(hangingServer)) {
+                hanging = SettableFuture.create();
+                return toDiscoveryFuture("hanging", hanging);
+            }
+            if (exceptions.containsKey(discoveryUri)) {
+                return Futures.immediateFailedCheckedFuture(exceptions.get(discoveryUri));
+            }
+            if (failing.contains(discoveryUri)) {
+                return Futures.immediateFailedCheckedFuture(new DiscoveryException("failed " + discoveryUri, new ConnectException("refused")));
+            }
+            return Futures.immediateCheckedFuture("ok");
+        }
+    }
+}
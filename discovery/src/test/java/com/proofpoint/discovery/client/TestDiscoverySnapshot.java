@@ -0,0 +1,127 @@
+package com.proofpoint.discovery.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.proofpoint.json.JsonCodec;
+import com.proofpoint.testing.FileUtils;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static com.proofpoint.json.JsonCodec.jsonCodec;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestDiscoverySnapshot
+{
+    private static final JsonCodec<DiscoverySnapshotRepresentation> CODEC = jsonCodec(DiscoverySnapshotRepresentation.class);
+    private static final ServiceDescriptor APPLE_1 = new ServiceDescriptor(UUID.randomUUID(), "node-A", "apple", "pool", "location", ServiceState.RUNNING, ImmutableMap.of("http", "http://a"));
+    private static final ServiceDescriptor APPLE_2 = new ServiceDescriptor(UUID.randomUUID(), "node-B", "apple", "pool", "location", ServiceState.RUNNING, ImmutableMap.of("http", "http://b"));
+    private static final ServiceDescriptor BANANA = new ServiceDescriptor(UUID.randomUUID(), "node-A", "banana", "pool", "location", ServiceState.RUNNING, ImmutableMap.of("http", "http://c"));
+
+    private File directory;
+    private File file;
+
+    @BeforeMethod
+    public void setup()
+    {
+        directory = Files.createTempDir();
+        file = new File(directory, "snapshot/discovery.json");
+    }
+
+    @AfterMethod
+    public void teardown()
+            throws Exception
+    {
+        FileUtils.deleteRecursively(directory);
+    }
+
+    @Test
+    public void testSavedServicesLoaded()
+    {
+        DiscoverySnapshot snapshot = new DiscoverySnapshot(file, "test", CODEC);
+        assertTrue(snapshot.isEnabled());
+        assertNull(snapshot.get("apple", "pool"));
+
+        snapshot.put(new ServiceDescriptors("apple", "pool", ImmutableList.of(APPLE_1, APPLE_2), new Duration(5, TimeUnit.SECONDS), "\"1\""));
+        snapshot.put(new ServiceDescriptors(null, null, ImmutableList.of(APPLE_1, BANANA), new Duration(5, TimeUnit.SECONDS), null));
+        assertTrue(file.exists());
+        assertEquals(file.getParentFile().list(), new String[] {"discovery.json"});
+
+        DiscoverySnapshot loaded = new DiscoverySnapshot(file, "test", CODEC);
+        ServiceDescriptors apple = loaded.get("apple", "pool");
+        assertEquals(apple.getServiceDescriptors(), ImmutableList.of(APPLE_1, APPLE_2));
+        assertEquals(apple.getETag(), "\"1\"");
+        assertEquals(apple.getMaxAge(), new Duration(0, TimeUnit.SECONDS));
+
+        ServiceDescriptors all = loaded.get(null, null);
+        assertEquals(all.getServiceDescriptors(), ImmutableList.of(APPLE_1, BANANA));
+        assertNull(all.getETag());
+        assertNull(loaded.get("apple", "fool"));
+    }
+
+    @Test
+    public void testUnchangedServicesNotRewritten()
+    {
+        DiscoverySnapshot snapshot = new DiscoverySnapshot(file, "test", CODEC);
+        snapshot.put(new ServiceDescriptors("apple", "pool", ImmutableList.of(APPLE_1), new Duration(5, TimeUnit.SECONDS), "\"1\""));
+        assertTrue(file.setLastModified(0));
+
+        snapshot.put(new ServiceDescriptors("apple", "pool", ImmutableList.of(APPLE_1), new Duration(10, TimeUnit.SECONDS), "\"1\""));
+        assertEquals(file.lastModified(), 0);
+
+        snapshot.put(new ServiceDescriptors("apple", "pool", ImmutableList.of(APPLE_1, APPLE_2), new Duration(5, TimeUnit.SECONDS), "\"2\""));
+        assertFalse(file.lastModified() == 0);
+    }
+
+    @Test
+    public void testOtherEnvironmentIgnored()
+    {
+        new DiscoverySnapshot(file, "test", CODEC).put(new ServiceDescriptors("apple", "pool", ImmutableList.of(APPLE_1), new Duration(5, TimeUnit.SECONDS), null));
+
+        assertNull(new DiscoverySnapshot(file, "production", CODEC).get("apple", "pool"));
+    }
+
+    @Test
+    public void testOtherVersionIgnored()
+            throws Exception
+    {
+        Files.createParentDirs(file);
+        Files.write(CODEC.toJson(new DiscoverySnapshotRepresentation(DiscoverySnapshot.VERSION + 1, "test", ImmutableList.of(
+                new DiscoverySnapshotRepresentation.Entry("apple", "pool", null, ImmutableList.of(APPLE_1))))), file, Charsets.UTF_8);
+
+        assertNull(new DiscoverySnapshot(file, "test", CODEC).get("apple", "pool"));
+    }
+
+    @Test
+    public void testCorruptSnapshotIgnored()
+            throws Exception
+    {
+        Files.createParentDirs(file);
+        Files.write("{\"version\": 1, \"environ", file, Charsets.UTF_8);
+
+        DiscoverySnapshot snapshot = new DiscoverySnapshot(file, "test", CODEC);
+        assertNull(snapshot.get("apple", "pool"));
+
+        snapshot.put(new ServiceDescriptors("apple", "pool", ImmutableList.of(APPLE_1), new Duration(5, TimeUnit.SECONDS), null));
+        assertEquals(new DiscoverySnapshot(file, "test", CODEC).get("apple", "pool").getServiceDescriptors(), ImmutableList.of(APPLE_1));
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        DiscoverySnapshot snapshot = DiscoverySnapshot.disabled();
+        assertFalse(snapshot.isEnabled());
+        snapshot.put(new ServiceDescriptors("apple", "pool", ImmutableList.of(APPLE_1), new Duration(5, TimeUnit.SECONDS), null));
+        assertNull(snapshot.get("apple", "pool"));
+    }
+}
@@ -0,0 +1,363 @@
+package com.proofpoint.discovery.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.CheckedFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.http.client.ApacheHttpClient;
+import com.proofpoint.http.client.AsyncHttpClient;
+import com.proofpoint.json.JsonCodec;
+import com.proofpoint.node.NodeInfo;
+import com.proofpoint.units.Duration;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.HandlerCollection;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.inject.Provider;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+public class TestHttpDiscoveryLookupClient
+{
+    private static final JsonCodec<ServiceDescriptorsRepresentation> CODEC = JsonCodec.jsonCodec(ServiceDescriptorsRepresentation.class);
+    private static final ServiceDescriptor APPLE_1 = new ServiceDescriptor(UUID.randomUUID(), "node-A", "apple", "pool", "location", ServiceState.RUNNING, ImmutableMap.of("a", "apple"));
+    private static final ServiceDescriptor APPLE_2 = new ServiceDescriptor(UUID.randomUUID(), "node-B", "apple", "pool", "location", ServiceState.RUNNING, ImmutableMap.of("a", "apple"));
+
+    private DiscoveryServlet servlet;
+    private Server server;
+    private URI baseUri;
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setup()
+            throws Exception
+    {
+        int port = findUnusedPort();
+        baseUri = new URI("http", null, "127.0.0.1", port, null, null, null);
+
+        server = new Server();
+        server.setSendServerVersion(false);
+
+        SelectChannelConnector httpConnector = new SelectChannelConnector();
+        httpConnector.setName("http");
+        httpConnector.setPort(port);
+        server.addConnector(httpConnector);
+
+        servlet = new DiscoveryServlet();
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.addServlet(new ServletHolder(servlet), "/*");
+        HandlerCollection handlers = new HandlerCollection();
+        handlers.addHandler(context);
+        server.setHandler(handlers);
+        server.start();
+
+        executor = newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).build());
+    }
+
+    @AfterMethod
+    public void teardown()
+            throws Exception
+    {
+        executor.shutdownNow();
+        server.stop();
+    }
+
+    @Test
+    public void testConditionalRefresh()
+            throws Exception
+    {
+        HttpDiscoveryLookupClient client = createClient(new DiscoveryClientConfig());
+
+        ServiceDescriptors descriptors = client.getServices("apple", "pool").checkedGet(5, TimeUnit.SECONDS);
+        assertEquals(descriptors.getServiceDescriptors(), ImmutableList.of(APPLE_1));
+        assertEquals(descriptors.getMaxAge(), new Duration(5, TimeUnit.SECONDS));
+        assertNull(servlet.getLastPrefer());
+
+        ServiceDescriptors refreshed = client.refreshServices(descriptors).checkedGet(5, TimeUnit.SECONDS);
+        assertEquals(servlet.getLastIfNoneMatch(), descriptors.getETag());
+        assertEquals(servlet.getNotModifiedCount(), 1);
+        assertSame(refreshed.getServiceDescriptors(), descriptors.getServiceDescriptors());
+        assertEquals(refreshed.getETag(), descriptors.getETag());
+    }
+
+    @Test
+    public void testAllServices()
+            throws Exception
+    {
+        HttpDiscoveryLookupClient client = createClient(new DiscoveryClientConfig());
+
+        ServiceDescriptors descriptors = client.getAllServices().checkedGet(5, TimeUnit.SECONDS);
+        assertEquals(servlet.getLastPath(), "/v1/service");
+        assertNull(descriptors.getType());
+        assertNull(descriptors.getPool());
+        assertEquals(descriptors.getServiceDescriptors(), ImmutableList.of(APPLE_1));
+
+        ServiceDescriptors refreshed = client.refreshServices(descriptors).checkedGet(5, TimeUnit.SECONDS);
+        assertEquals(servlet.getLastPath(), "/v1/service");
+        assertEquals(servlet.getLastIfNoneMatch(), descriptors.getETag());
+        assertSame(refreshed.getServiceDescriptors(), descriptors.getServiceDescriptors());
+    }
+
+    @Test
+    public void testWatchReturnsWhenServicesChange()
+            throws Exception
+    {
+        servlet.setWatchSupported(true);
+        HttpDiscoveryLookupClient client = createClient(new DiscoveryClientConfig().setWatchEnabled(true));
+
+        ServiceDescriptors descriptors = client.getServices("apple", "pool").checkedGet(5, TimeUnit.SECONDS);
+        assertEquals(descriptors.getMaxAge(), new Duration(0, TimeUnit.SECONDS));
+        assertEquals(servlet.getLastPrefer(), "wait=30");
+
+        CheckedFuture<ServiceDescriptors, DiscoveryException> watch = client.refreshServices(descriptors);
+        Thread.sleep(200);
+        assertFalse(watch.isDone());
+
+        servlet.setServices(APPLE_1, APPLE_2);
+        ServiceDescriptors changed = watch.checkedGet(1, TimeUnit.SECONDS);
+        assertEquals(changed.getServiceDescriptors(), ImmutableList.of(APPLE_1, APPLE_2));
+        assertEquals(changed.getMaxAge(), new Duration(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testWatchTimeout()
+            throws Exception
+    {
+        servlet.setWatchSupported(true);
+        HttpDiscoveryLookupClient client = createClient(new DiscoveryClientConfig()
+                .setWatchEnabled(true)
+                .setWatchTimeout(new Duration(1, TimeUnit.SECONDS)));
+
+        ServiceDescriptors descriptors = client.getServices("apple", "pool").checkedGet(5, TimeUnit.SECONDS);
+        ServiceDescriptors refreshed = client.refreshServices(descriptors).checkedGet(5, TimeUnit.SECONDS);
+        assertEquals(servlet.getNotModifiedCount(), 1);
+        assertSame(refreshed.getServiceDescriptors(), descriptors.getServiceDescriptors());
+        assertEquals(refreshed.getMaxAge(), new Duration(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testWatchNotSupported()
+            throws Exception
+    {
+        HttpDiscoveryLookupClient client = createClient(new DiscoveryClientConfig().setWatchEnabled(true));
+
+        ServiceDescriptors descriptors = client.getServices("apple", "pool").checkedGet(5, TimeUnit.SECONDS);
+        assertEquals(descriptors.getMaxAge(), new Duration(5, TimeUnit.SECONDS));
+
+        // the server answers immediately and the client falls back to polling at the max-age
+        ServiceDescriptors refreshed = client.refreshServices(descriptors).checkedGet(1, TimeUnit.SECONDS);
+        assertEquals(servlet.getNotModifiedCount(), 1);
+        assertEquals(refreshed.getMaxAge(), new Duration(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testWatchNotHedged()
+            throws Exception
+    {
+        servlet.setWatchSupported(true);
+        ScheduledExecutorService scheduler = newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).build());
+        try {
+            // the same server under two names
+            final URI otherUri = new URI("http", null, "localhost", baseUri.getPort(), null, null, null);
+            DiscoveryServers servers = new DiscoveryServers(new Provider<List<URI>>()
+            {
+                @Override
+                public List<URI> get()
+                {
+                    return ImmutableList.of(baseUri, otherUri);
+                }
+            }, new Duration(50, TimeUnit.MILLISECONDS), scheduler);
+            HttpDiscoveryLookupClient client = new HttpDiscoveryLookupClient(servers,
+                    new NodeInfo("test"),
+                    CODEC,
+                    new AsyncHttpClient(new ApacheHttpClient(), executor),
+                    new DiscoveryClientConfig().setWatchEnabled(true));
+
+            ServiceDescriptors descriptors = client.getServices("apple", "pool").checkedGet(5, TimeUnit.SECONDS);
+            CheckedFuture<ServiceDescriptors, DiscoveryException> watch = client.refreshServices(descriptors);
+            Thread.sleep(300);
+            assertFalse(watch.isDone());
+            assertEquals(servlet.getRequestCount(), 2);
+            assertEquals(servers.getHedgedRequests(), 0);
+
+            servlet.setServices(APPLE_1, APPLE_2);
+            watch.checkedGet(1, TimeUnit.SECONDS);
+        }
+        finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailoverToWorkingServer()
+            throws Exception
+    {
+        final URI unavailableUri = new URI("http", null, "127.0.0.1", findUnusedPort(), null, null, null);
+        DiscoveryServers servers = new DiscoveryServers(new Provider<List<URI>>()
+        {
+            @Override
+            public List<URI> get()
+            {
+                return ImmutableList.of(unavailableUri, baseUri);
+            }
+        }, new DiscoveryClientConfig(), null);
+        HttpDiscoveryLookupClient client = new HttpDiscoveryLookupClient(servers,
+                new NodeInfo("test"),
+                CODEC,
+                new AsyncHttpClient(new ApacheHttpClient(), executor),
+                new DiscoveryClientConfig());
+
+        for (int i = 0; i < 2; i++) {
+            ServiceDescriptors descriptors = client.getServices("apple", "pool").checkedGet(5, TimeUnit.SECONDS);
+            assertEquals(descriptors.getServiceDescriptors(), ImmutableList.of(APPLE_1));
+        }
+        assertEquals(servers.getServerStats().get(unavailableUri).getFailures(), 1);
+        assertEquals(servers.getServerStats().get(baseUri).getRequests(), 2);
+    }
+
+    private static int findUnusedPort()
+            throws IOException
+    {
+        ServerSocket socket = new ServerSocket();
+        try {
+            socket.bind(new InetSocketAddress(0));
+            return socket.getLocalPort();
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    private HttpDiscoveryLookupClient createClient(DiscoveryClientConfig config)
+    {
+        return new HttpDiscoveryLookupClient(new Provider<URI>()
+        {
+            @Override
+            public URI get()
+            {
+                return baseUri;
+            }
+        },
+                new NodeInfo("test"),
+                CODEC,
+                new AsyncHttpClient(new ApacheHttpClient(), executor),
+                config);
+    }
+
+    /**
+     * Discovery server that holds conditional lookups asking to wait until
+     * the services change, when watching is supported.
+     */
+    private static class DiscoveryServlet extends HttpServlet
+    {
+        private List<ServiceDescriptor> services = ImmutableList.of(APPLE_1);
+        private int version = 1;
+        private boolean watchSupported;
+        private String lastPath;
+        private String lastIfNoneMatch;
+        private String lastPrefer;
+        private int notModifiedCount;
+        private int requestCount;
+
+        public synchronized void setWatchSupported(boolean watchSupported)
+        {
+            this.watchSupported = watchSupported;
+        }
+
+        public synchronized void setServices(ServiceDescriptor... services)
+        {
+            this.services = ImmutableList.copyOf(services);
+            version++;
+            notifyAll();
+        }
+
+        public synchronized String getLastPath()
+        {
+            return lastPath;
+        }
+
+        public synchronized String getLastIfNoneMatch()
+        {
+            return lastIfNoneMatch;
+        }
+
+        public synchronized String getLastPrefer()
+        {
+            return lastPrefer;
+        }
+
+        public synchronized int getNotModifiedCount()
+        {
+            return notModifiedCount;
+        }
+
+        public synchronized int getRequestCount()
+        {
+            return requestCount;
+        }
+
+        @Override
+        protected synchronized void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws IOException
+        {
+            requestCount++;
+            lastPath = request.getRequestURI();
+            lastIfNoneMatch = request.getHeader("If-None-Match");
+            lastPrefer = request.getHeader("Prefer");
+
+            if (watchSupported && lastPrefer != null && lastPrefer.startsWith("wait=")) {
+                response.setHeader("Preference-Applied", lastPrefer);
+                long waitMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(lastPrefer.substring("wait=".length())));
+                long end = System.currentTimeMillis() + waitMillis;
+                try {
+                    while (eTag().equals(lastIfNoneMatch) && System.currentTimeMillis() < end) {
+                        wait(end - System.currentTimeMillis());
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            response.setHeader("ETag", eTag());
+            response.setHeader("Cache-Control", "max-age=5");
+            if (eTag().equals(lastIfNoneMatch)) {
+                notModifiedCount++;
+                response.setStatus(304);
+                return;
+            }
+
+            response.setHeader("Content-Type", "application/json");
+            response.setStatus(200);
+            response.getOutputStream().write(CODEC.toJson(new ServiceDescriptorsRepresentation("test", services)).getBytes(Charsets.UTF_8));
+        }
+
+        private String eTag()
+        {
+            return "\"" + version + "\"";
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.proofpoint.discovery.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.discovery.client.testing.StaticServiceSelector;
+import com.proofpoint.node.NodeConfig;
+import com.proofpoint.node.NodeInfo;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+public class TestHttpServiceSelectorImpl
+{
+    @Test
+    public void testNoServices()
+    {
+        HttpServiceSelector selector = new HttpServiceSelectorImpl(new StaticServiceSelector());
+        assertEquals(selector.selectHttpService(), ImmutableList.of());
+        assertNull(selector.selectOne());
+    }
+
+    @Test
+    public void testHttpsBeforeHttp()
+    {
+        HttpServiceSelector selector = new HttpServiceSelectorImpl(new StaticServiceSelector(
+                service(ImmutableMap.of("http", "http://a", "https", "https://a")),
+                service(ImmutableMap.of("http", "http://b")),
+                service(ImmutableMap.of("https", "https://c"))));
+
+        for (int i = 0; i < 10; i++) {
+            List<URI> uris = selector.selectHttpService();
+            assertEquals(uris.size(), 4);
+            assertEquals(ImmutableSet.copyOf(uris.subList(0, 2)), ImmutableSet.of(URI.create("https://a"), URI.create("https://c")));
+            assertEquals(ImmutableSet.copyOf(uris.subList(2, 4)), ImmutableSet.of(URI.create("http://a"), URI.create("http://b")));
+            assertEquals(selector.selectOne().getScheme(), "https");
+        }
+    }
+
+    @Test
+    public void testOneUriPerInstance()
+    {
+        HttpServiceSelector selector = new HttpServiceSelectorImpl(new StaticServiceSelector(
+                service(ImmutableMap.of("http", "http://a", "https", "https://a")),
+                service(ImmutableMap.of("http", "http://b")),
+                service(ImmutableMap.of("https", "https://c")),
+                service(ImmutableMap.of("http", "http://d", "https", "::"))));
+
+        for (int i = 0; i < 10; i++) {
+            List<URI> uris = selector.selectInstanceUris();
+            assertEquals(uris.size(), 4);
+            assertEquals(ImmutableSet.copyOf(uris.subList(0, 2)), ImmutableSet.of(URI.create("https://a"), URI.create("https://c")));
+            assertEquals(ImmutableSet.copyOf(uris.subList(2, 4)), ImmutableSet.of(URI.create("http://b"), URI.create("http://d")));
+        }
+    }
+
+    @Test
+    public void testInvalidUrisIgnored()
+    {
+        HttpServiceSelector selector = new HttpServiceSelectorImpl(new StaticServiceSelector(
+                service(ImmutableMap.of("http", ":invalid", "https", "::")),
+                service(ImmutableMap.of("http", "http://b")),
+                service(ImmutableMap.of("other", "http://c"))));
+
+        assertEquals(selector.selectHttpService(), ImmutableList.of(URI.create("http://b")));
+        assertEquals(selector.selectOne(), URI.create("http://b"));
+    }
+
+    @Test
+    public void testRoundRobin()
+    {
+        HttpServiceSelector selector = new HttpServiceSelectorImpl(new StaticServiceSelector(
+                service(ImmutableMap.of("http", "http://a")),
+                service(ImmutableMap.of("http", "http://b")),
+                service(ImmutableMap.of("http", "http://c"))));
+
+        Set<URI> all = ImmutableSet.of(URI.create("http://a"), URI.create("http://b"), URI.create("http://c"));
+
+        Set<URI> selected = new HashSet<URI>();
+        for (int i = 0; i < 3; i++) {
+            selected.add(selector.selectOne());
+        }
+        assertEquals(selected, all);
+
+        Set<URI> first = new HashSet<URI>();
+        for (int i = 0; i < 3; i++) {
+            List<URI> uris = selector.selectHttpService();
+            assertEquals(ImmutableSet.copyOf(uris), all);
+            first.add(uris.get(0));
+        }
+        assertEquals(first, all);
+    }
+
+    @Test
+    public void testUrisReparsedWhenServicesChange()
+    {
+        final AtomicReference<List<ServiceDescriptor>> services = new AtomicReference<List<ServiceDescriptor>>(
+                ImmutableList.of(service(ImmutableMap.of("http", "http://a"))));
+        HttpServiceSelector selector = new HttpServiceSelectorImpl(new ServiceSelector()
+        {
+            @Override
+            public String getType()
+            {
+                return "apple";
+            }
+
+            @Override
+            public String getPool()
+            {
+                return "pool";
+            }
+
+            @Override
+            public List<ServiceDescriptor> selectAllServices()
+            {
+                return services.get();
+            }
+        });
+
+        URI uri = selector.selectOne();
+        assertEquals(uri, URI.create("http://a"));
+        assertSame(selector.selectOne(), uri);
+
+        services.set(ImmutableList.of(service(ImmutableMap.of("http", "http://b"))));
+        assertEquals(selector.selectOne(), URI.create("http://b"));
+        assertEquals(selector.selectHttpService(), ImmutableList.of(URI.create("http://b")));
+    }
+
+    @Test
+    public void testLocalServicesPreferred()
+    {
+        HttpServiceSelectorImpl selector = new HttpServiceSelectorImpl(new StaticServiceSelector(
+                service("/zone-a/rack-1/node-1", ServiceState.RUNNING, "http://rack-1"),
+                service("/zone-a/rack-2/node-2", ServiceState.RUNNING, "http://rack-2"),
+                service("/zone-b/rack-3/node-3", ServiceState.RUNNING, "http://zone-b")),
+                new ServiceSelectorConfig().setPreferLocal(true),
+                nodeInfo("/zone-a/rack-1/node-9"));
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(selector.selectOne(), URI.create("http://rack-1"));
+            List<URI> uris = selector.selectHttpService();
+            assertEquals(uris.get(0), URI.create("http://rack-1"));
+            assertEquals(ImmutableSet.copyOf(uris.subList(1, 3)), ImmutableSet.of(URI.create("http://rack-2"), URI.create("http://zone-b")));
+        }
+        assertEquals(selector.getLocalSelections(), 10);
+        assertEquals(selector.getRemoteSelections(), 0);
+        assertEquals(selector.getLocalityHitRatio(), 1.0);
+    }
+
+    @Test
+    public void testSpillOverUntilEnoughLocalServices()
+    {
+        HttpServiceSelectorImpl selector = new HttpServiceSelectorImpl(new StaticServiceSelector(
+                service("/zone-a/rack-1/node-1", ServiceState.STOPPED, "http://rack-1"),
+                service("/zone-a/rack-2/node-2", ServiceState.RUNNING, "http://rack-2"),
+                service("/zone-a/rack-3/node-3", ServiceState.RUNNING, "http://rack-3"),
+                service("/zone-b/rack-4/node-4", ServiceState.RUNNING, "http://zone-b")),
+                new ServiceSelectorConfig().setPreferLocal(true).setMinLocalServices(2),
+                nodeInfo("/zone-a/rack-1/node-9"));
+
+        // the stopped service in the same rack does not count, so the rest of the zone is preferred
+        Set<URI> selected = new HashSet<URI>();
+        for (int i = 0; i < 10; i++) {
+            selected.add(selector.selectOne());
+            assertEquals(selector.selectHttpService().get(3), URI.create("http://zone-b"));
+        }
+        assertEquals(selected, ImmutableSet.of(URI.create("http://rack-1"), URI.create("http://rack-2"), URI.create("http://rack-3")));
+    }
+
+    @Test
+    public void testRemoteServicesUsedWhenNoLocalServices()
+    {
+        HttpServiceSelectorImpl selector = new HttpServiceSelectorImpl(new StaticServiceSelector(
+                service("/zone-b/rack-3/node-3", ServiceState.RUNNING, "http://zone-b")),
+                new ServiceSelectorConfig().setPreferLocal(true),
+                nodeInfo("/zone-a/rack-1/node-9"));
+
+        assertEquals(selector.selectOne(), URI.create("http://zone-b"));
+    }
+
+    @Test
+    public void testLocalityHitRatioNotRecordedWhenLocalityNotPreferred()
+    {
+        HttpServiceSelectorImpl selector = new HttpServiceSelectorImpl(new StaticServiceSelector(
+                service("/zone-a/rack-1/node-1", ServiceState.RUNNING, "http://rack-1")));
+
+        selector.selectOne();
+        assertEquals(selector.getLocalSelections() + selector.getRemoteSelections(), 0);
+        assertTrue(Double.isNaN(selector.getLocalityHitRatio()));
+    }
+
+    @Test
+    public void testDrainingServicesExcluded()
+    {
+        HttpServiceSelector selector = new HttpServiceSelectorImpl(new StaticServiceSelector(
+                service(ImmutableMap.of("http", "http://a", "draining", "true")),
+                service(ImmutableMap.of("http", "http://b", "draining", "false")),
+                service(ImmutableMap.of("http", "http://c"))));
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(ImmutableSet.copyOf(selector.selectHttpService()), ImmutableSet.of(URI.create("http://b"), URI.create("http://c")));
+            assertTrue(!selector.selectOne().equals(URI.create("http://a")));
+        }
+    }
+
+    @Test
+    public void testLoadedServicesSelectedLessOften()
+    {
+        HttpServiceSelector selector = new HttpServiceSelectorImpl(new StaticServiceSelector(
+                service(ImmutableMap.of("http", "http://idle", "load", "0.0")),
+                service(ImmutableMap.of("http", "http://busy", "load", "0.8")),
+                service(ImmutableMap.of("http", "http://unknown"))));
+
+        Map<URI, Integer> selections = new HashMap<URI, Integer>();
+        Map<URI, Integer> firstInList = new HashMap<URI, Integer>();
+        for (int i = 0; i < 22; i++) {
+            increment(selections, selector.selectOne());
+        }
+        for (int i = 0; i < 22; i++) {
+            List<URI> uris = selector.selectHttpService();
+            assertEquals(uris.size(), 3);
+            increment(firstInList, uris.get(0));
+        }
+
+        // weights are 10, 2 and 10 out of 22
+        assertEquals(selections.get(URI.create("http://idle")), (Integer) 10);
+        assertEquals(selections.get(URI.create("http://busy")), (Integer) 2);
+        assertEquals(selections.get(URI.create("http://unknown")), (Integer) 10);
+        assertEquals(firstInList, selections);
+    }
+
+    private static void increment(Map<URI, Integer> counts, URI uri)
+    {
+        Integer count = counts.get(uri);
+        counts.put(uri, count == null ? 1 : count + 1);
+    }
+
+    private static NodeInfo nodeInfo(String location)
+    {
+        return new NodeInfo(new NodeConfig().setEnvironment("test").setLocation(location));
+    }
+
+    private static ServiceDescriptor service(String location, ServiceState state, String http)
+    {
+        return new ServiceDescriptor(UUID.randomUUID(), "node", "apple", "pool", location, state, ImmutableMap.of("http", http));
+    }
+
+    private static ServiceDescriptor service(Map<String, String> properties)
+    {
+        return new ServiceDescriptor(UUID.randomUUID(), "node", "apple", "pool", "location", ServiceState.RUNNING, properties);
+    }
+}
@@ -2,6 +2,7 @@ package com.proofpoint.discovery.client;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
 import com.google.common.io.Resources;
 import com.proofpoint.http.client.ApacheHttpClient;
 import com.proofpoint.json.JsonCodec;
@@ -18,6 +19,7 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
@@ -60,6 +62,41 @@ public class TestServiceInventory
         Assert.assertEquals(Iterables.size(serviceInventory.getServiceDescriptors("discovery", "general")), 2);
     }
 
+    @Test
+    public void testFileServiceInventoryReloadedOnlyWhenChanged()
+            throws Exception
+    {
+        String serviceInventoryJson = Resources.toString(Resources.getResource("service-inventory.json"), Charsets.UTF_8);
+        File file = File.createTempFile("service-inventory", ".json");
+        try {
+            Files.write(serviceInventoryJson, file, Charsets.UTF_8);
+
+            ServiceInventory serviceInventory = new ServiceInventory(new ServiceInventoryConfig().setServiceInventoryUri(file.toURI()),
+                    new NodeInfo("test"),
+                    JsonCodec.jsonCodec(ServiceDescriptorsRepresentation.class),
+                    new ApacheHttpClient());
+
+            Iterable<ServiceDescriptor> serviceDescriptors = serviceInventory.getServiceDescriptors();
+            Assert.assertEquals(Iterables.size(serviceDescriptors), 2);
+
+            // same contents with a new modified time are not parsed again
+            Files.write(serviceInventoryJson, file, Charsets.UTF_8);
+            Assert.assertTrue(file.setLastModified(file.lastModified() - 10000));
+            serviceInventory.updateServiceInventory();
+            Assert.assertSame(serviceInventory.getServiceDescriptors(), serviceDescriptors);
+
+            Files.write(serviceInventoryJson.replace("\"general\"", "\"special\""), file, Charsets.UTF_8);
+            Assert.assertTrue(file.setLastModified(file.lastModified() + 20000));
+            serviceInventory.updateServiceInventory();
+            Assert.assertEquals(Iterables.size(serviceInventory.getServiceDescriptors("discovery", "general")), 0);
+            Assert.assertEquals(Iterables.size(serviceInventory.getServiceDescriptors("discovery", "special")), 2);
+            Assert.assertEquals(Iterables.size(serviceInventory.getServiceDescriptors("unknown")), 0);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
     @Test
     public void testHttpServiceInventory()
             throws Exception
@@ -88,7 +125,8 @@ public class TestServiceInventory
             httpConnector.setPort(port);
             server.addConnector(httpConnector);
 
-            ServletHolder servletHolder = new ServletHolder(new ServiceInventoryServlet(serviceInventoryJson));
+            ServiceInventoryServlet servlet = new ServiceInventoryServlet(serviceInventoryJson);
+            ServletHolder servletHolder = new ServletHolder(servlet);
             ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
             context.addServlet(servletHolder, "/*");
             HandlerCollection handlers = new HandlerCollection();
@@ -110,8 +148,10 @@ public class TestServiceInventory
             Assert.assertEquals(Iterables.size(serviceInventory.getServiceDescriptors()), 2);
             Assert.assertEquals(Iterables.size(serviceInventory.getServiceDescriptors("discovery")), 2);
             Assert.assertEquals(Iterables.size(serviceInventory.getServiceDescriptors("discovery", "general")), 2);
+            Iterable<ServiceDescriptor> serviceDescriptors = serviceInventory.getServiceDescriptors();
             serviceInventory.updateServiceInventory();
-            Assert.assertEquals(Iterables.size(serviceInventory.getServiceDescriptors()), 2);
+            Assert.assertEquals(servlet.getNotModifiedCount(), 1);
+            Assert.assertSame(serviceInventory.getServiceDescriptors(), serviceDescriptors);
             Assert.assertEquals(Iterables.size(serviceInventory.getServiceDescriptors("discovery")), 2);
             Assert.assertEquals(Iterables.size(serviceInventory.getServiceDescriptors("discovery", "general")), 2);
         }
@@ -125,16 +165,28 @@ public class TestServiceInventory
     private class ServiceInventoryServlet extends HttpServlet
     {
         private final byte[] serviceInventory;
+        private int notModifiedCount;
 
         private ServiceInventoryServlet(String serviceInventory)
         {
             this.serviceInventory = serviceInventory.getBytes(Charsets.UTF_8);
         }
 
+        public synchronized int getNotModifiedCount()
+        {
+            return notModifiedCount;
+        }
+
         @Override
-        protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        protected synchronized void doGet(HttpServletRequest request, HttpServletResponse response)
                 throws ServletException, IOException
         {
+            response.setHeader("ETag", "\"1\"");
+            if ("\"1\"".equals(request.getHeader("If-None-Match"))) {
+                notModifiedCount++;
+                response.setStatus(304);
+                return;
+            }
             response.setHeader("Content-Type", "application/json");
             response.setStatus(200);
             response.getOutputStream().write(serviceInventory);
@@ -12,7 +12,9 @@ public class TestServiceSelectorConfig
     public void testDefaults()
     {
         ConfigAssertions.assertRecordedDefaults(ConfigAssertions.recordDefaults(ServiceSelectorConfig.class)
-                .setPool(ServiceSelectorConfig.DEFAULT_POOL));
+                .setPool(ServiceSelectorConfig.DEFAULT_POOL)
+                .setPreferLocal(false)
+                .setMinLocalServices(1));
     }
 
     @Test
@@ -20,10 +22,14 @@ public class TestServiceSelectorConfig
     {
         Map<String, String> properties = new ImmutableMap.Builder<String, String>()
                 .put("pool", "test-pool")
+                .put("prefer-local", "true")
+                .put("min-local-services", "3")
                 .build();
 
         ServiceSelectorConfig expected = new ServiceSelectorConfig()
-                .setPool("test-pool");
+                .setPool("test-pool")
+                .setPreferLocal(true)
+                .setMinLocalServices(3);
 
         ConfigAssertions.assertFullMapping(properties, expected);
     }
@@ -0,0 +1,266 @@
+package com.proofpoint.discovery.client.testing;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.CheckedFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.discovery.client.Announcement;
+import com.proofpoint.discovery.client.DiscoveryClientConfig;
+import com.proofpoint.discovery.client.DiscoveryException;
+import com.proofpoint.discovery.client.HttpDiscoveryAnnouncementClient;
+import com.proofpoint.discovery.client.HttpDiscoveryLookupClient;
+import com.proofpoint.discovery.client.ServiceAnnouncement;
+import com.proofpoint.discovery.client.ServiceDescriptor;
+import com.proofpoint.discovery.client.ServiceDescriptors;
+import com.proofpoint.discovery.client.ServiceDescriptorsRepresentation;
+import com.proofpoint.discovery.client.ServiceState;
+import com.proofpoint.http.client.ApacheHttpClient;
+import com.proofpoint.http.client.AsyncHttpClient;
+import com.proofpoint.node.NodeConfig;
+import com.proofpoint.node.NodeInfo;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.inject.Provider;
+import java.net.URI;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.proofpoint.json.JsonCodec.jsonCodec;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestTestingDiscoveryServer
+{
+    private static final ServiceDescriptor APPLE = new ServiceDescriptor(UUID.randomUUID(), "node-A", "apple", "general", "/a", ServiceState.RUNNING, ImmutableMap.of("a", "apple"));
+    private static final ServiceDescriptor BANANA = new ServiceDescriptor(UUID.randomUUID(), "node-B", "banana", "general", "/b", ServiceState.RUNNING, ImmutableMap.of("b", "banana"));
+
+    private TestingDiscoveryServer server;
+    private ExecutorService executor;
+    private NodeInfo nodeInfo;
+    private HttpDiscoveryAnnouncementClient announcementClient;
+
+    @BeforeMethod
+    public void setup()
+            throws Exception
+    {
+        server = new TestingDiscoveryServer("test");
+        server.addService(APPLE);
+        executor = newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).build());
+        nodeInfo = new NodeInfo(new NodeConfig().setEnvironment("test").setLocation("/test/location"));
+        announcementClient = new HttpDiscoveryAnnouncementClient(baseUriProvider(), nodeInfo, jsonCodec(Announcement.class), new AsyncHttpClient(new ApacheHttpClient(), executor));
+    }
+
+    @AfterMethod
+    public void teardown()
+    {
+        executor.shutdownNow();
+        server.close();
+    }
+
+    @Test
+    public void testLookup()
+            throws Exception
+    {
+        server.addService(BANANA);
+        HttpDiscoveryLookupClient client = createLookupClient(new DiscoveryClientConfig());
+
+        assertEquals(client.getAllServices().checkedGet(5, TimeUnit.SECONDS).getServiceDescriptors(), ImmutableList.of(APPLE, BANANA));
+        assertEquals(client.getServices("apple").checkedGet(5, TimeUnit.SECONDS).getServiceDescriptors(), ImmutableList.of(APPLE));
+        assertEquals(client.getServices("apple", "general").checkedGet(5, TimeUnit.SECONDS).getServiceDescriptors(), ImmutableList.of(APPLE));
+        assertEquals(client.getServices("apple", "other").checkedGet(5, TimeUnit.SECONDS).getServiceDescriptors(), ImmutableList.of());
+        assertEquals(server.getLookups(), 4);
+    }
+
+    @Test
+    public void testConditionalLookup()
+            throws Exception
+    {
+        server.setMaxAge(new Duration(5, TimeUnit.SECONDS));
+        HttpDiscoveryLookupClient client = createLookupClient(new DiscoveryClientConfig());
+
+        ServiceDescriptors descriptors = client.getServices("apple", "general").checkedGet(5, TimeUnit.SECONDS);
+        assertNotNull(descriptors.getETag());
+        assertEquals(descriptors.getMaxAge(), new Duration(5, TimeUnit.SECONDS));
+
+        ServiceDescriptors refreshed = client.refreshServices(descriptors).checkedGet(5, TimeUnit.SECONDS);
+        assertSame(refreshed.getServiceDescriptors(), descriptors.getServiceDescriptors());
+        assertEquals(server.getNotModifiedLookups(), 1);
+
+        server.removeService(APPLE.getId());
+        refreshed = client.refreshServices(descriptors).checkedGet(5, TimeUnit.SECONDS);
+        assertEquals(refreshed.getServiceDescriptors(), ImmutableList.of());
+        assertFalse(refreshed.getETag().equals(descriptors.getETag()));
+        assertEquals(server.getNotModifiedLookups(), 1);
+    }
+
+    @Test
+    public void testWatchReturnsWhenServicesChange()
+            throws Exception
+    {
+        HttpDiscoveryLookupClient client = createLookupClient(new DiscoveryClientConfig().setWatchEnabled(true));
+
+        ServiceDescriptors descriptors = client.getServices("apple", "general").checkedGet(5, TimeUnit.SECONDS);
+        CheckedFuture<ServiceDescriptors, DiscoveryException> watch = client.refreshServices(descriptors);
+        Thread.sleep(200);
+        assertFalse(watch.isDone());
+
+        server.addService(BANANA);
+        ServiceDescriptors changed = watch.checkedGet(1, TimeUnit.SECONDS);
+        assertEquals(changed.getMaxAge(), new Duration(0, TimeUnit.SECONDS));
+        assertFalse(changed.getETag().equals(descriptors.getETag()));
+    }
+
+    @Test
+    public void testAnnounce()
+            throws Exception
+    {
+        ServiceAnnouncement announcement = ServiceAnnouncement.serviceAnnouncement("cherry").addProperty("c", "cherry").build();
+        Duration maxAge = announcementClient.announce(ImmutableSet.of(announcement)).checkedGet(5, TimeUnit.SECONDS);
+        assertEquals(maxAge, new Duration(30, TimeUnit.SECONDS));
+
+        ServiceDescriptors descriptors = createLookupClient(new DiscoveryClientConfig()).getServices("cherry").checkedGet(5, TimeUnit.SECONDS);
+        assertEquals(descriptors.getServiceDescriptors().size(), 1);
+        ServiceDescriptor descriptor = descriptors.getServiceDescriptors().get(0);
+        assertEquals(descriptor.getId(), announcement.getId());
+        assertEquals(descriptor.getNodeId(), nodeInfo.getNodeId());
+        assertEquals(descriptor.getPool(), nodeInfo.getPool());
+        assertEquals(descriptor.getLocation(), "/test/location");
+        assertEquals(descriptor.getProperties(), ImmutableMap.of("c", "cherry"));
+
+        announcementClient.unannounce().checkedGet(5, TimeUnit.SECONDS);
+        assertEquals(server.getServices(), ImmutableList.of(APPLE));
+        assertEquals(server.getAnnouncements(), 1);
+        assertEquals(server.getUnannouncements(), 1);
+    }
+
+    @Test
+    public void testHeartbeat()
+            throws Exception
+    {
+        ServiceAnnouncement announcement = ServiceAnnouncement.serviceAnnouncement("cherry").build();
+        announcementClient.announce(ImmutableSet.of(announcement)).checkedGet(5, TimeUnit.SECONDS);
+        long version = server.getVersion();
+
+        assertEquals(announcementClient.heartbeat().checkedGet(5, TimeUnit.SECONDS), new Duration(30, TimeUnit.SECONDS));
+        assertEquals(server.getVersion(), version);
+        assertEquals(server.getHeartbeats(), 1);
+
+        // another announcement of the node replaces the one the heartbeat refers to
+        HttpDiscoveryAnnouncementClient otherClient = new HttpDiscoveryAnnouncementClient(baseUriProvider(), nodeInfo, jsonCodec(Announcement.class), new AsyncHttpClient(new ApacheHttpClient(), executor));
+        otherClient.announce(ImmutableSet.of(ServiceAnnouncement.serviceAnnouncement("date").build())).checkedGet(5, TimeUnit.SECONDS);
+        assertNull(announcementClient.heartbeat().checkedGet(5, TimeUnit.SECONDS));
+
+        otherClient.unannounce().checkedGet(5, TimeUnit.SECONDS);
+        announcementClient.announce(ImmutableSet.of(announcement)).checkedGet(5, TimeUnit.SECONDS);
+        otherClient.unannounce().checkedGet(5, TimeUnit.SECONDS);
+        assertNull(announcementClient.heartbeat().checkedGet(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAnnouncementExpires()
+            throws Exception
+    {
+        server.setMaxAge(new Duration(200, TimeUnit.MILLISECONDS));
+        announcementClient.announce(ImmutableSet.of(ServiceAnnouncement.serviceAnnouncement("cherry").build())).checkedGet(5, TimeUnit.SECONDS);
+        assertEquals(server.getServices().size(), 2);
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (server.getServices().size() > 1) {
+            assertTrue(System.nanoTime() < end, "announcement did not expire");
+            Thread.sleep(50);
+        }
+        assertEquals(server.getServices(), ImmutableList.of(APPLE));
+    }
+
+    @Test
+    public void testEnvironmentMismatch()
+            throws Exception
+    {
+        HttpDiscoveryAnnouncementClient client = new HttpDiscoveryAnnouncementClient(baseUriProvider(), new NodeInfo("other"), jsonCodec(Announcement.class), new AsyncHttpClient(new ApacheHttpClient(), executor));
+        try {
+            client.announce(ImmutableSet.of(ServiceAnnouncement.serviceAnnouncement("cherry").build())).checkedGet(5, TimeUnit.SECONDS);
+            fail("expected DiscoveryException");
+        }
+        catch (DiscoveryException expected) {
+        }
+        assertEquals(server.getServices(), ImmutableList.of(APPLE));
+    }
+
+    @Test
+    public void testInjectedErrors()
+            throws Exception
+    {
+        server.setErrorRate(1);
+        try {
+            createLookupClient(new DiscoveryClientConfig()).getAllServices().checkedGet(5, TimeUnit.SECONDS);
+            fail("expected DiscoveryException");
+        }
+        catch (DiscoveryException expected) {
+        }
+        assertEquals(server.getInjectedErrors(), 1);
+        assertEquals(server.getLookups(), 0);
+
+        server.setErrorRate(0);
+        assertEquals(createLookupClient(new DiscoveryClientConfig()).getAllServices().checkedGet(5, TimeUnit.SECONDS).getServiceDescriptors(), ImmutableList.of(APPLE));
+    }
+
+    @Test
+    public void testInjectedLatency()
+            throws Exception
+    {
+        server.setLatency(new Duration(200, TimeUnit.MILLISECONDS));
+        long start = System.nanoTime();
+        createLookupClient(new DiscoveryClientConfig()).getAllServices().checkedGet(5, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void testChurn()
+            throws Exception
+    {
+        server.addService(BANANA);
+        long version = server.getVersion();
+        server.startChurn(new Duration(10, TimeUnit.MILLISECONDS), 1);
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (server.getServices().contains(APPLE) && server.getServices().contains(BANANA)) {
+            assertTrue(System.nanoTime() < end, "services did not churn");
+            Thread.sleep(10);
+        }
+        server.stopChurn();
+        assertTrue(server.getVersion() > version);
+        assertEquals(server.getServices().size(), 2);
+    }
+
+    private HttpDiscoveryLookupClient createLookupClient(DiscoveryClientConfig config)
+    {
+        return new HttpDiscoveryLookupClient(baseUriProvider(),
+                new NodeInfo("test"),
+                jsonCodec(ServiceDescriptorsRepresentation.class),
+                new AsyncHttpClient(new ApacheHttpClient(), executor),
+                config);
+    }
+
+    private Provider<URI> baseUriProvider()
+    {
+        return new Provider<URI>()
+        {
+            @Override
+            public URI get()
+            {
+                return server.getBaseUri();
+            }
+        };
+    }
+}
@@ -26,7 +26,6 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.URI;
 import java.util.Arrays;
-import java.util.List;
 
 import static com.proofpoint.http.client.Request.Builder.preparePost;
 
@@ -111,15 +110,15 @@ public class HttpEventClient
     {
         Preconditions.checkNotNull(eventGenerator, "eventGenerator is null");
 
-        List<URI> uris = serviceSelector.selectHttpService();
+        URI uri = serviceSelector.selectOne();
 
-        if (uris.isEmpty()) {
+        if (uri == null) {
             return Futures.<Void, RuntimeException>immediateFailedCheckedFuture(new ServiceUnavailableException(serviceSelector.getType(), serviceSelector.getPool()));
         }
 
         // todo this doesn't really work due to returning the future which can fail without being retried
         Request request = preparePost()
-                .setUri(resolveUri(uris.get(0)))
+                .setUri(resolveUri(uri))
                 .setHeader("User-Agent", nodeInfo.getNodeId())
                 .setHeader("Content-Type", MediaType.APPLICATION_JSON)
                 .setBodyGenerator(new JsonEntityWriter<T>(eventWriter, eventGenerator))
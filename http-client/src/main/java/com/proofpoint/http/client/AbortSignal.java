@@ -0,0 +1,71 @@
+package com.proofpoint.http.client;
+
+import org.apache.http.client.methods.AbortableHttpRequest;
+
+/**
+ * Lets the caller of an asynchronous request abort the connection used by
+ * the thread that executes it. The executing thread makes the signal
+ * current while it runs the request, and the {@link ApacheHttpClient}
+ * registers each request it sends with the current signal.
+ */
+class AbortSignal
+{
+    private static final ThreadLocal<AbortSignal> CURRENT = new ThreadLocal<AbortSignal>();
+
+    private boolean aborted;
+    private AbortableHttpRequest request;
+
+    public static AbortSignal current()
+    {
+        return CURRENT.get();
+    }
+
+    public void enter()
+    {
+        CURRENT.set(this);
+    }
+
+    public void exit()
+    {
+        CURRENT.remove();
+    }
+
+    /**
+     * Registers the request that is about to be sent. Returns false if the
+     * signal has already been aborted, in which case the request must not be
+     * sent.
+     */
+    public synchronized boolean register(AbortableHttpRequest request)
+    {
+        if (aborted) {
+            return false;
+        }
+        this.request = request;
+        return true;
+    }
+
+    public synchronized void unregister(AbortableHttpRequest request)
+    {
+        if (this.request == request) {
+            this.request = null;
+        }
+    }
+
+    public synchronized boolean isAborted()
+    {
+        return aborted;
+    }
+
+    public void abort()
+    {
+        AbortableHttpRequest request;
+        synchronized (this) {
+            aborted = true;
+            request = this.request;
+            this.request = null;
+        }
+        if (request != null) {
+            request.abort();
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package com.proofpoint.http.client;
 
 import com.google.inject.Binder;
+import com.google.inject.Injector;
+import com.google.inject.Key;
 import com.google.inject.Module;
 
 import java.lang.annotation.Annotation;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.proofpoint.configuration.ConfigurationModule.bindConfig;
 
 abstract class AbstractHttpClientModule
         implements Module
@@ -13,6 +16,9 @@ abstract class AbstractHttpClientModule
     protected final String name;
     protected final Class<? extends Annotation> annotation;
     protected Binder binder;
+    protected volatile boolean retriesEnabled;
+    protected volatile boolean circuitBreakerEnabled;
+    protected volatile Key<? extends ServiceUriSelector> serviceSelectorKey;
 
     protected AbstractHttpClientModule(String name, Class<? extends Annotation> annotation)
     {
@@ -32,4 +38,41 @@ abstract class AbstractHttpClientModule
     public abstract void addAlias(Class<? extends Annotation> alias);
 
     public abstract Annotation getFilterQualifier();
+
+    public void enableRetries()
+    {
+        if (!retriesEnabled) {
+            bindConfig(binder).annotatedWith(annotation).prefixedWith(name).to(HttpRetryConfig.class);
+            retriesEnabled = true;
+        }
+    }
+
+    public void enableCircuitBreaker()
+    {
+        if (!circuitBreakerEnabled) {
+            bindConfig(binder).annotatedWith(annotation).prefixedWith(name).to(CircuitBreakerConfig.class);
+            circuitBreakerEnabled = true;
+        }
+    }
+
+    public void setServiceSelector(Key<? extends ServiceUriSelector> serviceSelectorKey)
+    {
+        this.serviceSelectorKey = checkNotNull(serviceSelectorKey, "serviceSelectorKey is null");
+        enableRetries();
+    }
+
+    protected ServiceUriSelector getServiceSelector(Injector injector)
+    {
+        if (serviceSelectorKey == null) {
+            return null;
+        }
+        return injector.getInstance(serviceSelectorKey);
+    }
+
+    protected static void prewarmConnections(ApacheHttpClient client, HttpClientConfig config, ServiceUriSelector serviceSelector)
+    {
+        if (serviceSelector != null && config.getPrewarmConnections() > 0) {
+            client.prewarmConnections(serviceSelector.selectInstanceUris(), config.getPrewarmConnections());
+        }
+    }
 }
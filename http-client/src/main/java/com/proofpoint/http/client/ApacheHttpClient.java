@@ -9,36 +9,78 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ListMultimap;
 import com.google.common.io.CountingInputStream;
 import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.log.Logger;
 import com.proofpoint.units.Duration;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ClientConnectionRequest;
 import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.protocol.BasicHttpContext;
 import org.weakref.jmx.Flatten;
 import org.weakref.jmx.Managed;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import static com.proofpoint.http.client.Request.Builder.fromRequest;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+
 @Beta
 public class ApacheHttpClient implements com.proofpoint.http.client.HttpClient
 {
-    private final RequestStats stats = new RequestStats();
+    /**
+     * Header that tells the server how many milliseconds the client will wait for the response.
+     */
+    public static final String DEADLINE_HEADER = "X-Proofpoint-Deadline";
+
+    /**
+     * Header set on the 503 response of a server that rejected a request because its deadline had passed.
+     */
+    public static final String DEADLINE_EXCEEDED_HEADER = "X-Proofpoint-Deadline-Exceeded";
+
+    private static final Logger log = Logger.get(ApacheHttpClient.class);
+
+    // shared by all clients so that clients which are never closed do not each leave a thread behind
+    private static final ScheduledExecutorService MAINTENANCE_EXECUTOR = newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("http-client-maintenance-%s").setDaemon(true).build());
+
+    private final RequestStats stats;
     private final HttpClient httpClient;
     private final List<HttpRequestFilter> requestFilters;
+    private final InstrumentedConnectionManager connectionManager;
+    private final ScheduledFuture<?> evictionTask;
+    private final Duration defaultTimeout;
+    private final boolean propagateDeadline;
 
     public ApacheHttpClient()
     {
@@ -55,9 +97,14 @@ public class ApacheHttpClient implements com.proofpoint.http.client.HttpClient
         Preconditions.checkNotNull(config, "config is null");
         Preconditions.checkNotNull(requestFilters, "requestFilters is null");
 
-        PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+        long connectionTtlMillis = -1;
+        if (config.getConnectionTtl() != null) {
+            connectionTtlMillis = (long) config.getConnectionTtl().toMillis();
+        }
+        connectionManager = new InstrumentedConnectionManager(connectionTtlMillis);
         connectionManager.setMaxTotal(config.getMaxConnections());
         connectionManager.setDefaultMaxPerRoute(config.getMaxConnectionsPerServer());
+        stats = new RequestStats(connectionManager.getPoolStats());
 
         BasicHttpParams httpParams = new BasicHttpParams();
         httpParams.setParameter(CoreConnectionPNames.SO_TIMEOUT, (int) config.getReadTimeout().toMillis());
@@ -66,6 +113,85 @@ public class ApacheHttpClient implements com.proofpoint.http.client.HttpClient
 
         this.httpClient = new DefaultHttpClient(connectionManager, httpParams);
         this.requestFilters = ImmutableList.copyOf(requestFilters);
+        this.defaultTimeout = config.getRequestTimeout();
+        this.propagateDeadline = config.isPropagateDeadline();
+
+        // connections that sit idle in the pool are silently dropped by firewalls and NAT devices
+        long evictionIntervalMillis = (long) config.getEvictionInterval().toMillis();
+        EvictionTask task = new EvictionTask(connectionManager, (long) config.getIdleTimeout().toMillis());
+        evictionTask = MAINTENANCE_EXECUTOR.scheduleWithFixedDelay(task, evictionIntervalMillis, evictionIntervalMillis, TimeUnit.MILLISECONDS);
+        task.setFuture(evictionTask);
+    }
+
+    @PreDestroy
+    public void close()
+    {
+        evictionTask.cancel(false);
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Opens connections in the background to each of the specified servers,
+     * so that the first requests to them do not pay for the connection
+     * setup. Only the scheme, host and port of the URIs are used.
+     */
+    public Future<?> prewarmConnections(final Iterable<URI> uris, final int connectionsPerServer)
+    {
+        Preconditions.checkNotNull(uris, "uris is null");
+        Preconditions.checkArgument(connectionsPerServer >= 0, "connectionsPerServer is negative");
+
+        final List<URI> servers = ImmutableList.copyOf(uris);
+
+        // connecting can block for the connect timeout, so do not hold up the maintenance thread
+        ExecutorService executor = newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("http-client-prewarm-%s").setDaemon(true).build());
+        try {
+            return executor.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (URI uri : servers) {
+                        try {
+                            openConnections(uri, connectionsPerServer);
+                        }
+                        catch (Exception e) {
+                            log.warn("Could not prewarm connections to %s: %s", uri, e.getMessage());
+                        }
+                    }
+                }
+            });
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    private void openConnections(URI uri, int count)
+            throws Exception
+    {
+        HttpHost target = URIUtils.extractHost(uri);
+        Preconditions.checkArgument(target != null, "uri does not have a host: %s", uri);
+        // same route the client plans for a request to this uri, so the connections are reused
+        Scheme scheme = connectionManager.getSchemeRegistry().getScheme(target);
+        HttpRoute route = new HttpRoute(target, null, scheme.isLayered());
+
+        // hold all connections until they are open, otherwise the pool hands back the same one
+        List<ManagedClientConnection> connections = new ArrayList<ManagedClientConnection>();
+        try {
+            for (int i = 0; i < count; i++) {
+                ManagedClientConnection connection = connectionManager.requestConnection(route, null).getConnection(0, TimeUnit.MILLISECONDS);
+                connections.add(connection);
+                if (!connection.isOpen()) {
+                    connection.open(route, new BasicHttpContext(), httpClient.getParams());
+                }
+                connection.markReusable();
+            }
+        }
+        finally {
+            for (ManagedClientConnection connection : connections) {
+                connectionManager.releaseConnection(connection, -1, TimeUnit.MILLISECONDS);
+            }
+        }
     }
 
     @VisibleForTesting
@@ -91,9 +217,42 @@ public class ApacheHttpClient implements com.proofpoint.http.client.HttpClient
             request = requestFilter.filterRequest(request);
         }
 
+        if (request.getTimeout() == null && defaultTimeout != null) {
+            request = fromRequest(request).setTimeout(defaultTimeout).build();
+        }
+        final Duration timeout = request.getTimeout();
+        long timeoutMillis = 0;
+        if (timeout != null) {
+            timeoutMillis = (long) timeout.toMillis();
+            if (timeoutMillis <= 0) {
+                stats.recordDeadlineExceeded();
+                throw responseHandler.handleException(request, new DeadlineExceededException("Request deadline has already passed"));
+            }
+            if (propagateDeadline) {
+                request = fromRequest(request).setHeader(DEADLINE_HEADER, String.valueOf(timeoutMillis)).build();
+            }
+        }
+
         final long requestStart = System.nanoTime();
         final GenericHttpRequest genericHttpRequest = new GenericHttpRequest(request);
         final Request finalRequest = request;
+
+        AbortSignal abortSignal = AbortSignal.current();
+        if (abortSignal != null && !abortSignal.register(genericHttpRequest)) {
+            throw responseHandler.handleException(request, new RequestCancelledException("Request was cancelled"));
+        }
+        ScheduledFuture<?> deadlineTimer = null;
+        if (timeout != null) {
+            deadlineTimer = MAINTENANCE_EXECUTOR.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    genericHttpRequest.abortOnDeadline();
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
         try {
             T value = httpClient.execute(
                     genericHttpRequest,
@@ -129,9 +288,17 @@ public class ApacheHttpClient implements com.proofpoint.http.client.HttpClient
             return value;
         }
         catch (Exception e) {
+            // the abort surfaces as whatever exception the interrupted read or write threw
+            if (genericHttpRequest.isDeadlineExceeded()) {
+                stats.recordDeadlineExceeded();
+                throw responseHandler.handleException(request, new DeadlineExceededException("Request did not complete within " + timeout));
+            }
+            if (abortSignal != null && abortSignal.isAborted()) {
+                throw responseHandler.handleException(request, new RequestCancelledException("Request was cancelled"));
+            }
             if (e instanceof ExceptionFromResponseHandler) {
                 try {
-                    throw (E) e;
+                    throw (E) e.getCause();
                 }
                 catch (ClassCastException classCastException) {
                     // this should never happen but generics suck so be safe
@@ -146,12 +313,65 @@ public class ApacheHttpClient implements com.proofpoint.http.client.HttpClient
             }
             throw responseHandler.handleException(request, e);
         }
+        finally {
+            if (deadlineTimer != null) {
+                deadlineTimer.cancel(false);
+            }
+            if (abortSignal != null) {
+                abortSignal.unregister(genericHttpRequest);
+            }
+        }
+    }
+
+    /**
+     * Records the routes that are used and the time spent waiting to lease
+     * a connection from the pool.
+     */
+    private static class InstrumentedConnectionManager extends PoolingClientConnectionManager
+    {
+        private final ConnectionPoolStats poolStats;
+
+        private InstrumentedConnectionManager(long connectionTtlMillis)
+        {
+            super(SchemeRegistryFactory.createDefault(), connectionTtlMillis, TimeUnit.MILLISECONDS);
+            this.poolStats = new ConnectionPoolStats(this);
+        }
+
+        public ConnectionPoolStats getPoolStats()
+        {
+            return poolStats;
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(final HttpRoute route, Object state)
+        {
+            final ClientConnectionRequest connectionRequest = super.requestConnection(route, state);
+            return new ClientConnectionRequest()
+            {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit timeUnit)
+                        throws InterruptedException, ConnectionPoolTimeoutException
+                {
+                    long start = System.nanoTime();
+                    ManagedClientConnection connection = connectionRequest.getConnection(timeout, timeUnit);
+                    poolStats.recordLease(route, Duration.nanosSince(start));
+                    return connection;
+                }
+
+                @Override
+                public void abortRequest()
+                {
+                    connectionRequest.abortRequest();
+                }
+            };
+        }
     }
 
     private static class GenericHttpRequest extends HttpEntityEnclosingRequestBase
     {
         private final String method;
         private CountingOutputStream countingOutputStream;
+        private volatile boolean deadlineExceeded;
 
         public GenericHttpRequest(final Request request)
         {
@@ -236,6 +456,17 @@ public class ApacheHttpClient implements com.proofpoint.http.client.HttpClient
             return method;
         }
 
+        public void abortOnDeadline()
+        {
+            deadlineExceeded = true;
+            abort();
+        }
+
+        public boolean isDeadlineExceeded()
+        {
+            return deadlineExceeded;
+        }
+
         public long getBytesWritten()
         {
             if (countingOutputStream == null) {
@@ -325,4 +556,48 @@ public class ApacheHttpClient implements com.proofpoint.http.client.HttpClient
             return countingInputStream;
         }
     }
+
+    /**
+     * Evicts the expired and idle connections of a pool. The task only holds
+     * the pool weakly and stops once the client has been discarded without
+     * being closed.
+     */
+    private static class EvictionTask
+            implements Runnable
+    {
+        private final WeakReference<InstrumentedConnectionManager> connectionManager;
+        private final long idleTimeoutMillis;
+        private volatile ScheduledFuture<?> future;
+
+        private EvictionTask(InstrumentedConnectionManager connectionManager, long idleTimeoutMillis)
+        {
+            this.connectionManager = new WeakReference<InstrumentedConnectionManager>(connectionManager);
+            this.idleTimeoutMillis = idleTimeoutMillis;
+        }
+
+        public void setFuture(ScheduledFuture<?> future)
+        {
+            this.future = future;
+        }
+
+        @Override
+        public void run()
+        {
+            InstrumentedConnectionManager connectionManager = this.connectionManager.get();
+            if (connectionManager == null) {
+                ScheduledFuture<?> future = this.future;
+                if (future != null) {
+                    future.cancel(false);
+                }
+                return;
+            }
+            try {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (Exception e) {
+                log.warn(e, "Error evicting idle connections");
+            }
+        }
+    }
 }
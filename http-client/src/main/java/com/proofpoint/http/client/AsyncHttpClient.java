@@ -3,28 +3,50 @@ package com.proofpoint.http.client;
 import com.google.common.annotations.Beta;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.AbstractCheckedFuture;
 import com.google.common.util.concurrent.CheckedFuture;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.weakref.jmx.Flatten;
 import org.weakref.jmx.Managed;
 
+import java.net.URI;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.proofpoint.http.client.Request.Builder.fromRequest;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 
 @Beta
 public class AsyncHttpClient
 {
+    // shared by all clients so discarded clients do not leave a thread behind
+    private static final ScheduledExecutorService HEDGE_SCHEDULER = newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("http-client-hedge-%s").build());
+
     private final HttpClient httpClient;
     private final ListeningExecutorService executor;
     private final List<HttpRequestFilter> requestFilters;
+    private final RetryBudget hedgeBudget;
+    private final long minHedgeDelayMillis;
+    private final ServiceUriSelector serviceSelector;
+    private final RequestCoalescer coalescer;
+    private volatile long hedgeDelayMillis;
+    private volatile long hedgeDelayUpdateTime;
 
     public AsyncHttpClient(HttpClient httpClient, ExecutorService executor)
     {
@@ -32,14 +54,62 @@ public class AsyncHttpClient
     }
 
     public AsyncHttpClient(HttpClient httpClient, ExecutorService executor, Set<HttpRequestFilter> requestFilters)
+    {
+        this(httpClient, executor, requestFilters, new HttpRetryConfig());
+    }
+
+    public AsyncHttpClient(HttpClient httpClient, ExecutorService executor, Set<HttpRequestFilter> requestFilters, HttpRetryConfig retryConfig)
+    {
+        this(httpClient, executor, requestFilters, retryConfig, new AsyncHttpClientConfig());
+    }
+
+    public AsyncHttpClient(HttpClient httpClient, ExecutorService executor, Set<HttpRequestFilter> requestFilters, HttpRetryConfig retryConfig, AsyncHttpClientConfig config)
+    {
+        this(httpClient, executor, requestFilters, retryConfig, config, null);
+    }
+
+    /**
+     * @param serviceSelector selects the instances that relative request URIs
+     * are resolved against, or null. Requests are only hedged when it selects
+     * a second instance to send the duplicate to. The request and its
+     * duplicate are each retried on their own instance.
+     */
+    public AsyncHttpClient(HttpClient httpClient, ExecutorService executor, Set<HttpRequestFilter> requestFilters, HttpRetryConfig retryConfig, AsyncHttpClientConfig config, ServiceUriSelector serviceSelector)
     {
         Preconditions.checkNotNull(httpClient, "httpClient is null");
         Preconditions.checkNotNull(executor, "executor is null");
         Preconditions.checkNotNull(requestFilters, "requestFilters is null");
+        Preconditions.checkNotNull(retryConfig, "retryConfig is null");
+        Preconditions.checkNotNull(config, "config is null");
 
         this.httpClient = httpClient;
         this.executor = MoreExecutors.listeningDecorator(executor);
         this.requestFilters = ImmutableList.copyOf(requestFilters);
+        this.serviceSelector = serviceSelector;
+
+        if (retryConfig.isHedgeEnabled()) {
+            hedgeBudget = new RetryBudget(retryConfig.getBudgetRatio(), retryConfig.getBudgetReserve());
+            minHedgeDelayMillis = (long) retryConfig.getMinHedgeDelay().toMillis();
+            hedgeDelayMillis = minHedgeDelayMillis;
+        }
+        else {
+            hedgeBudget = null;
+            minHedgeDelayMillis = 0;
+        }
+
+        if (config.isCoalesceRequests() || config.isResponseCacheEnabled()) {
+            coalescer = new RequestCoalescer(config, httpClient.getStats(), Ticker.systemTicker(), new RequestCoalescer.RequestSender()
+            {
+                @Override
+                public <T, E extends Exception> ListenableFuture<T> send(Request request, ResponseHandler<T, E> responseHandler)
+                {
+                    return AsyncHttpClient.this.send(request, responseHandler);
+                }
+            });
+        }
+        else {
+            coalescer = null;
+        }
     }
 
     @VisibleForTesting
@@ -65,30 +135,209 @@ public class AsyncHttpClient
             request = requestFilter.filterRequest(request);
         }
 
-        ListenableFuture<T> listenableFuture = executor.submit(new HttpExecution<T>(request, responseHandler));
+        ListenableFuture<T> listenableFuture;
+        if (coalescer != null && RequestCoalescer.isCoalescable(request)) {
+            listenableFuture = coalescer.execute(request, responseHandler);
+        }
+        else {
+            listenableFuture = send(request, responseHandler);
+        }
         return new ResponseFuture<T, E>(request, responseHandler, listenableFuture);
     }
 
+    private <T> ListenableFuture<T> send(Request request, ResponseHandler<T, ?> responseHandler)
+    {
+        // the timeout of the request includes the time spent waiting for a thread
+        long startNanos = System.nanoTime();
+
+        if (hedgeBudget != null && serviceSelector != null && RetryingHttpClient.isIdempotent(request)) {
+            // both instances come from one selection, or a rotating selector could pick the same one twice
+            List<URI> uris = RetryingHttpClient.selectUris(serviceSelector, request);
+            if (uris.size() >= 2) {
+                Request primaryRequest = fromRequest(request).setUri(uris.get(0)).build();
+                Request hedgeRequest = fromRequest(request).setUri(uris.get(1)).build();
+                return new HedgedExecution<T>(primaryRequest, hedgeRequest, responseHandler, startNanos).start();
+            }
+        }
+        return submit(new HttpExecution<T>(request, responseHandler, startNanos));
+    }
+
+    private <T> ListenableFuture<T> submit(final HttpExecution<T> execution)
+    {
+        final ListenableFuture<T> future = executor.submit(execution);
+        future.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // interrupting the thread does not stop a blocking socket read
+                if (future.isCancelled()) {
+                    execution.abort();
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    private long getHedgeDelayMillis()
+    {
+        // computing a percentile sorts the whole sample, so only do it once a second
+        long now = System.nanoTime();
+        if (now - hedgeDelayUpdateTime > TimeUnit.SECONDS.toNanos(1)) {
+            hedgeDelayUpdateTime = now;
+            double p95 = httpClient.getStats().getRequestTime().getPercentile(0.95);
+            if (Double.isNaN(p95)) {
+                hedgeDelayMillis = minHedgeDelayMillis;
+            }
+            else {
+                hedgeDelayMillis = Math.max(minHedgeDelayMillis, (long) p95);
+            }
+        }
+        return hedgeDelayMillis;
+    }
+
+    /**
+     * Sends the request and, if it has not completed by the time the 95th
+     * percentile request would have, sends a duplicate to another instance. The first successful
+     * response wins and the other request is cancelled.
+     */
+    private class HedgedExecution<T>
+    {
+        private final Request request;
+        private final Request hedgeRequest;
+        private final ResponseHandler<T, ?> responseHandler;
+        private final long startNanos;
+        private final SettableFuture<T> result = SettableFuture.create();
+        private final AtomicInteger outstanding = new AtomicInteger(1);
+        private volatile ListenableFuture<T> primary;
+        private volatile ListenableFuture<T> hedge;
+        private volatile ScheduledFuture<?> hedgeTimer;
+
+        private HedgedExecution(Request request, Request hedgeRequest, ResponseHandler<T, ?> responseHandler, long startNanos)
+        {
+            this.request = request;
+            this.hedgeRequest = hedgeRequest;
+            this.responseHandler = responseHandler;
+            this.startNanos = startNanos;
+        }
+
+        public ListenableFuture<T> start()
+        {
+            hedgeBudget.requestIssued();
+            primary = submit(new HttpExecution<T>(request, responseHandler, startNanos));
+            Futures.addCallback(primary, new AttemptCallback(false));
+
+            hedgeTimer = HEDGE_SCHEDULER.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    sendHedge();
+                }
+            }, getHedgeDelayMillis(), TimeUnit.MILLISECONDS);
+
+            result.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    hedgeTimer.cancel(false);
+                    if (result.isCancelled()) {
+                        cancel(primary);
+                        cancel(hedge);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            return result;
+        }
+
+        private void sendHedge()
+        {
+            if (result.isDone() || primary.isDone() || !hedgeBudget.tryAcquireRetry()) {
+                return;
+            }
+            outstanding.incrementAndGet();
+            httpClient.getStats().recordHedgedRequest();
+            hedge = submit(new HttpExecution<T>(hedgeRequest, responseHandler, startNanos));
+            Futures.addCallback(hedge, new AttemptCallback(true));
+            if (result.isDone()) {
+                cancel(hedge);
+            }
+        }
+
+        private void cancel(ListenableFuture<T> future)
+        {
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+
+        private class AttemptCallback implements FutureCallback<T>
+        {
+            private final boolean isHedge;
+
+            private AttemptCallback(boolean isHedge)
+            {
+                this.isHedge = isHedge;
+            }
+
+            @Override
+            public void onSuccess(T value)
+            {
+                if (result.set(value)) {
+                    if (isHedge) {
+                        httpClient.getStats().recordHedgeWin();
+                        cancel(primary);
+                    }
+                    else {
+                        cancel(hedge);
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t)
+            {
+                // report the failure only once no other attempt can still succeed
+                if (outstanding.decrementAndGet() == 0) {
+                    result.setException(t);
+                }
+            }
+        }
+    }
+
     private class HttpExecution<T> implements Callable<T>
     {
         private final Request request;
         private final ResponseHandler<T, ?> responseHandler;
+        private final long startNanos;
+        private final AbortSignal abortSignal = new AbortSignal();
 
-        public HttpExecution(Request request, ResponseHandler<T, ?> responseHandler)
+        public HttpExecution(Request request, ResponseHandler<T, ?> responseHandler, long startNanos)
         {
             this.request = request;
             this.responseHandler = responseHandler;
+            this.startNanos = startNanos;
+        }
+
+        public void abort()
+        {
+            abortSignal.abort();
         }
 
         public T call()
                 throws Exception
         {
+            abortSignal.enter();
             try {
-                return httpClient.execute(request, responseHandler);
+                return httpClient.execute(RetryingHttpClient.withRemainingTimeout(request, startNanos), responseHandler);
             }
             catch (Exception e) {
                 throw new ExceptionFromHttpClient(e);
             }
+            finally {
+                abortSignal.exit();
+            }
         }
     }
 
@@ -2,13 +2,22 @@ package com.proofpoint.http.client;
 
 import com.google.common.annotations.Beta;
 import com.proofpoint.configuration.Config;
+import com.proofpoint.configuration.ConfigDescription;
+import com.proofpoint.units.Duration;
+import com.proofpoint.units.MinDuration;
 
 import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.concurrent.TimeUnit;
 
 @Beta
 public class AsyncHttpClientConfig
 {
     private int workerThreads = 16;
+    private boolean coalesceRequests = false;
+    private boolean responseCacheEnabled = false;
+    private Duration responseCacheMaxTtl = new Duration(10, TimeUnit.SECONDS);
+    private int responseCacheMaxEntries = 1000;
 
     @Min(1)
     public int getWorkerThreads()
@@ -22,4 +31,59 @@ public class AsyncHttpClientConfig
         this.workerThreads = workerThreads;
         return this;
     }
+
+    public boolean isCoalesceRequests()
+    {
+        return coalesceRequests;
+    }
+
+    @Config("http-client.coalesce-requests")
+    @ConfigDescription("Send only one of identical concurrent GET requests and share its result")
+    public AsyncHttpClientConfig setCoalesceRequests(boolean coalesceRequests)
+    {
+        this.coalesceRequests = coalesceRequests;
+        return this;
+    }
+
+    public boolean isResponseCacheEnabled()
+    {
+        return responseCacheEnabled;
+    }
+
+    @Config("http-client.response-cache.enabled")
+    @ConfigDescription("Keep the results of GET requests for the time allowed by the Cache-Control header of the response")
+    public AsyncHttpClientConfig setResponseCacheEnabled(boolean responseCacheEnabled)
+    {
+        this.responseCacheEnabled = responseCacheEnabled;
+        return this;
+    }
+
+    @NotNull
+    @MinDuration("0ms")
+    public Duration getResponseCacheMaxTtl()
+    {
+        return responseCacheMaxTtl;
+    }
+
+    @Config("http-client.response-cache.max-ttl")
+    @ConfigDescription("Maximum time a cached result is used without revalidating it, regardless of the max-age of the response")
+    public AsyncHttpClientConfig setResponseCacheMaxTtl(Duration responseCacheMaxTtl)
+    {
+        this.responseCacheMaxTtl = responseCacheMaxTtl;
+        return this;
+    }
+
+    @Min(1)
+    public int getResponseCacheMaxEntries()
+    {
+        return responseCacheMaxEntries;
+    }
+
+    @Config("http-client.response-cache.max-entries")
+    @ConfigDescription("Maximum number of cached results")
+    public AsyncHttpClientConfig setResponseCacheMaxEntries(int responseCacheMaxEntries)
+    {
+        this.responseCacheMaxEntries = responseCacheMaxEntries;
+        return this;
+    }
 }
@@ -42,7 +42,7 @@ public class AsyncHttpClientModule
         bindConfig(binder).annotatedWith(annotation).prefixedWith(name).to(AsyncHttpClientConfig.class);
 
         // bind the client and executor
-        binder.bind(AsyncHttpClient.class).annotatedWith(annotation).toProvider(new HttpClientProvider(annotation)).in(Scopes.SINGLETON);
+        binder.bind(AsyncHttpClient.class).annotatedWith(annotation).toProvider(new HttpClientProvider()).in(Scopes.SINGLETON);
         binder.bind(ExecutorService.class).annotatedWith(annotation).toProvider(new ExecutorServiceProvider(name, annotation)).in(Scopes.SINGLETON);
 
         // kick off the binding for the filter set
@@ -95,15 +95,10 @@ public class AsyncHttpClientModule
         }
     }
 
-    private static class HttpClientProvider implements Provider<AsyncHttpClient>
+    private class HttpClientProvider implements Provider<AsyncHttpClient>
     {
-        private final Class<? extends Annotation> annotation;
         private Injector injector;
-
-        private HttpClientProvider(Class<? extends Annotation> annotation)
-        {
-            this.annotation = annotation;
-        }
+        private ApacheHttpClient apacheHttpClient;
 
         @Inject
         public void setInjector(Injector injector)
@@ -112,13 +107,37 @@ public class AsyncHttpClientModule
             this.injector = injector;
         }
 
+        @PreDestroy
+        public void stop()
+        {
+            if (apacheHttpClient != null) {
+                apacheHttpClient.close();
+                apacheHttpClient = null;
+            }
+        }
+
         @Override
         public AsyncHttpClient get()
         {
             ExecutorService executorService = injector.getInstance(Key.get(ExecutorService.class, annotation));
             HttpClientConfig config = injector.getInstance(Key.get(HttpClientConfig.class, annotation));
+            AsyncHttpClientConfig asyncConfig = injector.getInstance(Key.get(AsyncHttpClientConfig.class, annotation));
             Set<HttpRequestFilter> filters = injector.getInstance(filterKey(annotation));
-            return new AsyncHttpClient(new ApacheHttpClient(config), executorService, filters);
+            ServiceUriSelector serviceSelector = getServiceSelector(injector);
+
+            apacheHttpClient = new ApacheHttpClient(config);
+            prewarmConnections(apacheHttpClient, config, serviceSelector);
+
+            HttpClient client = apacheHttpClient;
+            if (circuitBreakerEnabled) {
+                client = new CircuitBreakingHttpClient(client, injector.getInstance(Key.get(CircuitBreakerConfig.class, annotation)));
+            }
+            if (!retriesEnabled) {
+                return new AsyncHttpClient(client, executorService, filters, new HttpRetryConfig(), asyncConfig);
+            }
+
+            HttpRetryConfig retryConfig = injector.getInstance(Key.get(HttpRetryConfig.class, annotation));
+            return new AsyncHttpClient(new RetryingHttpClient(client, retryConfig, serviceSelector), executorService, filters, retryConfig, asyncConfig, serviceSelector);
         }
     }
 
@@ -0,0 +1,214 @@
+package com.proofpoint.http.client;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker for a single host. The failure ratio is tracked over a
+ * rolling window made of a fixed number of buckets. Once the ratio reaches
+ * the threshold the circuit opens and rejects requests for the open duration,
+ * after which a single probe request is let through. The circuit closes if
+ * the probe succeeds and opens again if it fails.
+ */
+class CircuitBreaker
+{
+    enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    interface StateListener
+    {
+        void stateChanged(String host, State from, State to);
+    }
+
+    private static final int BUCKETS = 10;
+
+    private final String host;
+    private final Ticker ticker;
+    private final StateListener listener;
+    private final double failureRatio;
+    private final int minRequests;
+    private final long bucketNanos;
+    private final long openNanos;
+    private final long startNanos;
+
+    private final long[] successes = new long[BUCKETS];
+    private final long[] failures = new long[BUCKETS];
+    private long currentBucket;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    CircuitBreaker(String host, CircuitBreakerConfig config, Ticker ticker, StateListener listener)
+    {
+        Preconditions.checkNotNull(host, "host is null");
+        Preconditions.checkNotNull(config, "config is null");
+        Preconditions.checkNotNull(ticker, "ticker is null");
+        Preconditions.checkNotNull(listener, "listener is null");
+
+        this.host = host;
+        this.ticker = ticker;
+        this.listener = listener;
+        this.failureRatio = config.getFailureRatio();
+        this.minRequests = config.getMinRequests();
+        this.bucketNanos = Math.max(1, (long) config.getWindow().convertTo(TimeUnit.NANOSECONDS) / BUCKETS);
+        this.openNanos = (long) config.getOpenDuration().convertTo(TimeUnit.NANOSECONDS);
+        this.startNanos = ticker.read();
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    /**
+     * Returns true if a request to the host may be sent. A request that is
+     * allowed must be followed by a call to {@link #recordSuccess},
+     * {@link #recordFailure} or {@link #recordIgnored}.
+     */
+    public synchronized boolean allowRequest()
+    {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (ticker.read() - openedAt < openNanos) {
+                    return false;
+                }
+                transitionTo(State.HALF_OPEN);
+                probeInFlight = true;
+                return true;
+            case HALF_OPEN:
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+        }
+        throw new AssertionError("Unknown state " + state);
+    }
+
+    public synchronized void recordSuccess()
+    {
+        switch (state) {
+            case CLOSED:
+                successes[advance()]++;
+                break;
+            case HALF_OPEN:
+                resetWindow();
+                probeInFlight = false;
+                transitionTo(State.CLOSED);
+                break;
+            case OPEN:
+                // late result of a request sent before the circuit opened
+                break;
+        }
+    }
+
+    public synchronized void recordFailure()
+    {
+        switch (state) {
+            case CLOSED:
+                failures[advance()]++;
+                long failureCount = sum(failures);
+                long requestCount = failureCount + sum(successes);
+                if (requestCount >= minRequests && failureCount >= failureRatio * requestCount) {
+                    open();
+                }
+                break;
+            case HALF_OPEN:
+                open();
+                break;
+            case OPEN:
+                break;
+        }
+    }
+
+    /**
+     * Records the completion of a request whose outcome says nothing about
+     * the health of the host.
+     */
+    public synchronized void recordIgnored()
+    {
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+        }
+    }
+
+    /**
+     * Returns the time in nanoseconds until an open circuit lets a probe
+     * request through.
+     */
+    public synchronized long getRemainingOpenNanos()
+    {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, openNanos - (ticker.read() - openedAt));
+    }
+
+    private void open()
+    {
+        openedAt = ticker.read();
+        probeInFlight = false;
+        transitionTo(State.OPEN);
+    }
+
+    private void transitionTo(State newState)
+    {
+        State oldState = state;
+        state = newState;
+        listener.stateChanged(host, oldState, newState);
+    }
+
+    /**
+     * Moves the window forward to the current time, clearing the buckets
+     * that fell out of it, and returns the index of the current bucket.
+     */
+    private int advance()
+    {
+        long bucket = readBucket();
+        long expired = Math.min(bucket - currentBucket, BUCKETS);
+        for (long i = 1; i <= expired; i++) {
+            int index = (int) ((currentBucket + i) % BUCKETS);
+            successes[index] = 0;
+            failures[index] = 0;
+        }
+        if (bucket > currentBucket) {
+            currentBucket = bucket;
+        }
+        return (int) (currentBucket % BUCKETS);
+    }
+
+    private void resetWindow()
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            successes[i] = 0;
+            failures[i] = 0;
+        }
+        currentBucket = readBucket();
+    }
+
+    private long readBucket()
+    {
+        return (ticker.read() - startNanos) / bucketNanos;
+    }
+
+    private static long sum(long[] values)
+    {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,81 @@
+package com.proofpoint.http.client;
+
+import com.google.common.annotations.Beta;
+import com.proofpoint.configuration.Config;
+import com.proofpoint.configuration.ConfigDescription;
+import com.proofpoint.units.Duration;
+import com.proofpoint.units.MinDuration;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.concurrent.TimeUnit;
+
+@Beta
+public class CircuitBreakerConfig
+{
+    private Duration window = new Duration(10, TimeUnit.SECONDS);
+    private double failureRatio = 0.5;
+    private int minRequests = 20;
+    private Duration openDuration = new Duration(5, TimeUnit.SECONDS);
+
+    @NotNull
+    @MinDuration("1ms")
+    public Duration getWindow()
+    {
+        return window;
+    }
+
+    @Config("http-client.circuit-breaker.window")
+    @ConfigDescription("Length of the rolling window over which the failure ratio of a host is computed")
+    public CircuitBreakerConfig setWindow(Duration window)
+    {
+        this.window = window;
+        return this;
+    }
+
+    @DecimalMin("0")
+    @DecimalMax("1")
+    public double getFailureRatio()
+    {
+        return failureRatio;
+    }
+
+    @Config("http-client.circuit-breaker.failure-ratio")
+    @ConfigDescription("Ratio of failed requests within the window that opens the circuit for a host")
+    public CircuitBreakerConfig setFailureRatio(double failureRatio)
+    {
+        this.failureRatio = failureRatio;
+        return this;
+    }
+
+    @Min(1)
+    public int getMinRequests()
+    {
+        return minRequests;
+    }
+
+    @Config("http-client.circuit-breaker.min-requests")
+    @ConfigDescription("Minimum number of requests within the window before the circuit for a host can open")
+    public CircuitBreakerConfig setMinRequests(int minRequests)
+    {
+        this.minRequests = minRequests;
+        return this;
+    }
+
+    @NotNull
+    @MinDuration("0ms")
+    public Duration getOpenDuration()
+    {
+        return openDuration;
+    }
+
+    @Config("http-client.circuit-breaker.open-duration")
+    @ConfigDescription("Time an open circuit rejects requests before letting a probe request through")
+    public CircuitBreakerConfig setOpenDuration(Duration openDuration)
+    {
+        this.openDuration = openDuration;
+        return this;
+    }
+}
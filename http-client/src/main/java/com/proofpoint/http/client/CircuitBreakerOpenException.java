@@ -0,0 +1,24 @@
+package com.proofpoint.http.client;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * Thrown instead of sending a request when the circuit breaker for the
+ * destination host is open.
+ */
+@Beta
+public class CircuitBreakerOpenException extends ServiceUnavailableException
+{
+    private final String host;
+
+    public CircuitBreakerOpenException(String host, String message)
+    {
+        super(message);
+        this.host = host;
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+}
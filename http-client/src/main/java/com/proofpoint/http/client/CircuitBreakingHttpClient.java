@@ -0,0 +1,246 @@
+package com.proofpoint.http.client;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Ordering;
+import com.proofpoint.http.client.CircuitBreaker.State;
+import com.proofpoint.log.Logger;
+import com.proofpoint.units.Duration;
+import org.weakref.jmx.Flatten;
+import org.weakref.jmx.Managed;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a {@link CircuitBreaker} for each destination host. Requests to a
+ * host whose circuit is open fail immediately with a
+ * {@link CircuitBreakerOpenException}. I/O errors and 502, 503 and 504
+ * responses count as failures, except for requests that ran out of the time
+ * the caller gave them: a {@link DeadlineExceededException} or a 503 from a
+ * server that shed the request because its deadline had passed. Those say
+ * more about the caller's deadline than about the host. Requests with a
+ * relative URI are passed through unchanged.
+ * <p/>
+ * When combined with a {@link RetryingHttpClient}, the retrying client must
+ * wrap this one, so that each attempt is checked against the circuit of the
+ * instance it is sent to.
+ */
+@Beta
+public class CircuitBreakingHttpClient implements HttpClient
+{
+    private static final Logger log = Logger.get(CircuitBreakingHttpClient.class);
+    private static final Set<Integer> FAILURE_STATUS_CODES = ImmutableSet.of(502, 503, 504);
+    // status message of the 503 sent by servers that do not set the deadline exceeded header
+    private static final String DEADLINE_EXCEEDED_MESSAGE = "Deadline exceeded";
+
+    private final HttpClient httpClient;
+    private final CircuitBreakerConfig config;
+    private final Ticker ticker;
+    private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+    private final CircuitBreaker.StateListener stateListener = new CircuitBreaker.StateListener()
+    {
+        @Override
+        public void stateChanged(String host, State from, State to)
+        {
+            if (to == State.OPEN) {
+                getStats().recordCircuitBreakerOpened();
+                log.warn("Circuit breaker for %s changed from %s to %s", host, from, to);
+            }
+            else {
+                if (to == State.CLOSED) {
+                    getStats().recordCircuitBreakerClosed();
+                }
+                log.info("Circuit breaker for %s changed from %s to %s", host, from, to);
+            }
+        }
+    };
+
+    public CircuitBreakingHttpClient(HttpClient httpClient, CircuitBreakerConfig config)
+    {
+        this(httpClient, config, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    CircuitBreakingHttpClient(HttpClient httpClient, CircuitBreakerConfig config, Ticker ticker)
+    {
+        Preconditions.checkNotNull(httpClient, "httpClient is null");
+        Preconditions.checkNotNull(config, "config is null");
+        Preconditions.checkNotNull(ticker, "ticker is null");
+
+        this.httpClient = httpClient;
+        this.config = config;
+        this.ticker = ticker;
+    }
+
+    @VisibleForTesting
+    HttpClient getDelegate()
+    {
+        return httpClient;
+    }
+
+    @Override
+    @Managed
+    @Flatten
+    public RequestStats getStats()
+    {
+        return httpClient.getStats();
+    }
+
+    @Managed(description = "Number of hosts whose circuit breaker is open")
+    public int getOpenCircuitBreakers()
+    {
+        return getHosts(State.OPEN).size();
+    }
+
+    @Managed(description = "Number of hosts whose circuit breaker is half open")
+    public int getHalfOpenCircuitBreakers()
+    {
+        return getHosts(State.HALF_OPEN).size();
+    }
+
+    @Managed(description = "Hosts whose circuit breaker is open")
+    public String getOpenHosts()
+    {
+        return Joiner.on(", ").join(Ordering.natural().sortedCopy(getHosts(State.OPEN)));
+    }
+
+    @VisibleForTesting
+    State getState(URI uri)
+    {
+        CircuitBreaker circuitBreaker = circuitBreakers.get(hostKey(uri));
+        if (circuitBreaker == null) {
+            return State.CLOSED;
+        }
+        return circuitBreaker.getState();
+    }
+
+    @Override
+    public <T, E extends Exception> T execute(Request request, ResponseHandler<T, E> responseHandler)
+            throws E
+    {
+        Preconditions.checkNotNull(request, "request is null");
+        Preconditions.checkNotNull(responseHandler, "responseHandler is null");
+
+        URI uri = request.getUri();
+        if (uri.getHost() == null) {
+            return httpClient.execute(request, responseHandler);
+        }
+
+        CircuitBreaker circuitBreaker = getCircuitBreaker(hostKey(uri));
+        if (!circuitBreaker.allowRequest()) {
+            getStats().recordCircuitBreakerRejected();
+            Duration retryAfter = new Duration(circuitBreaker.getRemainingOpenNanos(), TimeUnit.NANOSECONDS);
+            throw responseHandler.handleException(request, new CircuitBreakerOpenException(circuitBreaker.getHost(),
+                    String.format("Circuit breaker for %s is open, next attempt in %s", circuitBreaker.getHost(), retryAfter)));
+        }
+
+        RecordingResponseHandler<T, E> recordingHandler = new RecordingResponseHandler<T, E>(responseHandler, circuitBreaker);
+        try {
+            return httpClient.execute(request, recordingHandler);
+        }
+        finally {
+            if (!recordingHandler.isRecorded()) {
+                circuitBreaker.recordIgnored();
+            }
+        }
+    }
+
+    private CircuitBreaker getCircuitBreaker(String host)
+    {
+        CircuitBreaker circuitBreaker = circuitBreakers.get(host);
+        if (circuitBreaker == null) {
+            circuitBreaker = new CircuitBreaker(host, config, ticker, stateListener);
+            CircuitBreaker existing = circuitBreakers.putIfAbsent(host, circuitBreaker);
+            if (existing != null) {
+                circuitBreaker = existing;
+            }
+        }
+        return circuitBreaker;
+    }
+
+    private List<String> getHosts(State state)
+    {
+        List<String> hosts = new ArrayList<String>();
+        for (CircuitBreaker circuitBreaker : circuitBreakers.values()) {
+            if (circuitBreaker.getState() == state) {
+                hosts.add(circuitBreaker.getHost());
+            }
+        }
+        return hosts;
+    }
+
+    private static String hostKey(URI uri)
+    {
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        }
+        return uri.getHost().toLowerCase() + ":" + port;
+    }
+
+    private static boolean isDeadlineExceeded(Response response)
+    {
+        return response.getStatusCode() == 503 &&
+                ("true".equalsIgnoreCase(response.getHeader(ApacheHttpClient.DEADLINE_EXCEEDED_HEADER)) || DEADLINE_EXCEEDED_MESSAGE.equals(response.getStatusMessage()));
+    }
+
+    private static class RecordingResponseHandler<T, E extends Exception>
+            implements ResponseHandler<T, E>
+    {
+        private final ResponseHandler<T, E> delegate;
+        private final CircuitBreaker circuitBreaker;
+        private boolean recorded;
+
+        private RecordingResponseHandler(ResponseHandler<T, E> delegate, CircuitBreaker circuitBreaker)
+        {
+            this.delegate = delegate;
+            this.circuitBreaker = circuitBreaker;
+        }
+
+        public boolean isRecorded()
+        {
+            return recorded;
+        }
+
+        @Override
+        public E handleException(Request request, Exception exception)
+        {
+            // a cancelled or expired request says nothing about the host
+            if (!recorded && exception instanceof IOException && !(exception instanceof RequestCancelledException) && !(exception instanceof DeadlineExceededException)) {
+                recorded = true;
+                circuitBreaker.recordFailure();
+            }
+            return delegate.handleException(request, exception);
+        }
+
+        @Override
+        public T handle(Request request, Response response)
+                throws E
+        {
+            // record before calling the delegate so that a failing handler is not blamed on the host
+            recorded = true;
+            if (isDeadlineExceeded(response)) {
+                // the server shed work the caller had already given up on
+                circuitBreaker.recordIgnored();
+            }
+            else if (FAILURE_STATUS_CODES.contains(response.getStatusCode())) {
+                circuitBreaker.recordFailure();
+            }
+            else {
+                circuitBreaker.recordSuccess();
+            }
+            return delegate.handle(request, response);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.proofpoint.http.client;
+
+import com.google.common.annotations.Beta;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.proofpoint.stats.TimedStat;
+import com.proofpoint.units.Duration;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gauges for the connection pool of an {@link ApacheHttpClient}. For
+ * clients without a connection pool, all gauges are zero.
+ */
+@Beta
+public class ConnectionPoolStats
+{
+    private static final PoolStats EMPTY = new PoolStats(0, 0, 0, 0);
+
+    private final ConnPoolControl<HttpRoute> pool;
+    private final Set<HttpRoute> routes = Sets.newSetFromMap(new ConcurrentHashMap<HttpRoute, Boolean>());
+    private final TimedStat leaseTime = new TimedStat();
+
+    public ConnectionPoolStats()
+    {
+        this(null);
+    }
+
+    ConnectionPoolStats(ConnPoolControl<HttpRoute> pool)
+    {
+        this.pool = pool;
+    }
+
+    void recordLease(HttpRoute route, Duration leaseTime)
+    {
+        routes.add(route);
+        this.leaseTime.addValue(leaseTime);
+    }
+
+    @Managed(description = "Connections in use")
+    public int getLeased()
+    {
+        return getTotalStats().getLeased();
+    }
+
+    @Managed(description = "Idle connections in the pool")
+    public int getAvailable()
+    {
+        return getTotalStats().getAvailable();
+    }
+
+    @Managed(description = "Requests waiting for a connection")
+    public int getPending()
+    {
+        return getTotalStats().getPending();
+    }
+
+    @Managed(description = "Maximum number of connections")
+    public int getMax()
+    {
+        return getTotalStats().getMax();
+    }
+
+    @Managed
+    @Nested
+    public TimedStat getLeaseTime()
+    {
+        return leaseTime;
+    }
+
+    @Managed(description = "Routes with connections or waiting requests")
+    public int getActiveRoutes()
+    {
+        return getRouteStats().size();
+    }
+
+    @Managed(description = "Routes with all of their connections in use")
+    public int getSaturatedRoutes()
+    {
+        int saturated = 0;
+        for (PoolStats stats : getRouteStats().values()) {
+            if (stats.getLeased() >= stats.getMax()) {
+                saturated++;
+            }
+        }
+        return saturated;
+    }
+
+    @Managed(description = "Connections in use by the route with the most connections in use")
+    public int getMaxRouteLeased()
+    {
+        int max = 0;
+        for (PoolStats stats : getRouteStats().values()) {
+            max = Math.max(max, stats.getLeased());
+        }
+        return max;
+    }
+
+    @Managed(description = "Requests waiting for a connection to the route with the most waiting requests")
+    public int getMaxRoutePending()
+    {
+        int max = 0;
+        for (PoolStats stats : getRouteStats().values()) {
+            max = Math.max(max, stats.getPending());
+        }
+        return max;
+    }
+
+    @Managed(description = "Leased, available, pending and maximum connections for each route")
+    public String getRoutes()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, PoolStats> entry : getRouteStats().entrySet()) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the pool stats of each route that has connections or waiting
+     * requests. Routes that have neither are forgotten.
+     */
+    public Map<String, PoolStats> getRouteStats()
+    {
+        if (pool == null) {
+            return ImmutableMap.of();
+        }
+
+        Map<String, PoolStats> routeStats = new TreeMap<String, PoolStats>();
+        for (Iterator<HttpRoute> iterator = routes.iterator(); iterator.hasNext(); ) {
+            HttpRoute route = iterator.next();
+            PoolStats stats = pool.getStats(route);
+            if (stats.getLeased() == 0 && stats.getAvailable() == 0 && stats.getPending() == 0) {
+                iterator.remove();
+                continue;
+            }
+            routeStats.put(route.getTargetHost().toURI(), stats);
+        }
+        return ImmutableMap.copyOf(routeStats);
+    }
+
+    private PoolStats getTotalStats()
+    {
+        if (pool == null) {
+            return EMPTY;
+        }
+        return pool.getTotalStats();
+    }
+}
@@ -0,0 +1,18 @@
+package com.proofpoint.http.client;
+
+import com.google.common.annotations.Beta;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Thrown when a request does not complete within its
+ * {@linkplain Request#getTimeout() timeout}.
+ */
+@Beta
+public class DeadlineExceededException extends SocketTimeoutException
+{
+    public DeadlineExceededException(String message)
+    {
+        super(message);
+    }
+}
@@ -60,6 +60,22 @@ public class FullJsonResponseHandler<T> implements ResponseHandler<JsonResponse<
         }
     }
 
+    @Override
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof FullJsonResponseHandler)) {
+            return false;
+        }
+        FullJsonResponseHandler<?> r = (FullJsonResponseHandler<?>) o;
+        return jsonCodec.equals(r.jsonCodec);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return jsonCodec.hashCode();
+    }
+
     public static class JsonResponse<T>
     {
         private final int statusCode;
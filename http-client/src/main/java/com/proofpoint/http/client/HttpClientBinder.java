@@ -1,6 +1,7 @@
 package com.proofpoint.http.client;
 
 import com.google.inject.Binder;
+import com.google.inject.Key;
 import com.google.inject.binder.LinkedBindingBuilder;
 import com.google.inject.multibindings.Multibinder;
 
@@ -85,5 +86,24 @@ public class HttpClientBinder
         {
             return withFilter(TraceTokenRequestFilter.class);
         }
+
+        public HttpClientBindingBuilder withRetries()
+        {
+            module.enableRetries();
+            return this;
+        }
+
+        public HttpClientBindingBuilder withCircuitBreaker()
+        {
+            module.enableCircuitBreaker();
+            return this;
+        }
+
+        public HttpClientBindingBuilder withServiceSelector(Key<? extends ServiceUriSelector> serviceSelectorKey)
+        {
+            checkNotNull(serviceSelectorKey, "serviceSelectorKey is null");
+            module.setServiceSelector(serviceSelectorKey);
+            return this;
+        }
     }
 }
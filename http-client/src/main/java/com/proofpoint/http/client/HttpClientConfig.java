@@ -2,6 +2,7 @@ package com.proofpoint.http.client;
 
 import com.google.common.annotations.Beta;
 import com.proofpoint.configuration.Config;
+import com.proofpoint.configuration.ConfigDescription;
 import com.proofpoint.units.Duration;
 import com.proofpoint.units.MinDuration;
 
@@ -14,8 +15,14 @@ public class HttpClientConfig
 {
     private Duration connectTimeout = new Duration(1, TimeUnit.SECONDS);
     private Duration readTimeout = new Duration(1, TimeUnit.MINUTES);
+    private Duration requestTimeout;
+    private boolean propagateDeadline;
     private int maxConnections = 200;
     private int maxConnectionsPerServer = 20;
+    private Duration idleTimeout = new Duration(30, TimeUnit.SECONDS);
+    private Duration connectionTtl;
+    private Duration evictionInterval = new Duration(5, TimeUnit.SECONDS);
+    private int prewarmConnections = 0;
 
     @NotNull
     @MinDuration("0ms")
@@ -45,6 +52,33 @@ public class HttpClientConfig
         return this;
     }
 
+    @MinDuration("0ms")
+    public Duration getRequestTimeout()
+    {
+        return requestTimeout;
+    }
+
+    @Config("http-client.request-timeout")
+    @ConfigDescription("Total time allowed for a request that does not set its own timeout, unlimited if not set")
+    public HttpClientConfig setRequestTimeout(Duration requestTimeout)
+    {
+        this.requestTimeout = requestTimeout;
+        return this;
+    }
+
+    public boolean isPropagateDeadline()
+    {
+        return propagateDeadline;
+    }
+
+    @Config("http-client.propagate-deadline")
+    @ConfigDescription("Send the time remaining before the request times out to the server")
+    public HttpClientConfig setPropagateDeadline(boolean propagateDeadline)
+    {
+        this.propagateDeadline = propagateDeadline;
+        return this;
+    }
+
     @Min(1)
     public int getMaxConnections()
     {
@@ -70,4 +104,62 @@ public class HttpClientConfig
         this.maxConnectionsPerServer = maxConnectionsPerServer;
         return this;
     }
+
+    @NotNull
+    @MinDuration("0ms")
+    public Duration getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    @Config("http-client.idle-timeout")
+    @ConfigDescription("Time after which an idle pooled connection is closed")
+    public HttpClientConfig setIdleTimeout(Duration idleTimeout)
+    {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    @MinDuration("1ms")
+    public Duration getConnectionTtl()
+    {
+        return connectionTtl;
+    }
+
+    @Config("http-client.connection-ttl")
+    @ConfigDescription("Maximum lifetime of a pooled connection, unlimited if not set")
+    public HttpClientConfig setConnectionTtl(Duration connectionTtl)
+    {
+        this.connectionTtl = connectionTtl;
+        return this;
+    }
+
+    @NotNull
+    @MinDuration("1ms")
+    public Duration getEvictionInterval()
+    {
+        return evictionInterval;
+    }
+
+    @Config("http-client.eviction-interval")
+    @ConfigDescription("How often idle and expired connections are removed from the pool")
+    public HttpClientConfig setEvictionInterval(Duration evictionInterval)
+    {
+        this.evictionInterval = evictionInterval;
+        return this;
+    }
+
+    @Min(0)
+    public int getPrewarmConnections()
+    {
+        return prewarmConnections;
+    }
+
+    @Config("http-client.prewarm-connections")
+    @ConfigDescription("Number of connections to open at startup to each instance of the bound service selector")
+    public HttpClientConfig setPrewarmConnections(int prewarmConnections)
+    {
+        this.prewarmConnections = prewarmConnections;
+        return this;
+    }
 }
@@ -8,6 +8,7 @@ import com.google.inject.Provider;
 import com.google.inject.Scopes;
 import com.google.inject.TypeLiteral;
 
+import javax.annotation.PreDestroy;
 import java.lang.annotation.Annotation;
 import java.util.Set;
 
@@ -37,7 +38,7 @@ class HttpClientModule
         bindConfig(binder).annotatedWith(annotation).prefixedWith(name).to(HttpClientConfig.class);
 
         // bind the client
-        binder.bind(HttpClient.class).annotatedWith(annotation).toProvider(new HttpClientProvider(annotation)).in(Scopes.SINGLETON);
+        binder.bind(HttpClient.class).annotatedWith(annotation).toProvider(new HttpClientProvider()).in(Scopes.SINGLETON);
 
         // kick off the binding for the filter set
         newSetBinder(binder, HttpRequestFilter.class, filterQualifier(annotation));
@@ -49,15 +50,10 @@ class HttpClientModule
         binder.bind(HttpClient.class).annotatedWith(alias).to(Key.get(HttpClient.class, annotation));
     }
 
-    private static class HttpClientProvider implements Provider<HttpClient>
+    private class HttpClientProvider implements Provider<HttpClient>
     {
-        private final Class<? extends Annotation> annotation;
         private Injector injector;
-
-        private HttpClientProvider(Class<? extends Annotation> annotation)
-        {
-            this.annotation = annotation;
-        }
+        private ApacheHttpClient apacheHttpClient;
 
         @Inject
         public void setInjector(Injector injector)
@@ -66,12 +62,34 @@ class HttpClientModule
             this.injector = injector;
         }
 
+        @PreDestroy
+        public void stop()
+        {
+            if (apacheHttpClient != null) {
+                apacheHttpClient.close();
+                apacheHttpClient = null;
+            }
+        }
+
         @Override
         public HttpClient get()
         {
             HttpClientConfig config = injector.getInstance(Key.get(HttpClientConfig.class, annotation));
             Set<HttpRequestFilter> filters = injector.getInstance(filterKey(annotation));
-            return new ApacheHttpClient(config, filters);
+            ServiceUriSelector serviceSelector = getServiceSelector(injector);
+
+            apacheHttpClient = new ApacheHttpClient(config, filters);
+            prewarmConnections(apacheHttpClient, config, serviceSelector);
+
+            HttpClient client = apacheHttpClient;
+            if (circuitBreakerEnabled) {
+                client = new CircuitBreakingHttpClient(client, injector.getInstance(Key.get(CircuitBreakerConfig.class, annotation)));
+            }
+            if (retriesEnabled) {
+                HttpRetryConfig retryConfig = injector.getInstance(Key.get(HttpRetryConfig.class, annotation));
+                client = new RetryingHttpClient(client, retryConfig, serviceSelector);
+            }
+            return client;
         }
     }
 
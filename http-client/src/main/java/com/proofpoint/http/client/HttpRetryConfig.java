@@ -0,0 +1,126 @@
+package com.proofpoint.http.client;
+
+import com.google.common.annotations.Beta;
+import com.proofpoint.configuration.Config;
+import com.proofpoint.configuration.ConfigDescription;
+import com.proofpoint.units.Duration;
+import com.proofpoint.units.MinDuration;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.concurrent.TimeUnit;
+
+@Beta
+public class HttpRetryConfig
+{
+    private int maxAttempts = 3;
+    private Duration minBackoff = new Duration(10, TimeUnit.MILLISECONDS);
+    private Duration maxBackoff = new Duration(1, TimeUnit.SECONDS);
+    private double budgetRatio = 0.1;
+    private int budgetReserve = 10;
+    private boolean hedgeEnabled = false;
+    private Duration minHedgeDelay = new Duration(10, TimeUnit.MILLISECONDS);
+
+    @Min(1)
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    @Config("http-client.retry.max-attempts")
+    @ConfigDescription("Maximum number of attempts, including the first one, for an idempotent request")
+    public HttpRetryConfig setMaxAttempts(int maxAttempts)
+    {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    @NotNull
+    @MinDuration("0ms")
+    public Duration getMinBackoff()
+    {
+        return minBackoff;
+    }
+
+    @Config("http-client.retry.min-backoff")
+    @ConfigDescription("Upper bound of the randomized delay before the first retry")
+    public HttpRetryConfig setMinBackoff(Duration minBackoff)
+    {
+        this.minBackoff = minBackoff;
+        return this;
+    }
+
+    @NotNull
+    @MinDuration("0ms")
+    public Duration getMaxBackoff()
+    {
+        return maxBackoff;
+    }
+
+    @Config("http-client.retry.max-backoff")
+    @ConfigDescription("Upper bound of the randomized delay before any retry")
+    public HttpRetryConfig setMaxBackoff(Duration maxBackoff)
+    {
+        this.maxBackoff = maxBackoff;
+        return this;
+    }
+
+    @DecimalMin("0")
+    @DecimalMax("1")
+    public double getBudgetRatio()
+    {
+        return budgetRatio;
+    }
+
+    @Config("http-client.retry.budget-ratio")
+    @ConfigDescription("Sustained number of retries and hedged requests allowed per request")
+    public HttpRetryConfig setBudgetRatio(double budgetRatio)
+    {
+        this.budgetRatio = budgetRatio;
+        return this;
+    }
+
+    @Min(0)
+    public int getBudgetReserve()
+    {
+        return budgetReserve;
+    }
+
+    @Config("http-client.retry.budget-reserve")
+    @ConfigDescription("Number of retries and hedged requests that may be issued in a burst")
+    public HttpRetryConfig setBudgetReserve(int budgetReserve)
+    {
+        this.budgetReserve = budgetReserve;
+        return this;
+    }
+
+    public boolean isHedgeEnabled()
+    {
+        return hedgeEnabled;
+    }
+
+    @Config("http-client.hedge.enabled")
+    @ConfigDescription("Send a duplicate idempotent request to a second service instance when the first one is slower than the 95th percentile. Requests with absolute URIs are not hedged")
+    public HttpRetryConfig setHedgeEnabled(boolean hedgeEnabled)
+    {
+        this.hedgeEnabled = hedgeEnabled;
+        return this;
+    }
+
+    @NotNull
+    @MinDuration("0ms")
+    public Duration getMinHedgeDelay()
+    {
+        return minHedgeDelay;
+    }
+
+    @Config("http-client.hedge.min-delay")
+    @ConfigDescription("Minimum time to wait before sending a hedged request")
+    public HttpRetryConfig setMinHedgeDelay(Duration minHedgeDelay)
+    {
+        this.minHedgeDelay = minHedgeDelay;
+        return this;
+    }
+}
@@ -1,6 +1,7 @@
 package com.proofpoint.http.client;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.CharStreams;
@@ -72,4 +73,22 @@ public class JsonResponseHandler<T> implements ResponseHandler<T, RuntimeExcepti
             throw new RuntimeException("Error reading response from server");
         }
     }
+
+    // handlers for the same codec parse responses the same way, so requests coalesced for them can share a result
+    @Override
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof JsonResponseHandler)) {
+            return false;
+        }
+        JsonResponseHandler<?> r = (JsonResponseHandler<?>) o;
+        return jsonCodec.equals(r.jsonCodec) &&
+                successfulResponseCodes.equals(r.successfulResponseCodes);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hashCode(jsonCodec, successfulResponseCodes);
+    }
 }
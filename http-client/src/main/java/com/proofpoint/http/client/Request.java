@@ -6,6 +6,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ListMultimap;
+import com.proofpoint.units.Duration;
 
 import java.net.URI;
 import java.util.Map.Entry;
@@ -20,8 +21,14 @@ public class Request
     private final String method;
     private final ListMultimap<String, String> headers;
     private final BodyGenerator bodyGenerator;
+    private final Duration timeout;
 
     public Request(URI uri, String method, ListMultimap<String, String> headers, BodyGenerator bodyGenerator)
+    {
+        this(uri, method, headers, bodyGenerator, null);
+    }
+
+    public Request(URI uri, String method, ListMultimap<String, String> headers, BodyGenerator bodyGenerator, Duration timeout)
     {
         Preconditions.checkNotNull(uri, "uri is null");
         Preconditions.checkNotNull(method, "method is null");
@@ -30,6 +37,7 @@ public class Request
         this.method = method;
         this.headers = ImmutableListMultimap.copyOf(headers);
         this.bodyGenerator = bodyGenerator;
+        this.timeout = timeout;
     }
 
     public static Request.Builder builder() {
@@ -56,6 +64,16 @@ public class Request
         return bodyGenerator;
     }
 
+    /**
+     * Total time allowed for the request, including waiting for a
+     * connection, sending the request and reading the response, or null if
+     * there is no limit.
+     */
+    public Duration getTimeout()
+    {
+        return timeout;
+    }
+
     @Override
     public String toString()
     {
@@ -64,6 +82,7 @@ public class Request
                 .add("method", method)
                 .add("headers", headers)
                 .add("bodyGenerator", bodyGenerator)
+                .add("timeout", timeout)
                 .toString();
     }
 
@@ -77,13 +96,14 @@ public class Request
         return equal(uri, r.uri) &&
                 equal(method, r.method) &&
                 equal(headers, r.headers) &&
-                equal(bodyGenerator, r.bodyGenerator);
+                equal(bodyGenerator, r.bodyGenerator) &&
+                equal(timeout, r.timeout);
     }
 
     @Override
     public int hashCode()
     {
-        return Objects.hashCode(uri, method, headers, bodyGenerator);
+        return Objects.hashCode(uri, method, headers, bodyGenerator, timeout);
     }
 
     @Beta
@@ -114,6 +134,7 @@ public class Request
             requestBuilder.setMethod(request.getMethod());
             requestBuilder.setBodyGenerator(request.getBodyGenerator());
             requestBuilder.setUri(request.getUri());
+            requestBuilder.setTimeout(request.getTimeout());
 
             for (Entry<String, String> entry : request.getHeaders().entries()) {
                 requestBuilder.addHeader(entry.getKey(), entry.getValue());
@@ -125,6 +146,7 @@ public class Request
         private String method;
         private final ListMultimap<String, String> headers = ArrayListMultimap.create();
         private BodyGenerator bodyGenerator;
+        private Duration timeout;
 
         public Builder setUri(URI uri)
         {
@@ -157,8 +179,14 @@ public class Request
             return this;
         }
 
+        public Builder setTimeout(Duration timeout)
+        {
+            this.timeout = timeout;
+            return this;
+        }
+
         public Request build() {
-            return new Request(uri, method, headers, bodyGenerator);
+            return new Request(uri, method, headers, bodyGenerator, timeout);
         }
     }
 }
@@ -0,0 +1,18 @@
+package com.proofpoint.http.client;
+
+import com.google.common.annotations.Beta;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown when a request is aborted because the future returned by the
+ * {@link AsyncHttpClient} was cancelled.
+ */
+@Beta
+public class RequestCancelledException extends InterruptedIOException
+{
+    public RequestCancelledException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,423 @@
+package com.proofpoint.http.client;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the results of identical GET and HEAD requests sent through an
+ * {@link AsyncHttpClient}. Two requests are identical when they are equal
+ * (same URI, headers and timeout) and are handled by equal response handlers,
+ * so every caller receives a result parsed the way it asked for. The JSON
+ * response handlers are equal when they use the same codec.
+ * <p/>
+ * While a request is in flight, identical requests wait for its result
+ * instead of being sent. A caller that cancels its future stops waiting; the
+ * request itself is cancelled once no caller is waiting for it.
+ * <p/>
+ * When the response cache is enabled, the result of a {@code 200} response is
+ * also kept for the max-age of its {@code Cache-Control} header, capped at the
+ * configured maximum. Once it expires, a result whose response carried an
+ * {@code ETag} is revalidated with an {@code If-None-Match} request, and kept
+ * for another max-age if the server answers {@code 304}. Responses marked
+ * {@code no-store} are never kept, and responses marked {@code no-cache} are
+ * revalidated on every use.
+ */
+class RequestCoalescer
+{
+    interface RequestSender
+    {
+        <T, E extends Exception> ListenableFuture<T> send(Request request, ResponseHandler<T, E> responseHandler);
+    }
+
+    private static final Splitter DIRECTIVE_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private final RequestSender sender;
+    private final RequestStats stats;
+    private final Ticker ticker;
+    private final boolean coalesceRequests;
+    private final Cache<RequestKey, CachedResult<?>> cache;
+    private final long maxTtlNanos;
+    private final ConcurrentMap<RequestKey, Flight<?>> flights = new ConcurrentHashMap<RequestKey, Flight<?>>();
+
+    RequestCoalescer(AsyncHttpClientConfig config, RequestStats stats, Ticker ticker, RequestSender sender)
+    {
+        Preconditions.checkNotNull(config, "config is null");
+        Preconditions.checkNotNull(stats, "stats is null");
+        Preconditions.checkNotNull(ticker, "ticker is null");
+        Preconditions.checkNotNull(sender, "sender is null");
+
+        this.sender = sender;
+        this.stats = stats;
+        this.ticker = ticker;
+        this.coalesceRequests = config.isCoalesceRequests();
+        if (config.isResponseCacheEnabled()) {
+            cache = CacheBuilder.newBuilder().maximumSize(config.getResponseCacheMaxEntries()).build();
+        }
+        else {
+            cache = null;
+        }
+        this.maxTtlNanos = (long) config.getResponseCacheMaxTtl().convertTo(TimeUnit.NANOSECONDS);
+    }
+
+    static boolean isCoalescable(Request request)
+    {
+        String method = request.getMethod().toUpperCase();
+        return (method.equals("GET") || method.equals("HEAD")) && request.getBodyGenerator() == null;
+    }
+
+    @VisibleForTesting
+    int getInFlightRequests()
+    {
+        return flights.size();
+    }
+
+    public <T, E extends Exception> ListenableFuture<T> execute(Request request, ResponseHandler<T, E> responseHandler)
+    {
+        Preconditions.checkArgument(isCoalescable(request), "request can not be coalesced: %s", request);
+        RequestKey key = new RequestKey(request, responseHandler);
+
+        CachedResult<T> cached = null;
+        if (cache != null && isCacheable(request)) {
+            cached = getCachedResult(key);
+            if (cached != null) {
+                if (cached.isFresh(ticker.read())) {
+                    stats.recordResponseCacheHit();
+                    return Futures.immediateFuture(cached.getValue());
+                }
+                if (cached.getETag() == null) {
+                    cache.invalidate(key);
+                    cached = null;
+                }
+            }
+        }
+
+        if (!coalesceRequests) {
+            return send(key, request, responseHandler, cached);
+        }
+
+        while (true) {
+            @SuppressWarnings("unchecked")
+            Flight<T> flight = (Flight<T>) flights.get(key);
+            if (flight != null) {
+                ListenableFuture<T> future = flight.join();
+                if (future != null) {
+                    stats.recordCoalescedRequest();
+                    return future;
+                }
+                // every caller of this flight has given up on it
+                flights.remove(key, flight);
+                continue;
+            }
+
+            flight = new Flight<T>();
+            if (flights.putIfAbsent(key, flight) == null) {
+                ListenableFuture<T> future = flight.join();
+                flight.start(key, send(key, request, responseHandler, cached));
+                return future;
+            }
+        }
+    }
+
+    private <T, E extends Exception> ListenableFuture<T> send(RequestKey key, Request request, ResponseHandler<T, E> responseHandler, CachedResult<T> stale)
+    {
+        if (cache == null || !isCacheable(request)) {
+            return sender.send(request, responseHandler);
+        }
+
+        if (stale != null) {
+            request = Request.Builder.fromRequest(request).setHeader("If-None-Match", stale.getETag()).build();
+        }
+        return sender.send(request, new CachingResponseHandler<T, E>(key, responseHandler, stale));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CachedResult<T> getCachedResult(RequestKey key)
+    {
+        return (CachedResult<T>) cache.getIfPresent(key);
+    }
+
+    private <T> void store(RequestKey key, T value, Response response, CachedResult<T> stale)
+    {
+        String cacheControl = response.getHeader("Cache-Control");
+        String eTag = response.getHeader("ETag");
+        if (response.getStatusCode() == 304 && stale != null) {
+            // a 304 only needs to repeat the headers that changed
+            if (eTag == null) {
+                eTag = stale.getETag();
+            }
+            if (cacheControl == null) {
+                cacheControl = stale.getCacheControl();
+            }
+        }
+
+        long ttlNanos = getTtlNanos(cacheControl);
+        if (ttlNanos < 0 || (ttlNanos == 0 && eTag == null)) {
+            cache.invalidate(key);
+            return;
+        }
+        cache.put(key, new CachedResult<T>(value, ticker.read() + ttlNanos, eTag, cacheControl));
+    }
+
+    /**
+     * Returns the time the response may be used without revalidation, zero
+     * if it must be revalidated on every use, or -1 if it must not be stored.
+     */
+    private long getTtlNanos(String cacheControl)
+    {
+        if (cacheControl == null) {
+            return 0;
+        }
+
+        long ttlNanos = 0;
+        boolean noCache = false;
+        for (String directive : DIRECTIVE_SPLITTER.split(cacheControl.toLowerCase())) {
+            if (directive.equals("no-store")) {
+                return -1;
+            }
+            if (directive.equals("no-cache")) {
+                noCache = true;
+            }
+            else if (directive.startsWith("max-age=")) {
+                String seconds = directive.substring("max-age=".length()).replace("\"", "");
+                try {
+                    ttlNanos = Math.min(TimeUnit.SECONDS.toNanos(Long.parseLong(seconds)), maxTtlNanos);
+                }
+                catch (NumberFormatException ignored) {
+                    // an invalid max-age means the response is stale
+                }
+            }
+        }
+        if (noCache) {
+            return 0;
+        }
+        return Math.max(0, ttlNanos);
+    }
+
+    private static boolean isCacheable(Request request)
+    {
+        for (Map.Entry<String, String> header : request.getHeaders().entries()) {
+            String name = header.getKey();
+            // conditional requests are answered by the caller's own cache
+            if (name.equalsIgnoreCase("If-None-Match") || name.equalsIgnoreCase("If-Modified-Since")) {
+                return false;
+            }
+            if (name.equalsIgnoreCase("Cache-Control") || name.equalsIgnoreCase("Pragma")) {
+                String value = header.getValue().toLowerCase();
+                if (value.contains("no-cache") || value.contains("no-store")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static class RequestKey
+    {
+        private final Request request;
+        private final ResponseHandler<?, ?> responseHandler;
+
+        private RequestKey(Request request, ResponseHandler<?, ?> responseHandler)
+        {
+            this.request = request;
+            this.responseHandler = responseHandler;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            RequestKey that = (RequestKey) o;
+            return request.equals(that.request) && responseHandler.equals(that.responseHandler);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(request, responseHandler);
+        }
+    }
+
+    private static class CachedResult<T>
+    {
+        private final T value;
+        private final long expiresAt;
+        private final String eTag;
+        private final String cacheControl;
+
+        private CachedResult(T value, long expiresAt, String eTag, String cacheControl)
+        {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.eTag = eTag;
+            this.cacheControl = cacheControl;
+        }
+
+        public T getValue()
+        {
+            return value;
+        }
+
+        public String getETag()
+        {
+            return eTag;
+        }
+
+        public String getCacheControl()
+        {
+            return cacheControl;
+        }
+
+        public boolean isFresh(long now)
+        {
+            return now - expiresAt < 0;
+        }
+    }
+
+    private class CachingResponseHandler<T, E extends Exception>
+            implements ResponseHandler<T, E>
+    {
+        private final RequestKey key;
+        private final ResponseHandler<T, E> delegate;
+        private final CachedResult<T> stale;
+
+        private CachingResponseHandler(RequestKey key, ResponseHandler<T, E> delegate, CachedResult<T> stale)
+        {
+            this.key = key;
+            this.delegate = delegate;
+            this.stale = stale;
+        }
+
+        @Override
+        public E handleException(Request request, Exception exception)
+        {
+            return delegate.handleException(request, exception);
+        }
+
+        @Override
+        public T handle(Request request, Response response)
+                throws E
+        {
+            if (stale != null && response.getStatusCode() == 304) {
+                stats.recordResponseCacheRevalidation();
+                store(key, stale.getValue(), response, stale);
+                return stale.getValue();
+            }
+
+            T value = delegate.handle(request, response);
+            if (response.getStatusCode() == 200) {
+                store(key, value, response, null);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * A request in flight and the callers waiting for its result. Each caller
+     * gets its own future so that cancelling it does not affect the others.
+     */
+    private class Flight<T>
+    {
+        private final SettableFuture<T> result = SettableFuture.create();
+        private ListenableFuture<T> request;
+        private int waiters;
+        private boolean abandoned;
+
+        /**
+         * Returns a future for the result of this flight, or null if every
+         * previous caller has cancelled and the request is being cancelled.
+         */
+        public synchronized ListenableFuture<T> join()
+        {
+            if (abandoned) {
+                return null;
+            }
+            waiters++;
+
+            final SettableFuture<T> waiter = SettableFuture.create();
+            Futures.addCallback(result, new FutureCallback<T>()
+            {
+                @Override
+                public void onSuccess(T value)
+                {
+                    waiter.set(value);
+                }
+
+                @Override
+                public void onFailure(Throwable t)
+                {
+                    waiter.setException(t);
+                }
+            });
+            waiter.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (waiter.isCancelled()) {
+                        leave();
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            return waiter;
+        }
+
+        public void start(final RequestKey key, ListenableFuture<T> request)
+        {
+            synchronized (this) {
+                this.request = request;
+            }
+            Futures.addCallback(request, new FutureCallback<T>()
+            {
+                @Override
+                public void onSuccess(T value)
+                {
+                    flights.remove(key, Flight.this);
+                    result.set(value);
+                }
+
+                @Override
+                public void onFailure(Throwable t)
+                {
+                    flights.remove(key, Flight.this);
+                    result.setException(t);
+                }
+            });
+        }
+
+        private void leave()
+        {
+            ListenableFuture<T> request;
+            synchronized (this) {
+                waiters--;
+                if (waiters > 0) {
+                    return;
+                }
+                abandoned = true;
+                request = this.request;
+            }
+            if (request != null) {
+                request.cancel(true);
+            }
+        }
+    }
+}
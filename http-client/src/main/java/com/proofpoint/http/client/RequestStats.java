@@ -1,6 +1,7 @@
 package com.proofpoint.http.client;
 
 import com.google.common.annotations.Beta;
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.proofpoint.stats.CounterStat;
 import com.proofpoint.stats.MeterStat;
@@ -23,11 +24,30 @@ public class RequestStats
     private final TimedStat responseTime;
     private final MeterStat readBytes;
     private final MeterStat writtenBytes;
+    private final CounterStat retry;
+    private final CounterStat retryBudgetExhausted;
+    private final CounterStat hedgedRequest;
+    private final CounterStat hedgeWin;
+    private final CounterStat circuitBreakerOpened;
+    private final CounterStat circuitBreakerClosed;
+    private final CounterStat circuitBreakerRejected;
+    private final CounterStat deadlineExceeded;
+    private final CounterStat coalescedRequest;
+    private final CounterStat responseCacheHit;
+    private final CounterStat responseCacheRevalidation;
+    private final ConnectionPoolStats connectionPool;
     private final ScheduledExecutorService executor;
 
     @Inject
     public RequestStats()
     {
+        this(new ConnectionPoolStats());
+    }
+
+    public RequestStats(ConnectionPoolStats connectionPool)
+    {
+        this.connectionPool = Preconditions.checkNotNull(connectionPool, "connectionPool is null");
+
         executor = new ScheduledThreadPoolExecutor(2, new ThreadFactoryBuilder().setNameFormat("RequestStatsTicker-%s").setDaemon(true).build());
 
         request = new CounterStat(executor);
@@ -35,10 +55,32 @@ public class RequestStats
         responseTime = new TimedStat();
         readBytes = new MeterStat(executor);
         writtenBytes = new MeterStat(executor);
+        retry = new CounterStat(executor);
+        retryBudgetExhausted = new CounterStat(executor);
+        hedgedRequest = new CounterStat(executor);
+        hedgeWin = new CounterStat(executor);
+        circuitBreakerOpened = new CounterStat(executor);
+        circuitBreakerClosed = new CounterStat(executor);
+        circuitBreakerRejected = new CounterStat(executor);
+        deadlineExceeded = new CounterStat(executor);
+        coalescedRequest = new CounterStat(executor);
+        responseCacheHit = new CounterStat(executor);
+        responseCacheRevalidation = new CounterStat(executor);
 
         request.start();
         readBytes.start();
         writtenBytes.start();
+        retry.start();
+        retryBudgetExhausted.start();
+        hedgedRequest.start();
+        hedgeWin.start();
+        circuitBreakerOpened.start();
+        circuitBreakerClosed.start();
+        circuitBreakerRejected.start();
+        deadlineExceeded.start();
+        coalescedRequest.start();
+        responseCacheHit.start();
+        responseCacheRevalidation.start();
     }
 
     @PreDestroy
@@ -47,6 +89,17 @@ public class RequestStats
         request.stop();
         readBytes.stop();
         writtenBytes.stop();
+        retry.stop();
+        retryBudgetExhausted.stop();
+        hedgedRequest.stop();
+        hedgeWin.stop();
+        circuitBreakerOpened.stop();
+        circuitBreakerClosed.stop();
+        circuitBreakerRejected.stop();
+        deadlineExceeded.stop();
+        coalescedRequest.stop();
+        responseCacheHit.stop();
+        responseCacheRevalidation.stop();
         executor.shutdown();
     }
 
@@ -68,6 +121,61 @@ public class RequestStats
         writtenBytes.update(requestSizeInBytes);
     }
 
+    public void recordRetry()
+    {
+        retry.update(1);
+    }
+
+    public void recordRetryBudgetExhausted()
+    {
+        retryBudgetExhausted.update(1);
+    }
+
+    public void recordHedgedRequest()
+    {
+        hedgedRequest.update(1);
+    }
+
+    public void recordHedgeWin()
+    {
+        hedgeWin.update(1);
+    }
+
+    public void recordCircuitBreakerOpened()
+    {
+        circuitBreakerOpened.update(1);
+    }
+
+    public void recordCircuitBreakerClosed()
+    {
+        circuitBreakerClosed.update(1);
+    }
+
+    public void recordCircuitBreakerRejected()
+    {
+        circuitBreakerRejected.update(1);
+    }
+
+    public void recordDeadlineExceeded()
+    {
+        deadlineExceeded.update(1);
+    }
+
+    public void recordCoalescedRequest()
+    {
+        coalescedRequest.update(1);
+    }
+
+    public void recordResponseCacheHit()
+    {
+        responseCacheHit.update(1);
+    }
+
+    public void recordResponseCacheRevalidation()
+    {
+        responseCacheRevalidation.update(1);
+    }
+
     @Managed
     @Flatten
     public CounterStat getRequest()
@@ -102,4 +210,88 @@ public class RequestStats
     {
         return writtenBytes;
     }
+
+    @Managed
+    @Nested
+    public CounterStat getRetry()
+    {
+        return retry;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getRetryBudgetExhausted()
+    {
+        return retryBudgetExhausted;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getHedgedRequest()
+    {
+        return hedgedRequest;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getHedgeWin()
+    {
+        return hedgeWin;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getCircuitBreakerOpened()
+    {
+        return circuitBreakerOpened;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getCircuitBreakerClosed()
+    {
+        return circuitBreakerClosed;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getCircuitBreakerRejected()
+    {
+        return circuitBreakerRejected;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getDeadlineExceeded()
+    {
+        return deadlineExceeded;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getCoalescedRequest()
+    {
+        return coalescedRequest;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getResponseCacheHit()
+    {
+        return responseCacheHit;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getResponseCacheRevalidation()
+    {
+        return responseCacheRevalidation;
+    }
+
+    @Managed
+    @Nested
+    public ConnectionPoolStats getConnectionPool()
+    {
+        return connectionPool;
+    }
 }
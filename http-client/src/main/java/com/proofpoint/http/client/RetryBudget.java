@@ -0,0 +1,60 @@
+package com.proofpoint.http.client;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits retries and hedged requests to a fraction of the requests issued,
+ * so that a struggling service is not hit with a multiple of its normal load.
+ * Every request deposits {@code ratio} of a retry into the budget, and every
+ * retry withdraws a whole one. The balance is capped at {@code reserve}
+ * retries, which is also the initial balance.
+ */
+class RetryBudget
+{
+    private static final long SCALE = 1000;
+
+    private final long deposit;
+    private final long maxBalance;
+    private final AtomicLong balance;
+
+    RetryBudget(double ratio, int reserve)
+    {
+        Preconditions.checkArgument(ratio >= 0 && ratio <= 1, "ratio must be between 0 and 1");
+        Preconditions.checkArgument(reserve >= 0, "reserve is negative");
+
+        this.deposit = (long) (ratio * SCALE);
+        this.maxBalance = Math.max(reserve * SCALE, SCALE);
+        this.balance = new AtomicLong(reserve * SCALE);
+    }
+
+    public void requestIssued()
+    {
+        while (true) {
+            long current = balance.get();
+            long next = Math.min(current + deposit, maxBalance);
+            if (current == next || balance.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    public boolean tryAcquireRetry()
+    {
+        while (true) {
+            long current = balance.get();
+            if (current < SCALE) {
+                return false;
+            }
+            if (balance.compareAndSet(current, current - SCALE)) {
+                return true;
+            }
+        }
+    }
+
+    public double getAvailableRetries()
+    {
+        return balance.get() * 1.0 / SCALE;
+    }
+}
@@ -0,0 +1,248 @@
+package com.proofpoint.http.client;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.proofpoint.units.Duration;
+import org.weakref.jmx.Flatten;
+import org.weakref.jmx.Managed;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.proofpoint.http.client.Request.Builder.fromRequest;
+
+/**
+ * Retries idempotent requests that fail with an I/O error or with a 502, 503
+ * or 504 response. When a {@link ServiceUriSelector} is supplied, requests
+ * with a relative URI are resolved against the selected instances and each
+ * attempt goes to the next instance in the selection.
+ */
+@Beta
+public class RetryingHttpClient implements HttpClient
+{
+    private static final Set<String> IDEMPOTENT_METHODS = ImmutableSet.of("GET", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE");
+    private static final Set<Integer> RETRYABLE_STATUS_CODES = ImmutableSet.of(502, 503, 504);
+
+    private final HttpClient httpClient;
+    private final ServiceUriSelector serviceSelector;
+    private final int maxAttempts;
+    private final long minBackoffNanos;
+    private final long maxBackoffNanos;
+    private final RetryBudget retryBudget;
+    private final Random random = new Random();
+
+    public RetryingHttpClient(HttpClient httpClient, HttpRetryConfig config)
+    {
+        this(httpClient, config, null);
+    }
+
+    public RetryingHttpClient(HttpClient httpClient, HttpRetryConfig config, ServiceUriSelector serviceSelector)
+    {
+        Preconditions.checkNotNull(httpClient, "httpClient is null");
+        Preconditions.checkNotNull(config, "config is null");
+
+        this.httpClient = httpClient;
+        this.serviceSelector = serviceSelector;
+        this.maxAttempts = config.getMaxAttempts();
+        this.minBackoffNanos = (long) config.getMinBackoff().convertTo(TimeUnit.NANOSECONDS);
+        this.maxBackoffNanos = (long) config.getMaxBackoff().convertTo(TimeUnit.NANOSECONDS);
+        this.retryBudget = new RetryBudget(config.getBudgetRatio(), config.getBudgetReserve());
+    }
+
+    @VisibleForTesting
+    HttpClient getDelegate()
+    {
+        return httpClient;
+    }
+
+    @Override
+    @Managed
+    @Flatten
+    public RequestStats getStats()
+    {
+        return httpClient.getStats();
+    }
+
+    @Managed
+    public double getAvailableRetries()
+    {
+        return retryBudget.getAvailableRetries();
+    }
+
+    @Override
+    public <T, E extends Exception> T execute(Request request, ResponseHandler<T, E> responseHandler)
+            throws E
+    {
+        Preconditions.checkNotNull(request, "request is null");
+        Preconditions.checkNotNull(responseHandler, "responseHandler is null");
+
+        retryBudget.requestIssued();
+        long startNanos = System.nanoTime();
+
+        List<URI> uris = selectUris(serviceSelector, request);
+        if (uris.isEmpty()) {
+            throw responseHandler.handleException(request, new ServiceUnavailableException("No instances available for " + request.getUri()));
+        }
+
+        int attempts = isIdempotent(request) ? maxAttempts : 1;
+        for (int attempt = 0; ; attempt++) {
+            // all attempts share the timeout of the request
+            Request attemptRequest = withRemainingTimeout(request, startNanos);
+            URI uri = uris.get(attempt % uris.size());
+            if (!uri.equals(attemptRequest.getUri())) {
+                attemptRequest = fromRequest(attemptRequest).setUri(uri).build();
+            }
+
+            AttemptHandler<T, E> attemptHandler = new AttemptHandler<T, E>(responseHandler, attempt + 1 < attempts);
+            try {
+                return httpClient.execute(attemptRequest, attemptHandler);
+            }
+            catch (Exception e) {
+                if (!attemptHandler.isRetrying()) {
+                    if (attemptHandler.getFailure() == null) {
+                        // the exception came from the response handler
+                        throw RetryingHttpClient.<E>propagate(e);
+                    }
+                    throw responseHandler.handleException(attemptRequest, attemptHandler.getFailure());
+                }
+            }
+
+            getStats().recordRetry();
+            try {
+                backoff(attempt);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw responseHandler.handleException(attemptRequest, e);
+            }
+        }
+    }
+
+    private boolean acquireRetry()
+    {
+        if (retryBudget.tryAcquireRetry()) {
+            return true;
+        }
+        getStats().recordRetryBudgetExhausted();
+        return false;
+    }
+
+    static boolean isIdempotent(Request request)
+    {
+        return IDEMPOTENT_METHODS.contains(request.getMethod());
+    }
+
+    /**
+     * Returns the request with its timeout reduced by the time that has
+     * passed since the specified start time.
+     */
+    static Request withRemainingTimeout(Request request, long startNanos)
+    {
+        Duration timeout = request.getTimeout();
+        if (timeout == null) {
+            return request;
+        }
+        long remainingNanos = (long) timeout.convertTo(TimeUnit.NANOSECONDS) - (System.nanoTime() - startNanos);
+        return fromRequest(request).setTimeout(new Duration(Math.max(0, remainingNanos), TimeUnit.NANOSECONDS)).build();
+    }
+
+    /**
+     * Returns the URI of the request resolved against each selected instance,
+     * or only the URI of the request if it is absolute or there is no selector.
+     */
+    static List<URI> selectUris(ServiceUriSelector serviceSelector, Request request)
+    {
+        URI uri = request.getUri();
+        if (serviceSelector == null || uri.isAbsolute()) {
+            return ImmutableList.of(uri);
+        }
+
+        ImmutableList.Builder<URI> uris = ImmutableList.builder();
+        for (URI baseUri : serviceSelector.selectInstanceUris()) {
+            uris.add(baseUri.resolve(uri));
+        }
+        return uris.build();
+    }
+
+    private void backoff(int attempt)
+            throws InterruptedException
+    {
+        // "full jitter": sleep a random time up to the exponentially growing cap
+        long cap = Math.min(maxBackoffNanos, minBackoffNanos << Math.min(attempt, 20));
+        if (cap <= 0) {
+            return;
+        }
+        long sleepNanos = (long) (random.nextDouble() * cap);
+        TimeUnit.NANOSECONDS.sleep(sleepNanos);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Exception> E propagate(Exception e)
+            throws E
+    {
+        throw (E) e;
+    }
+
+    private class AttemptHandler<T, E extends Exception>
+            implements ResponseHandler<T, Exception>
+    {
+        private final ResponseHandler<T, E> delegate;
+        private final boolean retryAllowed;
+        private Exception failure;
+        private boolean retrying;
+
+        private AttemptHandler(ResponseHandler<T, E> delegate, boolean retryAllowed)
+        {
+            this.delegate = delegate;
+            this.retryAllowed = retryAllowed;
+        }
+
+        public boolean isRetrying()
+        {
+            return retrying;
+        }
+
+        public Exception getFailure()
+        {
+            return failure;
+        }
+
+        @Override
+        public Exception handleException(Request request, Exception exception)
+        {
+            failure = exception;
+            // once the caller has given up, another attempt is pointless
+            retrying = retryAllowed &&
+                    !(exception instanceof RequestCancelledException) &&
+                    !(exception instanceof DeadlineExceededException) &&
+                    acquireRetry();
+            return new AttemptFailedException(exception);
+        }
+
+        @Override
+        public T handle(Request request, Response response)
+                throws Exception
+        {
+            // a retryable response is only hidden from the caller if there is a retry to replace it
+            if (retryAllowed && RETRYABLE_STATUS_CODES.contains(response.getStatusCode()) && acquireRetry()) {
+                retrying = true;
+                throw new AttemptFailedException(null);
+            }
+            return delegate.handle(request, response);
+        }
+    }
+
+    private static class AttemptFailedException extends Exception
+    {
+        private AttemptFailedException(Exception cause)
+        {
+            super(cause);
+        }
+    }
+}
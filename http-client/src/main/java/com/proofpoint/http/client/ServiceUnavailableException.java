@@ -0,0 +1,18 @@
+package com.proofpoint.http.client;
+
+import com.google.common.annotations.Beta;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request cannot be sent because no instance of the
+ * destination service is available.
+ */
+@Beta
+public class ServiceUnavailableException extends IOException
+{
+    public ServiceUnavailableException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,20 @@
+package com.proofpoint.http.client;
+
+import com.google.common.annotations.Beta;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Supplies the base URIs of the instances of a service. Implementations
+ * should return the URIs in the order they should be tried.
+ */
+@Beta
+public interface ServiceUriSelector
+{
+    /**
+     * Returns one base URI for each instance, using the most preferred scheme
+     * the instance supports, so that consecutive URIs are different instances.
+     */
+    List<URI> selectInstanceUris();
+}
@@ -22,6 +22,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URI;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static com.proofpoint.http.client.Request.Builder.prepareDelete;
@@ -82,6 +83,9 @@ public class ApacheHttpClientTest
         if (server != null) {
             server.stop();
         }
+        if (httpClient != null) {
+            httpClient.close();
+        }
     }
 
     @Test
@@ -342,6 +346,138 @@ public class ApacheHttpClientTest
         Assertions.assertBetweenInclusive(port1, 1024, 65535);
     }
 
+    @Test
+    public void testRequestTimeout()
+            throws Exception
+    {
+        Request request = prepareGet()
+                .setUri(URI.create(baseURI.toASCIIString() + "/?sleep=1000"))
+                .setTimeout(new Duration(200, TimeUnit.MILLISECONDS))
+                .build();
+
+        long start = System.nanoTime();
+        try {
+            httpClient.execute(request, new ResponseToStringHandler());
+            Assert.fail("expected DeadlineExceededException");
+        }
+        catch (DeadlineExceededException expected) {
+        }
+        Assertions.assertLessThan(Duration.nanosSince(start), new Duration(900, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(httpClient.getStats().getDeadlineExceeded().getCount(), 1);
+    }
+
+    @Test
+    public void testDefaultRequestTimeout()
+            throws Exception
+    {
+        ApacheHttpClient client = new ApacheHttpClient(new HttpClientConfig().setRequestTimeout(new Duration(200, TimeUnit.MILLISECONDS)));
+        try {
+            Request request = prepareGet()
+                    .setUri(URI.create(baseURI.toASCIIString() + "/?sleep=1000"))
+                    .build();
+            client.execute(request, new ResponseToStringHandler());
+            Assert.fail("expected DeadlineExceededException");
+        }
+        catch (DeadlineExceededException expected) {
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testDeadlineHeader()
+            throws Exception
+    {
+        ApacheHttpClient client = new ApacheHttpClient(new HttpClientConfig().setPropagateDeadline(true));
+        try {
+            Request request = prepareGet()
+                    .setUri(baseURI.resolve("/road/to/nowhere"))
+                    .setTimeout(new Duration(10, TimeUnit.SECONDS))
+                    .build();
+            Assert.assertEquals(client.execute(request, new ResponseStatusCodeHandler()).intValue(), 200);
+
+            List<String> values = servlet.requestHeaders.get(ApacheHttpClient.DEADLINE_HEADER);
+            Assert.assertEquals(values.size(), 1);
+            Assertions.assertBetweenInclusive(Long.parseLong(values.get(0)), 1L, 10000L);
+
+            // the header is only sent when enabled
+            httpClient.execute(request, new ResponseStatusCodeHandler());
+            Assert.assertTrue(servlet.requestHeaders.get(ApacheHttpClient.DEADLINE_HEADER).isEmpty());
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testConnectionPoolStats()
+            throws Exception
+    {
+        Request request = prepareGet()
+                .setUri(baseURI.resolve("/road/to/nowhere"))
+                .build();
+
+        Assert.assertEquals(httpClient.execute(request, new ResponseStatusCodeHandler()).intValue(), 200);
+
+        ConnectionPoolStats poolStats = httpClient.getStats().getConnectionPool();
+        Assert.assertEquals(poolStats.getLeaseTime().getCount(), 1);
+        Assert.assertEquals(poolStats.getLeased(), 0);
+        Assert.assertEquals(poolStats.getAvailable(), 1);
+        Assert.assertEquals(poolStats.getPending(), 0);
+        Assert.assertEquals(poolStats.getMax(), 200);
+        Assert.assertEquals(poolStats.getRouteStats().keySet(), ImmutableSet.of(baseURI.toString()));
+        Assert.assertEquals(poolStats.getRouteStats().get(baseURI.toString()).getAvailable(), 1);
+        Assert.assertEquals(poolStats.getActiveRoutes(), 1);
+        Assert.assertEquals(poolStats.getSaturatedRoutes(), 0);
+        Assert.assertEquals(poolStats.getMaxRouteLeased(), 0);
+        Assert.assertEquals(poolStats.getMaxRoutePending(), 0);
+    }
+
+    @Test
+    public void testIdleConnectionEviction()
+            throws Exception
+    {
+        HttpClientConfig config = new HttpClientConfig()
+                .setIdleTimeout(new Duration(0, TimeUnit.MILLISECONDS))
+                .setEvictionInterval(new Duration(10, TimeUnit.MILLISECONDS));
+
+        ApacheHttpClient client = new ApacheHttpClient(config);
+        try {
+            Request request = prepareGet()
+                    .setUri(baseURI.resolve("/road/to/nowhere"))
+                    .build();
+            Assert.assertEquals(client.execute(request, new ResponseStatusCodeHandler()).intValue(), 200);
+
+            ConnectionPoolStats poolStats = client.getStats().getConnectionPool();
+            for (int i = 0; i < 100 && poolStats.getAvailable() > 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(poolStats.getAvailable(), 0);
+            Assert.assertTrue(poolStats.getRouteStats().isEmpty());
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testPrewarmConnections()
+            throws Exception
+    {
+        httpClient.prewarmConnections(ImmutableList.of(baseURI), 2).get();
+
+        ConnectionPoolStats poolStats = httpClient.getStats().getConnectionPool();
+        Assert.assertEquals(poolStats.getAvailable(), 2);
+
+        // the request uses one of the prewarmed connections
+        Request request = prepareGet()
+                .setUri(baseURI.resolve("/road/to/nowhere"))
+                .build();
+        Assert.assertEquals(httpClient.execute(request, new ResponseStatusCodeHandler()).intValue(), 200);
+        Assert.assertEquals(poolStats.getAvailable(), 2);
+    }
+
     private static class ResponseToStringHandler implements ResponseHandler<String, Exception>
     {
         @Override
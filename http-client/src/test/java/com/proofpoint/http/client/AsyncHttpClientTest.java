@@ -5,6 +5,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ListMultimap;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.CheckedFuture;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.proofpoint.units.Duration;
 import org.eclipse.jetty.server.Server;
@@ -330,6 +331,49 @@ public class AsyncHttpClientTest
         client.execute(request, new ResponseToStringHandler()).checkedGet();
     }
 
+    @Test(expectedExceptions = DeadlineExceededException.class)
+    public void testRequestTimeout()
+            throws Exception
+    {
+        URI uri = URI.create(baseURI.toASCIIString() + "/?sleep=1000");
+        Request request = prepareGet()
+                .setUri(uri)
+                .setTimeout(new Duration(200, TimeUnit.MILLISECONDS))
+                .build();
+
+        httpClient.execute(request, new ResponseToStringHandler()).checkedGet();
+    }
+
+    @Test
+    public void testCancelAbortsConnection()
+            throws Exception
+    {
+        ApacheHttpClient apacheHttpClient = new ApacheHttpClient(new HttpClientConfig());
+        AsyncHttpClient client = new AsyncHttpClient(apacheHttpClient, Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).build()));
+
+        URI uri = URI.create(baseURI.toASCIIString() + "/?sleep=5000");
+        Request request = prepareGet()
+                .setUri(uri)
+                .build();
+
+        CheckedFuture<String, Exception> future = client.execute(request, new ResponseToStringHandler());
+        ConnectionPoolStats poolStats = apacheHttpClient.getStats().getConnectionPool();
+        for (int i = 0; i < 100 && poolStats.getLeased() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(poolStats.getLeased(), 1);
+        Assert.assertEquals(poolStats.getMaxRouteLeased(), 1);
+
+        future.cancel(true);
+
+        // the connection is released long before the server responds
+        for (int i = 0; i < 100 && poolStats.getLeased() > 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(poolStats.getLeased(), 0);
+        apacheHttpClient.close();
+    }
+
     private static class ResponseToStringHandler implements ResponseHandler<String, Exception>
     {
         @Override
@@ -2,9 +2,11 @@ package com.proofpoint.http.client;
 
 import com.google.common.collect.ImmutableMap;
 import com.proofpoint.configuration.testing.ConfigAssertions;
+import com.proofpoint.units.Duration;
 import org.testng.annotations.Test;
 
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class TestAsyncHttpClientConfig
 {
@@ -12,7 +14,11 @@ public class TestAsyncHttpClientConfig
     public void testDefaults()
     {
         ConfigAssertions.assertRecordedDefaults(ConfigAssertions.recordDefaults(AsyncHttpClientConfig.class)
-                .setWorkerThreads(16));
+                .setWorkerThreads(16)
+                .setCoalesceRequests(false)
+                .setResponseCacheEnabled(false)
+                .setResponseCacheMaxTtl(new Duration(10, TimeUnit.SECONDS))
+                .setResponseCacheMaxEntries(1000));
     }
 
     @Test
@@ -20,10 +26,18 @@ public class TestAsyncHttpClientConfig
     {
         Map<String, String> properties = new ImmutableMap.Builder<String, String>()
                 .put("http-client.threads", "33")
+                .put("http-client.coalesce-requests", "true")
+                .put("http-client.response-cache.enabled", "true")
+                .put("http-client.response-cache.max-ttl", "1m")
+                .put("http-client.response-cache.max-entries", "50")
                 .build();
 
         AsyncHttpClientConfig expected = new AsyncHttpClientConfig()
-                .setWorkerThreads(33);
+                .setWorkerThreads(33)
+                .setCoalesceRequests(true)
+                .setResponseCacheEnabled(true)
+                .setResponseCacheMaxTtl(new Duration(1, TimeUnit.MINUTES))
+                .setResponseCacheMaxEntries(50);
 
         ConfigAssertions.assertFullMapping(properties, expected);
     }
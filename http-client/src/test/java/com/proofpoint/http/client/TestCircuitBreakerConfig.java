@@ -0,0 +1,55 @@
+package com.proofpoint.http.client;
+
+import com.google.common.collect.ImmutableMap;
+import com.proofpoint.configuration.testing.ConfigAssertions;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.Test;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.proofpoint.testing.ValidationAssertions.assertFailsValidation;
+
+public class TestCircuitBreakerConfig
+{
+    @Test
+    public void testDefaults()
+    {
+        ConfigAssertions.assertRecordedDefaults(ConfigAssertions.recordDefaults(CircuitBreakerConfig.class)
+                .setWindow(new Duration(10, TimeUnit.SECONDS))
+                .setFailureRatio(0.5)
+                .setMinRequests(20)
+                .setOpenDuration(new Duration(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void testExplicitPropertyMappings()
+    {
+        Map<String, String> properties = new ImmutableMap.Builder<String, String>()
+                .put("http-client.circuit-breaker.window", "1m")
+                .put("http-client.circuit-breaker.failure-ratio", "0.25")
+                .put("http-client.circuit-breaker.min-requests", "5")
+                .put("http-client.circuit-breaker.open-duration", "30s")
+                .build();
+
+        CircuitBreakerConfig expected = new CircuitBreakerConfig()
+                .setWindow(new Duration(1, TimeUnit.MINUTES))
+                .setFailureRatio(0.25)
+                .setMinRequests(5)
+                .setOpenDuration(new Duration(30, TimeUnit.SECONDS));
+
+        ConfigAssertions.assertFullMapping(properties, expected);
+    }
+
+    @Test
+    public void testValidations()
+    {
+        assertFailsValidation(new CircuitBreakerConfig().setWindow(null), "window", "may not be null", NotNull.class);
+        assertFailsValidation(new CircuitBreakerConfig().setFailureRatio(1.5), "failureRatio", "must be less than or equal to 1", DecimalMax.class);
+        assertFailsValidation(new CircuitBreakerConfig().setMinRequests(0), "minRequests", "must be greater than or equal to 1", Min.class);
+        assertFailsValidation(new CircuitBreakerConfig().setOpenDuration(null), "openDuration", "may not be null", NotNull.class);
+    }
+}
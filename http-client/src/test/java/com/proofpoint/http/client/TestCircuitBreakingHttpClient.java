@@ -0,0 +1,234 @@
+package com.proofpoint.http.client;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableListMultimap;
+import com.proofpoint.http.client.CircuitBreaker.State;
+import com.proofpoint.http.client.TestRetryingHttpClient.ScriptedHttpClient;
+import com.proofpoint.http.client.TestRetryingHttpClient.StatusCodeHandler;
+import com.proofpoint.http.client.TestRetryingHttpClient.StatusResponse;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.ConnectException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import static com.proofpoint.http.client.Request.Builder.prepareGet;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+public class TestCircuitBreakingHttpClient
+{
+    private static final URI HOST_A = URI.create("http://a.example.com/test");
+    private static final URI HOST_B = URI.create("http://b.example.com/test");
+
+    private static final CircuitBreakerConfig CONFIG = new CircuitBreakerConfig()
+            .setWindow(new Duration(10, TimeUnit.SECONDS))
+            .setFailureRatio(0.5)
+            .setMinRequests(4)
+            .setOpenDuration(new Duration(5, TimeUnit.SECONDS));
+
+    private TestingTicker ticker;
+
+    @BeforeMethod
+    public void setup()
+    {
+        ticker = new TestingTicker();
+    }
+
+    @Test
+    public void testOpensOnFailureRatio()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(200, 200, 503, new ConnectException("refused"), 200);
+        CircuitBreakingHttpClient client = new CircuitBreakingHttpClient(delegate, CONFIG, ticker);
+
+        assertStatus(client, HOST_A, 200);
+        assertStatus(client, HOST_A, 200);
+        assertStatus(client, HOST_A, 503);
+        assertEquals(client.getState(HOST_A), State.CLOSED);
+
+        // two failures out of four requests reaches the threshold
+        assertConnectFailure(client, HOST_A);
+        assertEquals(client.getState(HOST_A), State.OPEN);
+        assertEquals(client.getState(HOST_B), State.CLOSED);
+        assertStatus(client, HOST_B, 200);
+    }
+
+    @Test
+    public void testFailFastWhileOpen()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(503, 503, 503, 503, 200);
+        CircuitBreakingHttpClient client = openCircuit(delegate);
+
+        try {
+            client.execute(prepareGet().setUri(HOST_A).build(), new StatusCodeHandler());
+            fail("expected CircuitBreakerOpenException");
+        }
+        catch (CircuitBreakerOpenException e) {
+            assertEquals(e.getHost(), "a.example.com:80");
+        }
+        assertEquals(delegate.getRequests().size(), 4);
+        assertEquals(client.getStats().getCircuitBreakerRejected().getCount(), 1);
+        assertEquals(client.getOpenCircuitBreakers(), 1);
+        assertEquals(client.getOpenHosts(), "a.example.com:80");
+
+        // other hosts are not affected
+        assertStatus(client, HOST_B, 200);
+    }
+
+    @Test
+    public void testProbeClosesCircuit()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(503, 503, 503, 503, 200, 200);
+        CircuitBreakingHttpClient client = openCircuit(delegate);
+
+        ticker.advance(5, TimeUnit.SECONDS);
+        assertStatus(client, HOST_A, 200);
+        assertEquals(client.getState(HOST_A), State.CLOSED);
+        assertStatus(client, HOST_A, 200);
+        assertEquals(client.getStats().getCircuitBreakerClosed().getCount(), 1);
+        assertEquals(client.getOpenCircuitBreakers(), 0);
+    }
+
+    @Test
+    public void testFailedProbeReopensCircuit()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(503, 503, 503, 503, new ConnectException("refused"));
+        CircuitBreakingHttpClient client = openCircuit(delegate);
+
+        ticker.advance(5, TimeUnit.SECONDS);
+        assertConnectFailure(client, HOST_A);
+        assertEquals(client.getState(HOST_A), State.OPEN);
+        assertEquals(client.getStats().getCircuitBreakerOpened().getCount(), 2);
+
+        try {
+            client.execute(prepareGet().setUri(HOST_A).build(), new StatusCodeHandler());
+            fail("expected CircuitBreakerOpenException");
+        }
+        catch (CircuitBreakerOpenException expected) {
+        }
+    }
+
+    @Test
+    public void testHandlerExceptionReleasesProbe()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(503, 503, 503, 503, new IllegalArgumentException(), 200);
+        CircuitBreakingHttpClient client = openCircuit(delegate);
+
+        ticker.advance(5, TimeUnit.SECONDS);
+        try {
+            client.execute(prepareGet().setUri(HOST_A).build(), new StatusCodeHandler());
+            fail("expected exception");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+        assertEquals(client.getState(HOST_A), State.HALF_OPEN);
+
+        assertStatus(client, HOST_A, 200);
+        assertEquals(client.getState(HOST_A), State.CLOSED);
+    }
+
+    @Test
+    public void testWindowExpires()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(503, 503, 503, 200);
+        CircuitBreakingHttpClient client = new CircuitBreakingHttpClient(delegate, CONFIG, ticker);
+
+        assertStatus(client, HOST_A, 503);
+        assertStatus(client, HOST_A, 503);
+        assertStatus(client, HOST_A, 503);
+
+        // the earlier failures are no longer in the window
+        ticker.advance(11, TimeUnit.SECONDS);
+        assertStatus(client, HOST_A, 200);
+        assertEquals(client.getState(HOST_A), State.CLOSED);
+    }
+
+    @Test
+    public void testDeadlineExceededNotCounted()
+            throws Exception
+    {
+        Response shed = new StatusResponse(503, null, ImmutableListMultimap.of(ApacheHttpClient.DEADLINE_EXCEEDED_HEADER, "true"));
+        Response shedByOlderServer = new StatusResponse(503, "Deadline exceeded", ImmutableListMultimap.<String, String>of());
+        DeadlineExceededException expired = new DeadlineExceededException("expired");
+        ScriptedHttpClient delegate = new ScriptedHttpClient(shed, shed, shedByOlderServer, expired, expired, 200);
+        CircuitBreakingHttpClient client = new CircuitBreakingHttpClient(delegate, CONFIG, ticker);
+
+        assertStatus(client, HOST_A, 503);
+        assertStatus(client, HOST_A, 503);
+        assertStatus(client, HOST_A, 503);
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.execute(prepareGet().setUri(HOST_A).build(), new StatusCodeHandler());
+                fail("expected DeadlineExceededException");
+            }
+            catch (DeadlineExceededException expected) {
+            }
+        }
+        assertEquals(client.getState(HOST_A), State.CLOSED);
+        assertStatus(client, HOST_A, 200);
+    }
+
+    @Test
+    public void testRelativeUriPassedThrough()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(200);
+        CircuitBreakingHttpClient client = new CircuitBreakingHttpClient(delegate, CONFIG, ticker);
+
+        assertStatus(client, URI.create("v1/test"), 200);
+        assertEquals(client.getOpenCircuitBreakers(), 0);
+    }
+
+    private CircuitBreakingHttpClient openCircuit(ScriptedHttpClient delegate)
+            throws Exception
+    {
+        CircuitBreakingHttpClient client = new CircuitBreakingHttpClient(delegate, CONFIG, ticker);
+        for (int i = 0; i < 4; i++) {
+            assertStatus(client, HOST_A, 503);
+        }
+        assertEquals(client.getState(HOST_A), State.OPEN);
+        assertEquals(client.getStats().getCircuitBreakerOpened().getCount(), 1);
+        return client;
+    }
+
+    private static void assertStatus(HttpClient client, URI uri, int expectedStatus)
+            throws Exception
+    {
+        assertEquals(client.execute(prepareGet().setUri(uri).build(), new StatusCodeHandler()).intValue(), expectedStatus);
+    }
+
+    private static void assertConnectFailure(HttpClient client, URI uri)
+            throws Exception
+    {
+        try {
+            client.execute(prepareGet().setUri(uri).build(), new StatusCodeHandler());
+            fail("expected ConnectException");
+        }
+        catch (ConnectException expected) {
+        }
+    }
+
+    static class TestingTicker extends Ticker
+    {
+        private long time;
+
+        @Override
+        public long read()
+        {
+            return time;
+        }
+
+        public void advance(long value, TimeUnit timeUnit)
+        {
+            time += timeUnit.toNanos(value);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.proofpoint.http.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.http.client.TestRetryingHttpClient.StatusCodeHandler;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.proofpoint.http.client.Request.Builder.prepareGet;
+import static com.proofpoint.http.client.Request.Builder.preparePost;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestHedgedRequests
+{
+    private static final HttpRetryConfig HEDGE_CONFIG = new HttpRetryConfig()
+            .setHedgeEnabled(true)
+            .setMinHedgeDelay(new Duration(50, TimeUnit.MILLISECONDS));
+
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setup()
+    {
+        executor = newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).build());
+    }
+
+    @AfterMethod
+    public void teardown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testHedgeWinsAndPrimaryIsCancelled()
+            throws Exception
+    {
+        SlowFirstHttpClient delegate = new SlowFirstHttpClient();
+        AsyncHttpClient client = createClient(delegate);
+
+        Request request = prepareGet().setUri(URI.create("/test")).build();
+        assertEquals(client.execute(request, new StatusCodeHandler()).checkedGet(1, TimeUnit.SECONDS).intValue(), 200);
+        assertEquals(delegate.calls.get(), 2);
+        assertEquals(delegate.uris, ImmutableList.of(URI.create("http://a.example.com/test"), URI.create("http://b.example.com/test")));
+        assertTrue(delegate.firstCallInterrupted.await(1, TimeUnit.SECONDS));
+        assertEquals(client.getStats().getHedgedRequest().getCount(), 1);
+        assertEquals(client.getStats().getHedgeWin().getCount(), 1);
+    }
+
+    @Test
+    public void testNonIdempotentNotHedged()
+            throws Exception
+    {
+        SlowFirstHttpClient delegate = new SlowFirstHttpClient();
+        AsyncHttpClient client = createClient(delegate);
+
+        Request request = preparePost().setUri(URI.create("/test")).build();
+        assertEquals(client.execute(request, new StatusCodeHandler()).checkedGet(5, TimeUnit.SECONDS).intValue(), 200);
+        assertEquals(delegate.calls.get(), 1);
+        assertEquals(client.getStats().getHedgedRequest().getCount(), 0);
+    }
+
+    @Test
+    public void testAbsoluteUriNotHedged()
+            throws Exception
+    {
+        SlowFirstHttpClient delegate = new SlowFirstHttpClient();
+        AsyncHttpClient client = createClient(delegate);
+
+        Request request = prepareGet().setUri(URI.create("http://a.example.com/test")).build();
+        assertEquals(client.execute(request, new StatusCodeHandler()).checkedGet(5, TimeUnit.SECONDS).intValue(), 200);
+        assertEquals(delegate.calls.get(), 1);
+        assertEquals(client.getStats().getHedgedRequest().getCount(), 0);
+    }
+
+    @Test
+    public void testSingleInstanceNotHedged()
+            throws Exception
+    {
+        SlowFirstHttpClient delegate = new SlowFirstHttpClient();
+        AsyncHttpClient client = new AsyncHttpClient(delegate, executor, ImmutableSet.<HttpRequestFilter>of(), HEDGE_CONFIG, new AsyncHttpClientConfig(), new ServiceUriSelector()
+        {
+            @Override
+            public List<URI> selectInstanceUris()
+            {
+                return ImmutableList.of(URI.create("http://a.example.com"));
+            }
+        });
+
+        Request request = prepareGet().setUri(URI.create("/test")).build();
+        assertEquals(client.execute(request, new StatusCodeHandler()).checkedGet(5, TimeUnit.SECONDS).intValue(), 200);
+        assertEquals(delegate.calls.get(), 1);
+        assertEquals(client.getStats().getHedgedRequest().getCount(), 0);
+    }
+
+    @Test
+    public void testHedgeGoesToDifferentInstanceOfRotatingSelector()
+            throws Exception
+    {
+        SlowFirstHttpClient delegate = new SlowFirstHttpClient();
+        final AtomicInteger selections = new AtomicInteger();
+        AsyncHttpClient client = new AsyncHttpClient(delegate, executor, ImmutableSet.<HttpRequestFilter>of(), HEDGE_CONFIG, new AsyncHttpClientConfig(), new ServiceUriSelector()
+        {
+            @Override
+            public List<URI> selectInstanceUris()
+            {
+                // each selection starts at the next instance
+                List<URI> uris = ImmutableList.of(URI.create("http://a.example.com"), URI.create("http://b.example.com"));
+                int start = selections.getAndIncrement() % uris.size();
+                return ImmutableList.copyOf(Iterables.concat(uris.subList(start, uris.size()), uris.subList(0, start)));
+            }
+        });
+
+        Request request = prepareGet().setUri(URI.create("/test")).build();
+        assertEquals(client.execute(request, new StatusCodeHandler()).checkedGet(1, TimeUnit.SECONDS).intValue(), 200);
+        assertEquals(delegate.uris, ImmutableList.of(URI.create("http://a.example.com/test"), URI.create("http://b.example.com/test")));
+        assertEquals(selections.get(), 1);
+    }
+
+    private AsyncHttpClient createClient(HttpClient delegate)
+    {
+        return new AsyncHttpClient(delegate, executor, ImmutableSet.<HttpRequestFilter>of(), HEDGE_CONFIG, new AsyncHttpClientConfig(), new ServiceUriSelector()
+        {
+            @Override
+            public List<URI> selectInstanceUris()
+            {
+                return ImmutableList.of(URI.create("http://a.example.com"), URI.create("http://b.example.com"));
+            }
+        });
+    }
+
+    private static class SlowFirstHttpClient implements HttpClient
+    {
+        private final List<URI> uris = new CopyOnWriteArrayList<URI>();
+        private final RequestStats stats = new RequestStats();
+        private final AtomicInteger calls = new AtomicInteger();
+        private final CountDownLatch firstCallInterrupted = new CountDownLatch(1);
+
+        @Override
+        public RequestStats getStats()
+        {
+            return stats;
+        }
+
+        @Override
+        public <T, E extends Exception> T execute(Request request, ResponseHandler<T, E> responseHandler)
+                throws E
+        {
+            uris.add(request.getUri());
+            if (calls.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(500);
+                }
+                catch (InterruptedException e) {
+                    firstCallInterrupted.countDown();
+                    throw responseHandler.handleException(request, e);
+                }
+            }
+            return new TestRetryingHttpClient.ScriptedHttpClient(200).execute(request, responseHandler);
+        }
+    }
+}
@@ -15,7 +15,9 @@ import javax.inject.Qualifier;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
+import java.net.URI;
 import java.util.Collections;
+import java.util.List;
 
 import static com.proofpoint.http.client.HttpClientBinder.HttpClientBindingBuilder;
 import static com.proofpoint.http.client.HttpClientBinder.httpClientBinder;
@@ -147,6 +149,72 @@ public class TestHttpClientBinder
         assertNull(injector.getExistingBinding(Key.get(AsyncHttpClient.class, FooAlias2.class)));
     }
 
+    @Test
+    public void testWithRetries()
+    {
+        Injector injector = Guice.createInjector(
+                new Module()
+                {
+                    @Override
+                    public void configure(Binder binder)
+                    {
+                        binder.bind(ServiceUriSelector.class).toInstance(new ServiceUriSelector()
+                        {
+                            @Override
+                            public List<URI> selectInstanceUris()
+                            {
+                                return ImmutableList.of(URI.create("http://127.0.0.1:1/"));
+                            }
+                        });
+                        httpClientBinder(binder).bindHttpClient("foo", FooClient.class)
+                                .withFilter(TestingRequestFilter.class)
+                                .withServiceSelector(Key.get(ServiceUriSelector.class));
+                        httpClientBinder(binder).bindAsyncHttpClient("foo", FooClient.class)
+                                .withRetries();
+                        httpClientBinder(binder).bindHttpClient("bar", BarClient.class);
+                    }
+                },
+                new ConfigurationModule(new ConfigurationFactory(Collections.<String, String>emptyMap())));
+
+        HttpClient client = injector.getInstance(Key.get(HttpClient.class, FooClient.class));
+        assertEquals(client.getClass(), RetryingHttpClient.class);
+        assertFilterCount(((RetryingHttpClient) client).getDelegate(), 1);
+
+        assertNotNull(injector.getInstance(Key.get(AsyncHttpClient.class, FooClient.class)));
+        assertEquals(injector.getInstance(Key.get(HttpClient.class, BarClient.class)).getClass(), ApacheHttpClient.class);
+    }
+
+    @Test
+    public void testWithCircuitBreaker()
+    {
+        Injector injector = Guice.createInjector(
+                new Module()
+                {
+                    @Override
+                    public void configure(Binder binder)
+                    {
+                        httpClientBinder(binder).bindHttpClient("foo", FooClient.class)
+                                .withFilter(TestingRequestFilter.class)
+                                .withCircuitBreaker()
+                                .withRetries();
+                        httpClientBinder(binder).bindHttpClient("bar", BarClient.class)
+                                .withCircuitBreaker();
+                        httpClientBinder(binder).bindAsyncHttpClient("foo", FooClient.class)
+                                .withCircuitBreaker();
+                    }
+                },
+                new ConfigurationModule(new ConfigurationFactory(Collections.<String, String>emptyMap())));
+
+        HttpClient client = injector.getInstance(Key.get(HttpClient.class, FooClient.class));
+        assertEquals(client.getClass(), RetryingHttpClient.class);
+        HttpClient delegate = ((RetryingHttpClient) client).getDelegate();
+        assertEquals(delegate.getClass(), CircuitBreakingHttpClient.class);
+        assertFilterCount(((CircuitBreakingHttpClient) delegate).getDelegate(), 1);
+
+        assertEquals(injector.getInstance(Key.get(HttpClient.class, BarClient.class)).getClass(), CircuitBreakingHttpClient.class);
+        assertNotNull(injector.getInstance(Key.get(AsyncHttpClient.class, FooClient.class)));
+    }
+
     private static void assertFilterCount(HttpClient httpClient, int filterCount)
     {
         assertNotNull(httpClient);
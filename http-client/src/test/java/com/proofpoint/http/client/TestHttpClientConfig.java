@@ -5,6 +5,7 @@ import com.proofpoint.configuration.testing.ConfigAssertions;
 import com.proofpoint.units.Duration;
 import org.testng.annotations.Test;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -19,8 +20,14 @@ public class TestHttpClientConfig
         ConfigAssertions.assertRecordedDefaults(ConfigAssertions.recordDefaults(HttpClientConfig.class)
                 .setConnectTimeout(new Duration(1, TimeUnit.SECONDS))
                 .setReadTimeout(new Duration(1, TimeUnit.MINUTES))
+                .setRequestTimeout(null)
+                .setPropagateDeadline(false)
                 .setMaxConnections(200)
-                .setMaxConnectionsPerServer(20));
+                .setMaxConnectionsPerServer(20)
+                .setIdleTimeout(new Duration(30, TimeUnit.SECONDS))
+                .setConnectionTtl(null)
+                .setEvictionInterval(new Duration(5, TimeUnit.SECONDS))
+                .setPrewarmConnections(0));
     }
 
     @Test
@@ -29,15 +36,27 @@ public class TestHttpClientConfig
         Map<String, String> properties = new ImmutableMap.Builder<String, String>()
                 .put("http-client.connect-timeout", "4s")
                 .put("http-client.read-timeout", "5s")
+                .put("http-client.request-timeout", "30s")
+                .put("http-client.propagate-deadline", "true")
                 .put("http-client.max-connections", "12")
                 .put("http-client.max-connections-per-server", "3")
+                .put("http-client.idle-timeout", "10s")
+                .put("http-client.connection-ttl", "5m")
+                .put("http-client.eviction-interval", "1s")
+                .put("http-client.prewarm-connections", "2")
                 .build();
 
         HttpClientConfig expected = new HttpClientConfig()
                 .setConnectTimeout(new Duration(4, TimeUnit.SECONDS))
                 .setReadTimeout(new Duration(5, TimeUnit.SECONDS))
+                .setRequestTimeout(new Duration(30, TimeUnit.SECONDS))
+                .setPropagateDeadline(true)
                 .setMaxConnections(12)
-                .setMaxConnectionsPerServer(3);
+                .setMaxConnectionsPerServer(3)
+                .setIdleTimeout(new Duration(10, TimeUnit.SECONDS))
+                .setConnectionTtl(new Duration(5, TimeUnit.MINUTES))
+                .setEvictionInterval(new Duration(1, TimeUnit.SECONDS))
+                .setPrewarmConnections(2);
 
         ConfigAssertions.assertFullMapping(properties, expected);
     }
@@ -47,5 +66,8 @@ public class TestHttpClientConfig
     {
         assertFailsValidation(new HttpClientConfig().setConnectTimeout(null), "connectTimeout", "may not be null", NotNull.class);
         assertFailsValidation(new HttpClientConfig().setReadTimeout(null), "readTimeout", "may not be null", NotNull.class);
+        assertFailsValidation(new HttpClientConfig().setIdleTimeout(null), "idleTimeout", "may not be null", NotNull.class);
+        assertFailsValidation(new HttpClientConfig().setEvictionInterval(null), "evictionInterval", "may not be null", NotNull.class);
+        assertFailsValidation(new HttpClientConfig().setPrewarmConnections(-1), "prewarmConnections", "must be greater than or equal to 0", Min.class);
     }
 }
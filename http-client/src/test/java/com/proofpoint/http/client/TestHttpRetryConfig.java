@@ -0,0 +1,63 @@
+package com.proofpoint.http.client;
+
+import com.google.common.collect.ImmutableMap;
+import com.proofpoint.configuration.testing.ConfigAssertions;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.Test;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.proofpoint.testing.ValidationAssertions.assertFailsValidation;
+
+public class TestHttpRetryConfig
+{
+    @Test
+    public void testDefaults()
+    {
+        ConfigAssertions.assertRecordedDefaults(ConfigAssertions.recordDefaults(HttpRetryConfig.class)
+                .setMaxAttempts(3)
+                .setMinBackoff(new Duration(10, TimeUnit.MILLISECONDS))
+                .setMaxBackoff(new Duration(1, TimeUnit.SECONDS))
+                .setBudgetRatio(0.1)
+                .setBudgetReserve(10)
+                .setHedgeEnabled(false)
+                .setMinHedgeDelay(new Duration(10, TimeUnit.MILLISECONDS)));
+    }
+
+    @Test
+    public void testExplicitPropertyMappings()
+    {
+        Map<String, String> properties = new ImmutableMap.Builder<String, String>()
+                .put("http-client.retry.max-attempts", "5")
+                .put("http-client.retry.min-backoff", "50ms")
+                .put("http-client.retry.max-backoff", "2s")
+                .put("http-client.retry.budget-ratio", "0.2")
+                .put("http-client.retry.budget-reserve", "3")
+                .put("http-client.hedge.enabled", "true")
+                .put("http-client.hedge.min-delay", "20ms")
+                .build();
+
+        HttpRetryConfig expected = new HttpRetryConfig()
+                .setMaxAttempts(5)
+                .setMinBackoff(new Duration(50, TimeUnit.MILLISECONDS))
+                .setMaxBackoff(new Duration(2, TimeUnit.SECONDS))
+                .setBudgetRatio(0.2)
+                .setBudgetReserve(3)
+                .setHedgeEnabled(true)
+                .setMinHedgeDelay(new Duration(20, TimeUnit.MILLISECONDS));
+
+        ConfigAssertions.assertFullMapping(properties, expected);
+    }
+
+    @Test
+    public void testValidations()
+    {
+        assertFailsValidation(new HttpRetryConfig().setMaxAttempts(0), "maxAttempts", "must be greater than or equal to 1", Min.class);
+        assertFailsValidation(new HttpRetryConfig().setMinBackoff(null), "minBackoff", "may not be null", NotNull.class);
+        assertFailsValidation(new HttpRetryConfig().setMaxBackoff(null), "maxBackoff", "may not be null", NotNull.class);
+        assertFailsValidation(new HttpRetryConfig().setMinHedgeDelay(null), "minHedgeDelay", "may not be null", NotNull.class);
+    }
+}
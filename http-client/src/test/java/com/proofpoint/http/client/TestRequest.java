@@ -3,9 +3,11 @@ package com.proofpoint.http.client;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.proofpoint.testing.EquivalenceTester;
+import com.proofpoint.units.Duration;
 import org.testng.annotations.Test;
 
 import java.net.URI;
+import java.util.concurrent.TimeUnit;
 
 public class TestRequest
 {
@@ -27,6 +29,9 @@ public class TestRequest
                         new Request(createUri1(), "GET", createHeaders2(), bodyGenerator))
                 .addEquivalentGroup(
                         new Request(createUri1(), "GET", createHeaders1(), createBodyGenerator()))
+                .addEquivalentGroup(
+                        new Request(createUri1(), "GET", createHeaders1(), bodyGenerator, new Duration(1, TimeUnit.SECONDS)),
+                        new Request(createUri1(), "GET", createHeaders1(), bodyGenerator, new Duration(1, TimeUnit.SECONDS)))
                 .check();
     }
 
@@ -1,9 +1,11 @@
 package com.proofpoint.http.client;
 
 import com.google.common.collect.ImmutableListMultimap;
+import com.proofpoint.units.Duration;
 import org.testng.annotations.Test;
 
 import java.net.URI;
+import java.util.concurrent.TimeUnit;
 
 import static com.proofpoint.http.client.Request.Builder.fromRequest;
 import static com.proofpoint.http.client.Request.Builder.prepareGet;
@@ -23,6 +25,7 @@ public class TestRequestBuilder
         assertEquals(request.getUri(), URI.create("http://example.com"));
         assertEquals(request.getHeaders(), ImmutableListMultimap.of(
                 "newheader", "withvalue", "anotherheader", "anothervalue"));
+        assertEquals(request.getTimeout(), new Duration(5, TimeUnit.SECONDS));
     }
 
     @Test
@@ -39,6 +42,7 @@ public class TestRequestBuilder
                     .addHeader("newheader", "withvalue")
                     .addHeader("anotherheader", "anothervalue")
                     .setBodyGenerator(NULL_BODY_GENERATOR)
+                    .setTimeout(new Duration(5, TimeUnit.SECONDS))
                     .build();
     }
 }
@@ -0,0 +1,456 @@
+package com.proofpoint.http.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.proofpoint.http.client.TestCircuitBreakingHttpClient.TestingTicker;
+import com.proofpoint.http.client.TestRetryingHttpClient.StatusCodeHandler;
+import com.proofpoint.json.JsonCodec;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.proofpoint.http.client.FullJsonResponseHandler.createFullJsonResponseHandler;
+import static com.proofpoint.http.client.JsonResponseHandler.createJsonResponseHandler;
+import static com.proofpoint.http.client.Request.Builder.prepareGet;
+import static com.proofpoint.json.JsonCodec.jsonCodec;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestRequestCoalescer
+{
+    private static final Request REQUEST = prepareGet().setUri(URI.create("http://example.com/test")).build();
+    private static final AsyncHttpClientConfig COALESCE_CONFIG = new AsyncHttpClientConfig().setCoalesceRequests(true);
+    private static final AsyncHttpClientConfig CACHE_CONFIG = new AsyncHttpClientConfig()
+            .setResponseCacheEnabled(true)
+            .setResponseCacheMaxTtl(new Duration(1, TimeUnit.MINUTES));
+
+    private final ValueHandler handler = new ValueHandler();
+    private TestingTicker ticker;
+    private TestingSender sender;
+    private RequestStats stats;
+
+    @BeforeMethod
+    public void setup()
+    {
+        ticker = new TestingTicker();
+        sender = new TestingSender();
+        stats = new RequestStats();
+    }
+
+    @Test
+    public void testIdenticalRequestsCoalesced()
+            throws Exception
+    {
+        RequestCoalescer coalescer = new RequestCoalescer(COALESCE_CONFIG, stats, ticker, sender);
+
+        ListenableFuture<String> first = coalescer.execute(REQUEST, handler);
+        ListenableFuture<String> second = coalescer.execute(prepareGet().setUri(URI.create("http://example.com/test")).build(), handler);
+        assertEquals(sender.getRequests().size(), 1);
+        assertEquals(coalescer.getInFlightRequests(), 1);
+
+        sender.getPending(0).set("value");
+        assertEquals(first.get(), "value");
+        assertEquals(second.get(), "value");
+        assertEquals(stats.getCoalescedRequest().getCount(), 1);
+        assertEquals(coalescer.getInFlightRequests(), 0);
+
+        // once the request completes, the next one is sent again
+        coalescer.execute(REQUEST, handler);
+        assertEquals(sender.getRequests().size(), 2);
+    }
+
+    @Test
+    public void testDifferentRequestsNotCoalesced()
+    {
+        RequestCoalescer coalescer = new RequestCoalescer(COALESCE_CONFIG, stats, ticker, sender);
+
+        coalescer.execute(REQUEST, handler);
+        coalescer.execute(Request.Builder.fromRequest(REQUEST).setHeader("Accept", "text/plain").build(), handler);
+        coalescer.execute(Request.Builder.fromRequest(REQUEST).setUri(URI.create("http://example.com/other")).build(), handler);
+        coalescer.execute(REQUEST, new ValueHandler());
+        assertEquals(sender.getRequests().size(), 4);
+        assertEquals(stats.getCoalescedRequest().getCount(), 0);
+    }
+
+    @Test
+    public void testJsonRequestsCoalesced()
+            throws Exception
+    {
+        RequestCoalescer coalescer = new RequestCoalescer(COALESCE_CONFIG, stats, ticker, sender);
+        JsonCodec<String> codec = jsonCodec(String.class);
+
+        ListenableFuture<String> first = coalescer.execute(REQUEST, createJsonResponseHandler(codec));
+        ListenableFuture<String> second = coalescer.execute(REQUEST, createJsonResponseHandler(codec));
+        assertEquals(sender.getRequests().size(), 1);
+        assertEquals(stats.getCoalescedRequest().getCount(), 1);
+
+        sender.getPending(0).set("value");
+        assertEquals(first.get(), "value");
+        assertEquals(second.get(), "value");
+
+        // other handler types and other codecs may parse the response differently
+        coalescer.execute(REQUEST, createFullJsonResponseHandler(codec));
+        coalescer.execute(REQUEST, createJsonResponseHandler(jsonCodec(String.class)));
+        assertEquals(sender.getRequests().size(), 3);
+    }
+
+    @Test
+    public void testFailureSharedByWaiters()
+            throws Exception
+    {
+        RequestCoalescer coalescer = new RequestCoalescer(COALESCE_CONFIG, stats, ticker, sender);
+
+        ListenableFuture<String> first = coalescer.execute(REQUEST, handler);
+        ListenableFuture<String> second = coalescer.execute(REQUEST, handler);
+        IOException exception = new IOException("failed");
+        sender.getPending(0).setException(exception);
+
+        for (ListenableFuture<String> future : ImmutableList.of(first, second)) {
+            try {
+                future.get();
+                fail("expected ExecutionException");
+            }
+            catch (ExecutionException e) {
+                assertSame(e.getCause(), exception);
+            }
+        }
+        assertEquals(coalescer.getInFlightRequests(), 0);
+    }
+
+    @Test
+    public void testRequestCancelledWhenAllWaitersCancel()
+            throws Exception
+    {
+        RequestCoalescer coalescer = new RequestCoalescer(COALESCE_CONFIG, stats, ticker, sender);
+
+        ListenableFuture<String> first = coalescer.execute(REQUEST, handler);
+        ListenableFuture<String> second = coalescer.execute(REQUEST, handler);
+
+        first.cancel(true);
+        assertFalse(sender.getPending(0).isCancelled());
+
+        second.cancel(true);
+        assertTrue(sender.getPending(0).isCancelled());
+
+        // a new caller does not join the cancelled request
+        ListenableFuture<String> third = coalescer.execute(REQUEST, handler);
+        assertEquals(sender.getRequests().size(), 2);
+        sender.getPending(1).set("value");
+        assertEquals(third.get(), "value");
+    }
+
+    @Test
+    public void testCancelledWaiterDoesNotAffectOthers()
+            throws Exception
+    {
+        RequestCoalescer coalescer = new RequestCoalescer(COALESCE_CONFIG, stats, ticker, sender);
+
+        ListenableFuture<String> first = coalescer.execute(REQUEST, handler);
+        ListenableFuture<String> second = coalescer.execute(REQUEST, handler);
+        first.cancel(true);
+        sender.getPending(0).set("value");
+
+        assertTrue(first.isCancelled());
+        assertEquals(second.get(), "value");
+    }
+
+    @Test
+    public void testCacheHonorsMaxAge()
+            throws Exception
+    {
+        RequestCoalescer coalescer = new RequestCoalescer(CACHE_CONFIG, stats, ticker, sender);
+
+        sender.respond(new TestingResponse(200, "first").setHeader("Cache-Control", "public, max-age=10"));
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "first");
+
+        ticker.advance(9, TimeUnit.SECONDS);
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "first");
+        assertEquals(sender.getRequests().size(), 1);
+        assertEquals(stats.getResponseCacheHit().getCount(), 1);
+
+        ticker.advance(1, TimeUnit.SECONDS);
+        sender.respond(new TestingResponse(200, "second"));
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "second");
+        assertEquals(sender.getRequests().size(), 2);
+    }
+
+    @Test
+    public void testCacheMaxTtl()
+            throws Exception
+    {
+        RequestCoalescer coalescer = new RequestCoalescer(CACHE_CONFIG, stats, ticker, sender);
+
+        sender.respond(new TestingResponse(200, "first").setHeader("Cache-Control", "max-age=3600"));
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "first");
+
+        ticker.advance(1, TimeUnit.MINUTES);
+        sender.respond(new TestingResponse(200, "second"));
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "second");
+    }
+
+    @Test
+    public void testUncacheableResponses()
+            throws Exception
+    {
+        RequestCoalescer coalescer = new RequestCoalescer(CACHE_CONFIG, stats, ticker, sender);
+
+        sender.respond(new TestingResponse(200, "no-store").setHeader("Cache-Control", "no-store, max-age=10"));
+        sender.respond(new TestingResponse(200, "no-header"));
+        sender.respond(new TestingResponse(500, "error").setHeader("Cache-Control", "max-age=10"));
+        sender.respond(new TestingResponse(200, "last"));
+
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "no-store");
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "no-header");
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "error");
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "last");
+        assertEquals(stats.getResponseCacheHit().getCount(), 0);
+    }
+
+    @Test
+    public void testRequestNoCacheBypassesCache()
+            throws Exception
+    {
+        RequestCoalescer coalescer = new RequestCoalescer(CACHE_CONFIG, stats, ticker, sender);
+
+        sender.respond(new TestingResponse(200, "first").setHeader("Cache-Control", "max-age=10"));
+        sender.respond(new TestingResponse(200, "second"));
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "first");
+        assertEquals(coalescer.execute(Request.Builder.fromRequest(REQUEST).setHeader("Cache-Control", "no-cache").build(), handler).get(), "second");
+    }
+
+    @Test
+    public void testETagRevalidation()
+            throws Exception
+    {
+        RequestCoalescer coalescer = new RequestCoalescer(CACHE_CONFIG, stats, ticker, sender);
+
+        sender.respond(new TestingResponse(200, "first").setHeader("ETag", "\"v1\"").setHeader("Cache-Control", "max-age=1"));
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "first");
+        assertTrue(sender.getRequests().get(0).getHeaders().get("If-None-Match").isEmpty());
+
+        // the server confirms the cached result is still current
+        ticker.advance(1, TimeUnit.SECONDS);
+        sender.respond(new TestingResponse(304, null));
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "first");
+        assertEquals(sender.getRequests().get(1).getHeaders().get("If-None-Match"), ImmutableList.of("\"v1\""));
+        assertEquals(stats.getResponseCacheRevalidation().getCount(), 1);
+
+        // the 304 restarted the max-age of the cached result
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "first");
+        assertEquals(sender.getRequests().size(), 2);
+
+        // the result changed
+        ticker.advance(1, TimeUnit.SECONDS);
+        sender.respond(new TestingResponse(200, "second").setHeader("ETag", "\"v2\"").setHeader("Cache-Control", "no-cache"));
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "second");
+
+        // no-cache results are revalidated on every use
+        sender.respond(new TestingResponse(304, null));
+        assertEquals(coalescer.execute(REQUEST, handler).get(), "second");
+        assertEquals(sender.getRequests().get(3).getHeaders().get("If-None-Match"), ImmutableList.of("\"v2\""));
+        assertEquals(stats.getResponseCacheRevalidation().getCount(), 2);
+    }
+
+    @Test
+    public void testAsyncHttpClientCoalescesRequests()
+            throws Exception
+    {
+        ExecutorService executor = newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).build());
+        try {
+            BlockingHttpClient delegate = new BlockingHttpClient();
+            AsyncHttpClient client = new AsyncHttpClient(delegate, executor, ImmutableSet.<HttpRequestFilter>of(), new HttpRetryConfig(), COALESCE_CONFIG);
+
+            StatusCodeHandler statusCodeHandler = new StatusCodeHandler();
+            List<ListenableFuture<Integer>> futures = new LinkedList<ListenableFuture<Integer>>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(client.execute(REQUEST, statusCodeHandler));
+            }
+            assertTrue(delegate.started.await(1, TimeUnit.SECONDS));
+            delegate.release.countDown();
+
+            for (ListenableFuture<Integer> future : futures) {
+                assertEquals(future.get(1, TimeUnit.SECONDS).intValue(), 200);
+            }
+            assertEquals(delegate.calls.get(), 1);
+            assertEquals(client.getStats().getCoalescedRequest().getCount(), 9);
+
+            // requests with a body are never coalesced
+            Request post = Request.Builder.preparePost().setUri(REQUEST.getUri()).build();
+            client.execute(post, statusCodeHandler).get(1, TimeUnit.SECONDS);
+            client.execute(post, statusCodeHandler).get(1, TimeUnit.SECONDS);
+            assertEquals(delegate.calls.get(), 3);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class ValueHandler implements ResponseHandler<String, RuntimeException>
+    {
+        @Override
+        public RuntimeException handleException(Request request, Exception exception)
+        {
+            throw new RuntimeException(exception);
+        }
+
+        @Override
+        public String handle(Request request, Response response)
+        {
+            return response.getHeader("X-Value");
+        }
+    }
+
+    private static class TestingSender implements RequestCoalescer.RequestSender
+    {
+        private final List<Request> requests = new LinkedList<Request>();
+        private final List<SettableFuture<?>> pending = new LinkedList<SettableFuture<?>>();
+        private final Queue<Response> responses = new LinkedList<Response>();
+
+        public List<Request> getRequests()
+        {
+            return ImmutableList.copyOf(requests);
+        }
+
+        @SuppressWarnings("unchecked")
+        public SettableFuture<String> getPending(int index)
+        {
+            return (SettableFuture<String>) pending.get(index);
+        }
+
+        public void respond(Response response)
+        {
+            responses.add(response);
+        }
+
+        @Override
+        public <T, E extends Exception> ListenableFuture<T> send(Request request, ResponseHandler<T, E> responseHandler)
+        {
+            requests.add(request);
+            Response response = responses.poll();
+            if (response == null) {
+                SettableFuture<T> future = SettableFuture.create();
+                pending.add(future);
+                return future;
+            }
+            try {
+                return Futures.immediateFuture(responseHandler.handle(request, response));
+            }
+            catch (Exception e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        }
+    }
+
+    private static class BlockingHttpClient implements HttpClient
+    {
+        private final RequestStats stats = new RequestStats();
+        private final AtomicInteger calls = new AtomicInteger();
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public RequestStats getStats()
+        {
+            return stats;
+        }
+
+        @Override
+        public <T, E extends Exception> T execute(Request request, ResponseHandler<T, E> responseHandler)
+                throws E
+        {
+            calls.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                throw responseHandler.handleException(request, e);
+            }
+            return responseHandler.handle(request, new TestingResponse(200, null));
+        }
+    }
+
+    private static class TestingResponse implements Response
+    {
+        private final int statusCode;
+        private final ImmutableListMultimap.Builder<String, String> headers = ImmutableListMultimap.builder();
+
+        private TestingResponse(int statusCode, String value)
+        {
+            this.statusCode = statusCode;
+            if (value != null) {
+                headers.put("X-Value", value);
+            }
+        }
+
+        public TestingResponse setHeader(String name, String value)
+        {
+            headers.put(name, value);
+            return this;
+        }
+
+        @Override
+        public int getStatusCode()
+        {
+            return statusCode;
+        }
+
+        @Override
+        public String getStatusMessage()
+        {
+            return null;
+        }
+
+        @Override
+        public String getHeader(String name)
+        {
+            List<String> values = getHeaders().get(name);
+            if (values.isEmpty()) {
+                return null;
+            }
+            return values.get(0);
+        }
+
+        @Override
+        public ListMultimap<String, String> getHeaders()
+        {
+            return headers.build();
+        }
+
+        @Override
+        public long getBytesRead()
+        {
+            return 0;
+        }
+
+        @Override
+        public InputStream getInputStream()
+                throws IOException
+        {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+    }
+}
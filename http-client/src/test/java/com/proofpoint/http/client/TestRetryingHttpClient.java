@@ -0,0 +1,354 @@
+package com.proofpoint.http.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.proofpoint.units.Duration;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import static com.proofpoint.http.client.Request.Builder.prepareGet;
+import static com.proofpoint.http.client.Request.Builder.preparePost;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestRetryingHttpClient
+{
+    private static final HttpRetryConfig CONFIG = new HttpRetryConfig()
+            .setMinBackoff(new Duration(0, TimeUnit.MILLISECONDS));
+
+    @Test
+    public void testRetryConnectFailure()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(new ConnectException("refused"), 200);
+        RetryingHttpClient client = new RetryingHttpClient(delegate, CONFIG);
+
+        Request request = prepareGet().setUri(URI.create("http://example.com/test")).build();
+        assertEquals(client.execute(request, new StatusCodeHandler()).intValue(), 200);
+        assertEquals(delegate.getRequests().size(), 2);
+        assertEquals(client.getStats().getRetry().getCount(), 1);
+    }
+
+    @Test
+    public void testRetryUnavailableResponse()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(503, 503, 200);
+        RetryingHttpClient client = new RetryingHttpClient(delegate, CONFIG);
+
+        Request request = prepareGet().setUri(URI.create("http://example.com/test")).build();
+        assertEquals(client.execute(request, new StatusCodeHandler()).intValue(), 200);
+        assertEquals(delegate.getRequests().size(), 3);
+    }
+
+    @Test
+    public void testLastResponseReturned()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(503, 503, 503);
+        RetryingHttpClient client = new RetryingHttpClient(delegate, CONFIG);
+
+        Request request = prepareGet().setUri(URI.create("http://example.com/test")).build();
+        assertEquals(client.execute(request, new StatusCodeHandler()).intValue(), 503);
+        assertEquals(delegate.getRequests().size(), 3);
+    }
+
+    @Test
+    public void testLastFailureThrown()
+            throws Exception
+    {
+        IOException failure = new ConnectException("refused");
+        ScriptedHttpClient delegate = new ScriptedHttpClient(new ConnectException("refused"), new ConnectException("refused"), failure);
+        RetryingHttpClient client = new RetryingHttpClient(delegate, CONFIG);
+
+        Request request = prepareGet().setUri(URI.create("http://example.com/test")).build();
+        try {
+            client.execute(request, new StatusCodeHandler());
+            fail("expected exception");
+        }
+        catch (Exception e) {
+            assertTrue(e == failure);
+        }
+        assertEquals(delegate.getRequests().size(), 3);
+    }
+
+    @Test
+    public void testNonIdempotentNotRetried()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(503, 200);
+        RetryingHttpClient client = new RetryingHttpClient(delegate, CONFIG);
+
+        Request request = preparePost().setUri(URI.create("http://example.com/test")).build();
+        assertEquals(client.execute(request, new StatusCodeHandler()).intValue(), 503);
+        assertEquals(delegate.getRequests().size(), 1);
+    }
+
+    @Test
+    public void testRetryBudget()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(503, 503, 200, 503, 200);
+        RetryingHttpClient client = new RetryingHttpClient(delegate, new HttpRetryConfig()
+                .setMinBackoff(new Duration(0, TimeUnit.MILLISECONDS))
+                .setBudgetReserve(2)
+                .setBudgetRatio(0));
+
+        Request request = prepareGet().setUri(URI.create("http://example.com/test")).build();
+        assertEquals(client.execute(request, new StatusCodeHandler()).intValue(), 200);
+
+        // budget is used up, so the error response goes straight to the caller
+        assertEquals(client.execute(request, new StatusCodeHandler()).intValue(), 503);
+        assertEquals(delegate.getRequests().size(), 4);
+        assertEquals(client.getStats().getRetryBudgetExhausted().getCount(), 1);
+    }
+
+    @Test
+    public void testFailoverAcrossInstances()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(new ConnectException("refused"), 200);
+        RetryingHttpClient client = new RetryingHttpClient(delegate, CONFIG, new ServiceUriSelector()
+        {
+            @Override
+            public List<URI> selectInstanceUris()
+            {
+                return ImmutableList.of(URI.create("http://a.example.com/"), URI.create("http://b.example.com/"));
+            }
+        });
+
+        Request request = prepareGet().setUri(URI.create("v1/test")).build();
+        assertEquals(client.execute(request, new StatusCodeHandler()).intValue(), 200);
+        assertEquals(delegate.getRequests().get(0).getUri(), URI.create("http://a.example.com/v1/test"));
+        assertEquals(delegate.getRequests().get(1).getUri(), URI.create("http://b.example.com/v1/test"));
+    }
+
+    @Test
+    public void testNoInstances()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient();
+        RetryingHttpClient client = new RetryingHttpClient(delegate, CONFIG, new ServiceUriSelector()
+        {
+            @Override
+            public List<URI> selectInstanceUris()
+            {
+                return ImmutableList.of();
+            }
+        });
+
+        Request request = prepareGet().setUri(URI.create("v1/test")).build();
+        try {
+            client.execute(request, new StatusCodeHandler());
+            fail("expected exception");
+        }
+        catch (ServiceUnavailableException expected) {
+        }
+    }
+
+    @Test
+    public void testHandlerExceptionNotRetried()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(200, 200);
+        RetryingHttpClient client = new RetryingHttpClient(delegate, CONFIG);
+
+        final IllegalStateException failure = new IllegalStateException();
+        Request request = prepareGet().setUri(URI.create("http://example.com/test")).build();
+        try {
+            client.execute(request, new StatusCodeHandler()
+            {
+                @Override
+                public Integer handle(Request request, Response response)
+                {
+                    throw failure;
+                }
+            });
+            fail("expected exception");
+        }
+        catch (IllegalStateException e) {
+            assertTrue(e == failure);
+        }
+        assertEquals(delegate.getRequests().size(), 1);
+    }
+
+    @Test
+    public void testAttemptsShareTimeout()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(new ConnectException("refused"), 200);
+        RetryingHttpClient client = new RetryingHttpClient(delegate, new HttpRetryConfig()
+                .setMinBackoff(new Duration(20, TimeUnit.MILLISECONDS))
+                .setMaxBackoff(new Duration(20, TimeUnit.MILLISECONDS)));
+
+        Duration timeout = new Duration(10, TimeUnit.SECONDS);
+        Request request = prepareGet().setUri(URI.create("http://example.com/test")).setTimeout(timeout).build();
+        assertEquals(client.execute(request, new StatusCodeHandler()).intValue(), 200);
+
+        List<Request> requests = delegate.getRequests();
+        assertTrue(requests.get(0).getTimeout().compareTo(timeout) <= 0);
+        assertTrue(requests.get(1).getTimeout().compareTo(requests.get(0).getTimeout()) < 0);
+    }
+
+    @Test
+    public void testCancelledNotRetried()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(new RequestCancelledException("cancelled"), 200);
+        RetryingHttpClient client = new RetryingHttpClient(delegate, CONFIG);
+
+        Request request = prepareGet().setUri(URI.create("http://example.com/test")).build();
+        try {
+            client.execute(request, new StatusCodeHandler());
+            fail("expected exception");
+        }
+        catch (RequestCancelledException expected) {
+        }
+        assertEquals(delegate.getRequests().size(), 1);
+    }
+
+    @Test
+    public void testDeadlineExceededNotRetried()
+            throws Exception
+    {
+        ScriptedHttpClient delegate = new ScriptedHttpClient(new DeadlineExceededException("too slow"), 200);
+        RetryingHttpClient client = new RetryingHttpClient(delegate, CONFIG);
+
+        Request request = prepareGet().setUri(URI.create("http://example.com/test")).build();
+        try {
+            client.execute(request, new StatusCodeHandler());
+            fail("expected exception");
+        }
+        catch (DeadlineExceededException expected) {
+        }
+        assertEquals(delegate.getRequests().size(), 1);
+    }
+
+    static class StatusCodeHandler implements ResponseHandler<Integer, Exception>
+    {
+        @Override
+        public Exception handleException(Request request, Exception exception)
+        {
+            return exception;
+        }
+
+        @Override
+        public Integer handle(Request request, Response response)
+                throws Exception
+        {
+            return response.getStatusCode();
+        }
+    }
+
+    /**
+     * Answers each request with the next scripted status code or exception.
+     */
+    static class ScriptedHttpClient implements HttpClient
+    {
+        private final RequestStats stats = new RequestStats();
+        private final Queue<Object> script = new LinkedList<Object>();
+        private final List<Request> requests = new LinkedList<Request>();
+
+        ScriptedHttpClient(Object... script)
+        {
+            this.script.addAll(ImmutableList.copyOf(script));
+        }
+
+        public synchronized List<Request> getRequests()
+        {
+            return ImmutableList.copyOf(requests);
+        }
+
+        @Override
+        public RequestStats getStats()
+        {
+            return stats;
+        }
+
+        @Override
+        public <T, E extends Exception> T execute(Request request, ResponseHandler<T, E> responseHandler)
+                throws E
+        {
+            Object next;
+            synchronized (this) {
+                requests.add(request);
+                next = script.remove();
+            }
+            if (next instanceof Exception) {
+                throw responseHandler.handleException(request, (Exception) next);
+            }
+            if (next instanceof Response) {
+                return responseHandler.handle(request, (Response) next);
+            }
+            return responseHandler.handle(request, new StatusResponse((Integer) next));
+        }
+    }
+
+    static class StatusResponse implements Response
+    {
+        private final int statusCode;
+        private final String statusMessage;
+        private final ListMultimap<String, String> headers;
+
+        private StatusResponse(int statusCode)
+        {
+            this(statusCode, null, ImmutableListMultimap.<String, String>of());
+        }
+
+        StatusResponse(int statusCode, String statusMessage, ListMultimap<String, String> headers)
+        {
+            this.statusCode = statusCode;
+            this.statusMessage = statusMessage;
+            this.headers = headers;
+        }
+
+        @Override
+        public int getStatusCode()
+        {
+            return statusCode;
+        }
+
+        @Override
+        public String getStatusMessage()
+        {
+            return statusMessage;
+        }
+
+        @Override
+        public String getHeader(String name)
+        {
+            List<String> values = headers.get(name);
+            return values.isEmpty() ? null : values.get(0);
+        }
+
+        @Override
+        public ListMultimap<String, String> getHeaders()
+        {
+            return headers;
+        }
+
+        @Override
+        public long getBytesRead()
+        {
+            return 0;
+        }
+
+        @Override
+        public InputStream getInputStream()
+                throws IOException
+        {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+    }
+}
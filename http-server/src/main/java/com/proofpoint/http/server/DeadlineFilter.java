@@ -0,0 +1,78 @@
+package com.proofpoint.http.server;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Rejects requests whose client has already given up waiting, based on the
+ * number of milliseconds the client sent in the X-Proofpoint-Deadline header.
+ * For accepted requests, the deadline in epoch milliseconds is stored in the
+ * {@link #DEADLINE} request attribute so that resources can stop work that
+ * will not finish in time.
+ */
+class DeadlineFilter
+        implements Filter
+{
+    public static final String DEADLINE = DeadlineFilter.class.getName() + ".DEADLINE";
+
+    @Override
+    public void init(FilterConfig filterConfig)
+            throws ServletException
+    {
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException
+    {
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+        Long deadline = getDeadline(request);
+        if (deadline != null) {
+            if (deadline <= System.currentTimeMillis()) {
+                // lets clients tell this apart from an overloaded server
+                response.setHeader("X-Proofpoint-Deadline-Exceeded", "true");
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Deadline exceeded");
+                return;
+            }
+            request.setAttribute(DEADLINE, deadline);
+        }
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+    private static Long getDeadline(HttpServletRequest request)
+    {
+        String header = request.getHeader("X-Proofpoint-Deadline");
+        if (header == null) {
+            return null;
+        }
+
+        long remainingMillis;
+        try {
+            remainingMillis = Long.parseLong(header.trim());
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+
+        // count the time the request spent queued in the server
+        long receivedTime = System.currentTimeMillis();
+        if (request instanceof org.eclipse.jetty.server.Request) {
+            receivedTime = ((org.eclipse.jetty.server.Request) request).getTimeStamp();
+        }
+        return receivedTime + remainingMillis;
+    }
+}
@@ -58,6 +58,8 @@ import static java.lang.String.format;
 public class HttpServer
 {
     private final Server server;
+    private final QueuedThreadPool threadPool;
+    private final StatisticsHandler statsHandler;
 
     @SuppressWarnings({"deprecation"})
     public HttpServer(HttpServerInfo httpServerInfo,
@@ -166,6 +168,7 @@ public class HttpServer
          *    |--- statistics handler
          *           |--- context handler
          *           |       |--- trace token filter
+         *           |       |--- deadline filter
          *           |       |--- gzip response filter
          *           |       |--- gzip request filter
          *           |       |--- security handler
@@ -198,6 +201,33 @@ public class HttpServer
         server.setHandler(rootHandlers);
 
         this.server = server;
+        this.threadPool = threadPool;
+        this.statsHandler = statsHandler;
+    }
+
+    /**
+     * Returns the number of requests the server is handling.
+     */
+    public int getActiveRequests()
+    {
+        return statsHandler.getRequestsActive();
+    }
+
+    /**
+     * Returns the maximum number of worker threads.
+     */
+    public int getMaxThreads()
+    {
+        return threadPool.getMaxThreads();
+    }
+
+    /**
+     * Returns the fraction of the maximum number of worker threads that are
+     * busy.
+     */
+    public double getThreadPoolUtilization()
+    {
+        return (threadPool.getThreads() - threadPool.getIdleThreads()) / (double) threadPool.getMaxThreads();
     }
 
     private static ServletContextHandler createServletContext(Servlet theServlet,
@@ -213,6 +243,8 @@ public class HttpServer
         if (tokenManager != null) {
             context.addFilter(new FilterHolder(new TraceTokenFilter(tokenManager)), "/*", null);
         }
+        // -- deadline filter
+        context.addFilter(new FilterHolder(new DeadlineFilter()), "/*", null);
 
         // -- gzip response filter
         context.addFilter(GzipFilter.class, "/*", null);
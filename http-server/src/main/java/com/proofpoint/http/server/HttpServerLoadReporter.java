@@ -0,0 +1,37 @@
+package com.proofpoint.http.server;
+
+import com.google.common.base.Preconditions;
+import com.proofpoint.discovery.client.LoadReporter;
+
+import javax.inject.Inject;
+
+/**
+ * Reports the load of the http server as the highest of the fraction of
+ * worker threads handling requests, the fraction of worker threads that are
+ * busy and the fraction of recent requests that failed with a 5xx response.
+ */
+public class HttpServerLoadReporter
+        implements LoadReporter
+{
+    private final HttpServer httpServer;
+    private final RequestStats stats;
+
+    @Inject
+    public HttpServerLoadReporter(HttpServer httpServer, RequestStats stats)
+    {
+        Preconditions.checkNotNull(httpServer, "httpServer is null");
+        Preconditions.checkNotNull(stats, "stats is null");
+
+        this.httpServer = httpServer;
+        this.stats = stats;
+    }
+
+    @Override
+    public double getLoad()
+    {
+        double activeRequests = httpServer.getActiveRequests() / (double) httpServer.getMaxThreads();
+        double load = Math.max(activeRequests, httpServer.getThreadPoolUtilization());
+        load = Math.max(load, stats.getServerErrorRatio());
+        return Math.max(0, Math.min(1, load));
+    }
+}
@@ -21,6 +21,7 @@ import com.google.inject.Scopes;
 import com.google.inject.multibindings.Multibinder;
 import com.proofpoint.configuration.ConfigurationModule;
 import com.proofpoint.discovery.client.AnnouncementHttpServerInfo;
+import com.proofpoint.discovery.client.LoadReporter;
 import com.proofpoint.event.client.EventBinder;
 import org.weakref.jmx.guice.MBeanModule;
 
@@ -71,5 +72,9 @@ public class HttpServerModule
         eventBinder(binder).bindEventClient(HttpRequestEvent.class);
 
         binder.bind(AnnouncementHttpServerInfo.class).to(LocalAnnouncementHttpServerInfo.class).in(Scopes.SINGLETON);
+
+        // announce the load of the server with its services
+        binder.bind(HttpServerLoadReporter.class).in(Scopes.SINGLETON);
+        Multibinder.newSetBinder(binder, LoadReporter.class).addBinding().to(HttpServerLoadReporter.class);
     }
 }
@@ -17,6 +17,7 @@ import java.util.concurrent.ScheduledThreadPoolExecutor;
 public class RequestStats
 {
     private final CounterStat request;
+    private final CounterStat serverError;
     private final TimedStat requestTime;
     private final MeterStat readBytes;
     private final MeterStat writtenBytes;
@@ -28,11 +29,13 @@ public class RequestStats
         executor = new ScheduledThreadPoolExecutor(2, new ThreadFactoryBuilder().setNameFormat("RequestStatsTicker-%s").setDaemon(true).build());
 
         request = new CounterStat(executor);
+        serverError = new CounterStat(executor);
         requestTime = new TimedStat();
         readBytes = new MeterStat(executor);
         writtenBytes = new MeterStat(executor);
 
         request.start();
+        serverError.start();
         readBytes.start();
         writtenBytes.start();
     }
@@ -41,6 +44,7 @@ public class RequestStats
     public void shutdown()
     {
         request.stop();
+        serverError.stop();
         readBytes.stop();
         writtenBytes.stop();
         executor.shutdown();
@@ -49,6 +53,9 @@ public class RequestStats
     public void record(String method, int responseCode, long requestSizeInBytes, long responseSizeInBytes, Duration schedulingDelay, Duration requestProcessingTime)
     {
         request.update(1);
+        if (responseCode / 100 == 5) {
+            serverError.update(1);
+        }
         requestTime.addValue(requestProcessingTime);
         readBytes.update(requestSizeInBytes);
         writtenBytes.update(responseSizeInBytes);
@@ -61,6 +68,23 @@ public class RequestStats
         return request;
     }
 
+    @Managed
+    @Nested
+    public CounterStat getServerError()
+    {
+        return serverError;
+    }
+
+    @Managed(description = "Fraction of the requests in the last minute that failed with a 5xx response")
+    public double getServerErrorRatio()
+    {
+        double requestRate = request.getOneMinuteRate();
+        if (requestRate <= 0) {
+            return 0;
+        }
+        return Math.min(1, serverError.getOneMinuteRate() / requestRate);
+    }
+
     @Managed
     @Nested
     public TimedStat getRequestTime()
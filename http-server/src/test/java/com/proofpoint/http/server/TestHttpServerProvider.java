@@ -21,11 +21,13 @@ import com.google.common.io.Files;
 import com.proofpoint.event.client.NullEventClient;
 import com.proofpoint.http.client.ApacheHttpClient;
 import com.proofpoint.http.client.HttpClient;
+import com.proofpoint.http.client.HttpClientConfig;
 import com.proofpoint.http.client.StatusResponseHandler.StatusResponse;
 import com.proofpoint.http.client.StringResponseHandler.StringResponse;
 import com.proofpoint.node.NodeInfo;
 import com.proofpoint.testing.FileUtils;
 import com.proofpoint.tracetoken.TraceTokenManager;
+import com.proofpoint.units.Duration;
 import org.apache.commons.codec.binary.Base64;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
@@ -37,6 +39,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.URI;
+import java.util.concurrent.TimeUnit;
 
 import static com.proofpoint.http.client.Request.Builder.prepareGet;
 import static com.proofpoint.http.client.StatusResponseHandler.createStatusResponseHandler;
@@ -48,6 +51,7 @@ import static org.testng.Assert.fail;
 public class TestHttpServerProvider
 {
     private HttpServer server;
+    private RequestStats stats;
     private File tempDir;
     private NodeInfo nodeInfo;
     private HttpServerConfig config;
@@ -92,6 +96,21 @@ public class TestHttpServerProvider
         assertEquals(response.getStatusCode(), HttpServletResponse.SC_OK);
     }
 
+    @Test
+    public void testLoad()
+            throws Exception
+    {
+        createServer();
+        server.start();
+
+        HttpClient client = new ApacheHttpClient();
+        client.execute(prepareGet().setUri(httpServerInfo.getHttpUri()).build(), createStatusResponseHandler());
+
+        assertEquals(server.getActiveRequests(), 0);
+        double load = new HttpServerLoadReporter(server, stats).getLoad();
+        assertTrue(load >= 0 && load < 0.5, "load is " + load);
+    }
+
     @Test
     public void testFilter()
             throws Exception
@@ -153,8 +172,46 @@ public class TestHttpServerProvider
         assertEquals(response.getBody(), "user");
     }
 
+    @Test
+    public void testDeadlineExceeded()
+            throws Exception
+    {
+        createServer();
+        server.start();
+
+        HttpClient client = new ApacheHttpClient();
+        StatusResponse response = client.execute(
+                prepareGet()
+                        .setUri(httpServerInfo.getHttpUri())
+                        .addHeader(ApacheHttpClient.DEADLINE_HEADER, "0")
+                        .build(),
+                createStatusResponseHandler());
+
+        assertEquals(response.getStatusCode(), HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        assertEquals(response.getHeader(ApacheHttpClient.DEADLINE_EXCEEDED_HEADER), "true");
+    }
+
+    @Test
+    public void testDeadlinePropagated()
+            throws Exception
+    {
+        createServer();
+        server.start();
+
+        HttpClient client = new ApacheHttpClient(new HttpClientConfig().setPropagateDeadline(true));
+        StatusResponse response = client.execute(
+                prepareGet()
+                        .setUri(httpServerInfo.getHttpUri())
+                        .setTimeout(new Duration(10, TimeUnit.SECONDS))
+                        .build(),
+                createStatusResponseHandler());
+
+        assertEquals(response.getStatusCode(), HttpServletResponse.SC_OK);
+    }
+
     private void createServer()
     {
+        stats = new RequestStats();
         HashLoginServiceProvider loginServiceProvider = new HashLoginServiceProvider(config);
         HttpServerProvider serverProvider = new HttpServerProvider(httpServerInfo,
                 nodeInfo,
@@ -162,7 +219,7 @@ public class TestHttpServerProvider
                 new DummyServlet(),
                 ImmutableSet.<Filter>of(new DummyFilter()),
                 ImmutableSet.<Filter>of(),
-                new RequestStats(),
+                stats,
                 new NullEventClient());
         serverProvider.setLoginService(loginServiceProvider.get());
         serverProvider.setTokenManager(new TraceTokenManager());